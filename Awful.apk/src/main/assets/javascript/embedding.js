@@ -2,6 +2,19 @@
 
 var listener;
 
+/**
+ * Embed html that's already been looked up this session, keyed by URL
+ */
+window.embedCache = {};
+/**
+ * Links waiting on an embed lookup, keyed by URL
+ */
+window.pendingEmbeds = {};
+/**
+ * URLs found since the last lookup request
+ */
+window.embedRequestUrls = [];
+
 /**
  * Toggles the video playing class
  * @param {Event} event the playing/pause event
@@ -28,7 +41,7 @@ function processThreadEmbeds(replacementArea) {
 
 	// check all embed preference keys - any set to true, run their embed function
 	for (var embedType in embedFunctions) {
-		if (listener.getPreference(embedType) === 'true') {
+		if (getPreference(embedType) === 'true') {
 			embedFunctions[embedType].call(replacementArea);
 		}
 	}
@@ -49,12 +62,11 @@ function processThreadEmbeds(replacementArea) {
 				document.body.appendChild(instagramEmbedScript);
 			}
 			instagrams.forEach(function eachInstagramLink(instagramLink) {
-				var instaUrl = instagramLink.href;
-				fetch('https://api.instagram.com/oembed?omitscript=true&url=' + escape(instaUrl)).then(function parseResponse(response) {
-					return response.json();
-				}).then(function getInstagrams(data) {
-					instagramLink.outerHTML = data.html;
-					window.requestAnimationFrame(window.instgrm.Embeds.process);
+				requestEmbed(instagramLink, function showInstagram(link, html) {
+					link.outerHTML = html;
+					if (window.instgrm) {
+						window.requestAnimationFrame(window.instgrm.Embeds.process);
+					}
 				});
 			});
 		}
@@ -100,12 +112,11 @@ function processThreadEmbeds(replacementArea) {
 		}, []);
 
 		tweets.forEach(function eachTweet(tweet) {
-			var tweetUrl = tweet.href;
-			JSONP.get('https://publish.twitter.com/oembed?omit_script=true&url=' + escape(tweetUrl), {}, function getTworts(data) {
+			requestEmbed(tweet, function showTweet(link, html) {
 				var div = document.createElement('div');
 				div.classList.add('tweet');
-				tweet.parentNode.replaceChild(div, tweet);
-				div.innerHTML = data.html;
+				link.parentNode.replaceChild(div, link);
+				div.innerHTML = html;
 				if (document.getElementById('theme-css').dataset.darkTheme === 'true') {
 					div.querySelector('blockquote').dataset.theme = 'dark';
 				}
@@ -243,3 +254,67 @@ function processThreadEmbeds(replacementArea) {
 		return !nmws && !spoileredElement;
 	}
 }
+
+/**
+ * Replaces a link with its embed html, once the app has looked it up.
+ * Links found in the same pass over the page are looked up with a single request.
+ * @param {Element} link The link to replace
+ * @param {Function} showEmbed Called with the link and the embed html, to put the embed on the page
+ */
+function requestEmbed(link, showEmbed) {
+	var url = link.href;
+	if (window.embedCache[url]) {
+		showEmbed(link, window.embedCache[url]);
+		return;
+	}
+	if (!window.pendingEmbeds[url]) {
+		window.pendingEmbeds[url] = [];
+		window.embedRequestUrls.push(url);
+	}
+	window.pendingEmbeds[url].push({
+		link: link,
+		showEmbed: showEmbed
+	});
+	if (!window.embedRequestTimeout) {
+		window.embedRequestTimeout = window.setTimeout(sendEmbedRequest, 0);
+	}
+}
+
+/**
+ * Asks the app for the embeds for all the URLs found since the last request
+ */
+function sendEmbedRequest() {
+	window.embedRequestTimeout = null;
+	if (window.embedRequestUrls.length > 0) {
+		listener.requestEmbeds(JSON.stringify(window.embedRequestUrls));
+		window.embedRequestUrls = [];
+	}
+}
+
+/**
+ * Applies any embeds the app has looked up, replacing the links that are waiting on them
+ */
+function applyEmbeds() {
+	var embeds = listener.takeEmbeds();
+	while (embeds) {
+		JSON.parse(embeds).forEach(function eachEmbed(embed) {
+			window.embedCache[embed.url] = embed.html;
+			(window.pendingEmbeds[embed.url] || []).forEach(function eachWaitingLink(waiting) {
+				// the page might have been reloaded since it asked
+				if (waiting.link.isConnected) {
+					waiting.showEmbed(waiting.link, embed.html);
+				}
+			});
+			delete window.pendingEmbeds[embed.url];
+		});
+		embeds = listener.takeEmbeds();
+	}
+}
+
+/**
+ * Forgets about any links waiting on embeds, e.g. when the page content is replaced
+ */
+function resetEmbeds() {
+	window.pendingEmbeds = {};
+	window.embedRequestUrls = [];
+}
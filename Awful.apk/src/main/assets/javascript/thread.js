@@ -1,10 +1,20 @@
 'use strict';
 
+/**
+ * Pages with more posts than this only render the posts near the viewport
+ */
+var VIRTUAL_POSTS_MIN_COUNT = 10;
+/**
+ * How close to the viewport a post's content needs to be for it to be rendered
+ */
+var VIRTUAL_POSTS_MARGIN = '150% 0px';
+
 /**
  * Initializes the container holding all the posts.
  */
 function containerInit() {
 	var container = document.getElementById('container');
+	refreshPreferences();
 
 	// Most click events
 	container.addEventListener('click', function containerClick(event) {
@@ -42,7 +52,7 @@ function containerInit() {
 			target.outerHTML = '<img src="' + target.getAttribute('src') + '" title="' + target.getAttribute('title') + '" />';
 			return;
 		}
-		if (findInPath(event, 'bbc-spoiler') && listener.getPreference('showSpoilers') !== 'true') {
+		if (findInPath(event, 'bbc-spoiler') && getPreference('showSpoilers') !== 'true') {
 			findInPath(event, 'bbc-spoiler', true).classList.toggle('spoiled');
 		}
 	});
@@ -72,7 +82,7 @@ function containerInit() {
 		}
 	}, {passive: true});
 	// Auto-starting of videos
-	if (listener.getPreference('inlineWebm') === 'true' && listener.getPreference('autostartWebm') === 'true') {
+	if (getPreference('inlineWebm') === 'true' && getPreference('autostartWebm') === 'true') {
 		var debouncedVideosScrollListener = debounce(pauseVideosOutOfView, 250);
 
 		window.addEventListener('scroll', function containerScroll() {
@@ -88,6 +98,30 @@ function containerInit() {
 	loadPageHtml();
 }
 
+/**
+ * Gets a preference value from the cached snapshot, fetching it if there isn't one yet
+ * @param {String} key The name of the preference
+ * @returns {String|undefined} The preference's value
+ */
+function getPreference(key) {
+	if (!window.preferences) {
+		refreshPreferences();
+	}
+	return window.preferences[key];
+}
+
+/**
+ * Fetches a new preference snapshot over the bridge, if the preferences have changed since the last one
+ */
+function refreshPreferences() {
+	var version = listener.getPreferencesVersion();
+	if (window.preferences && window.preferencesVersion === version) {
+		return;
+	}
+	window.preferences = JSON.parse(listener.getPreferences());
+	window.preferencesVersion = version;
+}
+
 /**
  * This message tries to find a css class in the path of an event
  * @param {Event} event Initiating user event
@@ -114,8 +148,26 @@ function loadPageHtml() {
 	window.topScrollItem = null;
 	window.topScrollPos = 0;
 	window.topScrollCount = 0;
+	refreshPreferences();
 	var html = listener.getBodyHtml();
-	document.getElementById('container').innerHTML = html;
+	var container = document.getElementById('container');
+	if (window.virtualPostObserver) {
+		window.virtualPostObserver.disconnect();
+	}
+	resetEmbeds();
+	// parse the posts in a template first, so nothing starts loading until they're ready to display
+	var template = document.createElement('template');
+	template.innerHTML = html;
+	var posts = template.content.querySelectorAll('article.post');
+	// this might only be the first few posts, with the rest of the page on its way
+	var pageContent = template.content.querySelector('.content');
+	var postCount = Math.max(posts.length, pageContent ? Number(pageContent.dataset.postCount) || 0 : 0);
+	window.virtualPosts = 'IntersectionObserver' in window && postCount > VIRTUAL_POSTS_MIN_COUNT;
+	if (window.virtualPosts) {
+		posts.forEach(virtualizePost);
+	}
+	container.innerHTML = '';
+	container.appendChild(template.content);
 	if (!html) {
 		return;
 	}
@@ -132,17 +184,6 @@ function loadPageHtml() {
  * Initializes the newly added posts that have just been added to the container
  */
 function pageInit() {
-	document.head.querySelectorAll('.JSONP').forEach(function removeScripts(script) {
-		script.remove();
-	});
-	var spoilers = document.body.querySelectorAll('.bbc-spoiler');
-	spoilers.forEach(function each(spoiler) {
-		spoiler.removeAttribute('onmouseover');
-		spoiler.removeAttribute('onmouseout');
-		if (listener.getPreference('showSpoilers') === 'true') {
-			spoiler.classList.remove('bbc-spoiler');
-		}
-	});
 	// hide-old posts
 	if (document.body.querySelector('.toggleread') !== null) {
 		document.body.querySelectorAll('.read').forEach(function each(post) {
@@ -150,13 +191,243 @@ function pageInit() {
 		});
 	}
 
-	processPosts();
+	if (window.virtualPosts) {
+		// posts get processed as they're rendered
+		document.body.querySelectorAll('.postcontent.virtual').forEach(function each(content) {
+			getVirtualPostObserver().observe(content);
+		});
+	} else {
+		processSpoilers(document.body);
+		processPosts();
+	}
 	if (window.twttr && !window.twttr.init) {
 		window.twttr.insertTag();
 	}
 
 }
 
+/**
+ * Applies any pending post updates, replacing posts that are already on the page and adding new ones to the end
+ * (or in front of another post, if the update says so).
+ * Only the updated posts are processed, and the scroll position is left alone.
+ */
+function updatePosts() {
+	refreshPreferences();
+	var update = listener.takePostUpdate();
+	while (update) {
+		var content = document.body.querySelector('#container .content');
+		// if the page hasn't been displayed yet, loading it will show the updated posts anyway
+		if (content) {
+			JSON.parse(update).forEach(function eachPost(post) {
+				updatePost(content, post.id, post.html, post.before);
+			});
+			if (window.twttr && !window.twttr.init) {
+				window.twttr.insertTag();
+			}
+		}
+		update = listener.takePostUpdate();
+	}
+}
+
+/**
+ * Replaces a post with new html, or adds it to the page if it's not already there
+ * @param {Element} content The element holding the page's posts
+ * @param {String} id The id of the post's element
+ * @param {String} html The post's html
+ * @param {String} [before] The id of the post to insert a new post in front of - new posts go at the end without one
+ */
+function updatePost(content, id, html, before) {
+	var template = document.createElement('template');
+	template.innerHTML = html.trim();
+	var newPost = template.content.firstElementChild;
+	if (window.virtualPosts) {
+		virtualizePost(newPost);
+	}
+	var oldPost = document.getElementById(id);
+	var nextPost = before ? document.getElementById(before) : null;
+	if (oldPost) {
+		oldPost.replaceWith(newPost);
+	} else if (nextPost) {
+		// the browser's scroll anchoring keeps the visible posts in place
+		content.insertBefore(newPost, nextPost);
+	} else {
+		var lastPageMarker = content.querySelector(':scope > .unread:not(.post)');
+		content.insertBefore(newPost, lastPageMarker);
+	}
+	if (document.body.querySelector('.toggleread') !== null && newPost.classList.contains('read')) {
+		newPost.style.display = 'none';
+	}
+	if (window.virtualPosts) {
+		getVirtualPostObserver().observe(newPost.querySelector('.postcontent'));
+	} else {
+		processSpoilers(newPost);
+		processPosts(newPost);
+	}
+}
+
+/**
+ * Unloads a post's media, leaving the text in place so find-in-page still works. It gets loaded and processed when
+ * it's near the viewport. Call this before the post is added to the page, so none of its media starts loading.
+ * @param {Element} post The post's article element
+ */
+function virtualizePost(post) {
+	var content = post.querySelector('.postcontent');
+	if (!content) {
+		return;
+	}
+	unloadMedia(content);
+	content.classList.add('virtual');
+}
+
+/**
+ * Gets the observer that loads and unloads post media as it moves in and out of range of the viewport
+ * @returns {IntersectionObserver} The observer
+ */
+function getVirtualPostObserver() {
+	if (!window.virtualPostObserver) {
+		window.virtualPostObserver = new IntersectionObserver(function onIntersect(entries) {
+			entries.forEach(function eachEntry(entry) {
+				if (entry.isIntersecting) {
+					hydratePost(entry.target);
+				} else {
+					dehydratePost(entry.target);
+				}
+			});
+		}, {rootMargin: VIRTUAL_POSTS_MARGIN});
+	}
+	return window.virtualPostObserver;
+}
+
+/**
+ * Loads a virtual post's media, and processes it like a newly added post the first time it's shown
+ * @param {Element} content The post's content element
+ */
+function hydratePost(content) {
+	if (!content.classList.contains('virtual')) {
+		return;
+	}
+	content.classList.remove('virtual');
+	content.style.height = '';
+	content.style.overflow = '';
+	reloadMedia(content);
+	if (!content.dataset.processed) {
+		content.dataset.processed = 'true';
+		var post = content.closest('article');
+		processSpoilers(post);
+		processPosts(post);
+	}
+}
+
+/**
+ * Unloads a post's images, videos and embeds, keeping its size the same so the page doesn't jump around.
+ * Everything else (revealed spoilers, expanded quotes etc.) is left as it is.
+ * @param {Element} content The post's content element
+ */
+function dehydratePost(content) {
+	if (content.classList.contains('virtual')) {
+		return;
+	}
+	content.style.height = content.offsetHeight + 'px';
+	content.style.overflow = 'hidden';
+	unloadMedia(content);
+	content.classList.add('virtual');
+}
+
+/**
+ * Stops an element's images, videos and iframes from loading (or frees them if they're loaded), remembering their
+ * sources so they can be loaded again with reloadMedia. Images that have been laid out keep their size, so they still
+ * take up the same space while they're unloaded.
+ * @param {Element} scopeElement The element containing the media
+ */
+function unloadMedia(scopeElement) {
+	// measure everything before changing any styles, so the layout only gets worked out once
+	var images = scopeElement.querySelectorAll('img[src]');
+	var sizes = Array.prototype.map.call(images, function measure(image) {
+		return {width: image.offsetWidth, height: image.offsetHeight};
+	});
+	images.forEach(function each(image, index) {
+		var size = sizes[index];
+		if (size.height === 0) {
+			return;
+		}
+		if (!image.hasAttribute('data-virtual-width')) {
+			image.dataset.virtualWidth = image.style.width;
+			image.dataset.virtualHeight = image.style.height;
+		}
+		image.style.width = size.width + 'px';
+		image.style.height = size.height + 'px';
+	});
+	scopeElement.querySelectorAll('img[src], video[poster], source[src], video[src], audio[src], iframe[src]').forEach(function each(media) {
+		if (media.hasAttribute('poster')) {
+			media.dataset.virtualPoster = media.getAttribute('poster');
+			media.removeAttribute('poster');
+		}
+		var src = media.getAttribute('src');
+		if (src === null || src === 'about:blank') {
+			return;
+		}
+		media.dataset.virtualSrc = src;
+		if (media.tagName === 'IFRAME') {
+			// removing an iframe's src doesn't unload it
+			media.setAttribute('src', 'about:blank');
+		} else {
+			media.removeAttribute('src');
+		}
+	});
+	scopeElement.querySelectorAll('video, audio').forEach(function each(player) {
+		player.pause();
+		player.load();
+	});
+}
+
+/**
+ * Puts back the media sources removed by unloadMedia
+ * @param {Element} scopeElement The element containing the media
+ */
+function reloadMedia(scopeElement) {
+	scopeElement.querySelectorAll('img[data-virtual-width][data-virtual-src]').forEach(function each(image) {
+		// hold the image's place until it has a size of its own again
+		function restoreSize() {
+			image.removeEventListener('load', restoreSize);
+			image.removeEventListener('error', restoreSize);
+			if (!image.hasAttribute('data-virtual-width')) {
+				return;
+			}
+			image.style.width = image.dataset.virtualWidth;
+			image.style.height = image.dataset.virtualHeight;
+			delete image.dataset.virtualWidth;
+			delete image.dataset.virtualHeight;
+		}
+		image.addEventListener('load', restoreSize);
+		image.addEventListener('error', restoreSize);
+	});
+	scopeElement.querySelectorAll('[data-virtual-poster]').forEach(function each(media) {
+		media.setAttribute('poster', media.dataset.virtualPoster);
+		delete media.dataset.virtualPoster;
+	});
+	scopeElement.querySelectorAll('[data-virtual-src]').forEach(function each(media) {
+		media.setAttribute('src', media.dataset.virtualSrc);
+		delete media.dataset.virtualSrc;
+	});
+	scopeElement.querySelectorAll('video, audio').forEach(function each(player) {
+		player.load();
+	});
+}
+
+/**
+ * Removes the inline spoiler handlers, and reveals spoilers if the user always wants them shown
+ * @param {Element} scopeElement The element containing spoilers to process
+ */
+function processSpoilers(scopeElement) {
+	scopeElement.querySelectorAll('.bbc-spoiler').forEach(function each(spoiler) {
+		spoiler.removeAttribute('onmouseover');
+		spoiler.removeAttribute('onmouseout');
+		if (getPreference('showSpoilers') === 'true') {
+			spoiler.classList.remove('bbc-spoiler');
+		}
+	});
+}
+
 /**
  * Processes posts
  * @param {Element} scopeElement The element containing posts to process
@@ -166,7 +437,7 @@ function processPosts(scopeElement) {
 		scopeElement = document;
 	}
 
-	if (listener.getPreference('hideSignatures') === 'true') {
+	if (getPreference('hideSignatures') === 'true') {
 		scopeElement.querySelectorAll('.postcontent .signature').forEach(function each(signature) {
 			signature.remove();
 		});
@@ -174,19 +445,24 @@ function processPosts(scopeElement) {
 
 	processThreadEmbeds(scopeElement);
 
-	if (listener.getPreference('inlineWebm') === 'true' && listener.getPreference('autostartWebm') === 'true') {
+	if (getPreference('inlineWebm') === 'true' && getPreference('autostartWebm') === 'true') {
 		pauseVideosOutOfView(scopeElement);
 	}
 
-	if (listener.getPreference('highlightUsername') === 'true') {
-		highlightOwnUsername(scopeElement);
+	// the user's mentions and quotes are marked up when posts are parsed, so just remove any unwanted highlights
+	if (getPreference('highlightUsername') !== 'true') {
+		scopeElement.querySelectorAll('.postcontent .usernameHighlight').forEach(function each(mention) {
+			mention.classList.remove('usernameHighlight');
+		});
 	}
 
-	if (listener.getPreference('highlightUserQuote') === 'true') {
-		highlightOwnQuotes(scopeElement);
+	if (getPreference('highlightUserQuote') !== 'true') {
+		scopeElement.querySelectorAll('.postcontent .bbc-block.self').forEach(function each(quote) {
+			quote.classList.remove('self');
+		});
 	}
 
-	if (listener.getPreference('disableGifs') === 'true') {
+	if (getPreference('disableGifs') === 'true') {
 		scopeElement.querySelectorAll('img[title][src$=".gif"]').forEach(function each(gif) {
 			if (!gif.complete) {
 				gif.addEventListener('load', function freezeLoadHandler() {
@@ -442,7 +718,7 @@ function handleQuoteLink(link, event) {
 function toggleInfo(info) {
 	if (info.querySelector('.postinfo-title').classList.contains('extended')) {
 		if (info.querySelector('.avatar') !== null) {
-			if (listener.getPreference('disableGifs') === 'true' && info.querySelector('.avatar').src.endsWith('.gif')) {
+			if (getPreference('disableGifs') === 'true' && info.querySelector('.avatar').src.endsWith('.gif')) {
 				freezeGif(info.querySelector('.avatar'));
 				info.querySelector('canvas').classList.add('avatar');
 			}
@@ -530,6 +806,11 @@ function loadIgnoredPost(post, event) {
  */
 function insertIgnoredPost(id) {
 	var ignoredPost = document.getElementById('ignorePost-' + id);
+	// virtual posts only have their media unloaded, so the placeholder added by loadIgnoredPost should still be here
+	if (!ignoredPost) {
+		window.console.error('No placeholder for ignored post ' + id);
+		return;
+	}
 	ignoredPost.innerHTML = listener.getIgnorePostHtml(id);
 	processPosts(ignoredPost);
 }
@@ -564,69 +845,6 @@ function isElementInViewport(element) {
 	);
 }
 
-/**
- * Highlight the user's username in posts
- * @param {Element} scopeElement The element containing posts to process
- */
-function highlightOwnUsername(scopeElement) {
-
-	/**
-	 * Returns all textnodes inside the element
-	 * @param {Element} element Where the text nodes are to be found
-	 * @returns {Array} Array of text node Elements
-	 */
-	function getTextNodesIn(element) {
-		var textNodeArray = [];
-		var treeWalker = document.createTreeWalker(element, NodeFilter.SHOW_TEXT, null, false);
-		while (treeWalker.nextNode()) {
-			textNodeArray.push(treeWalker.currentNode);
-		}
-		return textNodeArray;
-	}
-
-	/**
-	 * Escapes a string for inserting into a regex.
-	 * Taken from https://developer.mozilla.org/en-US/docs/Web/JavaScript/Guide/Regular_Expressions
-	 */
-	function escapeRegExp(string) {
-		return string.replace(/[.*+?^${}()|[\]\\]/g, '\\$&'); // $& means the whole matched string
-	}
-
-	var selector = 'article:not(self) .postcontent';
-	var username = listener.getPreference('username');
-
-	var regExp = new RegExp('\\b' + escapeRegExp(username) + '\\b', 'g');
-	var styled = '<span class="usernameHighlight">' + username + '</span>';
-	scopeElement.querySelectorAll(selector).forEach(function eachPost(post) {
-		getTextNodesIn(post).forEach(function eachTextNode(node) {
-			if (node.wholeText.match(regExp)) {
-				var newNode = node.ownerDocument.createElement('span');
-				newNode.innerHTML = node.wholeText.replace(regExp, styled);
-				node.parentNode.replaceChild(newNode, node);
-			}
-		});
-	});
-}
-
-/**
- * Highlight the quotes of the user themselves.
- * @param {Element} scopeElement The element containing posts to process
- */
-function highlightOwnQuotes(scopeElement) {
-	var usernameQuoteMatch = listener.getPreference('username') + ' posted:';
-	var quotes = scopeElement.querySelectorAll('.bbc-block h4');
-	quotes = Array.prototype.filter.call(quotes, function filterQuotes(quote) {
-		return quote.innerText === usernameQuoteMatch;
-	});
-	quotes.forEach(function eachQuote(quote) {
-		quote.parentElement.classList.add('self');
-		// Replace the styling from username highlighting
-		quote.querySelectorAll('.usernameHighlight').forEach(function eachHighlight(name) {
-			name.classList.remove('usernameHighlight');
-		});
-	});
-}
-
 /**
  * Debounces a function and returns it. The returned function will call the supplied callback after a predetermined amount of time
  * @param {Function} callback The callback that should be called after the wait time
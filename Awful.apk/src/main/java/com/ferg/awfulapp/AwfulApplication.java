@@ -5,13 +5,22 @@ import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.os.StrictMode;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.crashlytics.android.Crashlytics;
 import com.ferg.awfulapp.announcements.AnnouncementsManager;
 import com.ferg.awfulapp.constants.Constants;
+import com.ferg.awfulapp.network.AvatarCache;
+import com.ferg.awfulapp.network.MediaPolicy;
 import com.ferg.awfulapp.network.NetworkUtils;
 import com.ferg.awfulapp.preferences.AwfulPreferences;
+import com.ferg.awfulapp.preferences.Keys;
+import com.ferg.awfulapp.provider.PostDao;
 import com.ferg.awfulapp.sync.SyncManager;
+import com.ferg.awfulapp.thread.AwfulHtmlPage;
+import com.ferg.awfulapp.thread.ThreadTagRegistry;
+import com.ferg.awfulapp.webview.WebViewPool;
 import com.jakewharton.threetenabp.AndroidThreeTen;
 
 import java.io.File;
@@ -22,25 +31,50 @@ import timber.log.Timber;
 
 public class AwfulApplication extends Application {
     private static final String APP_STATE_PREFERENCES = "app_state_prefs";
+    /** The username every stored post has been marked up for - see {@link #remarkPosts(String, String)} */
+    private static final String KEY_POSTS_MARKED_FOR = "posts_marked_for_username";
     /**
      * Used for storing misc app data, separate from user preferences, so onPreferenceChange callbacks aren't triggered
      */
     private static SharedPreferences appStatePrefs;
     private static boolean crashlyticsEnabled = false;
+    /**
+     * Redoes the username markup in stored posts when the user's username changes - kept here since
+     * preference callbacks are only weakly referenced
+     */
+    private final AwfulPreferences.AwfulPreferenceUpdate usernameWatcher = (preferences, key) -> {
+        String username = preferences.username;
+        if (getString(Keys.USERNAME).equals(key) && !username.equals(markedUsername)) {
+            remarkPosts(markedUsername, username);
+        }
+    };
+    /** The username stored posts are currently marked up for */
+    @Nullable
+    private String markedUsername;
 
     @Override
     public void onCreate() {
         super.onCreate();
 
         // initialise the AwfulPreferences singleton first since a lot of things rely on it for a Context
-        AwfulPreferences mPref = AwfulPreferences.getInstance(this);
+        AwfulPreferences mPref = AwfulPreferences.getInstance(this, usernameWatcher);
+        markedUsername = mPref.username;
 
         appStatePrefs = this.getSharedPreferences(APP_STATE_PREFERENCES, MODE_PRIVATE);
+        // posts stored before they were marked up at parse time (or before the last pass was interrupted) need a pass of their own
+        String postsMarkedFor = appStatePrefs.getString(KEY_POSTS_MARKED_FOR, null);
+        if (!mPref.username.equals(postsMarkedFor)) {
+            remarkPosts(postsMarkedFor, mPref.username);
+        }
 
         NetworkUtils.init(this);
+        MediaPolicy.getInstance(this);
         AndroidThreeTen.init(this);
         AnnouncementsManager.init();
         FontManager.createInstance(mPref, getAssets());
+        AwfulHtmlPage.prewarmPostTemplate(mPref);
+        ThreadTagRegistry.prewarm();
+        WebViewPool.prewarm(this);
 
         long hoursSinceInstall = getHoursSinceInstall();
 
@@ -75,6 +109,17 @@ public class AwfulApplication extends Application {
         SyncManager.sync(this);
     }
 
+    /**
+     * Mark up the stored posts for a username, recording it once they've all been done.
+     *
+     * @param oldUsername the username the posts were marked up for, or null if it's not known
+     */
+    private void remarkPosts(@Nullable String oldUsername, @NonNull String username) {
+        markedUsername = username;
+        PostDao.getInstance(this).remarkOwnUsername(oldUsername, username,
+                () -> appStatePrefs.edit().putString(KEY_POSTS_MARKED_FOR, username).apply());
+    }
+
     /**
      * @return how long it's been since the app was updated
      */
@@ -117,8 +162,10 @@ public class AwfulApplication extends Application {
     @Override
     public void onTrimMemory(int level) {
         super.onTrimMemory(level);
-        if (level != Application.TRIM_MEMORY_UI_HIDDEN && level != Application.TRIM_MEMORY_BACKGROUND) {
-            NetworkUtils.clearImageCache();
+        NetworkUtils.trimImageCache(level);
+        if (level == TRIM_MEMORY_UI_HIDDEN) {
+            MediaPolicy.logSessionUsage(this);
+            AvatarCache.getInstance(this).logStats();
         }
     }
 
@@ -126,5 +173,6 @@ public class AwfulApplication extends Application {
     public void onLowMemory() {
         super.onLowMemory();
         NetworkUtils.clearImageCache();
+        AvatarCache.getInstance(this).trim();
     }
 }
@@ -22,6 +22,7 @@ import com.ferg.awfulapp.service.AwfulCursorAdapter
 import com.ferg.awfulapp.task.AwfulRequest
 import com.ferg.awfulapp.task.EmoteRequest
 import com.ferg.awfulapp.thread.AwfulEmote
+import com.ferg.awfulapp.thread.EmoteCache
 import com.ferg.awfulapp.util.PassiveTextWatcher
 import com.ferg.awfulapp.util.bind
 import timber.log.Timber
@@ -111,6 +112,11 @@ class EmotePicker : DialogFragment() {
         EmoteHistory.addRecent(emoteCode)
         dismiss()
     }
+
+    override fun onDestroy() {
+        super.onDestroy()
+        EmoteCache.getInstance(context!!).release()
+    }
 }
 
 
@@ -219,6 +225,8 @@ abstract class EmoteGridFragment : AwfulFragment() {
     override fun onStart() {
         super.onStart()
         restartLoader()
+        // redraw the grid with the local emotes once they're in memory
+        EmoteCache.getInstance(activity!!).load { cursorAdapter.notifyDataSetChanged() }
     }
 
     override fun onStop() {
@@ -32,22 +32,21 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.DialogInterface;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.LoaderManager;
 import android.support.v4.content.CursorLoader;
 import android.support.v4.content.Loader;
+import android.support.v7.widget.DividerItemDecoration;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.LayoutInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.AdapterView;
-import android.widget.AdapterView.AdapterContextMenuInfo;
-import android.widget.ListView;
 
 import com.android.volley.VolleyError;
 import com.ferg.awfulapp.constants.Constants;
@@ -55,9 +54,9 @@ import com.ferg.awfulapp.network.NetworkUtils;
 import com.ferg.awfulapp.preferences.AwfulPreferences;
 import com.ferg.awfulapp.provider.AwfulProvider;
 import com.ferg.awfulapp.provider.ColorProvider;
-import com.ferg.awfulapp.provider.DatabaseHelper;
+import com.ferg.awfulapp.provider.ThreadListDataSource;
 import com.ferg.awfulapp.search.SearchFilter;
-import com.ferg.awfulapp.service.ThreadCursorAdapter;
+import com.ferg.awfulapp.service.ThreadListAdapter;
 import com.ferg.awfulapp.task.AwfulRequest;
 import com.ferg.awfulapp.task.BookmarkColorRequest;
 import com.ferg.awfulapp.task.BookmarkRequest;
@@ -94,7 +93,7 @@ public class ForumDisplayFragment extends AwfulFragment implements SwipyRefreshL
     public static final String KEY_SKIP_LOAD = "skip load";
     public static final int NULL_FORUM_ID = 0;
     public static final int FIRST_PAGE = 1;
-    private ListView mListView;
+    private RecyclerView mListView;
 
     private PageBar mPageBar;
 
@@ -117,8 +116,11 @@ public class ForumDisplayFragment extends AwfulFragment implements SwipyRefreshL
     }
 
 
-	private ThreadCursorAdapter mCursorAdapter;
-    private ForumContentsCallback mForumLoaderCallback = new ForumContentsCallback();
+	private ThreadListAdapter mThreadAdapter;
+    private ThreadListDataSource mThreadListSource;
+    /** The thread the context menu is currently open for */
+    @Nullable
+    private AwfulThread mContextMenuThread;
     private ForumDataCallback mForumDataCallback = new ForumDataCallback();
 
 
@@ -182,9 +184,11 @@ public class ForumDisplayFragment extends AwfulFragment implements SwipyRefreshL
             Timber.i("restored state - forumID: %d, page %d, skipLoad: %b", currentForumId, currentPage, skipLoad);
         }
 
-        mCursorAdapter = new ThreadCursorAdapter((AwfulActivity) getActivity(), null, this);
-        mListView.setAdapter(mCursorAdapter);
-        mListView.setOnItemClickListener(onThreadSelected);
+        mThreadAdapter = new ThreadListAdapter((AwfulActivity) getActivity(), this, threadListListener);
+        mListView.setAdapter(mThreadAdapter);
+        mListView.setLayoutManager(new LinearLayoutManager(getActivity()));
+        mListView.addItemDecoration(new DividerItemDecoration(getActivity(), DividerItemDecoration.VERTICAL));
+        mThreadListSource = new ThreadListDataSource(getActivity(), threads -> mThreadAdapter.setThreads(threads));
         // TODO: save and restore scroll position - probably need to do the listview trick (get top item, and scroll offset from that) and save it as a deferred value, i.e. on load if there's a scroll value pending, do it and clear it
         updateColors();
         registerForContextMenu(mListView);
@@ -233,9 +237,16 @@ public class ForumDisplayFragment extends AwfulFragment implements SwipyRefreshL
         NetworkUtils.cancelRequests(ThreadListRequest.Companion.getREQUEST_TAG());
     }
 
+    @Override
+    public void onStart() {
+        super.onStart();
+        mThreadListSource.start();
+    }
+
     @Override
     public void onStop() {
         super.onStop();
+        mThreadListSource.stop();
         // TODO: cancel network reqs?
     }
 
@@ -243,13 +254,11 @@ public class ForumDisplayFragment extends AwfulFragment implements SwipyRefreshL
     @Override
     public void onCreateContextMenu(ContextMenu aMenu, View aView, ContextMenuInfo aMenuInfo) {
         super.onCreateContextMenu(aMenu, aView, aMenuInfo);
-        if(aMenuInfo instanceof AdapterContextMenuInfo){
+        if(mContextMenuThread != null){
 	        android.view.MenuInflater inflater = getActivity().getMenuInflater();
-	        AdapterContextMenuInfo info = (AdapterContextMenuInfo) aMenuInfo;
-	        Cursor row = mCursorAdapter.getRow(info.id);
-            if(row != null && row.getInt(row.getColumnIndex(AwfulThread.BOOKMARKED))>-1) {
+            if(mContextMenuThread.bookmarkType>-1) {
 	              inflater.inflate(R.menu.thread_longpress, aMenu);
-	              if(row.getInt(row.getColumnIndex(AwfulThread.BOOKMARKED))<1 || !getPrefs().coloredBookmarks){
+	              if(mContextMenuThread.bookmarkType<1 || !getPrefs().coloredBookmarks){
 	            	  MenuItem bookmarkColor = aMenu.findItem(R.id.thread_bookmark_color);
 	            	  if(bookmarkColor != null){
 	            		  bookmarkColor.setEnabled(false);
@@ -262,28 +271,31 @@ public class ForumDisplayFragment extends AwfulFragment implements SwipyRefreshL
 
     @Override
     public boolean onContextItemSelected(android.view.MenuItem aItem) {
-        AdapterContextMenuInfo info = (AdapterContextMenuInfo) aItem.getMenuInfo();
-        int threadId = (int) info.id;
+        AwfulThread thread = mContextMenuThread;
+        if (thread == null) {
+            return false;
+        }
+        int threadId = thread.id;
         switch (aItem.getItemId()) {
             case R.id.first_page:
             	viewThread(threadId,1);
                 return true;
             case R.id.last_page:
-                int lastPage = AwfulPagedItem.indexToPage(mCursorAdapter.getInt(threadId, AwfulThread.POSTCOUNT), getPrefs().postPerPage);
+                int lastPage = AwfulPagedItem.indexToPage(thread.postCount, getPrefs().postPerPage);
                 viewThread(threadId,lastPage);
                 return true;
             case R.id.go_to_page:
-                int maxPage = AwfulPagedItem.indexToPage(mCursorAdapter.getInt(threadId, AwfulThread.POSTCOUNT), getPrefs().postPerPage);
+                int maxPage = AwfulPagedItem.indexToPage(thread.postCount, getPrefs().postPerPage);
                 selectThreadPage(threadId, maxPage);
                 return true;
             case R.id.mark_thread_unread:
             	markUnread(threadId);
                 return true;
             case R.id.thread_bookmark:
-            	toggleThreadBookmark(threadId, (mCursorAdapter.getInt(threadId, AwfulThread.BOOKMARKED)+1)%2>0);
+            	toggleThreadBookmark(threadId, (thread.bookmarkType+1)%2>0);
                 return true;
             case R.id.thread_bookmark_color:
-            	toggleBookmarkColor(threadId, (mCursorAdapter.getInt(threadId, AwfulThread.BOOKMARKED)));
+            	toggleBookmarkColor(threadId, thread.bookmarkType);
                 return true;
             case R.id.search_thread:
                 SearchFilter threadFilter = new SearchFilter(SearchFilter.FilterType.ThreadId, Integer.toString(threadId));
@@ -298,6 +310,15 @@ public class ForumDisplayFragment extends AwfulFragment implements SwipyRefreshL
     }
 
 
+    /**
+     * Called by the activity when a context menu is dismissed, so a thread that's no longer being
+     * shown in a menu can't be acted on.
+     */
+    public void onContextMenuClosed() {
+        mContextMenuThread = null;
+    }
+
+
     /**
      * Show the dialog to open a thread at a specific page.
      *
@@ -332,20 +353,18 @@ public class ForumDisplayFragment extends AwfulFragment implements SwipyRefreshL
     }
 
 
-    private AdapterView.OnItemClickListener onThreadSelected = new AdapterView.OnItemClickListener() {
-        public void onItemClick(AdapterView<?> aParent, View aView, int aPosition, long aId) {
-            // TODO: 04/06/2017 why is all this in a threadlist click listener? We know it's a thread! It's not a forum!
-            Cursor row = mCursorAdapter.getRow(aId);
-            if(row != null && row.getColumnIndex(AwfulThread.BOOKMARKED)>-1) {
-                    Timber.i("Thread ID: " + aId);
-                    int unreadPage = AwfulPagedItem.getLastReadPage(row.getInt(row.getColumnIndex(AwfulThread.UNREADCOUNT)),
-                    												row.getInt(row.getColumnIndex(AwfulThread.POSTCOUNT)),
-                    												getPrefs().postPerPage,
-                    												row.getInt(row.getColumnIndex(AwfulThread.HAS_VIEWED_THREAD)));
-                    viewThread((int) aId, unreadPage);
-            }else if(row != null && row.getColumnIndex(AwfulForum.PARENT_ID)>-1){
-                navigate(new NavigationEvent.Forum((int) aId, null));
-            }
+    private final ThreadListAdapter.EventListener threadListListener = new ThreadListAdapter.EventListener() {
+        @Override
+        public void onThreadClicked(@NonNull AwfulThread thread) {
+            Timber.i("Thread ID: " + thread.id);
+            int unreadPage = AwfulPagedItem.getLastReadPage(thread.unreadCount, thread.postCount, getPrefs().postPerPage, thread.hasBeenViewed ? 1 : 0);
+            viewThread(thread.id, unreadPage);
+        }
+
+        @Override
+        public boolean onThreadLongClicked(@NonNull AwfulThread thread, @NonNull View view) {
+            mContextMenuThread = thread;
+            return view.showContextMenu();
         }
     };
 
@@ -356,9 +375,8 @@ public class ForumDisplayFragment extends AwfulFragment implements SwipyRefreshL
             getAwfulActivity().setPreferredFont(mPageBar.getTextView());
         }
 		updateColors();
-        if(null != mListView) {
-            mListView.invalidate();
-            mListView.invalidateViews();
+        if(null != mThreadAdapter) {
+            mThreadAdapter.notifyDataSetChanged();
         }
 	}
 
@@ -390,8 +408,8 @@ public class ForumDisplayFragment extends AwfulFragment implements SwipyRefreshL
         updatePageBar();
         refreshProbationBar();
         // interrupt any scrolling animation and jump to the top of the page
-        mListView.smoothScrollBy(0,0);
-        mListView.setSelection(0);
+        mListView.stopScroll();
+        mListView.scrollToPosition(0);
         // display the chosen page (may be cached), then update its contents
         refreshInfo();
         syncForum();
@@ -457,7 +475,7 @@ public class ForumDisplayFragment extends AwfulFragment implements SwipyRefreshL
 //                            mToggleSidebar.setColorFilter(0);
                             loadFailed = false;
                             refreshInfo();
-                            mListView.setSelectionAfterHeaderView();
+                            mListView.scrollToPosition(0);
                         }
 
                         @Override
@@ -466,7 +484,7 @@ public class ForumDisplayFragment extends AwfulFragment implements SwipyRefreshL
                             refreshInfo();
                             lastRefresh = System.currentTimeMillis();
                             loadFailed = true;
-                            mListView.setSelectionAfterHeaderView();
+                            mListView.scrollToPosition(0);
                         }
                     }
             ), false);
@@ -554,56 +572,6 @@ public class ForumDisplayFragment extends AwfulFragment implements SwipyRefreshL
         syncForum();
     }
 
-    private class ForumContentsCallback implements LoaderManager.LoaderCallbacks<Cursor> {
-
-		@NonNull
-        @Override
-		public Loader<Cursor> onCreateLoader(int aId, Bundle aArgs) {
-			Timber.i("Creating forum cursor: "+getForumId());
-            // TODO: move this query code into a provider class
-            boolean isBookmarks = (getForumId() == USERCP_ID);
-            int thisPageIndex = AwfulPagedItem.forumPageToIndex(getPage());
-            int nextPageIndex = AwfulPagedItem.forumPageToIndex(getPage() + 1);
-
-            // set up some cursor query stuff, depending on whether this is a normal forum or the bookmarks one
-            Uri contentUri = isBookmarks ? AwfulThread.CONTENT_URI_UCP : AwfulThread.CONTENT_URI;
-
-            String selection;
-            String[] selectionArgs;
-            if (isBookmarks) {
-                selection = String.format("%s.%s>=? AND %s.%s<?",
-                        DatabaseHelper.TABLE_UCP_THREADS, AwfulThread.INDEX, DatabaseHelper.TABLE_UCP_THREADS, AwfulThread.INDEX);
-                selectionArgs = AwfulProvider.int2StrArray(thisPageIndex, nextPageIndex);
-            } else {
-                selection = String.format("%s=? AND %s>=? AND %s<?",
-                        AwfulThread.FORUM_ID, AwfulThread.INDEX, AwfulThread.INDEX);
-                selectionArgs = AwfulProvider.int2StrArray(getForumId(), thisPageIndex, nextPageIndex);
-            }
-
-            boolean sortNewFirst = (isBookmarks && getPrefs().newThreadsFirstUCP) || (!isBookmarks && getPrefs().newThreadsFirstForum);
-            String sortOrder = sortNewFirst ? AwfulThread.HAS_NEW_POSTS + " DESC, " + AwfulThread.INDEX : AwfulThread.INDEX;
-
-            return new CursorLoader(getActivity(), contentUri, AwfulProvider.ThreadProjection, selection, selectionArgs, sortOrder);
-        }
-
-		@Override
-        public void onLoadFinished(@NonNull Loader<Cursor> aLoader, Cursor aData) {
-			Timber.i("Forum contents finished, populating");
-        	if(aData != null && !aData.isClosed() && aData.moveToFirst()){
-            	mCursorAdapter.swapCursor(aData);
-        	}else{
-            	mCursorAdapter.swapCursor(null);
-        	}
-        }
-
-		@Override
-		public void onLoaderReset(@NonNull Loader<Cursor> arg0) {
-			Timber.i("ForumContentsCallback - onLoaderReset");
-			mCursorAdapter.swapCursor(null);
-		}
-    }
-
-
 	private class ForumDataCallback implements LoaderManager.LoaderCallbacks<Cursor> {
 
 		@NonNull
@@ -635,8 +603,10 @@ public class ForumDisplayFragment extends AwfulFragment implements SwipyRefreshL
     }
 
 	private void refreshInfo(){
-		if(getActivity() != null){
-			restartLoader(Constants.FORUM_THREADS_LOADER_ID, null, mForumLoaderCallback);
+		if(getActivity() != null && mThreadListSource != null){
+            boolean isBookmarks = (getForumId() == USERCP_ID);
+            boolean sortNewFirst = (isBookmarks && getPrefs().newThreadsFirstUCP) || (!isBookmarks && getPrefs().newThreadsFirstForum);
+            mThreadListSource.setWindow(getForumId(), getPage(), sortNewFirst);
 	    	restartLoader(Constants.FORUM_LOADER_ID, null, mForumDataCallback);
 		}
 	}
@@ -650,7 +620,7 @@ public class ForumDisplayFragment extends AwfulFragment implements SwipyRefreshL
     @Override
     protected boolean doScroll(boolean down) {
         int scrollAmount = mListView.getHeight() / 2;
-        mListView.smoothScrollBy((down ? scrollAmount : -scrollAmount), 400 );
+        mListView.smoothScrollBy(0, down ? scrollAmount : -scrollAmount);
         return true;
     }
 
@@ -664,7 +634,6 @@ public class ForumDisplayFragment extends AwfulFragment implements SwipyRefreshL
         }
         int backgroundColor = ColorProvider.BACKGROUND.getColor(currentForumId);
         mListView.setBackgroundColor(backgroundColor);
-        mListView.setCacheColorHint(backgroundColor);
     }
 
 }
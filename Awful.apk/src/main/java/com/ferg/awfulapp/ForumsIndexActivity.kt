@@ -40,6 +40,7 @@ import android.os.Handler
 import android.support.design.widget.Snackbar
 import android.support.v7.widget.Toolbar
 import android.view.KeyEvent
+import android.view.Menu
 import android.view.View.*
 import com.ferg.awfulapp.NavigationEvent.*
 import com.ferg.awfulapp.NavigationEvent.Companion.parse
@@ -270,6 +271,12 @@ class ForumsIndexActivity :
         navigationDrawer.drawerToggle.onConfigurationChanged(newConfig)
     }
 
+    override fun onContextMenuClosed(menu: Menu) {
+        super.onContextMenuClosed(menu)
+        // fragments don't get this callback, and the thread list needs to forget its long-pressed thread
+        forumsPager.getForumDisplayFragment()?.onContextMenuClosed()
+    }
+
     fun preventSwipe() {
         forumsPager.setSwipeEnabled(false)
     }
@@ -27,16 +27,34 @@
 
 package com.ferg.awfulapp
 
+import android.content.Context
+import android.net.Uri
 import android.os.Bundle
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
-import android.widget.ImageView
-import com.nostra13.universalimageloader.core.ImageLoader
-import com.nostra13.universalimageloader.core.ImageLoaderConfiguration
+import com.ferg.awfulapp.network.ImageDiskCache
+import com.ferg.awfulapp.network.ImageViewerCache
+import com.ferg.awfulapp.widget.TiledImageOverlay
+import timber.log.Timber
+import uk.co.senab.photoview.PhotoView
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/** Image fetches for the viewer - only one viewer's open at a time */
+private val fetchLane: ExecutorService = Executors.newSingleThreadExecutor()
+private const val TEMP_FILE_PREFIX = "viewer_image"
 
 /**
  * Loads and displays an image in a zoomable view.
+ *
+ * Huge images are displayed as tiles by a [TiledImageOverlay], so only the parts on screen get
+ * decoded at full resolution - everything else goes through the viewer's ImageLoader. Images too
+ * big for the [ImageDiskCache] are downloaded to a temporary file instead, which the overlay
+ * deletes when it's done with it.
  */
 class ImageViewFragment : AwfulFragment() {
 
@@ -56,17 +74,68 @@ class ImageViewFragment : AwfulFragment() {
 
     override fun onActivityCreated(aSavedState: Bundle?) {
         super.onActivityCreated(aSavedState)
-        val mImageView = activity!!.findViewById<View>(R.id.iv_photo) as ImageView
+        val photoView = activity!!.findViewById<PhotoView>(R.id.iv_photo)
+        val tileOverlay = activity!!.findViewById<TiledImageOverlay>(R.id.iv_tiles)
 
         activity!!.intent.getStringExtra(EXTRA_IMAGE_URL)?.let {
             imageUrl = it
-            with(ImageLoader.getInstance()) {
-                init(ImageLoaderConfiguration.createDefault(activity))
-                displayImage(imageUrl, mImageView)
-            }
+            loadImage(imageUrl, photoView, tileOverlay)
         }
         setActionBarTitle(imageUrl)
     }
 
+    /**
+     * Fetch the image to a file, and display it as tiles if it's large enough to need it.
+     */
+    private fun loadImage(url: String, photoView: PhotoView, tileOverlay: TiledImageOverlay) {
+        val appContext = activity!!.applicationContext
+        val imageLoader = ImageViewerCache.getImageLoader(appContext)
+        fetchLane.execute {
+            val fetched = fetchToFile(appContext, url)
+            tileOverlay.post {
+                when {
+                    !isAdded -> if (fetched?.isTemporary == true) fetched.file.delete()
+                    // couldn't fetch it, so let the ImageLoader have a go
+                    fetched == null -> imageLoader.displayImage(url, photoView)
+                    // if it's not tiled, display the file we've already got rather than downloading it again
+                    else -> tileOverlay.load(fetched.file, photoView, fetched.isTemporary) {
+                        imageLoader.displayImage(Uri.fromFile(fetched.file).toString(), photoView)
+                    }
+                }
+            }
+        }
+    }
+
+
+    private class FetchedImage(val file: File, val isTemporary: Boolean)
+
+    /**
+     * Get an image as a file - from the disk cache if possible, otherwise (if it's too big to cache)
+     * by streaming the download into a temporary file.
+     */
+    private fun fetchToFile(context: Context, url: String): FetchedImage? {
+        val result = ImageDiskCache.getInstance(context).getOrStream(url)
+        result.image?.let { return FetchedImage(it.file, false) }
+        val stream = result.stream ?: return null
+        // a viewer that closed before its fetch finished can't clean up after itself, so catch those here
+        val staleTime = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(1)
+        context.cacheDir.listFiles { file -> file.name.startsWith(TEMP_FILE_PREFIX) && file.lastModified() < staleTime }
+            ?.forEach { it.delete() }
+        val tempFile = try {
+            File.createTempFile(TEMP_FILE_PREFIX, ".img", context.cacheDir)
+        } catch (e: IOException) {
+            stream.close()
+            return null
+        }
+        return try {
+            stream.use { input -> tempFile.outputStream().use { input.copyTo(it) } }
+            FetchedImage(tempFile, true)
+        } catch (e: IOException) {
+            Timber.w(e, "Unable to download image %s", url)
+            tempFile.delete()
+            null
+        }
+    }
+
     override fun getTitle(): String = imageUrl
 }
@@ -30,6 +30,7 @@ import com.android.volley.VolleyError;
 import com.ferg.awfulapp.preferences.AwfulPreferences;
 import com.ferg.awfulapp.provider.AwfulProvider;
 import com.ferg.awfulapp.provider.ColorProvider;
+import com.ferg.awfulapp.provider.InvalidationTracker;
 import com.ferg.awfulapp.reply.MessageComposer;
 import com.ferg.awfulapp.task.AwfulRequest;
 import com.ferg.awfulapp.task.PMReplyRequest;
@@ -70,12 +71,9 @@ public class MessageFragment extends AwfulFragment implements OnClickListener {
 
     private Messenger mMessenger = new Messenger(getHandler());
     private PMCallback mPMDataCallback = new PMCallback(getHandler());
-    private ContentObserver pmReplyObserver = new ContentObserver(getHandler()){
-    	@Override
-        public void onChange (boolean selfChange){
-        	Log.i(TAG,"PM Data update.");
-            restartLoader(pmId, null, mPMDataCallback);
-        }
+    private InvalidationTracker.Observer pmReplyObserver = entity -> {
+        Log.i(TAG,"PM Data update.");
+        restartLoader(pmId, null, mPMDataCallback);
     };
 
 	interface PrivateMessageCallbacks {
@@ -178,7 +176,7 @@ public class MessageFragment extends AwfulFragment implements OnClickListener {
 		super.onActivityCreated(savedState);
 		restartLoader(pmId, null, mPMDataCallback);
         getActivity().getContentResolver().registerContentObserver(AwfulMessage.CONTENT_URI, true, mPMDataCallback);
-        getActivity().getContentResolver().registerContentObserver(AwfulMessage.CONTENT_URI_REPLY, true, pmReplyObserver);
+        InvalidationTracker.getInstance(getActivity()).addObserver(InvalidationTracker.Entity.DRAFT, pmReplyObserver);
 	}
 
 
@@ -307,7 +305,7 @@ public class MessageFragment extends AwfulFragment implements OnClickListener {
 		super.onDestroy();
 		getLoaderManager().destroyLoader(pmId);
 		getActivity().getContentResolver().unregisterContentObserver(mPMDataCallback);
-		getActivity().getContentResolver().unregisterContentObserver(pmReplyObserver);
+		InvalidationTracker.getInstance(getActivity()).removeObserver(pmReplyObserver);
 	}
 
 	@Override
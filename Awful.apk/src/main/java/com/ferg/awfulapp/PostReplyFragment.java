@@ -75,6 +75,7 @@ import com.ferg.awfulapp.network.NetworkUtils;
 import com.ferg.awfulapp.preferences.AwfulPreferences;
 import com.ferg.awfulapp.provider.AwfulProvider;
 import com.ferg.awfulapp.provider.ColorProvider;
+import com.ferg.awfulapp.provider.DraftDao;
 import com.ferg.awfulapp.reply.MessageComposer;
 import com.ferg.awfulapp.task.AwfulRequest;
 import com.ferg.awfulapp.task.EditRequest;
@@ -135,6 +136,7 @@ public class PostReplyFragment extends AwfulFragment {
 
     // async stuff
     private ContentResolver mContentResolver;
+    private DraftDao draftDao;
     @NonNull
     private final DraftReplyLoaderCallback draftLoaderCallback = new DraftReplyLoaderCallback();
     @NonNull
@@ -212,6 +214,7 @@ public class PostReplyFragment extends AwfulFragment {
         }
 
         mContentResolver = activity.getContentResolver();
+        draftDao = DraftDao.getInstance(activity);
         // load any related stored draft before starting the reply request
         // TODO: 06/04/2017 probably better to handle this as two separate, completable requests - combine reply and draft data when they're both finished, instead of assuming the draft loader finishes first
         getStoredDraft();
@@ -694,7 +697,7 @@ public class PostReplyFragment extends AwfulFragment {
      * Delete any saved reply for the current thread
      */
     private void deleteSavedReply() {
-        mContentResolver.delete(AwfulMessage.CONTENT_URI_REPLY, AwfulMessage.ID + "=?", AwfulProvider.int2StrArray(mThreadId));
+        draftDao.deleteDraft(mThreadId);
     }
 
 
@@ -716,9 +719,7 @@ public class PostReplyFragment extends AwfulFragment {
                 if (mFileAttachment != null) {
                     post.put(AwfulMessage.REPLY_ATTACHMENT, mFileAttachment);
                 }
-                if (mContentResolver.update(ContentUris.withAppendedId(AwfulMessage.CONTENT_URI_REPLY, mThreadId), post, null, null) < 1) {
-                    mContentResolver.insert(AwfulMessage.CONTENT_URI_REPLY, post);
-                }
+                draftDao.saveDraft(post);
             }
         }
     }
@@ -35,12 +35,12 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.webkit.WebResourceRequest;
 import android.webkit.WebView;
-import android.webkit.WebViewClient;
 import android.widget.ProgressBar;
 
 import com.ferg.awfulapp.thread.AwfulHtmlPage;
 import com.ferg.awfulapp.preferences.AwfulPreferences;
 import com.ferg.awfulapp.webview.AwfulWebView;
+import com.ferg.awfulapp.webview.AwfulWebViewClient;
 import com.ferg.awfulapp.webview.WebViewJsInterface;
 
 import java.util.HashMap;
@@ -91,7 +91,7 @@ public class PreviewFragment extends DialogFragment {
     }
 
     public void configureWebView() {
-        postPreView.setWebViewClient(new WebViewClient() {
+        postPreView.setWebViewClient(new AwfulWebViewClient() {
             @Override
             public boolean shouldOverrideUrlLoading(WebView view, WebResourceRequest wrr) {
                 return true;
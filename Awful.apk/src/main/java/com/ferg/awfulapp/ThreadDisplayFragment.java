@@ -46,6 +46,7 @@ import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Environment;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.design.widget.FloatingActionButton;
@@ -65,6 +66,7 @@ import android.view.MenuInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.view.ViewStub;
 import android.webkit.CookieManager;
 import android.webkit.CookieSyncManager;
 import android.webkit.DownloadListener;
@@ -78,6 +80,7 @@ import android.widget.Toast;
 import com.android.volley.VolleyError;
 import com.ferg.awfulapp.constants.Constants;
 import com.ferg.awfulapp.network.CookieController;
+import com.ferg.awfulapp.network.MediaPolicy;
 import com.ferg.awfulapp.network.NetworkUtils;
 import com.ferg.awfulapp.popupmenu.PostContextMenu;
 import com.ferg.awfulapp.popupmenu.UrlContextMenu;
@@ -85,6 +88,7 @@ import com.ferg.awfulapp.preferences.AwfulPreferences;
 import com.ferg.awfulapp.preferences.Keys;
 import com.ferg.awfulapp.provider.AwfulProvider;
 import com.ferg.awfulapp.provider.AwfulTheme;
+import com.ferg.awfulapp.provider.CacheTrimmer;
 import com.ferg.awfulapp.provider.ColorProvider;
 import com.ferg.awfulapp.task.AwfulRequest;
 import com.ferg.awfulapp.task.BookmarkRequest;
@@ -105,11 +109,15 @@ import com.ferg.awfulapp.thread.AwfulPost;
 import com.ferg.awfulapp.thread.AwfulThread;
 import com.ferg.awfulapp.thread.AwfulURL;
 import com.ferg.awfulapp.thread.AwfulURL.TYPE;
+import com.ferg.awfulapp.thread.RenderedPageCache;
+import com.ferg.awfulapp.thread.ThreadPageHtml;
 import com.ferg.awfulapp.util.AwfulError;
 import com.ferg.awfulapp.util.AwfulUtils;
 import com.ferg.awfulapp.webview.AwfulWebView;
+import com.ferg.awfulapp.webview.AwfulWebViewClient;
 import com.ferg.awfulapp.webview.LoggingWebChromeClient;
 import com.ferg.awfulapp.webview.WebViewJsInterface;
+import com.ferg.awfulapp.webview.WebViewPool;
 import com.ferg.awfulapp.widget.PageBar;
 import com.ferg.awfulapp.widget.PagePicker;
 import com.ferg.awfulapp.widget.WebViewSearchBar;
@@ -124,6 +132,8 @@ import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import timber.log.Timber;
 
@@ -141,6 +151,14 @@ public class ThreadDisplayFragment extends AwfulFragment implements NavigationEv
 	private static final String THREAD_PAGE_KEY = "thread_page";
 	private static final String SCROLL_POSITION_KEY = "scroll_position";
 	private static final String KEEP_SCREEN_ON_KEY = "screen_stays_on";
+
+	/** Pages with more posts than this are displayed progressively, starting with this many */
+	private static final int PROGRESSIVE_FIRST_POSTS = 5;
+	/** How many posts to send to the WebView at a time, when filling in the rest of a progressively displayed page */
+	private static final int PROGRESSIVE_CHUNK_SIZE = 10;
+	/** Renders the rest of progressively displayed pages */
+	private static final ExecutorService renderLane = Executors.newSingleThreadExecutor();
+
 	private PostLoaderManager mPostLoaderCallback;
     private ThreadDataCallback mThreadLoaderCallback;
 
@@ -190,6 +208,20 @@ public class ThreadDisplayFragment extends AwfulFragment implements NavigationEv
 	private int savedScrollPosition = 0;
 	/** Whether the currently displayed page represents a full page of posts */
 	private boolean displayingFullPage = false;
+	/** Identifies the rendered page currently on display, or null if it's not one that can be cached */
+	@Nullable
+	private RenderedPageCache.PageKey displayedPageKey = null;
+	/** The posts on display, if they were rendered here - newer renders of the same page only update the posts that changed */
+	@Nullable
+	private ThreadPageHtml displayedPosts = null;
+	/** Identifies the page {@link #displayedPosts} belongs to */
+	@Nullable
+	private RenderedPageCache.PageKey displayedPostsKey = null;
+	/** Changes whenever the display is replaced or updated, so a progressive render of an older page knows to stop */
+	private volatile int renderGeneration = 0;
+	/** When the view was created, for timing the first page of posts - 0 once that's been displayed */
+	private long viewCreatedTime = 0;
+	private boolean usingPooledWebView = false;
 	
 	private ShareActionProvider shareProvider;
 
@@ -212,7 +244,10 @@ public class ThreadDisplayFragment extends AwfulFragment implements NavigationEv
     @Override
     public View onCreateView(@NonNull LayoutInflater aInflater, ViewGroup aContainer, Bundle aSavedState) {
 		try {
-			return inflateView(R.layout.thread_display, aContainer, aInflater);
+			viewCreatedTime = SystemClock.elapsedRealtime();
+			View view = inflateView(R.layout.thread_display, aContainer, aInflater);
+			addThreadView(view);
+			return view;
 		} catch (InflateException e) {
 			if (webViewIsMissing(e)) {
 				return null;
@@ -313,6 +348,28 @@ public class ThreadDisplayFragment extends AwfulFragment implements NavigationEv
 	}
 
 
+	/**
+	 * Add the WebView that displays the thread to the layout, using the pre-warmed one from
+	 * {@link WebViewPool} if it's available.
+	 *
+	 * @param layout the inflated fragment layout, containing the thread view's stub
+	 */
+	private void addThreadView(View layout) {
+		ViewStub stub = layout.findViewById(R.id.thread_stub);
+		AwfulWebView pooledView = WebViewPool.acquire(getActivity());
+		usingPooledWebView = pooledView != null;
+		if (pooledView == null) {
+			stub.inflate();
+			return;
+		}
+		ViewGroup parent = (ViewGroup) stub.getParent();
+		int index = parent.indexOfChild(stub);
+		parent.removeViewInLayout(stub);
+		pooledView.setId(R.id.thread);
+		parent.addView(pooledView, index, stub.getLayoutParams());
+	}
+
+
 	/**
 	 * Check if an InflateException is caused by a missing WebView.
 	 * <p>
@@ -339,7 +396,7 @@ public class ThreadDisplayFragment extends AwfulFragment implements NavigationEv
 
 
 
-	private WebViewClient threadWebViewClient = new WebViewClient() {
+	private WebViewClient threadWebViewClient = new AwfulWebViewClient() {
 
 		@Override
 		public boolean shouldOverrideUrlLoading(WebView aView, String aUrl) {
@@ -392,6 +449,10 @@ public class ThreadDisplayFragment extends AwfulFragment implements NavigationEv
         refreshSessionCookie();
 		Timber.d("Setting up WebView container HTML");
 		mThreadView.setContent(getBlankPage());
+		// a new WebView has nothing displayed yet
+		displayedPageKey = null;
+		displayedPosts = null;
+		renderGeneration++;
 		mThreadView.setKeepScreenOn(keepScreenOn);
 
 		mThreadView.setDownloadListener(new DownloadListener() {
@@ -1037,26 +1098,182 @@ public class ThreadDisplayFragment extends AwfulFragment implements NavigationEv
 		}));
 	}
 
-	private void populateThreadView(ArrayList<AwfulPost> aPosts) {
+	/**
+	 * Render and display a page of posts.
+	 * <p>
+	 * If it's a newer version of the page that's on display, only the new and changed posts are sent to the WebView.
+	 * Otherwise larger pages are displayed progressively - see {@link #showProgressively(ArrayList, RenderedPageCache.PageKey, boolean)}.
+	 *
+	 * @param pageKey   identifies the page
+	 * @param cacheable whether the page can be stored in the {@link RenderedPageCache}
+	 */
+	private void populateThreadView(ArrayList<AwfulPost> aPosts, @NonNull RenderedPageCache.PageKey pageKey, boolean cacheable) {
 		if (mThreadView == null) {
 			Timber.w("populateThreadView called with null WebView");
 			return;
 		}
-		updateUiElements();
-
+        renderGeneration++;
         try {
             Timber.d("populateThreadView: displaying %d posts", aPosts.size());
-            String html = AwfulHtmlPage.getThreadHtml(aPosts, AwfulPreferences.getInstance(getActivity()), getPageNumber(), mLastPage);
-            refreshSessionCookie();
-			mThreadView.setBodyHtml(html);
-			displayingFullPage = aPosts.size() >= getPrefs().postPerPage; // shouldn't ever be > but just to be safe
-            setProgress(100);
+            boolean samePage = displayedPosts != null && displayedPostsKey != null && displayedPostsKey.isSamePage(pageKey);
+            if (!samePage && aPosts.size() > PROGRESSIVE_FIRST_POSTS) {
+                showProgressively(aPosts, pageKey, cacheable);
+                return;
+            }
+            ThreadPageHtml threadPage = AwfulHtmlPage.getThreadPage(aPosts, AwfulPreferences.getInstance(getActivity()), getPageNumber(), mLastPage);
+            String html = threadPage.getHtml();
+            if (cacheable) {
+                RenderedPageCache.getInstance(getActivity()).put(pageKey, html, aPosts.size());
+            }
+            List<ThreadPageHtml.PostHtml> changedPosts = null;
+            if (samePage) {
+                changedPosts = displayedPosts.getUpdateTo(threadPage);
+            }
+            if (changedPosts != null) {
+                Timber.d("populateThreadView: updating %d posts", changedPosts.size());
+                mThreadView.updatePosts(html, changedPosts);
+                displayedPageKey = cacheable ? pageKey : null;
+                displayingFullPage = aPosts.size() >= getPrefs().postPerPage;
+                setProgress(100);
+            } else {
+                showRenderedPage(html, aPosts.size(), cacheable ? pageKey : null);
+            }
+            displayedPosts = threadPage;
+            displayedPostsKey = pageKey;
         } catch (Exception e) {
             // If we've already left the activity the webview may still be working to populate,
             // just log it
             Timber.e(e, "populateThreadView: display failed");
         }
+    }
+
+
+    /**
+     * Display a page of posts a few at a time, so the first ones appear without waiting for the whole page to render.
+     * <p>
+     * The posts around the {@link #postJump} target (or the first unread post) are rendered and displayed
+     * immediately. The rest of the page is rendered in the background, and sent to the WebView in chunks -
+     * posts after the first ones are added to the end of the page, and earlier posts are inserted above them
+     * without moving what's on screen. Once it's all there, the full page is stored in the {@link RenderedPageCache}.
+     * <p>
+     * If anything else gets displayed in the meantime, the remaining chunks are dropped.
+     */
+    private void showProgressively(ArrayList<AwfulPost> aPosts, @NonNull RenderedPageCache.PageKey pageKey, boolean cacheable) {
+        final AwfulPreferences prefs = AwfulPreferences.getInstance(getActivity());
+        final int page = getPageNumber();
+        final int lastPage = mLastPage;
+
+        // postJump is just the prefix when there's no post to jump to
+        boolean jumping = postJump.length() > "post".length();
+        int target = 0;
+        for (int i = 0; i < aPosts.size(); i++) {
+            AwfulPost post = aPosts.get(i);
+            if (jumping ? postJump.equals("post" + post.getId()) : !post.isPreviouslyRead()) {
+                target = i;
+                break;
+            }
+        }
+        // start a post early, so there's something above the target to scroll to
+        final int firstStart = Math.max(0, Math.min(target - 1, aPosts.size() - PROGRESSIVE_FIRST_POSTS));
+        final int firstEnd = firstStart + PROGRESSIVE_FIRST_POSTS;
+
+        ThreadPageHtml firstPosts = AwfulHtmlPage.getThreadPage(aPosts, prefs, page, lastPage, firstStart, firstEnd);
+        Timber.d("showProgressively: displaying posts %d-%d of %d first", firstStart, firstEnd, aPosts.size());
+        showRenderedPage(firstPosts.getHtml(), aPosts.size(), null);
+        displayedPosts = firstPosts;
+        displayedPostsKey = pageKey;
+
+        final int generation = renderGeneration;
+        final RenderedPageCache pageCache = RenderedPageCache.getInstance(getActivity());
+        final List<AwfulPost> posts = new ArrayList<>(aPosts);
+        renderLane.execute(() -> {
+            // don't bother if another page has been displayed while this was waiting
+            if (generation != renderGeneration) {
+                return;
+            }
+            ThreadPageHtml threadPage = AwfulHtmlPage.getThreadPage(posts, prefs, page, lastPage);
+            String html = threadPage.getHtml();
+            List<ThreadPageHtml.PostHtml> renderedPosts = threadPage.getPosts();
+            if (cacheable) {
+                pageCache.put(pageKey, html, posts.size());
+            }
+            if (generation != renderGeneration) {
+                return;
+            }
+            // later posts first, since they're probably what's going to be read next
+            for (int start = firstEnd; start < renderedPosts.size(); start += PROGRESSIVE_CHUNK_SIZE) {
+                List<ThreadPageHtml.PostHtml> chunk = renderedPosts.subList(start, Math.min(start + PROGRESSIVE_CHUNK_SIZE, renderedPosts.size()));
+                getHandler().post(() -> addProgressivePosts(generation, html, chunk, null));
+            }
+            // then work backwards from the first posts, inserting each chunk in front of the last
+            for (int end = firstStart; end > 0; end -= PROGRESSIVE_CHUNK_SIZE) {
+                List<ThreadPageHtml.PostHtml> chunk = renderedPosts.subList(Math.max(0, end - PROGRESSIVE_CHUNK_SIZE), end);
+                String insertBefore = renderedPosts.get(end).postId;
+                getHandler().post(() -> addProgressivePosts(generation, html, chunk, insertBefore));
+            }
+            getHandler().post(() -> {
+                if (generation == renderGeneration) {
+                    Timber.d("showProgressively: all %d posts displayed", posts.size());
+                    displayedPosts = threadPage;
+                    displayedPageKey = cacheable ? pageKey : null;
+                }
+            });
+        });
+    }
+
+
+    /**
+     * Send a chunk of a progressively displayed page to the WebView, unless it's been replaced since.
+     *
+     * @see #showProgressively(ArrayList, RenderedPageCache.PageKey, boolean)
+     */
+    private void addProgressivePosts(int generation, @NonNull String html, @NonNull List<ThreadPageHtml.PostHtml> posts, @Nullable String insertBefore) {
+        if (generation != renderGeneration || mThreadView == null) {
+            return;
+        }
+        mThreadView.updatePosts(html, posts, insertBefore);
+    }
 
+
+    /**
+     * Display the HTML for a page of posts.
+     *
+     * @param postCount the number of posts on the page
+     * @param cacheKey  the page's key in the {@link RenderedPageCache}, if it has one - if it's the page
+     *                  that's already on display, nothing happens
+     */
+    private void showRenderedPage(@NonNull String html, int postCount, @Nullable RenderedPageCache.PageKey cacheKey) {
+        if (mThreadView == null) {
+            Timber.w("showRenderedPage called with null WebView");
+            return;
+        }
+        if (cacheKey != null && cacheKey.equals(displayedPageKey)) {
+            Timber.d("showRenderedPage: page is already displayed");
+            return;
+        }
+        updateUiElements();
+        refreshSessionCookie();
+        mThreadView.setBodyHtml(html);
+        displayedPageKey = cacheKey;
+        displayedPosts = null;
+        renderGeneration++;
+        if (viewCreatedTime != 0 && postCount > 0) {
+            Timber.i("Time to first post: %dms (pre-warmed WebView: %b)", SystemClock.elapsedRealtime() - viewCreatedTime, usingPooledWebView);
+            viewCreatedTime = 0;
+        }
+        displayingFullPage = postCount >= getPrefs().postPerPage; // shouldn't ever be > but just to be safe
+        setProgress(100);
+    }
+
+
+    /**
+     * Get the key for the current page in the {@link RenderedPageCache}.
+     */
+    @NonNull
+    private RenderedPageCache.PageKey currentPageKey() {
+        AwfulPreferences prefs = getPrefs();
+        return RenderedPageCache.getInstance(getActivity()).createKey(getThreadId(), getPageNumber(), prefs.postPerPage,
+                getPageNumber() == mLastPage, AwfulHtmlPage.getRenderFingerprint(prefs));
     }
     
 	@Override
@@ -1194,7 +1411,7 @@ public class ThreadDisplayFragment extends AwfulFragment implements NavigationEv
 
 		UrlContextMenu linkActions = UrlContextMenu.newInstance(url, isImage, isGif, isGif ? "Getting file size" : null);
 
-		if (isGif || !AwfulPreferences.getInstance().canLoadImages()) {
+		if (isGif || MediaPolicy.getInstance(getContext()).forImage() == MediaPolicy.Decision.DEFER) {
 			queueRequest(new ImageSizeRequest(url, result -> {
 				if (linkActions == null) {
 					return;
@@ -1285,6 +1502,9 @@ public class ThreadDisplayFragment extends AwfulFragment implements NavigationEv
 			}
 		}
 		clickInterface.updatePreferences();
+		if (mThreadView != null) {
+			mThreadView.runJavascript("refreshPreferences()");
+		}
 		if(mFAB != null) {
 			if (mPrefs.noFAB) {
 				mFAB.hide();
@@ -1404,6 +1624,9 @@ public class ThreadDisplayFragment extends AwfulFragment implements NavigationEv
 	private void showBlankPage() {
 		if(mThreadView != null){
 			mThreadView.setBodyHtml(null);
+			displayedPageKey = null;
+			displayedPosts = null;
+			renderGeneration++;
 		}
 	}
 
@@ -1411,7 +1634,11 @@ public class ThreadDisplayFragment extends AwfulFragment implements NavigationEv
     private class PostLoaderManager implements LoaderManager.LoaderCallbacks<Cursor> {
         private final static String sortOrder = AwfulPost.POST_INDEX + " ASC";
         private final static String selection = AwfulPost.THREAD_ID + "=? AND " + AwfulPost.POST_INDEX + ">=? AND " + AwfulPost.POST_INDEX + "<?";
+        /** Captures the thread's data version before each load, so we know if the results can be cached */
+        private RenderedPageCache.PageKey loadingPageKey;
+
         public Loader<Cursor> onCreateLoader(int aId, Bundle aArgs) {
+            loadingPageKey = currentPageKey();
             int index = AwfulPagedItem.pageToIndex(getPageNumber(), getPrefs().postPerPage, 0);
             Timber.i("Loading page %d of thread %d from database\nStart index is %d with %d posts per page",
                     getPageNumber(), getThreadId(), index, getPrefs().postPerPage);
@@ -1429,7 +1656,18 @@ public class ThreadDisplayFragment extends AwfulFragment implements NavigationEv
         		return;
         	}
         	if(mThreadView != null){
-        		populateThreadView(AwfulPost.fromCursor(getActivity(), aData));
+                RenderedPageCache pageCache = RenderedPageCache.getInstance(getActivity());
+                // if the thread's been written to since the last key was made, this data might be newer than
+                // the key's version - render it without caching, and the reload the write triggers will catch up
+                boolean cacheable = pageCache.isCurrent(loadingPageKey);
+                RenderedPageCache.PageKey key = currentPageKey();
+                loadingPageKey = key;
+                RenderedPageCache.Page cachedPage = cacheable ? pageCache.getFromMemory(key) : null;
+                if (cachedPage != null) {
+                    showRenderedPage(cachedPage.html, cachedPage.postCount, key);
+                } else {
+                    populateThreadView(AwfulPost.fromCursor(getActivity(), aData), key, cacheable);
+                }
         	}
 			// TODO: 04/05/2017 sometimes you don't want this resetting, e.g. restoring fragment state
 			savedScrollPosition = 0;
@@ -1526,6 +1764,15 @@ public class ThreadDisplayFragment extends AwfulFragment implements NavigationEv
 	 * @see PostLoaderManager
 	 */
 	private void refreshPosts(){
+		// paint the page straight away if it's been rendered before - the loader will update it if necessary
+		if (getActivity() != null) {
+			RenderedPageCache.PageKey key = currentPageKey();
+			RenderedPageCache.getInstance(getActivity()).get(key, page -> {
+				if (page != null && getActivity() != null && key.equals(currentPageKey())) {
+					showRenderedPage(page.html, page.postCount, key);
+				}
+			});
+		}
 		restartLoader(Constants.POST_LOADER_ID, null, mPostLoaderCallback);
 	}
 
@@ -1638,6 +1885,9 @@ public class ThreadDisplayFragment extends AwfulFragment implements NavigationEv
      */
 	private void loadThread(int id, int page, @Nullable String postJump, boolean fullSync) {
 		setThreadId(id);
+		if (getActivity() != null) {
+			CacheTrimmer.recordThreadAccess(getActivity().getContentResolver(), id);
+		}
 		setPageNumber(page);
 		this.setPostJump(postJump != null ? postJump : "");
 		setPostFiltering(null, null);
@@ -11,7 +11,6 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.webkit.JavascriptInterface;
 import android.webkit.WebView;
-import android.webkit.WebViewClient;
 
 import com.android.volley.VolleyError;
 import com.ferg.awfulapp.AwfulFragment;
@@ -23,6 +22,7 @@ import com.ferg.awfulapp.task.AwfulRequest;
 import com.ferg.awfulapp.thread.AwfulHtmlPage;
 import com.ferg.awfulapp.thread.AwfulPost;
 import com.ferg.awfulapp.webview.AwfulWebView;
+import com.ferg.awfulapp.webview.AwfulWebViewClient;
 import com.ferg.awfulapp.webview.WebViewJsInterface;
 import com.ferg.awfulapp.widget.StatusFrog;
 
@@ -93,7 +93,7 @@ public class AnnouncementsFragment extends AwfulFragment {
             }
 
         });
-        webView.setWebViewClient(new WebViewClient() {
+        webView.setWebViewClient(new AwfulWebViewClient() {
             // this lets links open back in the main activity if we handle them (e.g. 'look at this thread'),
             // and opens them in a browser or whatever if we don't (e.g. 'click here to buy a thing on the site')
             @Override
@@ -170,7 +170,6 @@ public class Constants {
 	public static final int EMOTE_LOADER_ID = 887;
 	public static final int MISC_LOADER_ID = 888;
 	public static final int THREAD_LOADER_ID = 889;
-	public static final int FORUM_THREADS_LOADER_ID = 890;
 	public static final int THREAD_INFO_LOADER_ID = 891;
 	public static final int POST_LOADER_ID = 892;
 	public static final int FORUM_INDEX_LOADER_ID = 893;
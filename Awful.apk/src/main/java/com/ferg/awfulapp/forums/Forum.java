@@ -29,6 +29,8 @@ public class Forum {
 
     @Nullable
     private String tagUrl = null;
+    @Nullable
+    private String tagCacheFile = null;
 
     private boolean isFavourite = false;
 
@@ -69,6 +71,7 @@ public class Forum {
     Forum(Forum sourceForum) {
         this(sourceForum.id, sourceForum.parentId, sourceForum.title, sourceForum.subtitle);
         setTagUrl(sourceForum.getTagUrl());
+        setTagCacheFile(sourceForum.getTagCacheFile());
         setType(sourceForum.getType());
         setFavourite(sourceForum.isFavourite());
     }
@@ -110,6 +113,22 @@ public class Forum {
     }
 
 
+    public void setTagCacheFile(@Nullable String cacheFile) {
+        tagCacheFile = cacheFile;
+    }
+
+
+    /**
+     * Get the name the forum's tag is stored under.
+     *
+     * @see com.ferg.awfulapp.thread.TagStore
+     */
+    @Nullable
+    public String getTagCacheFile() {
+        return tagCacheFile;
+    }
+
+
     /**
      * Get this forum's abbreviated name, as overlaid on its tag on the website.
      *
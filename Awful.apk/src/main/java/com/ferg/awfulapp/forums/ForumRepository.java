@@ -1,12 +1,10 @@
 package com.ferg.awfulapp.forums;
 
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
-import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
@@ -19,6 +17,7 @@ import com.ferg.awfulapp.preferences.AwfulPreferences;
 import com.ferg.awfulapp.preferences.Keys;
 import com.ferg.awfulapp.provider.AwfulProvider;
 import com.ferg.awfulapp.provider.DatabaseHelper;
+import com.ferg.awfulapp.provider.ForumDao;
 import com.ferg.awfulapp.task.AwfulRequest;
 import com.ferg.awfulapp.task.IndexIconRequest;
 import com.ferg.awfulapp.thread.AwfulForum;
@@ -369,13 +368,7 @@ public class ForumRepository implements UpdateTask.ResultListener {
     public void setPageCount(int forumId, int pageCount) {
         // TODO: 08/02/2017 need a more general way to update various bit of data, maybe passing a Forum object
         pageCount = (pageCount < 1) ? 1 : pageCount;
-        ContentValues forumData = new ContentValues(2);
-        forumData.put(AwfulForum.PAGE_COUNT, pageCount);
-        forumData.put(DatabaseHelper.UPDATED_TIMESTAMP, getTimestamp());
-
-        ContentResolver contentResolver = context.getContentResolver();
-        Uri uri = ContentUris.withAppendedId(AwfulForum.CONTENT_URI, forumId);
-        if (contentResolver.update(uri, forumData, null, null) < 1) {
+        if (!ForumDao.getInstance(context).setPageCount(forumId, pageCount, getTimestamp())) {
             Log.w(TAG, "Unknown forum ID " + forumId + " while trying to update page count");
         }
     }
@@ -407,6 +400,7 @@ public class ForumRepository implements UpdateTask.ResultListener {
             // the forum might have an image tag too
             String tagUrl = cursor.getString(cursor.getColumnIndex(AwfulForum.TAG_URL));
             forum.setTagUrl(tagUrl);
+            forum.setTagCacheFile(cursor.getString(cursor.getColumnIndex(AwfulForum.TAG_CACHEFILE)));
 
             // set favourite status by checking the favourites list
             forum.setFavourite(favouriteForumIds.contains(Integer.toString(forum.id)));
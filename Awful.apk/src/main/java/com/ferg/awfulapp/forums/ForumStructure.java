@@ -118,6 +118,7 @@ public class ForumStructure {
             Forum forumCopy = new Forum(sourceForum.id, parentId, sourceForum.title, sourceForum.subtitle);
             forumCopy.setType(sourceForum.getType());
             forumCopy.setTagUrl(sourceForum.getTagUrl());
+            forumCopy.setTagCacheFile(sourceForum.getTagCacheFile());
             forumCopy.setFavourite(sourceForum.isFavourite());
             destinationTree.add(forumCopy);
             // copy this Forum's subforums, but ensure the parent IDs refer to this Forum's ID
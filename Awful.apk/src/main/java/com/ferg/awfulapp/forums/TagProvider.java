@@ -1,12 +1,10 @@
 package com.ferg.awfulapp.forums;
 
-import android.graphics.Bitmap;
 import android.support.annotation.NonNull;
 
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.ImageLoader;
 import com.android.volley.toolbox.NetworkImageView;
 import com.ferg.awfulapp.network.NetworkUtils;
+import com.ferg.awfulapp.thread.TagStore;
 
 import org.apache.commons.lang3.StringUtils;
 
@@ -21,34 +19,39 @@ public class TagProvider {
     /**
      * Set a SquareForumTag's appearance for a given forum.
      * <p/>
-     * This will apply the forum's associated colours and text overlay, if it has them.
+     * This will apply the forum's associated colours and text overlay, if it has them. The colours
+     * are sampled from the forum's tag the first time, and kept in the {@link TagStore} after that.
      *
      * @param target The SquareForumTag to remake
      * @param forum  The Forum whose details will be applied to the tag
      */
     static void setSquareForumTag(@NonNull final SquareForumTag target, @NonNull final Forum forum) {
         target.setTagText(forum.getAbbreviation());
-        if (StringUtils.isEmpty(forum.getTagUrl())) {
+        String tagUrl = forum.getTagUrl();
+        if (StringUtils.isEmpty(tagUrl)) {
+            return;
+        }
+        TagStore tagStore = TagStore.getInstance(target.getContext());
+        String cacheFile = forum.getTagCacheFile();
+        int[] storedColours = (cacheFile == null) ? null : tagStore.getColours(cacheFile);
+        if (storedColours != null) {
+            target.setAccentColour(storedColours[0]);
+            target.setMainColour(storedColours[1]);
             return;
         }
-        NetworkUtils.getImageLoader().get(forum.getTagUrl(), new ImageLoader.ImageListener() {
-            @Override
-            public void onResponse(ImageLoader.ImageContainer response, boolean isImmediate) {
-                Bitmap threadTag = response.getBitmap();
-                if (threadTag != null) {
-                    // get square and background colors
-                    target.setAccentColour(threadTag.getPixel(4, 10));
-                    target.setMainColour(threadTag.getPixel(33, 13));
-                } else {
-                    target.setAccentColour(null);
-                    target.setMainColour(null);
+        tagStore.loadTag(tagUrl, cacheFile, threadTag -> {
+            if (threadTag != null) {
+                // get square and background colors
+                int accentColour = threadTag.getPixel(4, 10);
+                int mainColour = threadTag.getPixel(33, 13);
+                target.setAccentColour(accentColour);
+                target.setMainColour(mainColour);
+                if (cacheFile != null) {
+                    tagStore.putColours(cacheFile, accentColour, mainColour);
                 }
-            }
-
-
-            @Override
-            public void onErrorResponse(VolleyError error) {
-
+            } else {
+                target.setAccentColour(null);
+                target.setMainColour(null);
             }
         });
     }
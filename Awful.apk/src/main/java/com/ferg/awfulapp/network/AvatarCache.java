@@ -0,0 +1,310 @@
+package com.ferg.awfulapp.network;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * Keeps the avatars for recently viewed thread pages in memory, so the WebView can show them
+ * without waiting on the disk or the network.
+ * <p>
+ * When a thread page is parsed, its distinct avatar URLs are passed to {@link #prefetch(Collection)},
+ * which loads them in the background from the shared {@link ImageDiskCache} (downloading any that
+ * aren't there, if the {@link MediaPolicy} allows it). Most posters turn up on every page of a thread,
+ * so by the time a page is displayed its avatars are usually ready. If the WebView asks for an avatar
+ * that's still being loaded, it waits for that load rather than starting another one. This also counts
+ * where avatar requests were served from, so the hit rate can be checked in the logs.
+ */
+public class AvatarCache {
+
+    /** Avatars are small, so this holds a few hundred of them */
+    static final int MAX_MEMORY_BYTES = 2 * 1024 * 1024;
+    /** Some avatars are big animated GIFs - those aren't worth pushing everything else out for */
+    static final int MAX_AVATAR_BYTES = 256 * 1024;
+    /** Prefetching is a nice-to-have, so it shouldn't compete with anything the user is waiting on */
+    private static final Executor prefetchLane = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Avatar prefetch");
+        thread.setPriority(Thread.MIN_PRIORITY);
+        return thread;
+    });
+
+    private static AvatarCache instance;
+
+    @NonNull
+    private final Source source;
+    @NonNull
+    private final Policy policy;
+    @NonNull
+    private final Executor prefetchExecutor;
+    /** Avatars in memory, least recently used first - guard this with its own lock */
+    private final LinkedHashMap<String, Avatar> memoryCache = new LinkedHashMap<>(16, 0.75f, true);
+    private int memoryBytes = 0;
+    /** Loads that are currently running, so a request for the same avatar can wait for them */
+    private final ConcurrentHashMap<String, Future<Avatar>> inFlight = new ConcurrentHashMap<>();
+    /** Avatars waiting to be prefetched, so the same one isn't queued by several pages */
+    private final Set<String> queued = Collections.synchronizedSet(new HashSet<>());
+
+    private final AtomicInteger memoryHits = new AtomicInteger();
+    private final AtomicInteger diskHits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicInteger waits = new AtomicInteger();
+    private final AtomicInteger prefetched = new AtomicInteger();
+
+
+    /**
+     * Where avatars are loaded from when they're not in memory.
+     */
+    interface Source {
+        /**
+         * @return the avatar if it's on disk, or null
+         */
+        @Nullable
+        ImageDiskCache.CachedImage getCached(@NonNull String url);
+
+        /**
+         * @return the avatar from disk, or downloaded - null if it couldn't be fetched
+         */
+        @Nullable
+        ImageDiskCache.CachedImage fetch(@NonNull String url);
+    }
+
+
+    /**
+     * Decides whether avatars should be prefetched on the current connection.
+     */
+    interface Policy {
+        @NonNull
+        MediaPolicy.Decision forAvatar();
+    }
+
+
+    @NonNull
+    public static synchronized AvatarCache getInstance(@NonNull Context context) {
+        if (instance == null) {
+            ImageDiskCache imageCache = ImageDiskCache.getInstance(context.getApplicationContext());
+            MediaPolicy mediaPolicy = MediaPolicy.getInstance(context.getApplicationContext());
+            Source source = new Source() {
+                @Nullable
+                @Override
+                public ImageDiskCache.CachedImage getCached(@NonNull String url) {
+                    return imageCache.get(url);
+                }
+
+                @Nullable
+                @Override
+                public ImageDiskCache.CachedImage fetch(@NonNull String url) {
+                    return imageCache.getOrFetch(url);
+                }
+            };
+            instance = new AvatarCache(source, mediaPolicy::forAvatar, prefetchLane);
+        }
+        return instance;
+    }
+
+    AvatarCache(@NonNull Source source, @NonNull Policy policy, @NonNull Executor prefetchExecutor) {
+        this.source = source;
+        this.policy = policy;
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
+
+    /**
+     * Load a page's avatars into memory in the background, fetching any that aren't cached.
+     *
+     * @param avatarUrls the avatar URLs as they appear in the page's HTML - duplicates and blanks are fine
+     */
+    public void prefetch(@NonNull Collection<String> avatarUrls) {
+        if (policy.forAvatar() == MediaPolicy.Decision.DEFER) {
+            return;
+        }
+        Set<String> toFetch = new LinkedHashSet<>();
+        for (String avatarUrl : avatarUrls) {
+            if (avatarUrl == null || avatarUrl.isEmpty()) {
+                continue;
+            }
+            String url = MediaPolicy.getFullAvatarUrl(avatarUrl);
+            if (getFromMemory(url) == null && queued.add(url)) {
+                toFetch.add(url);
+            }
+        }
+        if (toFetch.isEmpty()) {
+            return;
+        }
+        prefetchExecutor.execute(() -> {
+            for (String url : toFetch) {
+                // the connection might have changed since the page was parsed, and the WebView might have got here first
+                if (policy.forAvatar() != MediaPolicy.Decision.DEFER && getFromMemory(url) == null
+                        && awaitLoad(url, false) != null) {
+                    prefetched.incrementAndGet();
+                }
+                queued.remove(url);
+            }
+        });
+    }
+
+
+    /**
+     * Get an avatar, preferably from memory. If it's already being loaded, this waits for that.
+     * This can do disk and network IO, so don't call it on the main thread.
+     *
+     * @param url      the avatar's full URL
+     * @param decision how the {@link MediaPolicy} says avatars should be loaded
+     * @return the avatar, or null if it isn't available
+     */
+    @Nullable
+    public Avatar get(@NonNull String url, @NonNull MediaPolicy.Decision decision) {
+        Avatar avatar = getFromMemory(url);
+        if (avatar != null) {
+            memoryHits.incrementAndGet();
+            return avatar;
+        }
+        if (decision == MediaPolicy.Decision.DEFER && !inFlight.containsKey(url)) {
+            // nothing's downloading it, and it mustn't be downloaded now - it can still come from disk
+            ImageDiskCache.CachedImage image = source.getCached(url);
+            (image != null ? diskHits : misses).incrementAndGet();
+            return (image == null) ? null : remember(url, image);
+        }
+        return awaitLoad(url, true);
+    }
+
+
+    /**
+     * Load an avatar from disk or the network, or wait for a load that's already running.
+     *
+     * @param isRequest true if the WebView's waiting on this, so it counts towards the stats
+     */
+    @Nullable
+    private Avatar awaitLoad(@NonNull String url, boolean isRequest) {
+        FutureTask<Avatar> task = new FutureTask<>(() -> {
+            ImageDiskCache.CachedImage image = source.getCached(url);
+            if (isRequest) {
+                (image != null ? diskHits : misses).incrementAndGet();
+            }
+            if (image == null) {
+                image = source.fetch(url);
+            }
+            return (image == null) ? null : remember(url, image);
+        });
+        Future<Avatar> load = inFlight.putIfAbsent(url, task);
+        if (load == null) {
+            load = task;
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(url, task);
+            }
+        } else if (isRequest) {
+            waits.incrementAndGet();
+        }
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            Timber.w(e.getCause(), "Unable to load avatar %s", url);
+            return null;
+        }
+    }
+
+
+    @Nullable
+    private Avatar getFromMemory(@NonNull String url) {
+        synchronized (memoryCache) {
+            return memoryCache.get(url);
+        }
+    }
+
+
+    @Nullable
+    private Avatar remember(@NonNull String url, @NonNull ImageDiskCache.CachedImage image) {
+        Avatar avatar;
+        try {
+            avatar = new Avatar(image.readData(), image.mimeType);
+        } catch (IOException e) {
+            Timber.w("Unable to read avatar %s: %s", url, e.toString());
+            return null;
+        }
+        if (avatar.data.length > MAX_AVATAR_BYTES) {
+            return avatar;
+        }
+        synchronized (memoryCache) {
+            Avatar replaced = memoryCache.put(url, avatar);
+            memoryBytes += avatar.data.length - ((replaced == null) ? 0 : replaced.data.length);
+            // drop the least recently used avatars until it fits
+            Iterator<Avatar> oldest = memoryCache.values().iterator();
+            while (memoryBytes > MAX_MEMORY_BYTES && oldest.hasNext()) {
+                memoryBytes -= oldest.next().data.length;
+                oldest.remove();
+            }
+        }
+        return avatar;
+    }
+
+
+    /**
+     * Get the total size of the avatars held in memory.
+     */
+    int getMemoryBytes() {
+        synchronized (memoryCache) {
+            return memoryBytes;
+        }
+    }
+
+
+    /**
+     * Drop the avatars held in memory - they can still be loaded from disk.
+     */
+    public void trim() {
+        synchronized (memoryCache) {
+            memoryCache.clear();
+            memoryBytes = 0;
+        }
+    }
+
+
+    /**
+     * Log where avatars have been served from this session.
+     */
+    public void logStats() {
+        int memory = memoryHits.get();
+        int disk = diskHits.get();
+        int total = memory + disk + misses.get() + waits.get();
+        if (total == 0) {
+            return;
+        }
+        Timber.i("Avatars served: %d, %.0f%% from memory, %.0f%% from disk, %d waited on a load, %d prefetched, %dKB in memory",
+                total, 100f * memory / total, 100f * disk / total, waits.get(), prefetched.get(), getMemoryBytes() / 1024);
+    }
+
+
+    public static class Avatar {
+        @NonNull
+        public final byte[] data;
+        @NonNull
+        public final String mimeType;
+
+        Avatar(@NonNull byte[] data, @NonNull String mimeType) {
+            this.data = data;
+            this.mimeType = mimeType;
+        }
+    }
+}
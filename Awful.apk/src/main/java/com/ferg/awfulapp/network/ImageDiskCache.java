@@ -0,0 +1,652 @@
+package com.ferg.awfulapp.network;
+
+import android.content.Context;
+import android.graphics.BitmapFactory;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.webkit.CookieManager;
+
+import com.android.volley.Cache;
+import com.android.volley.NetworkResponse;
+import com.android.volley.toolbox.HttpHeaderParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * The disk cache shared by everything that loads images - Volley (through {@link ImageRequestCache}),
+ * the thread WebView (see {@link com.ferg.awfulapp.webview.AwfulWebViewClient}) and the full-screen
+ * image viewer (through {@link ImageViewerCache}) - so an image only gets downloaded once.
+ * <p>
+ * Image data is content-addressed: each file is named after a hash of its contents, and a small
+ * index file for each URL points at the data it returned. Different URLs serving the same image
+ * share a single copy. The cache is kept under {@link #MAX_CACHE_BYTES}, discarding the least
+ * recently used data first.
+ * <p>
+ * All of this does file IO (and {@link #getOrFetch(String)} network IO), so don't call it on the main thread.
+ */
+public class ImageDiskCache {
+
+    private static final long MAX_CACHE_BYTES = 64L * 1024 * 1024;
+    /** When the cache is full, it's trimmed down to this much */
+    private static final long TRIMMED_CACHE_BYTES = MAX_CACHE_BYTES * 3 / 4;
+    /** Images bigger than this aren't cached - see {@link #getOrStream(String)} */
+    private static final int MAX_IMAGE_BYTES = 8 * 1024 * 1024;
+    private static final int TIMEOUT_MS = 15000;
+    /** How long to keep images that were downloaded without any caching headers */
+    private static final long DEFAULT_TTL_MS = TimeUnit.DAYS.toMillis(7);
+
+    /** Request headers that are passed on from the WebView's requests */
+    private static final String[] FORWARDED_HEADERS = {"User-Agent", "Referer"};
+
+    // the lines in an index file
+    private static final int INDEX_HASH = 0;
+    private static final int INDEX_MIME_TYPE = 1;
+    private static final int INDEX_TTL = 2;
+    private static final int INDEX_SOFT_TTL = 3;
+
+    private static final String CACHE_FOLDER = "images";
+    private static final String DATA_FOLDER = "data";
+    private static final String URL_FOLDER = "urls";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static ImageDiskCache instance;
+
+    @NonNull
+    private final File cacheFolder;
+    @NonNull
+    private final File dataFolder;
+    @NonNull
+    private final File urlFolder;
+    /** Downloads that are currently running, so a request for the same URL can wait for them */
+    private final ConcurrentHashMap<String, FutureTask<FetchResult>> inFlight = new ConcurrentHashMap<>();
+    /** The total size of the image data, or -1 if it hasn't been measured yet */
+    private long cacheBytes = -1;
+
+
+    @NonNull
+    public static synchronized ImageDiskCache getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new ImageDiskCache(new File(context.getApplicationContext().getCacheDir(), CACHE_FOLDER));
+        }
+        return instance;
+    }
+
+    private ImageDiskCache(@NonNull File cacheFolder) {
+        this.cacheFolder = cacheFolder;
+        dataFolder = new File(cacheFolder, DATA_FOLDER);
+        urlFolder = new File(cacheFolder, URL_FOLDER);
+    }
+
+
+    @NonNull
+    File getFolder() {
+        return cacheFolder;
+    }
+
+
+    /**
+     * Get the cached image for a URL.
+     *
+     * @return the image, or null if it isn't cached
+     */
+    @Nullable
+    public synchronized CachedImage get(@NonNull String url) {
+        File indexFile = getIndexFile(url);
+        String[] index = readIndex(indexFile);
+        if (index == null) {
+            return null;
+        }
+        File dataFile = new File(dataFolder, index[INDEX_HASH]);
+        if (!dataFile.isFile()) {
+            // the data was trimmed, so the entry's no use
+            //noinspection ResultOfMethodCallIgnored
+            indexFile.delete();
+            return null;
+        }
+        // mark it as recently used
+        //noinspection ResultOfMethodCallIgnored
+        dataFile.setLastModified(System.currentTimeMillis());
+        return new CachedImage(dataFile, index[INDEX_MIME_TYPE], parseTime(index, INDEX_TTL), parseTime(index, INDEX_SOFT_TTL));
+    }
+
+
+    /**
+     * Get the cached image for a URL, downloading and caching it if necessary. Images that have
+     * expired (according to the cache headers they were downloaded with) are downloaded again, but
+     * the old copy is returned if that fails.
+     *
+     * @return the image, or null if it couldn't be fetched (or it's not an image, or it's too big to cache)
+     */
+    @Nullable
+    public CachedImage getOrFetch(@NonNull String url) {
+        return getOrFetch(url, false, null).image;
+    }
+
+
+    /**
+     * Like {@link #getOrFetch(String)}, but an image that's too big to cache is passed back as a
+     * stream, so it doesn't need to be downloaded a second time. The caller has to close the stream.
+     *
+     * @return the cached image or the stream - both of these are null if the image couldn't be fetched
+     */
+    @NonNull
+    public FetchResult getOrStream(@NonNull String url) {
+        return getOrFetch(url, true, null);
+    }
+
+
+    /**
+     * Like {@link #getOrStream(String)}, but passing on some of the headers from the request this is
+     * for - some image hosts turn away requests without the browser's User-Agent and Referer.
+     *
+     * @param requestHeaders the original request's headers - only the ones in {@link #FORWARDED_HEADERS} are used
+     */
+    @NonNull
+    public FetchResult getOrStream(@NonNull String url, @Nullable Map<String, String> requestHeaders) {
+        return getOrFetch(url, true, requestHeaders);
+    }
+
+
+    @NonNull
+    private FetchResult getOrFetch(@NonNull String url, boolean allowStream, @Nullable Map<String, String> requestHeaders) {
+        CachedImage cached = get(url);
+        if (cached != null && !cached.isExpired()) {
+            return new FetchResult(cached, null, cached.mimeType);
+        }
+        FetchResult fetched = fetchOnce(url, allowStream, requestHeaders);
+        // a stale copy is better than nothing
+        return (fetched.image == null && fetched.stream == null && cached != null) ? new FetchResult(cached, null, cached.mimeType) : fetched;
+    }
+
+
+    /**
+     * Download an image, or if it's already being downloaded, wait for that instead.
+     */
+    @NonNull
+    private FetchResult fetchOnce(@NonNull String url, boolean allowStream, @Nullable Map<String, String> requestHeaders) {
+        FutureTask<FetchResult> task = new FutureTask<>(() -> fetch(url, allowStream, requestHeaders));
+        FutureTask<FetchResult> running = inFlight.putIfAbsent(url, task);
+        if (running == null) {
+            try {
+                task.run();
+            } finally {
+                inFlight.remove(url, task);
+            }
+            return getResult(task);
+        }
+        FetchResult shared = getResult(running);
+        if (shared.stream != null) {
+            // a stream can only be read by the request that started it, so this one needs its own
+            return fetch(url, allowStream, requestHeaders);
+        }
+        return new FetchResult(shared.image, null, shared.mimeType);
+    }
+
+
+    @NonNull
+    private static FetchResult getResult(@NonNull Future<FetchResult> fetch) {
+        try {
+            return fetch.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Timber.w(e.getCause(), "Image fetch failed");
+        }
+        return new FetchResult(null, null, null);
+    }
+
+
+    @NonNull
+    private FetchResult fetch(@NonNull String url, boolean allowStream, @Nullable Map<String, String> requestHeaders) {
+        FetchResult failed = new FetchResult(null, null, null);
+        HttpURLConnection connection = null;
+        boolean streaming = false;
+        try {
+            connection = (HttpURLConnection) new URL(url).openConnection();
+            // this is the cache - there's no point storing a second copy in the HttpResponseCache
+            connection.setUseCaches(false);
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            // some images (e.g. attachments) need the user's login
+            String cookies = CookieManager.getInstance().getCookie(url);
+            if (cookies != null) {
+                connection.setRequestProperty("Cookie", cookies);
+            }
+            if (requestHeaders != null) {
+                for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                    for (String forwarded : FORWARDED_HEADERS) {
+                        if (forwarded.equalsIgnoreCase(header.getKey()) && header.getValue() != null) {
+                            connection.setRequestProperty(forwarded, header.getValue());
+                        }
+                    }
+                }
+            }
+            String mimeType = connection.getContentType();
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK || mimeType == null || !mimeType.startsWith("image/")) {
+                return failed;
+            }
+            InputStream input = connection.getInputStream();
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            boolean complete = connection.getContentLength() <= MAX_IMAGE_BYTES && readUpTo(input, buffer, MAX_IMAGE_BYTES);
+            MediaPolicy.recordDownload(buffer.size());
+            if (!complete) {
+                if (!allowStream) {
+                    input.close();
+                    return failed;
+                }
+                // pass on what's been read so far, followed by the rest of the download
+                streaming = true;
+                InputStream rest = new DownloadStream(input, connection);
+                return new FetchResult(null, new SequenceInputStream(new ByteArrayInputStream(buffer.toByteArray()), rest), mimeType);
+            }
+            input.close();
+            byte[] data = buffer.toByteArray();
+            // use the same rules as Volley, so images expire the same way whatever loaded them
+            Map<String, String> headers = new HashMap<>();
+            for (Map.Entry<String, List<String>> header : connection.getHeaderFields().entrySet()) {
+                if (header.getKey() != null && !header.getValue().isEmpty()) {
+                    headers.put(header.getKey(), header.getValue().get(0));
+                }
+            }
+            Cache.Entry cacheTimes = HttpHeaderParser.parseCacheHeaders(new NetworkResponse(HttpURLConnection.HTTP_OK, data, headers, false));
+            return new FetchResult(put(url, data, mimeType, cacheTimes, headers), null, mimeType);
+        } catch (IOException | ClassCastException e) {
+            Timber.w("Unable to fetch image %s: %s", url, e.toString());
+            return failed;
+        } finally {
+            if (connection != null && !streaming) {
+                connection.disconnect();
+            }
+        }
+    }
+
+
+    /**
+     * Add a downloaded image to the cache, expiring it according to the response's cache headers.
+     * Images without any caching headers are kept for {@link #DEFAULT_TTL_MS}, and ones that mustn't
+     * be cached are stored already expired, so they still get displayed but are always downloaded again.
+     *
+     * @param cacheTimes the cache times Volley's {@link HttpHeaderParser} worked out from the headers
+     * @param headers    the response headers
+     */
+    @Nullable
+    CachedImage put(@NonNull String url, @NonNull byte[] data, @NonNull String mimeType,
+                    @Nullable Cache.Entry cacheTimes, @Nullable Map<String, String> headers) {
+        boolean hasCacheHeaders = false;
+        if (headers != null) {
+            for (String name : headers.keySet()) {
+                hasCacheHeaders |= "Cache-Control".equalsIgnoreCase(name) || "Expires".equalsIgnoreCase(name);
+            }
+        }
+        long ttl;
+        if (!hasCacheHeaders) {
+            ttl = System.currentTimeMillis() + DEFAULT_TTL_MS;
+        } else {
+            ttl = (cacheTimes == null) ? 0 : cacheTimes.ttl;
+        }
+        long softTtl = (hasCacheHeaders && cacheTimes != null) ? Math.min(cacheTimes.softTtl, ttl) : ttl;
+        return put(url, data, mimeType, ttl, softTtl);
+    }
+
+
+    /**
+     * Add an image to the cache that never expires, e.g. something made on the device.
+     *
+     * @see #put(String, byte[], String, long, long)
+     */
+    @Nullable
+    public CachedImage put(@NonNull String url, @NonNull byte[] data, @NonNull String mimeType) {
+        return put(url, data, mimeType, Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+
+    /**
+     * Add an image to the cache, replacing anything already stored for its URL.
+     *
+     * @param mimeType the image's content type (any parameters are dropped) - if it's not specific,
+     *                 it's worked out from the data
+     * @param ttl      when the image expires, as a system time
+     * @param softTtl  when the image should be refreshed, as a system time - it can still be used until the ttl
+     * @return the cached image, or null if it couldn't be stored
+     */
+    @Nullable
+    public synchronized CachedImage put(@NonNull String url, @NonNull byte[] data, @NonNull String mimeType, long ttl, long softTtl) {
+        mimeType = mimeType.split(";")[0].trim();
+        if (!mimeType.startsWith("image/") || mimeType.equals("image/*")) {
+            // work it out from the data
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, 0, data.length, options);
+            mimeType = (options.outMimeType != null) ? options.outMimeType : "image/*";
+        }
+        if (!dataFolder.isDirectory() && !dataFolder.mkdirs() || !urlFolder.isDirectory() && !urlFolder.mkdirs()) {
+            Timber.w("Unable to create the image cache folders");
+            return null;
+        }
+        String contentHash = hash(data);
+        File dataFile = new File(dataFolder, contentHash);
+        try {
+            if (dataFile.isFile()) {
+                //noinspection ResultOfMethodCallIgnored
+                dataFile.setLastModified(System.currentTimeMillis());
+            } else {
+                writeAtomically(dataFile, data);
+                if (cacheBytes >= 0) {
+                    cacheBytes += data.length;
+                }
+            }
+            writeAtomically(getIndexFile(url), (contentHash + "\n" + mimeType + "\n" + ttl + "\n" + softTtl).getBytes(UTF_8));
+        } catch (IOException e) {
+            Timber.w(e, "Unable to cache image %s", url);
+            return null;
+        }
+        trimIfNecessary();
+        return new CachedImage(dataFile, mimeType, ttl, softTtl);
+    }
+
+
+    /**
+     * Remove a URL from the cache. Its data stays, in case another URL shares it.
+     */
+    public synchronized boolean remove(@NonNull String url) {
+        return getIndexFile(url).delete();
+    }
+
+
+    /**
+     * Delete everything in the cache.
+     */
+    public synchronized void clear() {
+        for (File folder : new File[]{dataFolder, urlFolder}) {
+            File[] files = folder.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    //noinspection ResultOfMethodCallIgnored
+                    file.delete();
+                }
+            }
+        }
+        cacheBytes = 0;
+    }
+
+
+    /**
+     * Delete the least recently used data if the cache has grown too big.
+     */
+    private void trimIfNecessary() {
+        File[] dataFiles = null;
+        if (cacheBytes < 0) {
+            dataFiles = dataFolder.listFiles();
+            cacheBytes = 0;
+            if (dataFiles != null) {
+                for (File file : dataFiles) {
+                    cacheBytes += file.length();
+                }
+            }
+        }
+        if (cacheBytes <= MAX_CACHE_BYTES) {
+            return;
+        }
+        if (dataFiles == null) {
+            dataFiles = dataFolder.listFiles();
+        }
+        if (dataFiles == null) {
+            return;
+        }
+        // sort by the times first, since they can change while sorting
+        long[][] ages = new long[dataFiles.length][];
+        for (int i = 0; i < dataFiles.length; i++) {
+            ages[i] = new long[]{dataFiles[i].lastModified(), i};
+        }
+        Arrays.sort(ages, (a, b) -> Long.compare(a[0], b[0]));
+        int deleted = 0;
+        for (long[] age : ages) {
+            if (cacheBytes <= TRIMMED_CACHE_BYTES) {
+                break;
+            }
+            File file = dataFiles[(int) age[1]];
+            long size = file.length();
+            if (file.delete()) {
+                cacheBytes -= size;
+                deleted++;
+            }
+        }
+        // index files for deleted data get cleaned up when they're next read
+        Timber.d("Trimmed image cache: deleted %d images, %d bytes left", deleted, cacheBytes);
+    }
+
+
+    @NonNull
+    private File getIndexFile(@NonNull String url) {
+        return new File(urlFolder, hash(url.getBytes(UTF_8)));
+    }
+
+
+    /**
+     * Read a URL's index file.
+     *
+     * @return the content hash, MIME type and cache times (see the INDEX constants), or null if there's no valid entry
+     */
+    @Nullable
+    private static String[] readIndex(@NonNull File indexFile) {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        try (InputStream input = new FileInputStream(indexFile)) {
+            byte[] contents = readFully(input, 1024);
+            String[] index = (contents == null) ? null : new String(contents, UTF_8).split("\n");
+            return (index != null && index.length >= 2) ? index : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Read one of the times from an index file.
+     *
+     * @return the time, or 0 if it's missing (so entries from before they were stored count as expired)
+     */
+    private static long parseTime(@NonNull String[] index, int position) {
+        try {
+            return (index.length > position) ? Long.parseLong(index[position]) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+
+    /**
+     * Read from a stream into a buffer, until it ends or the buffer reaches a size limit.
+     *
+     * @return true if the whole stream was read
+     */
+    private static boolean readUpTo(@NonNull InputStream input, @NonNull ByteArrayOutputStream output, int maxBytes) throws IOException {
+        byte[] buffer = new byte[8192];
+        int read;
+        while (output.size() <= maxBytes && (read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.size() <= maxBytes;
+    }
+
+
+    /**
+     * Write a file via a temp file, so nothing ever sees it half-written.
+     */
+    private static void writeAtomically(@NonNull File file, @NonNull byte[] data) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (OutputStream output = new FileOutputStream(tempFile)) {
+            output.write(data);
+        }
+        if (!tempFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw new IOException("Unable to rename " + tempFile);
+        }
+    }
+
+
+    /**
+     * Read a stream to the end.
+     *
+     * @return the contents, or null if there's more than maxBytes
+     */
+    @Nullable
+    static byte[] readFully(@NonNull InputStream input, int maxBytes) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+            if (output.size() > maxBytes) {
+                return null;
+            }
+        }
+        return output.toByteArray();
+    }
+
+
+    @NonNull
+    private static String hash(@NonNull byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every Android device has SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * An image in the cache.
+     */
+    public static class CachedImage {
+        @NonNull
+        public final File file;
+        @NonNull
+        public final String mimeType;
+        /** When the image expires, as a system time */
+        public final long ttl;
+        /** When the image should be refreshed, as a system time */
+        public final long softTtl;
+
+        CachedImage(@NonNull File file, @NonNull String mimeType, long ttl, long softTtl) {
+            this.file = file;
+            this.mimeType = mimeType;
+            this.ttl = ttl;
+            this.softTtl = softTtl;
+        }
+
+        public boolean isExpired() {
+            return ttl < System.currentTimeMillis();
+        }
+
+        /**
+         * Read the image data.
+         */
+        @NonNull
+        public byte[] readData() throws IOException {
+            try (InputStream input = new FileInputStream(file)) {
+                byte[] data = readFully(input, Integer.MAX_VALUE);
+                if (data == null) {
+                    throw new IOException("Image data too large");
+                }
+                return data;
+            }
+        }
+    }
+
+
+    /**
+     * The result of {@link #getOrStream(String)} - either a cached image, or a stream of one that's
+     * too big to cache. Both are null if the image couldn't be fetched.
+     */
+    public static class FetchResult {
+        @Nullable
+        public final CachedImage image;
+        @Nullable
+        public final InputStream stream;
+        @Nullable
+        public final String mimeType;
+
+        FetchResult(@Nullable CachedImage image, @Nullable InputStream stream, @Nullable String mimeType) {
+            this.image = image;
+            this.stream = stream;
+            this.mimeType = mimeType;
+        }
+    }
+
+
+    /**
+     * The rest of a download that's being passed straight through - it records the data used, and
+     * closes the connection when it's closed.
+     */
+    private static class DownloadStream extends FilterInputStream {
+
+        @NonNull
+        private final HttpURLConnection connection;
+
+        DownloadStream(@NonNull InputStream input, @NonNull HttpURLConnection connection) {
+            super(input);
+            this.connection = connection;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value != -1) {
+                MediaPolicy.recordDownload(1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                MediaPolicy.recordDownload(read);
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+}
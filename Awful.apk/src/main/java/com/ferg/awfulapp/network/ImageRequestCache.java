@@ -0,0 +1,103 @@
+package com.ferg.awfulapp.network;
+
+import android.support.annotation.NonNull;
+
+import com.android.volley.Cache;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import timber.log.Timber;
+
+/**
+ * Volley's disk cache, which keeps image requests in the shared {@link ImageDiskCache} - everything
+ * else goes to Volley's usual cache.
+ * <p>
+ * Image requests need to use {@link #imageKey(String)} as their cache key to be picked up.
+ */
+public class ImageRequestCache implements Cache {
+
+    private static final String IMAGE_KEY_PREFIX = "image:";
+
+    @NonNull
+    private final Cache requestCache;
+    @NonNull
+    private final ImageDiskCache imageCache;
+
+
+    public ImageRequestCache(@NonNull Cache requestCache, @NonNull ImageDiskCache imageCache) {
+        this.requestCache = requestCache;
+        this.imageCache = imageCache;
+    }
+
+
+    /**
+     * Get the cache key for an image request.
+     */
+    @NonNull
+    public static String imageKey(@NonNull String url) {
+        return IMAGE_KEY_PREFIX + url;
+    }
+
+
+    @Override
+    public Entry get(String key) {
+        if (!key.startsWith(IMAGE_KEY_PREFIX)) {
+            return requestCache.get(key);
+        }
+        ImageDiskCache.CachedImage image = imageCache.get(key.substring(IMAGE_KEY_PREFIX.length()));
+        if (image == null) {
+            return null;
+        }
+        Entry entry = new Entry();
+        try {
+            entry.data = image.readData();
+        } catch (IOException e) {
+            Timber.w(e, "Unable to read cached image");
+            return null;
+        }
+        entry.ttl = image.ttl;
+        entry.softTtl = image.softTtl;
+        entry.responseHeaders = Collections.singletonMap("Content-Type", image.mimeType);
+        return entry;
+    }
+
+    @Override
+    public void put(String key, Entry entry) {
+        if (!key.startsWith(IMAGE_KEY_PREFIX)) {
+            requestCache.put(key, entry);
+            return;
+        }
+        String mimeType = (entry.responseHeaders == null) ? null : entry.responseHeaders.get("Content-Type");
+        imageCache.put(key.substring(IMAGE_KEY_PREFIX.length()), entry.data, mimeType == null ? "image/*" : mimeType, entry, entry.responseHeaders);
+    }
+
+    @Override
+    public void initialize() {
+        requestCache.initialize();
+    }
+
+    @Override
+    public void invalidate(String key, boolean fullExpire) {
+        if (key.startsWith(IMAGE_KEY_PREFIX)) {
+            imageCache.remove(key.substring(IMAGE_KEY_PREFIX.length()));
+        } else {
+            requestCache.invalidate(key, fullExpire);
+        }
+    }
+
+    @Override
+    public void remove(String key) {
+        if (key.startsWith(IMAGE_KEY_PREFIX)) {
+            imageCache.remove(key.substring(IMAGE_KEY_PREFIX.length()));
+        } else {
+            requestCache.remove(key);
+        }
+    }
+
+    @Override
+    public void clear() {
+        requestCache.clear();
+        imageCache.clear();
+    }
+}
@@ -0,0 +1,104 @@
+package com.ferg.awfulapp.network;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
+
+import com.nostra13.universalimageloader.cache.disc.DiskCache;
+import com.nostra13.universalimageloader.core.DisplayImageOptions;
+import com.nostra13.universalimageloader.core.ImageLoader;
+import com.nostra13.universalimageloader.core.ImageLoaderConfiguration;
+import com.nostra13.universalimageloader.core.download.BaseImageDownloader;
+import com.nostra13.universalimageloader.utils.IoUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+
+/**
+ * Lets the full-screen image viewer's ImageLoader use the shared {@link ImageDiskCache}, so images
+ * that have already been displayed in a thread open without being downloaded again.
+ */
+public class ImageViewerCache implements DiskCache {
+
+    @NonNull
+    private final ImageDiskCache imageCache;
+
+
+    private ImageViewerCache(@NonNull ImageDiskCache imageCache) {
+        this.imageCache = imageCache;
+    }
+
+
+    /**
+     * Get the viewer's ImageLoader, setting it up the first time.
+     */
+    @NonNull
+    public static synchronized ImageLoader getImageLoader(@NonNull Context context) {
+        ImageLoader imageLoader = ImageLoader.getInstance();
+        if (!imageLoader.isInited()) {
+            Context appContext = context.getApplicationContext();
+            DisplayImageOptions displayOptions = new DisplayImageOptions.Builder()
+                    .cacheOnDisk(true)
+                    // the viewer only shows one image at a time, there's nothing to gain from keeping them in memory
+                    .cacheInMemory(false)
+                    .build();
+            imageLoader.init(new ImageLoaderConfiguration.Builder(appContext)
+                    .diskCache(new ImageViewerCache(ImageDiskCache.getInstance(appContext)))
+                    .defaultDisplayImageOptions(displayOptions)
+                    .imageDownloader(new BaseImageDownloader(appContext) {
+                        @Override
+                        protected HttpURLConnection createConnection(String url, Object extra) throws IOException {
+                            // images are cached in the ImageDiskCache, so don't store them in the HttpResponseCache too
+                            HttpURLConnection connection = super.createConnection(url, extra);
+                            connection.setUseCaches(false);
+                            return connection;
+                        }
+                    })
+                    .build());
+        }
+        return imageLoader;
+    }
+
+
+    @Override
+    public File getDirectory() {
+        return imageCache.getFolder();
+    }
+
+    @Override
+    public File get(String imageUri) {
+        ImageDiskCache.CachedImage image = imageCache.get(imageUri);
+        return (image == null) ? null : image.file;
+    }
+
+    @Override
+    public boolean save(String imageUri, InputStream imageStream, IoUtils.CopyListener listener) throws IOException {
+        byte[] data = ImageDiskCache.readFully(imageStream, Integer.MAX_VALUE);
+        // the viewer doesn't pass on the response headers, so this gets the default expiry
+        return data != null && imageCache.put(imageUri, data, "image/*", null, null) != null;
+    }
+
+    @Override
+    public boolean save(String imageUri, Bitmap bitmap) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        return bitmap.compress(Bitmap.CompressFormat.PNG, 100, output)
+                && imageCache.put(imageUri, output.toByteArray(), "image/png") != null;
+    }
+
+    @Override
+    public boolean remove(String imageUri) {
+        return imageCache.remove(imageUri);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public void clear() {
+        imageCache.clear();
+    }
+}
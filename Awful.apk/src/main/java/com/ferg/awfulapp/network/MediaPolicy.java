@@ -0,0 +1,231 @@
+package com.ferg.awfulapp.network;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkRequest;
+import android.net.Uri;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.telephony.TelephonyManager;
+import android.text.format.Formatter;
+
+import com.ferg.awfulapp.constants.Constants;
+import com.ferg.awfulapp.preferences.AwfulPreferences;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import timber.log.Timber;
+
+/**
+ * Decides whether images and avatars should be loaded, according to the user's preferences and
+ * the current connection.
+ * <p>
+ * These decisions are made when each image is requested (see {@link com.ferg.awfulapp.webview.AwfulWebViewClient})
+ * rather than when posts are parsed or rendered, so stored and cached pages don't depend on the
+ * connection they were created on. This watches for connectivity changes, and also keeps track of
+ * how much image data has been downloaded this session.
+ */
+public class MediaPolicy {
+
+    /** Connections slower than this are treated as low-bandwidth */
+    private static final int LOW_BANDWIDTH_KBPS = 1000;
+    /**
+     * Avatars are rendered with this prefix on their URL, so image requests for them can be told apart
+     */
+    private static final String AVATAR_URL = "file:///android_asset/avatar?src=";
+
+    public enum Connection {UNMETERED, METERED, LOW_BANDWIDTH, OFFLINE}
+
+    public enum Decision {
+        /** load the image normally */
+        LOAD,
+        /** load a smaller version, if there is one */
+        THUMBNAIL,
+        /** don't download the image - it can still be shown if it's already cached */
+        DEFER
+    }
+
+    private static volatile MediaPolicy instance;
+    private static final AtomicLong sessionBytes = new AtomicLong();
+    private static final AtomicLong sessionMeteredBytes = new AtomicLong();
+
+    @NonNull
+    private final ConnectivityManager connectivityManager;
+    @NonNull
+    private volatile Connection connection = Connection.UNMETERED;
+
+
+    @NonNull
+    public static synchronized MediaPolicy getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new MediaPolicy(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private MediaPolicy(@NonNull Context context) {
+        connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        updateConnection();
+        NetworkRequest request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build();
+        connectivityManager.registerNetworkCallback(request, new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                updateConnection();
+            }
+
+            @Override
+            public void onCapabilitiesChanged(Network network, NetworkCapabilities networkCapabilities) {
+                updateConnection();
+            }
+
+            @Override
+            public void onLost(Network network) {
+                updateConnection();
+            }
+        });
+    }
+
+
+    private void updateConnection() {
+        Connection previous = connection;
+        connection = getCurrentConnection();
+        if (connection != previous) {
+            Timber.i("Connection is now %s", connection);
+        }
+    }
+
+
+    @NonNull
+    @SuppressWarnings("deprecation")
+    private Connection getCurrentConnection() {
+        NetworkInfo network = connectivityManager.getActiveNetworkInfo();
+        if (network == null || !network.isConnected()) {
+            return Connection.OFFLINE;
+        }
+        if (!connectivityManager.isActiveNetworkMetered()) {
+            return Connection.UNMETERED;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(connectivityManager.getActiveNetwork());
+            int bandwidth = (capabilities == null) ? 0 : capabilities.getLinkDownstreamBandwidthKbps();
+            if (bandwidth > 0 && bandwidth < LOW_BANDWIDTH_KBPS) {
+                return Connection.LOW_BANDWIDTH;
+            }
+        } else if (network.getType() == ConnectivityManager.TYPE_MOBILE) {
+            switch (network.getSubtype()) {
+                case TelephonyManager.NETWORK_TYPE_GPRS:
+                case TelephonyManager.NETWORK_TYPE_EDGE:
+                case TelephonyManager.NETWORK_TYPE_CDMA:
+                case TelephonyManager.NETWORK_TYPE_1xRTT:
+                case TelephonyManager.NETWORK_TYPE_IDEN:
+                    return Connection.LOW_BANDWIDTH;
+            }
+        }
+        return Connection.METERED;
+    }
+
+
+    @NonNull
+    public Connection getConnection() {
+        return connection;
+    }
+
+
+    /**
+     * Whether the user wants to avoid using data on the current connection.
+     */
+    public boolean isDataLimited() {
+        Connection current = connection;
+        return AwfulPreferences.getInstance().no3gImages && (current == Connection.METERED || current == Connection.LOW_BANDWIDTH);
+    }
+
+
+    /**
+     * Decide how to load a post image.
+     */
+    @NonNull
+    public Decision forImage() {
+        AwfulPreferences prefs = AwfulPreferences.getInstance();
+        if (!prefs.imagesEnabled || isDataLimited()) {
+            return Decision.DEFER;
+        }
+        return (connection == Connection.LOW_BANDWIDTH) ? Decision.THUMBNAIL : Decision.LOAD;
+    }
+
+
+    /**
+     * Decide how to load an avatar.
+     */
+    @NonNull
+    public Decision forAvatar() {
+        if (!AwfulPreferences.getInstance().avatarsEnabled) {
+            return Decision.DEFER;
+        }
+        // avatars are small enough already
+        return (forImage() == Decision.DEFER) ? Decision.DEFER : Decision.LOAD;
+    }
+
+
+    /**
+     * Get the URL to render an avatar with, so its request can be identified.
+     */
+    @NonNull
+    public static String getAvatarUrl(@NonNull String avatarUrl) {
+        return AVATAR_URL + Uri.encode(getFullAvatarUrl(avatarUrl));
+    }
+
+
+    /**
+     * Get the full URL for an avatar, which might be protocol- or site-relative in the page's HTML.
+     * Avatars are loaded natively, so they need a full URL.
+     */
+    @NonNull
+    public static String getFullAvatarUrl(@NonNull String avatarUrl) {
+        if (avatarUrl.startsWith("//")) {
+            return "https:" + avatarUrl;
+        } else if (avatarUrl.startsWith("/")) {
+            return Constants.BASE_URL + avatarUrl;
+        }
+        return avatarUrl;
+    }
+
+
+    /**
+     * Get the actual URL of an avatar, from the URL it was rendered with.
+     *
+     * @return the avatar's URL, or null if this isn't an avatar
+     * @see #getAvatarUrl(String)
+     */
+    @Nullable
+    public static String getAvatarSource(@NonNull String url) {
+        return url.startsWith(AVATAR_URL) ? Uri.decode(url.substring(AVATAR_URL.length())) : null;
+    }
+
+
+    /**
+     * Record some downloaded image data, for the session's bandwidth report.
+     */
+    public static void recordDownload(long bytes) {
+        sessionBytes.addAndGet(bytes);
+        MediaPolicy policy = instance;
+        if (policy != null && policy.connection != Connection.UNMETERED) {
+            sessionMeteredBytes.addAndGet(bytes);
+        }
+    }
+
+
+    /**
+     * Log how much image data has been downloaded this session.
+     */
+    public static void logSessionUsage(@NonNull Context context) {
+        Timber.i("Images downloaded this session: %s (%s on metered connections)",
+                Formatter.formatShortFileSize(context, sessionBytes.get()),
+                Formatter.formatShortFileSize(context, sessionMeteredBytes.get()));
+    }
+}
@@ -30,10 +30,13 @@ package com.ferg.awfulapp.network;
 import android.content.Context;
 import android.net.http.HttpResponseCache;
 
+import com.android.volley.Cache;
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.DiskBasedCache;
+import com.android.volley.toolbox.HurlStack;
 import com.android.volley.toolbox.ImageLoader;
-import com.android.volley.toolbox.Volley;
 import com.ferg.awfulapp.constants.Constants;
 import com.ferg.awfulapp.util.LRUImageCache;
 
@@ -42,10 +45,12 @@ import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URI;
+import java.net.URL;
 import java.net.URLEncoder;
 import java.util.Map;
 import java.util.regex.Matcher;
@@ -55,6 +60,8 @@ import timber.log.Timber;
 
 public class NetworkUtils {
     private static final String CHARSET = "windows-1252";
+    /** The folder Volley has always used for its cache */
+    private static final String VOLLEY_CACHE_FOLDER = "volley";
 
     private static final Pattern unencodeCharactersPattern = Pattern.compile("&#(\\d+);");
     private static final Pattern encodeCharactersPattern = Pattern.compile("([^\\x00-\\x7F])");
@@ -71,10 +78,21 @@ public class NetworkUtils {
     public static void init(Context context) {
         // update the security provider first, to ensure we fix SSL errors before setting anything else up
         SecurityProvider.update(context);
-        mNetworkQueue = Volley.newRequestQueue(context);
-        // TODO: find out if this is even being used anywhere
-        mImageCache = new LRUImageCache();
-        mImageLoader = new ImageLoader(mNetworkQueue, mImageCache);
+        // image requests share a disk cache with the WebView and image viewer, everything else uses Volley's usual one
+        Cache requestCache = new ImageRequestCache(new DiskBasedCache(new File(context.getCacheDir(), VOLLEY_CACHE_FOLDER)),
+                ImageDiskCache.getInstance(context));
+        mNetworkQueue = new RequestQueue(requestCache, new BasicNetwork(new HurlStack() {
+            @Override
+            protected HttpURLConnection createConnection(URL url) throws IOException {
+                // Volley has its own cache, responses don't need storing in the HttpResponseCache as well
+                HttpURLConnection connection = super.createConnection(url);
+                connection.setUseCaches(false);
+                return connection;
+            }
+        }));
+        mNetworkQueue.start();
+        mImageCache = new LRUImageCache(context);
+        mImageLoader = mImageCache.createImageLoader(mNetworkQueue);
 
         try {
             HttpResponseCache.install(new File(context.getCacheDir(), "httpcache"), 5242880);
@@ -93,6 +111,15 @@ public class NetworkUtils {
         }
     }
 
+    /**
+     * Free up some of the image cache, according to a {@link android.content.ComponentCallbacks2} trim level.
+     */
+    public static void trimImageCache(int level) {
+        if (mImageCache != null) {
+            mImageCache.onTrimMemory(level);
+        }
+    }
+
     public static void queueRequest(Request request) {
         if (mNetworkQueue != null) {
             mNetworkQueue.add(request);
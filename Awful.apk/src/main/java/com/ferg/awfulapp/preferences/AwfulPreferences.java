@@ -35,7 +35,6 @@ import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
-import android.net.ConnectivityManager;
 import android.net.Uri;
 import android.os.Environment;
 import android.preference.PreferenceManager;
@@ -47,6 +46,7 @@ import android.util.TypedValue;
 
 import com.ferg.awfulapp.R;
 import com.ferg.awfulapp.constants.Constants;
+import com.ferg.awfulapp.util.AwfulUtils;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
 
@@ -160,6 +160,8 @@ public class AwfulPreferences implements OnSharedPreferenceChangeListener {
     public Float p2rDistance;
     public boolean immersionMode;
     public String transformer;
+    /** The size the thread and post cache database is trimmed down to */
+    public int cacheSizeMb;
 
 	// APP VERSION STUFF
     public int alertIDShown;
@@ -299,6 +301,7 @@ public class AwfulPreferences implements OnSharedPreferenceChangeListener {
 		immersionMode			 = getPreference(Keys.IMMERSION_MODE, false);
 		hideSignatures  		 = getPreference(Keys.HIDE_SIGNATURES, false);
 		transformer  		     = getPreference(Keys.TRANSFORMER, "Default");
+		cacheSizeMb  		     = AwfulUtils.safeParseInt(getPreference(Keys.CACHE_SIZE_MB, "64"), 64);
 		amberDefaultPos  		 = getPreference(Keys.AMBER_DEFAULT_POS, false);
 		hideIgnoredPosts  		 = getPreference(Keys.HIDE_IGNORED_POSTS, false);
 		markedUsers = getPreference(Keys.MARKED_USERS, new HashSet<>());
@@ -422,16 +425,6 @@ public class AwfulPreferences implements OnSharedPreferenceChangeListener {
 		}
 	}
 
-    public boolean canLoadImages() {
-		ConnectivityManager conman = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
-		return imagesEnabled && !(no3gImages && !conman.getNetworkInfo(ConnectivityManager.TYPE_WIFI).isConnected());
-	}
-	
-	public boolean canLoadAvatars(){
-		return avatarsEnabled && canLoadImages();
-	}
-
-
 	/**
 	 * Export the app's current preferences to a file in the app folder.
 	 * <p>
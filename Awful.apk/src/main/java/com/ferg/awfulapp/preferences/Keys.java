@@ -35,7 +35,8 @@ public abstract class Keys {
             PAGE_LAYOUT,
             TRANSFORMER,
             FAVOURITE_FORUMS,
-            RECENT_EMOTES
+            RECENT_EMOTES,
+            CACHE_SIZE_MB
     })
     @Retention(RetentionPolicy.SOURCE)
     public @interface StringPreference {
@@ -147,6 +148,7 @@ public abstract class Keys {
     public static final int ORIENTATION = R.string.pref_key_orientation;
     public static final int PAGE_LAYOUT = R.string.pref_key_page_layout;
     public static final int TRANSFORMER = R.string.pref_key_transformer;
+    public static final int CACHE_SIZE_MB = R.string.pref_key_cache_size_mb;
 
     public static final int POST_FONT_SIZE_SP = R.string.pref_key_post_font_size_sp;
     public static final int POST_FIXED_FONT_SIZE_SP = R.string.pref_key_post_fixed_font_size_sp;
@@ -39,6 +39,7 @@ import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
@@ -51,6 +52,7 @@ import com.ferg.awfulapp.thread.AwfulForum;
 import com.ferg.awfulapp.thread.AwfulMessage;
 import com.ferg.awfulapp.thread.AwfulPost;
 import com.ferg.awfulapp.thread.AwfulThread;
+import com.ferg.awfulapp.thread.RenderedPageCache;
 
 import java.util.Arrays;
 import java.util.HashMap;
@@ -64,6 +66,7 @@ import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_FORUM;
 import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_PM;
 import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_POSTS;
 import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_THREADS;
+import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_THREAD_ACCESS;
 import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_UCP_THREADS;
 
 public class AwfulProvider extends ContentProvider {
@@ -92,8 +95,10 @@ public class AwfulProvider extends ContentProvider {
     private static final int URI_DRAFT_ID = 11;
     private static final int URI_EMOTE = 12;
     private static final int URI_EMOTE_ID = 13;
+    private static final int URI_POST_SEARCH = 14;
+    private static final int URI_THREAD_ACCESS = 15;
     /** This just holds the Uri types that directly refer to tables, not IDs */
-	private static final Set<Integer> TABLE_URIS = new HashSet<>(Arrays.asList(URI_FORUM, URI_POST, URI_THREAD, URI_UCP_THREAD, URI_PM, URI_DRAFT, URI_EMOTE));
+	private static final Set<Integer> TABLE_URIS = new HashSet<>(Arrays.asList(URI_FORUM, URI_POST, URI_THREAD, URI_UCP_THREAD, URI_PM, URI_DRAFT, URI_EMOTE, URI_THREAD_ACCESS));
 
     private static final UriMatcher sUriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
     static {
@@ -103,6 +108,7 @@ public class AwfulProvider extends ContentProvider {
         sUriMatcher.addURI(Constants.AUTHORITY, "thread/#", URI_THREAD_ID);
         sUriMatcher.addURI(Constants.AUTHORITY, "post", URI_POST);
         sUriMatcher.addURI(Constants.AUTHORITY, "post/#", URI_POST_ID);
+        sUriMatcher.addURI(Constants.AUTHORITY, "post/search", URI_POST_SEARCH);
         sUriMatcher.addURI(Constants.AUTHORITY, "ucpthread", URI_UCP_THREAD);
         sUriMatcher.addURI(Constants.AUTHORITY, "ucpthread/#", URI_UCP_THREAD_ID);
         sUriMatcher.addURI(Constants.AUTHORITY, "privatemessages", URI_PM);
@@ -111,6 +117,7 @@ public class AwfulProvider extends ContentProvider {
         sUriMatcher.addURI(Constants.AUTHORITY, "draftreplies/#", URI_DRAFT_ID);
         sUriMatcher.addURI(Constants.AUTHORITY, "emote", URI_EMOTE);
         sUriMatcher.addURI(Constants.AUTHORITY, "emote/#", URI_EMOTE_ID);
+        sUriMatcher.addURI(Constants.AUTHORITY, "threadaccess", URI_THREAD_ACCESS);
     }
 
 
@@ -172,14 +179,15 @@ public class AwfulProvider extends ContentProvider {
     // Post
 	private static final HashMap<String, String> sPostProjectionMap = new HashMap<>();
     static {
-        sPostProjectionMap.put(AwfulPost.ID, AwfulPost.ID);
+        sPostProjectionMap.put(AwfulPost.ID, TABLE_POSTS+"."+AwfulPost.ID+" AS "+AwfulPost.ID);
         sPostProjectionMap.put(AwfulPost.THREAD_ID, AwfulPost.THREAD_ID);
         sPostProjectionMap.put(AwfulPost.POST_INDEX, AwfulPost.POST_INDEX);
         sPostProjectionMap.put(AwfulPost.DATE, AwfulPost.DATE);
         sPostProjectionMap.put(AwfulPost.REGDATE, AwfulPost.REGDATE);
         sPostProjectionMap.put(AwfulPost.USER_ID, AwfulPost.USER_ID);
         sPostProjectionMap.put(AwfulPost.USERNAME, AwfulPost.USERNAME);
-        sPostProjectionMap.put(AwfulPost.PREVIOUSLY_READ, AwfulPost.PREVIOUSLY_READ);
+        // read state isn't stored per post, it's worked out from the thread's read watermark
+        sPostProjectionMap.put(AwfulPost.PREVIOUSLY_READ, PostDao.PREVIOUSLY_READ_EXPRESSION+" AS "+AwfulPost.PREVIOUSLY_READ);
         sPostProjectionMap.put(AwfulPost.EDITABLE, AwfulPost.EDITABLE);
         sPostProjectionMap.put(AwfulPost.IS_OP, AwfulPost.IS_OP);
         sPostProjectionMap.put(AwfulPost.IS_ADMIN, AwfulPost.IS_ADMIN);
@@ -322,7 +330,7 @@ public class AwfulProvider extends ContentProvider {
     @Override
     public boolean onCreate() {
         context = getContext();
-        mDbHelper = new DatabaseHelper(context);
+        mDbHelper = DatabaseHelper.getInstance(context);
         return true;
     }
 
@@ -339,7 +347,9 @@ public class AwfulProvider extends ContentProvider {
         String table = getTableForUriType(uriType);
 
         // if there's no Where clause, this will delete everything in the table!
-        return db.delete(table, aWhere, aWhereArgs);
+        int result = db.delete(table, aWhere, aWhereArgs);
+        invalidateRenderedPages(uriType);
+        return result;
     }
 
 
@@ -379,11 +389,23 @@ public class AwfulProvider extends ContentProvider {
         }
 
         int result = db.update(table, aValues, aWhere, aWhereArgs);
+        invalidateRenderedPages(uriType);
         context.getContentResolver().notifyChange(aUri, null);
         return result;
     }
 
 
+    /**
+     * Drop any cached page renders that a write to this type of Uri could have made stale.
+     * Post writes through the provider don't say which threads they touched, so all pages get dropped.
+     */
+    private void invalidateRenderedPages(int uriType) {
+        if (uriType == URI_POST || uriType == URI_POST_ID) {
+            RenderedPageCache.getInstance(context).invalidateAll();
+        }
+    }
+
+
     @Override
     public Uri insert(@NonNull Uri aUri, ContentValues aValues) {
         SQLiteDatabase db = mDbHelper.getWritableDatabase();
@@ -412,13 +434,15 @@ public class AwfulProvider extends ContentProvider {
         assertIsTableUri(uriType);
         String table = getTableForUriType(uriType);
 
+        // posts have their own DAO, which handles replacing and indexing them
+        if (uriType == URI_POST) {
+            return PostDao.getInstance(context).insertPosts(Arrays.asList(aValues));
+        }
+
         db.beginTransaction();
         try {
             for (ContentValues value : aValues) {
-                if (uriType == URI_POST) {
-                    db.delete(table, AwfulPost.POST_INDEX + "=? AND " + AwfulPost.THREAD_ID + "=?",
-                            int2StrArray(value.getAsInteger(AwfulPost.POST_INDEX), value.getAsInteger(AwfulPost.THREAD_ID)));
-                } else if (uriType == URI_EMOTE) {
+                if (uriType == URI_EMOTE) {
                     db.delete(table, AwfulEmote.TEXT + "=?", new String[]{value.getAsString(AwfulEmote.TEXT)});
                 }
                 db.replace(table, "", value);
@@ -438,6 +462,25 @@ public class AwfulProvider extends ContentProvider {
     }
 
 
+    @Nullable
+    @Override
+    public Bundle call(@NonNull String method, @Nullable String arg, @Nullable Bundle extras) {
+        if (CacheTrimmer.METHOD_TRIM.equals(method)) {
+            long budgetBytes = (arg != null) ? Long.parseLong(arg) : CacheTrimmer.getBudgetBytes(context);
+            int evicted = CacheTrimmer.trim(mDbHelper.getWritableDatabase(), budgetBytes);
+            if (evicted > 0) {
+                RenderedPageCache.getInstance(context).invalidateAll();
+                context.getContentResolver().notifyChange(AwfulPost.CONTENT_URI, null);
+                context.getContentResolver().notifyChange(AwfulThread.CONTENT_URI, null);
+            }
+            Bundle result = new Bundle();
+            result.putInt(CacheTrimmer.RESULT_EVICTED_THREADS, evicted);
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+
     @Nullable
     @Override
     public Cursor query(@NonNull Uri aUri, String[] aProjection, String aSelection,
@@ -461,6 +504,11 @@ public class AwfulProvider extends ContentProvider {
             return null;
         }
 
+        // searches don't go through the query builder, they produce their own ranked results
+        if (uriType == URI_POST_SEARCH) {
+            return searchPosts(db, aUri);
+        }
+
         // get the basic table name for this Uri - some will need to replace this with something more complex below
         String table = getTableForUriType(uriType);
         String whereClause = null;
@@ -473,8 +521,9 @@ public class AwfulProvider extends ContentProvider {
                 break;
 
             case URI_POST_ID:
-                whereClause = AwfulPost.ID;
+                whereClause = TABLE_POSTS+"."+AwfulPost.ID;
             case URI_POST:
+                table = PostDao.POSTS_WITH_READ_STATE;
                 builder.setProjectionMap(sPostProjectionMap);
                 break;
 
@@ -511,6 +560,9 @@ public class AwfulProvider extends ContentProvider {
             case URI_EMOTE:
                 builder.setProjectionMap(sEmoteProjectionMap);
                 break;
+
+            case URI_THREAD_ACCESS:
+                break;
             default:
                 // this should explicitly handle all valid Uris, so if we get here, someone blew it
                 throw new RuntimeException(TAG + " - Unhandled URI type: " + uriType);
@@ -540,6 +592,36 @@ public class AwfulProvider extends ContentProvider {
     }
 
 
+    /**
+     * Run a full-text search on the cached posts, using the parameters in a search Uri.
+     *
+     * @see AwfulPost#searchUri(String, Integer)
+     */
+    @NonNull
+    private Cursor searchPosts(@NonNull SQLiteDatabase db, @NonNull Uri aUri) {
+        String query = aUri.getQueryParameter(AwfulPost.SEARCH_PARAM_QUERY);
+        Integer threadId = null;
+        int limit = PostSearchIndex.DEFAULT_RESULT_LIMIT;
+        try {
+            String threadParam = aUri.getQueryParameter(AwfulPost.SEARCH_PARAM_THREAD);
+            if (threadParam != null) {
+                threadId = Integer.parseInt(threadParam);
+            }
+            String limitParam = aUri.getQueryParameter(AwfulPost.SEARCH_PARAM_LIMIT);
+            if (limitParam != null) {
+                limit = Integer.parseInt(limitParam);
+            }
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Bad search parameter in Uri: " + aUri, e);
+        }
+
+        Cursor result = PostSearchIndex.search(db, query, threadId, limit);
+        // post inserts notify on the post Uri, which covers this one too
+        result.setNotificationUri(context.getContentResolver(), aUri);
+        return result;
+    }
+
+
     ///////////////////////////////////////////////////////////////////////////
     // Utility methods
     ///////////////////////////////////////////////////////////////////////////
@@ -576,6 +658,8 @@ public class AwfulProvider extends ContentProvider {
 			case URI_EMOTE_ID:
 			case URI_EMOTE:
 				return TABLE_EMOTES;
+			case URI_THREAD_ACCESS:
+				return TABLE_THREAD_ACCESS;
 			default:
 				throw new RuntimeException("Invalid table constant: " + uriType);
 		}
@@ -0,0 +1,275 @@
+package com.ferg.awfulapp.provider;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.text.TextUtils;
+
+import com.ferg.awfulapp.preferences.AwfulPreferences;
+import com.ferg.awfulapp.thread.AwfulPost;
+import com.ferg.awfulapp.thread.AwfulThread;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_EMOTES;
+import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_OEMBEDS;
+import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_POSTS;
+import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_READ_WATERMARKS;
+import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_THREADS;
+import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_THREAD_ACCESS;
+import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_UCP_THREADS;
+import static com.ferg.awfulapp.provider.DatabaseHelper.UPDATED_TIMESTAMP;
+
+/**
+ * Keeps the cache database within a size budget.
+ * <p>
+ * Whole threads are evicted, least-recently-viewed first, until the database fits in the budget
+ * set in the preferences. Bookmarked threads are treated as though they were viewed more recently
+ * than they really were, so they tend to stick around longer. Threads that have never been opened
+ * use the time they were last seen in a thread list instead.
+ * <p>
+ * Looked-up embeds are cached separately, and just deleted once they're older than {@link OEmbedDao#MAX_AGE_MS}.
+ * Rows that only come from lists (see {@link #deleteOldListRows(SQLiteDatabase)}) are swept by age in the same way.
+ * <p>
+ * Eviction happens in small batches, each in its own transaction, so the database isn't locked up
+ * for long. Freed pages are given back to the filesystem with an incremental vacuum after each batch.
+ * All the work (including recording thread views) happens on a single background thread.
+ */
+public class CacheTrimmer {
+
+    /** The {@link android.content.ContentProvider#call(String, String, Bundle)} method that runs a trim */
+    static final String METHOD_TRIM = "trim_cache";
+    /** Result key for the number of threads evicted by a trim */
+    static final String RESULT_EVICTED_THREADS = "evicted_threads";
+
+    /** Threads viewed more recently than this are never evicted */
+    private static final long PROTECTED_AGE_MS = TimeUnit.HOURS.toMillis(1);
+    /** How much extra time bookmarked threads get added to their last view time */
+    private static final long BOOKMARK_GRACE_MS = TimeUnit.DAYS.toMillis(14);
+    private static final int EVICTION_BATCH_SIZE = 10;
+    /** Max pages to free per incremental vacuum step */
+    private static final int VACUUM_BATCH_PAGES = 256;
+    /** Breathing room between batches, so other DB work can get a look in */
+    private static final long BATCH_PAUSE_MS = 50;
+    /** Threads, bookmarks and emotes that are only known from lists are dropped once they're this old */
+    private static final String LIST_ROW_MAX_AGE = "-7 days";
+
+    private static final ExecutorService backgroundLane = Executors.newSingleThreadExecutor();
+
+
+    private CacheTrimmer() {
+    }
+
+
+    /**
+     * Record that a thread has just been viewed, so it's treated as recently used.
+     */
+    public static void recordThreadAccess(@NonNull ContentResolver resolver, int threadId) {
+        long now = System.currentTimeMillis();
+        backgroundLane.execute(() -> {
+            ContentValues values = new ContentValues(2);
+            values.put(AwfulThread.ID, threadId);
+            values.put(AwfulThread.LAST_ACCESS, now);
+            resolver.insert(AwfulThread.CONTENT_URI_ACCESS, values);
+        });
+    }
+
+
+    /**
+     * Run some other database maintenance on the same background thread, so it doesn't contend with trims.
+     */
+    public static void runInBackground(@NonNull Runnable task) {
+        backgroundLane.execute(task);
+    }
+
+
+    /**
+     * Trim the database down to the size budget set in the user's preferences.
+     * This returns immediately, the trim is run in the background.
+     */
+    public static void trimInBackground(@NonNull Context context) {
+        ContentResolver resolver = context.getApplicationContext().getContentResolver();
+        long budgetBytes = getBudgetBytes(context);
+        backgroundLane.execute(() -> {
+            long startTime = System.currentTimeMillis();
+            Bundle result = resolver.call(AwfulThread.CONTENT_URI, METHOD_TRIM, Long.toString(budgetBytes), null);
+            int evicted = result == null ? 0 : result.getInt(RESULT_EVICTED_THREADS);
+            Timber.i("Trimmed cache DB to %d bytes, evicted %d threads in %dms", budgetBytes, evicted, System.currentTimeMillis() - startTime);
+        });
+    }
+
+
+    /**
+     * The cache size budget set in the user's preferences, in bytes.
+     */
+    static long getBudgetBytes(@NonNull Context context) {
+        return AwfulPreferences.getInstance(context).cacheSizeMb * 1024L * 1024L;
+    }
+
+
+    /**
+     * Evict threads from the database until it fits in the budget, and release the freed space.
+     * This runs on the calling thread.
+     *
+     * @return the number of threads evicted
+     */
+    static int trim(@NonNull SQLiteDatabase db, long budgetBytes) {
+        deleteOldEmbeds(db, System.currentTimeMillis());
+        deleteOldListRows(db);
+        int evicted = 0;
+        if (usedBytes(db) > budgetBytes) {
+            List<Long> evictionOrder = getEvictionOrder(db, System.currentTimeMillis());
+            for (int start = 0; start < evictionOrder.size(); start += EVICTION_BATCH_SIZE) {
+                List<Long> batch = evictionOrder.subList(start, Math.min(start + EVICTION_BATCH_SIZE, evictionOrder.size()));
+                evictThreads(db, batch);
+                evicted += batch.size();
+                releaseFreePages(db);
+                if (usedBytes(db) <= budgetBytes) {
+                    break;
+                }
+                SystemClock.sleep(BATCH_PAUSE_MS);
+            }
+        }
+        // always give back any free space, e.g. from posts deleted elsewhere
+        releaseFreePages(db);
+        return evicted;
+    }
+
+
+    /**
+     * Get the IDs of all the cached threads that can be evicted, in the order they should be evicted.
+     * Only threads with stored posts are candidates - threads that are only known from a thread list
+     * don't take up much space, and the list needs them.
+     */
+    @NonNull
+    private static List<Long> getEvictionOrder(@NonNull SQLiteDatabase db, long now) {
+        String cached = "cached";
+        String threadId = cached + "." + AwfulThread.ID;
+        String sql = "SELECT " + threadId + ", " +
+                "COALESCE(" + TABLE_THREAD_ACCESS + "." + AwfulThread.LAST_ACCESS + ", " +
+                "strftime('%s', " + TABLE_THREADS + "." + UPDATED_TIMESTAMP + ") * 1000, 0) + " +
+                "CASE WHEN " + TABLE_THREADS + "." + AwfulThread.BOOKMARKED + " > 0" +
+                " OR " + threadId + " IN (SELECT " + AwfulThread.ID + " FROM " + TABLE_UCP_THREADS + ")" +
+                " THEN " + BOOKMARK_GRACE_MS + " ELSE 0 END AS priority" +
+                " FROM (SELECT " + AwfulPost.THREAD_ID + " AS " + AwfulThread.ID + " FROM " + TABLE_POSTS + " GROUP BY " + AwfulPost.THREAD_ID +
+                ") AS " + cached +
+                " LEFT JOIN " + TABLE_THREAD_ACCESS + " ON " + TABLE_THREAD_ACCESS + "." + AwfulThread.ID + "=" + threadId +
+                " LEFT JOIN " + TABLE_THREADS + " ON " + TABLE_THREADS + "." + AwfulThread.ID + "=" + threadId +
+                // this is a literal rather than an arg, since args are bound as strings and won't compare numerically
+                " WHERE priority < " + (now - PROTECTED_AGE_MS) +
+                " ORDER BY priority";
+
+        List<Long> threadIds = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery(sql, null)) {
+            while (cursor.moveToNext()) {
+                threadIds.add(cursor.getLong(0));
+            }
+        }
+        return threadIds;
+    }
+
+
+    /**
+     * Delete all the cached data for a batch of threads.
+     * Bookmarked threads keep their thread list data, so the bookmarks list stays intact.
+     */
+    private static void evictThreads(@NonNull SQLiteDatabase db, @NonNull List<Long> threadIds) {
+        String idList = "(" + TextUtils.join(",", threadIds) + ")";
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_POSTS, AwfulPost.THREAD_ID + " IN " + idList, null);
+            db.delete(TABLE_THREAD_ACCESS, AwfulThread.ID + " IN " + idList, null);
+            db.delete(TABLE_READ_WATERMARKS, AwfulThread.ID + " IN " + idList, null);
+            db.delete(TABLE_THREADS, AwfulThread.ID + " IN " + idList +
+                    " AND " + AwfulThread.ID + " NOT IN (SELECT " + AwfulThread.ID + " FROM " + TABLE_UCP_THREADS + ")", null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+
+    /**
+     * Delete any stored embeds that are too old to be worth keeping.
+     */
+    private static void deleteOldEmbeds(@NonNull SQLiteDatabase db, long now) {
+        // a literal for the same reason as in getEvictionOrder
+        int deleted = db.delete(TABLE_OEMBEDS, OEmbedDao.FETCHED_TIME + " < " + (now - OEmbedDao.MAX_AGE_MS), null);
+        if (deleted > 0) {
+            Timber.d("Deleted %d old embeds", deleted);
+        }
+    }
+
+
+    /**
+     * Delete the rows that only come from lists - threads with no stored posts, bookmark list entries
+     * and emotes - once they haven't been refreshed for {@link #LIST_ROW_MAX_AGE}. These aren't covered
+     * by thread eviction, so without this they'd pile up forever. Any that are still current get
+     * added again the next time their list is loaded.
+     */
+    private static void deleteOldListRows(@NonNull SQLiteDatabase db) {
+        String cutoff = UPDATED_TIMESTAMP + " < datetime('now','" + LIST_ROW_MAX_AGE + "')";
+        int deleted = 0;
+        db.beginTransaction();
+        try {
+            deleted += db.delete(TABLE_THREADS, cutoff +
+                    " AND " + AwfulThread.ID + " NOT IN (SELECT DISTINCT " + AwfulPost.THREAD_ID + " FROM " + TABLE_POSTS + ")", null);
+            deleted += db.delete(TABLE_UCP_THREADS, cutoff, null);
+            deleted += db.delete(TABLE_EMOTES, cutoff, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (deleted > 0) {
+            Timber.d("Deleted %d old list rows", deleted);
+        }
+    }
+
+
+    /**
+     * Return free pages to the filesystem, a chunk at a time.
+     */
+    private static void releaseFreePages(@NonNull SQLiteDatabase db) {
+        long freePages = pragma(db, "freelist_count");
+        while (freePages > 0) {
+            // incremental_vacuum frees a page for each row it returns, so the cursor has to be read to the end
+            try (Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_BATCH_PAGES + ")", null)) {
+                //noinspection StatementWithEmptyBody
+                while (cursor.moveToNext()) {
+                }
+            }
+            // bail out if nothing's being freed, e.g. if incremental vacuuming couldn't be enabled
+            long remaining = pragma(db, "freelist_count");
+            if (remaining >= freePages) {
+                break;
+            }
+            freePages = remaining;
+        }
+    }
+
+
+    /**
+     * The number of bytes actually used by data in the database file, ignoring free pages.
+     */
+    private static long usedBytes(@NonNull SQLiteDatabase db) {
+        return (pragma(db, "page_count") - pragma(db, "freelist_count")) * pragma(db, "page_size");
+    }
+
+
+    private static long pragma(@NonNull SQLiteDatabase db, @NonNull String name) {
+        try (Cursor cursor = db.rawQuery("PRAGMA " + name, null)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+    }
+}
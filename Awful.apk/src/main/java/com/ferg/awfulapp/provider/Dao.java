@@ -0,0 +1,69 @@
+package com.ferg.awfulapp.provider;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+
+import com.ferg.awfulapp.thread.RenderedPageCache;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Base for the typed data access objects, which read and write the database directly instead of
+ * going through {@link AwfulProvider}.
+ * <p>
+ * DAOs share the provider's {@link DatabaseHelper}, and post change notifications on the same Uris
+ * the provider uses, so existing loaders and {@link InvalidationTracker} observers see their writes.
+ * Statements are compiled once and reused - anything using them needs to synchronize on the DAO,
+ * since a statement's bound arguments are shared.
+ */
+abstract class Dao {
+
+    private final Context context;
+    private final DatabaseHelper dbHelper;
+    private final ContentResolver contentResolver;
+    private final Map<String, SQLiteStatement> statements = new HashMap<>();
+
+    Dao(@NonNull Context context) {
+        this.context = context.getApplicationContext();
+        dbHelper = DatabaseHelper.getInstance(context);
+        contentResolver = context.getApplicationContext().getContentResolver();
+    }
+
+    @NonNull
+    SQLiteDatabase getDatabase() {
+        return dbHelper.getWritableDatabase();
+    }
+
+    /**
+     * Get a compiled statement for some SQL, compiling and caching it the first time.
+     */
+    @NonNull
+    synchronized SQLiteStatement getStatement(@NonNull String sql) {
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = getDatabase().compileStatement(sql);
+            statements.put(sql, statement);
+        }
+        statement.clearBindings();
+        return statement;
+    }
+
+    /**
+     * Throw away a thread's cached page renders, after writing something that changes how it displays.
+     */
+    void invalidateRenderedPages(int threadId) {
+        RenderedPageCache.getInstance(context).invalidateThread(threadId);
+    }
+
+    /**
+     * Let observers know the data at a Uri has changed.
+     */
+    void notifyChange(@NonNull Uri uri) {
+        contentResolver.notifyChange(uri, null);
+    }
+}
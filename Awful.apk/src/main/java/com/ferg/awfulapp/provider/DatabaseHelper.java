@@ -11,6 +11,8 @@ import com.ferg.awfulapp.thread.AwfulMessage;
 import com.ferg.awfulapp.thread.AwfulPost;
 import com.ferg.awfulapp.thread.AwfulThread;
 
+import timber.log.Timber;
+
 /**
  * Created by baka kaba on 06/05/2017.
  *
@@ -20,32 +22,65 @@ import com.ferg.awfulapp.thread.AwfulThread;
 public class DatabaseHelper extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "awful.db";
-    private static final int DATABASE_VERSION = 33;
+    private static final int DATABASE_VERSION = 39;
+    /** The auto_vacuum pragma value for incremental vacuuming, which {@link CacheTrimmer} relies on */
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
 
     static final String TABLE_FORUM    = "forum";
     static final String TABLE_THREADS    = "threads";
     // TODO: 06/05/2017 this is only public because a fragment is building selection arguments - move that out of there!
     public static final String TABLE_UCP_THREADS    = "ucp_thread";
     static final String TABLE_POSTS    = "posts";
+    static final String TABLE_POSTS_SEARCH    = "posts_search";
     static final String TABLE_EMOTES    = "emotes";
     static final String TABLE_PM    = "private_messages";
     static final String TABLE_DRAFTS    = "draft_messages";
+    static final String TABLE_THREAD_ACCESS    = "thread_access";
+    static final String TABLE_READ_WATERMARKS    = "read_watermarks";
+    static final String TABLE_OEMBEDS    = "oembeds";
 
     public static final String UPDATED_TIMESTAMP    = "timestamp_row_update";
 
-    DatabaseHelper(Context aContext) {
+    private static DatabaseHelper instance;
+
+    /** Set by an upgrade that needs the database file rebuilt once it's open - that can't happen inside the upgrade's transaction */
+    private boolean vacuumPending = false;
+
+    /**
+     * Get the shared helper. The provider and the DAOs all need to use the same instance,
+     * so they share a single database connection and don't lock each other out.
+     */
+    @NonNull
+    static synchronized DatabaseHelper getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new DatabaseHelper(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private DatabaseHelper(Context aContext) {
         super(aContext, DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    @Override
+    public void onConfigure(SQLiteDatabase aDb) {
+        // this only takes effect on a new database - existing ones are converted in onUpgrade
+        aDb.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+    }
+
     @Override
     public void onCreate(SQLiteDatabase aDb) {
         createForumTable(aDb);
         createThreadTable(aDb);
         createUCPTable(aDb);
         createPostTable(aDb);
+        createPostSearchTable(aDb);
         createEmoteTable(aDb);
         createPMTable(aDb);
         createDraftTable(aDb);
+        createThreadAccessTable(aDb);
+        createReadWatermarkTable(aDb);
+        createOEmbedTable(aDb);
     }
 
 
@@ -85,6 +120,7 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 AwfulThread.ARCHIVED + " INTEGER, " +
                 AwfulThread.RATING + " INTEGER, " +
                 UPDATED_TIMESTAMP + " DATETIME);");
+        createThreadIndex(aDb);
     }
 
     private void createUCPTable(SQLiteDatabase aDb) {
@@ -92,6 +128,24 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 AwfulThread.ID + " INTEGER UNIQUE," + //to be joined with thread table
                 AwfulThread.INDEX + " INTEGER," +
                 UPDATED_TIMESTAMP + " DATETIME);");
+        createUCPIndex(aDb);
+    }
+
+    /**
+     * Index threads by their position in their forum, so {@link ThreadDao} can page through a
+     * thread list by key instead of sorting a whole forum's worth of threads for every window.
+     */
+    private void createThreadIndex(SQLiteDatabase aDb) {
+        aDb.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_THREADS + "_forum ON " + TABLE_THREADS +
+                " (" + AwfulThread.FORUM_ID + "," + AwfulThread.INDEX + ");");
+    }
+
+    /**
+     * Index bookmarks by position, like {@link #createThreadIndex(SQLiteDatabase)}.
+     */
+    private void createUCPIndex(SQLiteDatabase aDb) {
+        aDb.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_UCP_THREADS + "_index ON " + TABLE_UCP_THREADS +
+                " (" + AwfulThread.INDEX + ");");
     }
 
     private void createPostTable(SQLiteDatabase aDb) {
@@ -103,7 +157,6 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 AwfulPost.REGDATE + " VARCHAR," +
                 AwfulPost.USER_ID + " INTEGER," +
                 AwfulPost.USERNAME + " VARCHAR," +
-                AwfulPost.PREVIOUSLY_READ + " INTEGER," +
                 AwfulPost.EDITABLE + " INTEGER," +
                 AwfulPost.IS_OP + " INTEGER," +
                 AwfulPost.IS_ADMIN + " INTEGER," +
@@ -114,6 +167,31 @@ public class DatabaseHelper extends SQLiteOpenHelper {
                 AwfulPost.CONTENT + " VARCHAR," +
                 AwfulPost.EDITED + " VARCHAR," +
                 UPDATED_TIMESTAMP + " DATETIME);");
+        createPostIndex(aDb);
+    }
+
+    /**
+     * Index posts by thread - post queries and cache trimming both work on whole threads and page ranges.
+     */
+    private void createPostIndex(SQLiteDatabase aDb) {
+        aDb.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE_POSTS + "_thread ON " + TABLE_POSTS +
+                " (" + AwfulPost.THREAD_ID + "," + AwfulPost.POST_INDEX + ");");
+    }
+
+    /**
+     * Create the full-text search index for cached posts.
+     * <p>
+     * Each row's docid is the ID of the post it indexes. A trigger removes index rows when their
+     * posts are deleted, so anything trimming the posts table keeps the index in sync - inserts
+     * are handled by {@link AwfulProvider}, since the indexed text isn't stored in the posts table.
+     */
+    private void createPostSearchTable(SQLiteDatabase aDb) {
+        aDb.execSQL("CREATE VIRTUAL TABLE " + TABLE_POSTS_SEARCH + " USING fts4(" +
+                AwfulPost.SEARCH_TEXT + "," +
+                AwfulPost.USERNAME + "," +
+                AwfulPost.THREAD_TITLE + ");");
+        aDb.execSQL("CREATE TRIGGER " + TABLE_POSTS_SEARCH + "_delete AFTER DELETE ON " + TABLE_POSTS +
+                " BEGIN DELETE FROM " + TABLE_POSTS_SEARCH + " WHERE docid = old." + AwfulPost.ID + "; END;");
     }
 
     private void createEmoteTable(SQLiteDatabase aDb) {
@@ -158,6 +236,41 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
 
+    /**
+     * Holds the last time each thread was viewed, so the cache can be trimmed least-recently-used first.
+     * Inserting a row for a thread replaces any existing one.
+     */
+    private void createThreadAccessTable(SQLiteDatabase aDb) {
+        aDb.execSQL("CREATE TABLE " + TABLE_THREAD_ACCESS + " (" +
+                AwfulThread.ID + " INTEGER PRIMARY KEY ON CONFLICT REPLACE," +
+                AwfulThread.LAST_ACCESS + " INTEGER);");
+    }
+
+
+    /**
+     * Holds the index of the last read post in each thread. Posts at or below that index count as
+     * read - see {@link PostDao#PREVIOUSLY_READ_EXPRESSION} - so marking a thread read only touches one row.
+     * Inserting a row for a thread replaces any existing one.
+     */
+    private void createReadWatermarkTable(SQLiteDatabase aDb) {
+        aDb.execSQL("CREATE TABLE " + TABLE_READ_WATERMARKS + " (" +
+                AwfulThread.ID + " INTEGER PRIMARY KEY ON CONFLICT REPLACE," +
+                AwfulThread.LAST_READ_INDEX + " INTEGER);");
+    }
+
+
+    /**
+     * Holds the embed HTML looked up for links in posts - see {@link OEmbedDao}.
+     * Inserting a row for a URL replaces any existing one.
+     */
+    private void createOEmbedTable(SQLiteDatabase aDb) {
+        aDb.execSQL("CREATE TABLE " + TABLE_OEMBEDS + " (" +
+                OEmbedDao.URL + " VARCHAR PRIMARY KEY ON CONFLICT REPLACE," +
+                OEmbedDao.HTML + " VARCHAR," +
+                OEmbedDao.FETCHED_TIME + " INTEGER);");
+    }
+
+
     @Override
     public void onUpgrade(SQLiteDatabase aDb, int aOldVersion, int aNewVersion) {
         switch (aOldVersion) {//this switch intentionally falls through!
@@ -179,16 +292,49 @@ public class DatabaseHelper extends SQLiteOpenHelper {
             case 31:
                 dropTables(aDb, TABLE_THREADS);
                 createThreadTable(aDb);
-                break;//make sure to keep this break statement on the last case of this switch
             case 32:
                 dropTables(aDb, TABLE_DRAFTS);
                 createDraftTable(aDb);
+            case 33:
+                // the search index only gets filled as posts are inserted, so start with a fresh cache
+                dropTables(aDb, TABLE_POSTS_SEARCH, TABLE_POSTS);
+                createPostTable(aDb);
+                createPostSearchTable(aDb);
+            case 34:
+                createPostIndex(aDb);
+                createThreadAccessTable(aDb);
+            case 35:
+                // read state moved from each post row to a per-thread watermark - seed it from the thread read counts
+                // (the old posts column just gets left behind, nothing reads or writes it anymore)
+                createReadWatermarkTable(aDb);
+                aDb.execSQL("INSERT INTO " + TABLE_READ_WATERMARKS + " (" + AwfulThread.ID + "," + AwfulThread.LAST_READ_INDEX + ")" +
+                        " SELECT " + AwfulThread.ID + ", " + AwfulThread.POSTCOUNT + " - " + AwfulThread.UNREADCOUNT +
+                        " FROM " + TABLE_THREADS + " WHERE " + AwfulThread.HAS_VIEWED_THREAD + " = 1;");
+            case 36:
+                createThreadIndex(aDb);
+                createUCPIndex(aDb);
+            case 37:
+                createOEmbedTable(aDb);
+            case 38:
+                // switching an existing database to incremental vacuuming needs a full VACUUM, see onOpen
+                vacuumPending = true;
                 break;//make sure to keep this break statement on the last case of this switch
             default:
                 wipeRecreateTables(aDb);
         }
     }
 
+    @Override
+    public void onOpen(SQLiteDatabase aDb) {
+        if (vacuumPending && !aDb.isReadOnly()) {
+            vacuumPending = false;
+            long startTime = System.currentTimeMillis();
+            aDb.execSQL("PRAGMA auto_vacuum = " + AUTO_VACUUM_INCREMENTAL);
+            aDb.execSQL("VACUUM");
+            Timber.i("Enabled incremental vacuum on the cache DB in %dms", System.currentTimeMillis() - startTime);
+        }
+    }
+
     @Override
     public void onDowngrade(SQLiteDatabase aDb, int oldVersion, int newVersion) {
         wipeRecreateTables(aDb);
@@ -204,8 +350,10 @@ public class DatabaseHelper extends SQLiteOpenHelper {
     }
 
     private void wipeRecreateTables(SQLiteDatabase aDb) {
-        String[] allTables = {TABLE_FORUM, TABLE_THREADS, TABLE_POSTS, TABLE_EMOTES, TABLE_UCP_THREADS, TABLE_PM, TABLE_DRAFTS};
+        String[] allTables = {TABLE_FORUM, TABLE_THREADS, TABLE_POSTS, TABLE_POSTS_SEARCH, TABLE_EMOTES, TABLE_UCP_THREADS, TABLE_PM, TABLE_DRAFTS, TABLE_THREAD_ACCESS, TABLE_READ_WATERMARKS, TABLE_OEMBEDS};
         dropTables(aDb, allTables);
         onCreate(aDb);
+        // the file is still in whatever vacuum mode it had before
+        vacuumPending = true;
     }
 }
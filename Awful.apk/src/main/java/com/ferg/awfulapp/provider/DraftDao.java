@@ -0,0 +1,61 @@
+package com.ferg.awfulapp.provider;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+
+import com.ferg.awfulapp.thread.AwfulMessage;
+
+import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_DRAFTS;
+
+/**
+ * Typed access to the saved drafts table - thread replies and PMs.
+ */
+public class DraftDao extends Dao {
+
+    private static final String DELETE_BY_ID = "DELETE FROM " + TABLE_DRAFTS + " WHERE " + AwfulMessage.ID + "=?";
+
+    private static DraftDao instance;
+
+
+    @NonNull
+    public static synchronized DraftDao getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new DraftDao(context);
+        }
+        return instance;
+    }
+
+    private DraftDao(@NonNull Context context) {
+        super(context);
+    }
+
+
+    /**
+     * Store a draft, replacing any existing one with the same ID.
+     *
+     * @param draft the draft's data, which must include its {@link AwfulMessage#ID}
+     */
+    public synchronized void saveDraft(@NonNull ContentValues draft) {
+        int id = draft.getAsInteger(AwfulMessage.ID);
+        String[] idArg = AwfulProvider.int2StrArray(id);
+        if (getDatabase().update(TABLE_DRAFTS, draft, AwfulMessage.ID + "=?", idArg) < 1) {
+            getDatabase().insert(TABLE_DRAFTS, "", draft);
+        }
+        notifyChange(ContentUris.withAppendedId(AwfulMessage.CONTENT_URI_REPLY, id));
+    }
+
+
+    /**
+     * Delete any draft with the given ID.
+     */
+    public synchronized void deleteDraft(int id) {
+        SQLiteStatement statement = getStatement(DELETE_BY_ID);
+        statement.bindLong(1, id);
+        if (statement.executeUpdateDelete() > 0) {
+            notifyChange(ContentUris.withAppendedId(AwfulMessage.CONTENT_URI_REPLY, id));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package com.ferg.awfulapp.provider;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.ferg.awfulapp.thread.AwfulForum;
+
+import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_FORUM;
+import static com.ferg.awfulapp.provider.DatabaseHelper.UPDATED_TIMESTAMP;
+
+/**
+ * Typed access to the forums table.
+ */
+public class ForumDao extends Dao {
+
+    private static final String SELECT_TITLE = "SELECT " + AwfulForum.TITLE + " FROM " + TABLE_FORUM +
+            " WHERE " + AwfulForum.ID + "=?";
+    private static final String UPDATE_PAGE_COUNT = "UPDATE " + TABLE_FORUM +
+            " SET " + AwfulForum.PAGE_COUNT + "=?, " + UPDATED_TIMESTAMP + "=? WHERE " + AwfulForum.ID + "=?";
+
+    private static ForumDao instance;
+
+
+    @NonNull
+    public static synchronized ForumDao getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new ForumDao(context);
+        }
+        return instance;
+    }
+
+    private ForumDao(@NonNull Context context) {
+        super(context);
+    }
+
+
+    /**
+     * Get a cached forum's title.
+     *
+     * @return the title, or null if the forum isn't in the database
+     */
+    @Nullable
+    public synchronized String getTitle(int forumId) {
+        SQLiteStatement statement = getStatement(SELECT_TITLE);
+        statement.bindLong(1, forumId);
+        try {
+            return statement.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Store the number of pages in a forum.
+     *
+     * @param timestamp the update time to record for the forum's data
+     * @return false if the forum isn't in the database
+     */
+    public synchronized boolean setPageCount(int forumId, int pageCount, @NonNull String timestamp) {
+        SQLiteStatement statement = getStatement(UPDATE_PAGE_COUNT);
+        statement.bindLong(1, pageCount);
+        statement.bindString(2, timestamp);
+        statement.bindLong(3, forumId);
+        boolean updated = statement.executeUpdateDelete() > 0;
+        if (updated) {
+            notifyChange(ContentUris.withAppendedId(AwfulForum.CONTENT_URI, forumId));
+        }
+        return updated;
+    }
+}
@@ -0,0 +1,108 @@
+package com.ferg.awfulapp.provider;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import com.ferg.awfulapp.thread.AwfulForum;
+import com.ferg.awfulapp.thread.AwfulMessage;
+import com.ferg.awfulapp.thread.AwfulPost;
+import com.ferg.awfulapp.thread.AwfulThread;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Lets code register for changes to a type of data, without having to deal with content Uris.
+ * <p>
+ * This listens for the change notifications posted by {@link AwfulProvider} and the DAOs, so it
+ * picks up writes from both. Observers are called on the main thread.
+ */
+public class InvalidationTracker {
+
+    /**
+     * The types of data that can be observed.
+     */
+    public enum Entity {
+        FORUM(AwfulForum.CONTENT_URI),
+        THREAD(AwfulThread.CONTENT_URI),
+        POST(AwfulPost.CONTENT_URI),
+        DRAFT(AwfulMessage.CONTENT_URI_REPLY);
+
+        final Uri uri;
+
+        Entity(Uri uri) {
+            this.uri = uri;
+        }
+    }
+
+    public interface Observer {
+        void onInvalidated(@NonNull Entity entity);
+    }
+
+
+    private static InvalidationTracker instance;
+
+    private final Context context;
+    private final Map<Entity, Set<Observer>> observers = new EnumMap<>(Entity.class);
+    private final Map<Entity, ContentObserver> contentObservers = new EnumMap<>(Entity.class);
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+
+    @NonNull
+    public static synchronized InvalidationTracker getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new InvalidationTracker(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private InvalidationTracker(@NonNull Context context) {
+        this.context = context;
+        for (Entity entity : Entity.values()) {
+            observers.put(entity, new CopyOnWriteArraySet<>());
+        }
+    }
+
+
+    /**
+     * Register an observer for changes to some type of data.
+     */
+    public synchronized void addObserver(@NonNull Entity entity, @NonNull Observer observer) {
+        observers.get(entity).add(observer);
+        // only listen for changes when someone's interested
+        if (!contentObservers.containsKey(entity)) {
+            ContentObserver contentObserver = new ContentObserver(handler) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    for (Observer observer : observers.get(entity)) {
+                        observer.onInvalidated(entity);
+                    }
+                }
+            };
+            context.getContentResolver().registerContentObserver(entity.uri, true, contentObserver);
+            contentObservers.put(entity, contentObserver);
+        }
+    }
+
+
+    /**
+     * Remove an observer from all the data types it was registered for.
+     */
+    public synchronized void removeObserver(@NonNull Observer observer) {
+        for (Entity entity : Entity.values()) {
+            Set<Observer> entityObservers = observers.get(entity);
+            if (entityObservers.remove(observer) && entityObservers.isEmpty()) {
+                ContentObserver contentObserver = contentObservers.remove(entity);
+                if (contentObserver != null) {
+                    context.getContentResolver().unregisterContentObserver(contentObserver);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.ferg.awfulapp.provider;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_OEMBEDS;
+
+/**
+ * Typed access to the stored oEmbed lookups - the embed HTML for links to tweets etc.
+ * <p>
+ * Entries are kept past the point they'd be looked up again, so they can still be used when there's
+ * no connection. {@link CacheTrimmer} deletes them once they're older than {@link #MAX_AGE_MS}.
+ */
+public class OEmbedDao extends Dao {
+
+    static final String URL = "url";
+    static final String HTML = "html";
+    static final String FETCHED_TIME = "fetched_time";
+
+    /** Stored embeds older than this are deleted when the cache is trimmed */
+    static final long MAX_AGE_MS = TimeUnit.DAYS.toMillis(30);
+    /** Keeps each query well under SQLite's limit on bound arguments */
+    private static final int MAX_URLS_PER_QUERY = 200;
+
+    private static final String INSERT = "INSERT INTO " + TABLE_OEMBEDS +
+            " (" + URL + "," + HTML + "," + FETCHED_TIME + ") VALUES (?,?,?)";
+
+    private static OEmbedDao instance;
+
+
+    @NonNull
+    public static synchronized OEmbedDao getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new OEmbedDao(context);
+        }
+        return instance;
+    }
+
+    private OEmbedDao(@NonNull Context context) {
+        super(context);
+    }
+
+
+    /**
+     * Get the stored embeds for some URLs, however old they are.
+     *
+     * @return the embeds that were found, keyed by URL
+     */
+    @NonNull
+    public Map<String, Embed> getEmbeds(@NonNull Collection<String> urls) {
+        Map<String, Embed> embeds = new HashMap<>();
+        List<String> urlList = new ArrayList<>(urls);
+        for (int start = 0; start < urlList.size(); start += MAX_URLS_PER_QUERY) {
+            List<String> batch = urlList.subList(start, Math.min(start + MAX_URLS_PER_QUERY, urlList.size()));
+            String sql = "SELECT " + URL + "," + HTML + "," + FETCHED_TIME + " FROM " + TABLE_OEMBEDS +
+                    " WHERE " + URL + " IN (" + StringUtils.repeat("?", ",", batch.size()) + ")";
+            try (Cursor cursor = getDatabase().rawQuery(sql, batch.toArray(new String[0]))) {
+                while (cursor.moveToNext()) {
+                    embeds.put(cursor.getString(0), new Embed(cursor.getString(1), cursor.getLong(2)));
+                }
+            }
+        }
+        return embeds;
+    }
+
+
+    /**
+     * Store the embed HTML for a URL, replacing any existing entry.
+     *
+     * @param fetchedTime when the embed was looked up
+     */
+    public synchronized void putEmbed(@NonNull String url, @NonNull String html, long fetchedTime) {
+        SQLiteStatement insert = getStatement(INSERT);
+        insert.bindString(1, url);
+        insert.bindString(2, html);
+        insert.bindLong(3, fetchedTime);
+        insert.executeInsert();
+    }
+
+
+    /**
+     * A stored embed.
+     */
+    public static class Embed {
+        @NonNull
+        public final String html;
+        /** When the embed was looked up */
+        public final long fetchedTime;
+
+        Embed(@NonNull String html, long fetchedTime) {
+            this.html = html;
+            this.fetchedTime = fetchedTime;
+        }
+    }
+}
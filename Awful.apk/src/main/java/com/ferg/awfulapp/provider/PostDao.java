@@ -0,0 +1,248 @@
+package com.ferg.awfulapp.provider;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.ferg.awfulapp.thread.AwfulPost;
+import com.ferg.awfulapp.thread.AwfulThread;
+import com.ferg.awfulapp.thread.OwnUserMarkup;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_POSTS;
+import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_READ_WATERMARKS;
+import static com.ferg.awfulapp.provider.DatabaseHelper.UPDATED_TIMESTAMP;
+
+/**
+ * Typed access to the posts table.
+ */
+public class PostDao extends Dao {
+
+    private static final String TAG = "PostDao";
+
+    /** The posts table joined with each post's thread read watermark, so read state can be calculated */
+    static final String POSTS_WITH_READ_STATE = TABLE_POSTS + " LEFT OUTER JOIN " + TABLE_READ_WATERMARKS +
+            " ON " + TABLE_READ_WATERMARKS + "." + AwfulThread.ID + "=" + TABLE_POSTS + "." + AwfulPost.THREAD_ID;
+    /** Calculates {@link AwfulPost#PREVIOUSLY_READ} for a row of {@link #POSTS_WITH_READ_STATE} */
+    static final String PREVIOUSLY_READ_EXPRESSION = "CASE WHEN " + TABLE_POSTS + "." + AwfulPost.POST_INDEX +
+            " <= IFNULL(" + TABLE_READ_WATERMARKS + "." + AwfulThread.LAST_READ_INDEX + ", 0) THEN 1 ELSE 0 END";
+
+    /** Every column in the posts table, in the order they're read and written */
+    private static final String[] COLUMNS = {
+            AwfulPost.ID,
+            AwfulPost.THREAD_ID,
+            AwfulPost.POST_INDEX,
+            AwfulPost.DATE,
+            AwfulPost.REGDATE,
+            AwfulPost.USER_ID,
+            AwfulPost.USERNAME,
+            AwfulPost.EDITABLE,
+            AwfulPost.IS_OP,
+            AwfulPost.IS_ADMIN,
+            AwfulPost.IS_MOD,
+            AwfulPost.IS_PLAT,
+            AwfulPost.AVATAR,
+            AwfulPost.AVATAR_TEXT,
+            AwfulPost.CONTENT,
+            AwfulPost.EDITED,
+            UPDATED_TIMESTAMP
+    };
+    /** The stored columns, plus the calculated read state */
+    private static final AwfulPost.ColumnIndexes COLUMN_INDEXES = new AwfulPost.ColumnIndexes(ArrayUtils.add(COLUMNS, AwfulPost.PREVIOUSLY_READ));
+
+    private static final String SELECT_PAGE = "SELECT " + TABLE_POSTS + "." + TextUtils.join("," + TABLE_POSTS + ".", COLUMNS) +
+            "," + PREVIOUSLY_READ_EXPRESSION + " FROM " + POSTS_WITH_READ_STATE +
+            " WHERE " + AwfulPost.THREAD_ID + "=? AND " + AwfulPost.POST_INDEX + ">=? AND " + AwfulPost.POST_INDEX + "<?" +
+            " ORDER BY " + AwfulPost.POST_INDEX + " ASC";
+    private static final String DELETE_AT_INDEX = "DELETE FROM " + TABLE_POSTS +
+            " WHERE " + AwfulPost.POST_INDEX + "=? AND " + AwfulPost.THREAD_ID + "=?";
+    /** Posts that might mention either of two usernames (LIKE is case-insensitive, which is fine for narrowing it down) */
+    private static final String SELECT_MARKUP_CANDIDATES = "SELECT " + AwfulPost.ID + " FROM " + TABLE_POSTS +
+            " WHERE " + AwfulPost.CONTENT + " LIKE ? ESCAPE '\\' OR " + AwfulPost.CONTENT + " LIKE ? ESCAPE '\\'";
+    /** The content of a batch of posts - the list of IDs gets appended to this */
+    private static final String SELECT_CONTENT_BY_ID = "SELECT " + AwfulPost.ID + "," + AwfulPost.THREAD_ID + "," + AwfulPost.CONTENT +
+            " FROM " + TABLE_POSTS + " WHERE " + AwfulPost.ID + " IN ";
+    /** How many posts to re-mark in each transaction, so other DB work isn't locked out for long */
+    private static final int REMARK_BATCH_SIZE = 50;
+    private static final String UPDATE_CONTENT = "UPDATE " + TABLE_POSTS + " SET " + AwfulPost.CONTENT + "=? WHERE " + AwfulPost.ID + "=?";
+    private static final String INSERT = "INSERT OR REPLACE INTO " + TABLE_POSTS +
+            " (" + TextUtils.join(",", COLUMNS) + ") VALUES (" + StringUtils.repeat("?", ",", COLUMNS.length) + ")";
+
+    private static PostDao instance;
+
+
+    @NonNull
+    public static synchronized PostDao getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new PostDao(context);
+        }
+        return instance;
+    }
+
+    private PostDao(@NonNull Context context) {
+        super(context);
+    }
+
+
+    /**
+     * Get the cached posts in a thread, within a range of post indices.
+     *
+     * @param startIndex the first post index (inclusive)
+     * @param endIndex   the last post index (exclusive)
+     * @return the posts, ordered by index
+     */
+    @NonNull
+    public List<AwfulPost> getPosts(int threadId, int startIndex, int endIndex) {
+        try (Cursor cursor = getDatabase().rawQuery(SELECT_PAGE, AwfulProvider.int2StrArray(threadId, startIndex, endIndex))) {
+            return AwfulPost.fromCursor(cursor, COLUMN_INDEXES);
+        }
+    }
+
+
+    /**
+     * Store a batch of parsed posts, replacing any existing posts at the same positions in their threads.
+     * Any search data in the values is added to the search index.
+     * <p>
+     * All the posts are inserted in a single transaction - if any fail, none are stored.
+     *
+     * @return the number of posts stored
+     */
+    public synchronized int insertPosts(@NonNull List<ContentValues> posts) {
+        if (posts.isEmpty()) {
+            return 0;
+        }
+        SQLiteDatabase db = getDatabase();
+        SQLiteStatement deleteAtIndex = getStatement(DELETE_AT_INDEX);
+        SQLiteStatement insert = getStatement(INSERT);
+
+        db.beginTransaction();
+        try {
+            for (ContentValues post : posts) {
+                ContentValues searchValues = PostSearchIndex.extractSearchValues(post);
+                deleteAtIndex.bindLong(1, post.getAsInteger(AwfulPost.POST_INDEX));
+                deleteAtIndex.bindLong(2, post.getAsInteger(AwfulPost.THREAD_ID));
+                deleteAtIndex.executeUpdateDelete();
+
+                // missing values are stored as nulls, same as a REPLACE with the ContentValues would do
+                insert.clearBindings();
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    DatabaseUtils.bindObjectToProgram(insert, i + 1, post.get(COLUMNS[i]));
+                }
+                insert.executeInsert();
+
+                if (searchValues != null) {
+                    PostSearchIndex.index(db, post.getAsLong(AwfulPost.ID), searchValues);
+                }
+            }
+            db.setTransactionSuccessful();
+        } catch (SQLiteConstraintException e) {
+            Log.w(TAG, e.toString());
+            // transaction failed (exception throws before #setTransactionSuccessful), no rows inserted
+            return 0;
+        } finally {
+            db.endTransaction();
+        }
+        Set<Integer> threadIds = new HashSet<>();
+        for (ContentValues post : posts) {
+            threadIds.add(post.getAsInteger(AwfulPost.THREAD_ID));
+        }
+        for (int threadId : threadIds) {
+            invalidateRenderedPages(threadId);
+        }
+        notifyChange(AwfulPost.CONTENT_URI);
+        return posts.size();
+    }
+
+
+    /**
+     * Redo the username markup in the stored posts, after the user's username has changed.
+     * <p>
+     * Posts are marked up with the username when they're parsed (see {@link OwnUserMarkup}), so
+     * this replaces any markup for the old name. Only posts containing one of the names are read,
+     * and they're rewritten in small batches. This runs on the database maintenance lane
+     * (see {@link CacheTrimmer#runInBackground(Runnable)}).
+     *
+     * @param oldUsername the username the posts were marked up for, or null if it's not known
+     * @param onFinished   called on the maintenance lane once every post has been checked
+     */
+    public void remarkOwnUsername(@Nullable String oldUsername, @NonNull String username, @Nullable Runnable onFinished) {
+        CacheTrimmer.runInBackground(() -> {
+            // without the old name, look for posts that have any markup at all
+            String oldPattern = (oldUsername != null) ? likePattern(oldUsername) : "%" + OwnUserMarkup.MENTION_CLASS + "%";
+            List<Long> candidates = new ArrayList<>();
+            try (Cursor cursor = getDatabase().rawQuery(SELECT_MARKUP_CANDIDATES, new String[]{oldPattern, likePattern(username)})) {
+                while (cursor.moveToNext()) {
+                    candidates.add(cursor.getLong(0));
+                }
+            }
+            Set<Integer> threadIds = new HashSet<>();
+            int updated = 0;
+            for (int start = 0; start < candidates.size(); start += REMARK_BATCH_SIZE) {
+                List<Long> batch = candidates.subList(start, Math.min(start + REMARK_BATCH_SIZE, candidates.size()));
+                updated += remarkBatch(batch, username, threadIds);
+            }
+            Log.i(TAG, "Re-marked " + updated + " of " + candidates.size() + " posts for a new username");
+            if (updated > 0) {
+                for (int threadId : threadIds) {
+                    invalidateRenderedPages(threadId);
+                }
+                notifyChange(AwfulPost.CONTENT_URI);
+            }
+            if (onFinished != null) {
+                onFinished.run();
+            }
+        });
+    }
+
+
+    /**
+     * Re-mark a batch of posts in a single transaction.
+     *
+     * @param threadIds collects the IDs of the threads with updated posts
+     * @return the number of posts updated
+     */
+    private synchronized int remarkBatch(@NonNull List<Long> postIds, @NonNull String username, @NonNull Set<Integer> threadIds) {
+        SQLiteDatabase db = getDatabase();
+        SQLiteStatement update = getStatement(UPDATE_CONTENT);
+        int updated = 0;
+        db.beginTransaction();
+        try (Cursor cursor = db.rawQuery(SELECT_CONTENT_BY_ID + "(" + TextUtils.join(",", postIds) + ")", null)) {
+            while (cursor.moveToNext()) {
+                String newContent = OwnUserMarkup.remark(cursor.getString(2), username);
+                if (newContent == null) {
+                    continue;
+                }
+                update.bindString(1, newContent);
+                update.bindLong(2, cursor.getLong(0));
+                update.executeUpdateDelete();
+                threadIds.add(cursor.getInt(1));
+                updated++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return updated;
+    }
+
+
+    @NonNull
+    private static String likePattern(@NonNull String text) {
+        return "%" + text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+    }
+}
@@ -0,0 +1,273 @@
+package com.ferg.awfulapp.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LongSparseArray;
+
+import com.ferg.awfulapp.thread.AwfulPost;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_POSTS;
+import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_POSTS_SEARCH;
+
+/**
+ * Maintains and queries the full-text index of cached posts.
+ * <p>
+ * Post data passed to {@link AwfulProvider} can carry some extra search values (the plain text of
+ * the post, and the thread title) which aren't stored in the posts table. These get split off with
+ * {@link #extractSearchValues(ContentValues)} and added to the index with {@link #index(SQLiteDatabase, long, ContentValues)}.
+ * Deleting posts removes their index entries automatically (see {@link DatabaseHelper}).
+ * <p>
+ * Searches return a cursor of posts, ordered by a BM25 relevance score calculated from the FTS
+ * matchinfo data - FTS4 doesn't have any built-in ranking. Snippets are only built for the posts
+ * that make it into the results.
+ */
+class PostSearchIndex {
+
+    static final int DEFAULT_RESULT_LIMIT = 50;
+    /** Cap on how many terms we'll put in a MATCH expression */
+    private static final int MAX_QUERY_TERMS = 16;
+
+    // BM25 tuning - the usual defaults
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    /** Relative importance of matches in each indexed column: post text, username, thread title */
+    private static final double[] COLUMN_WEIGHTS = {1.0, 2.0, 0.5};
+
+    /** The columns in a search result cursor */
+    static final String[] RESULT_COLUMNS = {
+            AwfulPost.ID,
+            AwfulPost.THREAD_ID,
+            AwfulPost.POST_INDEX,
+            AwfulPost.USERNAME,
+            AwfulPost.THREAD_TITLE,
+            AwfulPost.SEARCH_SNIPPET,
+            AwfulPost.SEARCH_RANK
+    };
+
+    /**
+     * Finds and scores the matching posts. Snippets are expensive to build, so they're left until
+     * the matches have been ranked and cut down to the result limit (see {@link #DETAILS_SQL}).
+     */
+    private static final String RANK_SQL = "SELECT " +
+            TABLE_POSTS_SEARCH + ".docid, " +
+            "matchinfo(" + TABLE_POSTS_SEARCH + ", 'pcnalx')" +
+            " FROM " + TABLE_POSTS_SEARCH + " JOIN " + TABLE_POSTS +
+            " ON " + TABLE_POSTS + "." + AwfulPost.ID + "=" + TABLE_POSTS_SEARCH + ".docid" +
+            " WHERE " + TABLE_POSTS_SEARCH + " MATCH ?";
+
+    /**
+     * Gets the details and snippets for the top-ranked posts - the docid list gets appended to this.
+     */
+    private static final String DETAILS_SQL = "SELECT " +
+            TABLE_POSTS + "." + AwfulPost.ID + ", " +
+            TABLE_POSTS + "." + AwfulPost.THREAD_ID + ", " +
+            TABLE_POSTS + "." + AwfulPost.POST_INDEX + ", " +
+            TABLE_POSTS + "." + AwfulPost.USERNAME + ", " +
+            TABLE_POSTS_SEARCH + "." + AwfulPost.THREAD_TITLE + ", " +
+            "snippet(" + TABLE_POSTS_SEARCH + ", '<b>', '</b>', '…', -1, 24)" +
+            " FROM " + TABLE_POSTS_SEARCH + " JOIN " + TABLE_POSTS +
+            " ON " + TABLE_POSTS + "." + AwfulPost.ID + "=" + TABLE_POSTS_SEARCH + ".docid" +
+            " WHERE " + TABLE_POSTS_SEARCH + " MATCH ? AND " + TABLE_POSTS_SEARCH + ".docid IN ";
+
+
+    private PostSearchIndex() {
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Indexing
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Remove any search data from a set of post values, so the rest can be stored in the posts table.
+     *
+     * @return the values for the search index, or null if the post didn't have any search text
+     */
+    @Nullable
+    static ContentValues extractSearchValues(@NonNull ContentValues postValues) {
+        if (!postValues.containsKey(AwfulPost.SEARCH_TEXT)) {
+            postValues.remove(AwfulPost.THREAD_TITLE);
+            return null;
+        }
+        ContentValues searchValues = new ContentValues(3);
+        searchValues.put(AwfulPost.SEARCH_TEXT, postValues.getAsString(AwfulPost.SEARCH_TEXT));
+        searchValues.put(AwfulPost.USERNAME, postValues.getAsString(AwfulPost.USERNAME));
+        searchValues.put(AwfulPost.THREAD_TITLE, postValues.getAsString(AwfulPost.THREAD_TITLE));
+        postValues.remove(AwfulPost.SEARCH_TEXT);
+        postValues.remove(AwfulPost.THREAD_TITLE);
+        return searchValues;
+    }
+
+
+    /**
+     * Add or replace a post's entry in the search index.
+     * This should be called within the same transaction that stores the post.
+     */
+    static void index(@NonNull SQLiteDatabase db, long postId, @NonNull ContentValues searchValues) {
+        // FTS tables don't do REPLACE conflict resolution on docid, so clear out any old entry first
+        db.delete(TABLE_POSTS_SEARCH, "docid=?", new String[]{Long.toString(postId)});
+        searchValues.put("docid", postId);
+        db.insert(TABLE_POSTS_SEARCH, null, searchValues);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Searching
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Search the index, returning the best-matching posts in order of relevance.
+     *
+     * @param query    the user's search text
+     * @param threadId an optional thread to limit the search to
+     * @param limit    the maximum number of results to return
+     * @return a cursor with the {@link #RESULT_COLUMNS} columns, which is empty if there was nothing to search for
+     */
+    @NonNull
+    static Cursor search(@NonNull SQLiteDatabase db, @Nullable String query, @Nullable Integer threadId, int limit) {
+        MatrixCursor results = new MatrixCursor(RESULT_COLUMNS);
+        String matchExpression = toMatchExpression(query);
+        if (matchExpression == null || limit <= 0) {
+            return results;
+        }
+
+        String sql = RANK_SQL;
+        String[] args;
+        if (threadId != null) {
+            sql += " AND " + TABLE_POSTS + "." + AwfulPost.THREAD_ID + "=?";
+            args = new String[]{matchExpression, threadId.toString()};
+        } else {
+            args = new String[]{matchExpression};
+        }
+
+        List<Hit> hits = new ArrayList<>();
+        try (Cursor cursor = db.rawQuery(sql, args)) {
+            while (cursor.moveToNext()) {
+                hits.add(new Hit(cursor.getLong(0), score(toInts(cursor.getBlob(1)))));
+            }
+        }
+        if (hits.isEmpty()) {
+            return results;
+        }
+        // highest scores first, ties broken by most recent post
+        Collections.sort(hits, (a, b) -> a.rank != b.rank ? Double.compare(b.rank, a.rank) : Long.compare(b.postId, a.postId));
+        hits = hits.subList(0, Math.min(limit, hits.size()));
+
+        // now get the details for just the posts that made the cut
+        StringBuilder docIds = new StringBuilder("(");
+        for (Hit hit : hits) {
+            docIds.append(docIds.length() > 1 ? "," : "").append(hit.postId);
+        }
+        LongSparseArray<Object[]> rows = new LongSparseArray<>(hits.size());
+        try (Cursor cursor = db.rawQuery(DETAILS_SQL + docIds.append(')'), new String[]{matchExpression})) {
+            while (cursor.moveToNext()) {
+                rows.put(cursor.getLong(0), new Object[]{cursor.getLong(0), cursor.getInt(1), cursor.getInt(2),
+                        cursor.getString(3), cursor.getString(4), cursor.getString(5), null});
+            }
+        }
+        for (Hit hit : hits) {
+            Object[] row = rows.get(hit.postId);
+            if (row != null) {
+                row[row.length - 1] = hit.rank;
+                results.addRow(row);
+            }
+        }
+        return results;
+    }
+
+
+    /**
+     * Turn some user-entered text into a safe FTS MATCH expression.
+     * <p>
+     * Everything that isn't a letter or a number is treated as a separator, so FTS operators and
+     * quotes etc. can't break the query. All the terms are required, and the last one is treated
+     * as a prefix so partially-typed words still match.
+     *
+     * @return the expression, or null if there's nothing searchable in the text
+     */
+    @Nullable
+    static String toMatchExpression(@Nullable String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder expression = new StringBuilder();
+        int terms = 0;
+        for (String term : query.toLowerCase(Locale.US).split("[^\\p{L}\\p{N}]+")) {
+            if (term.isEmpty() || terms == MAX_QUERY_TERMS) {
+                continue;
+            }
+            if (terms++ > 0) {
+                expression.append(' ');
+            }
+            expression.append(term);
+        }
+        return terms == 0 ? null : expression.append('*').toString();
+    }
+
+
+    /**
+     * Calculate a BM25 score from the ints in an FTS4 'pcnalx' matchinfo blob.
+     */
+    static double score(@NonNull int[] matchInfo) {
+        int phraseCount = matchInfo[0];
+        int columnCount = matchInfo[1];
+        int rowCount = matchInfo[2];
+        int avgLengthOffset = 3;
+        int lengthOffset = avgLengthOffset + columnCount;
+        int hitsOffset = lengthOffset + columnCount;
+
+        double score = 0;
+        for (int phrase = 0; phrase < phraseCount; phrase++) {
+            for (int column = 0; column < columnCount; column++) {
+                int x = hitsOffset + 3 * (column + phrase * columnCount);
+                int hitsInRow = matchInfo[x];
+                int rowsWithHits = matchInfo[x + 2];
+                if (hitsInRow == 0) {
+                    continue;
+                }
+                // floor the idf so terms that appear in most posts still count for something
+                double idf = Math.max(0.01, Math.log((rowCount - rowsWithHits + 0.5) / (rowsWithHits + 0.5)));
+                double avgLength = Math.max(1, matchInfo[avgLengthOffset + column]);
+                double length = matchInfo[lengthOffset + column];
+                double weight = column < COLUMN_WEIGHTS.length ? COLUMN_WEIGHTS[column] : 1.0;
+                score += weight * idf * (hitsInRow * (K1 + 1)) / (hitsInRow + K1 * (1 - B + B * length / avgLength));
+            }
+        }
+        return score;
+    }
+
+
+    /**
+     * Matchinfo blobs are arrays of 32-bit unsigned ints in the machine's byte order.
+     */
+    @NonNull
+    private static int[] toInts(@NonNull byte[] blob) {
+        IntBuffer buffer = ByteBuffer.wrap(blob).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int[] ints = new int[buffer.remaining()];
+        buffer.get(ints);
+        return ints;
+    }
+
+
+    private static class Hit {
+        final long postId;
+        final double rank;
+
+        Hit(long postId, double rank) {
+            this.postId = postId;
+            this.rank = rank;
+        }
+    }
+}
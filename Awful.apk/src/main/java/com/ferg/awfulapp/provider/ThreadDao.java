@@ -0,0 +1,235 @@
+package com.ferg.awfulapp.provider;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.TextUtils;
+
+import com.ferg.awfulapp.constants.Constants;
+import com.ferg.awfulapp.thread.AwfulPost;
+import com.ferg.awfulapp.thread.AwfulThread;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_READ_WATERMARKS;
+import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_THREADS;
+import static com.ferg.awfulapp.provider.DatabaseHelper.TABLE_UCP_THREADS;
+
+/**
+ * Typed access to the threads table.
+ */
+public class ThreadDao extends Dao {
+
+    private static final String[] COLUMNS = {
+            AwfulThread.ID,
+            AwfulThread.INDEX,
+            AwfulThread.FORUM_ID,
+            AwfulThread.TITLE,
+            AwfulThread.POSTCOUNT,
+            AwfulThread.UNREADCOUNT,
+            AwfulThread.AUTHOR,
+            AwfulThread.AUTHOR_ID,
+            AwfulThread.LOCKED,
+            AwfulThread.CAN_OPEN_CLOSE,
+            AwfulThread.BOOKMARKED,
+            AwfulThread.STICKY,
+            AwfulThread.CATEGORY,
+            AwfulThread.LASTPOSTER,
+            AwfulThread.TAG_URL,
+            AwfulThread.TAG_CACHEFILE,
+            AwfulThread.TAG_EXTRA,
+            AwfulThread.HAS_VIEWED_THREAD,
+            AwfulThread.ARCHIVED,
+            AwfulThread.RATING
+    };
+    private static final AwfulThread.ColumnIndexes COLUMN_INDEXES = new AwfulThread.ColumnIndexes(COLUMNS);
+
+    private static final String SELECT_BY_ID = "SELECT " + TextUtils.join(",", COLUMNS) + " FROM " + TABLE_THREADS +
+            " WHERE " + AwfulThread.ID + "=?";
+    private static final String SELECT_TITLE = "SELECT " + AwfulThread.TITLE + " FROM " + TABLE_THREADS +
+            " WHERE " + AwfulThread.ID + "=?";
+    /** A window of a forum's thread list, keyed on the thread's position in the forum */
+    private static final String SELECT_FORUM_WINDOW = "SELECT " + TextUtils.join(",", COLUMNS) + " FROM " + TABLE_THREADS +
+            " WHERE " + AwfulThread.FORUM_ID + "=? AND " + AwfulThread.INDEX + ">=? AND " + AwfulThread.INDEX + "<?" +
+            " ORDER BY " + AwfulThread.INDEX + " LIMIT ?";
+    /** A window of the bookmarks list - same as {@link #SELECT_FORUM_WINDOW} but keyed and ordered on the bookmark position */
+    private static final String SELECT_BOOKMARKS_WINDOW = "SELECT " + qualifiedColumns() + " FROM " + TABLE_UCP_THREADS +
+            " JOIN " + TABLE_THREADS + " ON " + TABLE_THREADS + "." + AwfulThread.ID + "=" + TABLE_UCP_THREADS + "." + AwfulThread.ID +
+            " WHERE " + TABLE_UCP_THREADS + "." + AwfulThread.INDEX + ">=? AND " + TABLE_UCP_THREADS + "." + AwfulThread.INDEX + "<?" +
+            " ORDER BY " + TABLE_UCP_THREADS + "." + AwfulThread.INDEX + " LIMIT ?";
+    private static final String SET_READ_WATERMARK = "INSERT OR REPLACE INTO " + TABLE_READ_WATERMARKS +
+            " (" + AwfulThread.ID + "," + AwfulThread.LAST_READ_INDEX + ") VALUES (?,?)";
+    private static final String DELETE_READ_WATERMARK = "DELETE FROM " + TABLE_READ_WATERMARKS +
+            " WHERE " + AwfulThread.ID + "=?";
+    private static final String SET_UNREAD_COUNT = "UPDATE " + TABLE_THREADS +
+            " SET " + AwfulThread.UNREADCOUNT + "=" + AwfulThread.POSTCOUNT + "-? WHERE " + AwfulThread.ID + "=?";
+    private static final String SET_UNVIEWED = "UPDATE " + TABLE_THREADS +
+            " SET " + AwfulThread.UNREADCOUNT + "=0, " + AwfulThread.HAS_VIEWED_THREAD + "=0 WHERE " + AwfulThread.ID + "=?";
+
+    private static ThreadDao instance;
+
+
+    @NonNull
+    public static synchronized ThreadDao getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new ThreadDao(context);
+        }
+        return instance;
+    }
+
+    private ThreadDao(@NonNull Context context) {
+        super(context);
+    }
+
+
+    /**
+     * The thread columns for a join with the bookmarks table, taking the position from the bookmark.
+     */
+    @NonNull
+    private static String qualifiedColumns() {
+        List<String> columns = new ArrayList<>(COLUMNS.length);
+        for (String column : COLUMNS) {
+            String table = column.equals(AwfulThread.INDEX) ? TABLE_UCP_THREADS : TABLE_THREADS;
+            columns.add(table + "." + column);
+        }
+        return TextUtils.join(",", columns);
+    }
+
+
+    /**
+     * Get a cached thread.
+     *
+     * @return the thread, or null if it isn't in the database
+     */
+    @Nullable
+    public AwfulThread getThread(int threadId) {
+        try (Cursor cursor = getDatabase().rawQuery(SELECT_BY_ID, AwfulProvider.int2StrArray(threadId))) {
+            return cursor.moveToFirst() ? AwfulThread.fromCursorRow(cursor, COLUMN_INDEXES) : null;
+        }
+    }
+
+
+    /**
+     * Get a window of a forum's cached thread list.
+     * <p>
+     * Threads are fetched by their position in the list, starting from <i>fromIndex</i> (inclusive) up to
+     * <i>toIndex</i> (exclusive), and at most <i>limit</i> threads are returned. For the bookmarks
+     * forum ({@link com.ferg.awfulapp.constants.Constants#USERCP_ID}) this uses the bookmark positions.
+     *
+     * @return the threads, ordered by position
+     */
+    @NonNull
+    public List<AwfulThread> getThreadWindow(int forumId, int fromIndex, int toIndex, int limit) {
+        boolean isBookmarks = forumId == Constants.USERCP_ID;
+        String[] args = isBookmarks
+                ? AwfulProvider.int2StrArray(fromIndex, toIndex, limit)
+                : AwfulProvider.int2StrArray(forumId, fromIndex, toIndex, limit);
+        List<AwfulThread> threads = new ArrayList<>(limit);
+        try (Cursor cursor = getDatabase().rawQuery(isBookmarks ? SELECT_BOOKMARKS_WINDOW : SELECT_FORUM_WINDOW, args)) {
+            while (cursor.moveToNext()) {
+                threads.add(AwfulThread.fromCursorRow(cursor, COLUMN_INDEXES));
+            }
+        }
+        return threads;
+    }
+
+
+    /**
+     * Get a cached thread's title.
+     *
+     * @return the title, or null if the thread isn't in the database
+     */
+    @Nullable
+    public synchronized String getTitle(int threadId) {
+        SQLiteStatement statement = getStatement(SELECT_TITLE);
+        statement.bindLong(1, threadId);
+        try {
+            return statement.simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Update a thread's data, adding it to the database if necessary.
+     */
+    public synchronized void saveThread(int threadId, @NonNull ContentValues values) {
+        String[] idArg = AwfulProvider.int2StrArray(threadId);
+        if (getDatabase().update(TABLE_THREADS, values, AwfulThread.ID + "=?", idArg) < 1) {
+            getDatabase().insert(TABLE_THREADS, "", values);
+        }
+        notifyChange(ContentUris.withAppendedId(AwfulThread.CONTENT_URI, threadId));
+    }
+
+
+    /**
+     * Set the index of the last read post in a thread. Every cached post up to and including
+     * this index is treated as read, and everything after it as unread - no post rows are touched.
+     */
+    public synchronized void setReadWatermark(int threadId, int lastReadIndex) {
+        SQLiteStatement statement = getStatement(SET_READ_WATERMARK);
+        statement.bindLong(1, threadId);
+        statement.bindLong(2, lastReadIndex);
+        statement.executeInsert();
+        invalidateRenderedPages(threadId);
+        notifyChange(AwfulPost.CONTENT_URI);
+    }
+
+
+    /**
+     * Mark a thread as read up to a given post, updating its unread count to match.
+     */
+    public synchronized void markLastRead(int threadId, int lastReadIndex) {
+        SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement watermark = getStatement(SET_READ_WATERMARK);
+            watermark.bindLong(1, threadId);
+            watermark.bindLong(2, lastReadIndex);
+            watermark.executeInsert();
+
+            SQLiteStatement unreadCount = getStatement(SET_UNREAD_COUNT);
+            unreadCount.bindLong(1, lastReadIndex);
+            unreadCount.bindLong(2, threadId);
+            unreadCount.executeUpdateDelete();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        invalidateRenderedPages(threadId);
+        notifyChange(AwfulPost.CONTENT_URI);
+        notifyChange(AwfulThread.CONTENT_URI);
+    }
+
+
+    /**
+     * Mark a whole thread as unread, as though it had never been viewed.
+     */
+    public synchronized void markUnread(int threadId) {
+        SQLiteDatabase db = getDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement watermark = getStatement(DELETE_READ_WATERMARK);
+            watermark.bindLong(1, threadId);
+            watermark.executeUpdateDelete();
+
+            SQLiteStatement unviewed = getStatement(SET_UNVIEWED);
+            unviewed.bindLong(1, threadId);
+            unviewed.executeUpdateDelete();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        invalidateRenderedPages(threadId);
+        notifyChange(AwfulPost.CONTENT_URI);
+        notifyChange(ContentUris.withAppendedId(AwfulThread.CONTENT_URI, threadId));
+    }
+}
@@ -0,0 +1,175 @@
+package com.ferg.awfulapp.provider;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.v4.util.LruCache;
+
+import com.ferg.awfulapp.constants.Constants;
+import com.ferg.awfulapp.thread.AwfulPagedItem;
+import com.ferg.awfulapp.thread.AwfulThread;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Loads a forum's cached thread list one window at a time, where a window is a page of the forum.
+ * <p>
+ * Windows are fetched by key on the threads' positions (see {@link ThreadDao#getThreadWindow(int, int, int, int)}),
+ * so a load only reads the rows it returns. The windows either side of the current one are prefetched,
+ * so paging back and forth can display straight away. When thread data changes the loaded windows are
+ * dropped, and the current one is reloaded and handed to the listener to diff against what it's showing.
+ * <p>
+ * Loads happen on a single background thread, everything else (including listener callbacks) on the main thread.
+ */
+public class ThreadListDataSource implements InvalidationTracker.Observer {
+
+    public interface Listener {
+        /**
+         * Called with the contents of the current window, whenever it's loaded or changes.
+         */
+        void onThreadsLoaded(@NonNull List<AwfulThread> threads);
+    }
+
+    /** The current window and its neighbours */
+    private static final int CACHED_WINDOWS = 3;
+
+    private static final ExecutorService loadLane = Executors.newSingleThreadExecutor();
+
+    @NonNull
+    private final Context context;
+    @NonNull
+    private final ThreadDao threadDao;
+    @NonNull
+    private final Listener listener;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /** Loaded windows, keyed by page number */
+    private final LruCache<Integer, List<AwfulThread>> windows = new LruCache<>(CACHED_WINDOWS);
+    /** Pages currently being loaded */
+    private final Set<Integer> pendingPages = new HashSet<>();
+    /** Bumped whenever the loaded windows are thrown away, so any loads already in flight get ignored */
+    private int generation = 0;
+
+    private int forumId = 0;
+    private int page = 0;
+    private boolean newThreadsFirst = false;
+    private boolean observing = false;
+
+
+    public ThreadListDataSource(@NonNull Context context, @NonNull Listener listener) {
+        this.context = context.getApplicationContext();
+        this.threadDao = ThreadDao.getInstance(context);
+        this.listener = listener;
+    }
+
+
+    /**
+     * Start watching for changes to the thread data. Call {@link #stop()} when the list isn't being displayed.
+     */
+    public void start() {
+        if (!observing) {
+            observing = true;
+            InvalidationTracker.getInstance(context).addObserver(InvalidationTracker.Entity.THREAD, this);
+            // anything could have changed while we weren't looking
+            onInvalidated(InvalidationTracker.Entity.THREAD);
+        }
+    }
+
+
+    public void stop() {
+        if (observing) {
+            observing = false;
+            InvalidationTracker.getInstance(context).removeObserver(this);
+        }
+    }
+
+
+    /**
+     * Display a page of a forum's thread list.
+     * <p>
+     * If the page is already loaded the listener is called immediately, otherwise it's called when the load finishes.
+     *
+     * @param newThreadsFirst true to move threads with unread posts to the top of the window
+     */
+    public void setWindow(int forumId, int page, boolean newThreadsFirst) {
+        if (forumId != this.forumId || newThreadsFirst != this.newThreadsFirst) {
+            dropWindows();
+        }
+        this.forumId = forumId;
+        this.page = page;
+        this.newThreadsFirst = newThreadsFirst;
+
+        List<AwfulThread> window = windows.get(page);
+        if (window != null) {
+            listener.onThreadsLoaded(window);
+        } else {
+            load(page);
+        }
+        prefetchNeighbours();
+    }
+
+
+    @Override
+    public void onInvalidated(@NonNull InvalidationTracker.Entity entity) {
+        if (forumId == 0) {
+            return;
+        }
+        dropWindows();
+        load(page);
+        prefetchNeighbours();
+    }
+
+
+    private void dropWindows() {
+        generation++;
+        windows.evictAll();
+        pendingPages.clear();
+    }
+
+
+    private void prefetchNeighbours() {
+        for (int neighbour : new int[]{page - 1, page + 1}) {
+            if (neighbour >= 1 && windows.get(neighbour) == null) {
+                load(neighbour);
+            }
+        }
+    }
+
+
+    private void load(int page) {
+        if (!pendingPages.add(page)) {
+            return;
+        }
+        final int forumId = this.forumId;
+        final boolean newThreadsFirst = this.newThreadsFirst;
+        final int generation = this.generation;
+        loadLane.execute(() -> {
+            int fromIndex = AwfulPagedItem.forumPageToIndex(page);
+            int toIndex = AwfulPagedItem.forumPageToIndex(page + 1);
+            List<AwfulThread> threads = threadDao.getThreadWindow(forumId, fromIndex, toIndex, Constants.THREADS_PER_PAGE);
+            if (newThreadsFirst) {
+                // stable sort, so the threads keep their forum order within each group
+                Collections.sort(threads, (first, second) -> Boolean.compare(second.hasNewPosts(), first.hasNewPosts()));
+            }
+            mainHandler.post(() -> onWindowLoaded(generation, page, threads));
+        });
+    }
+
+
+    private void onWindowLoaded(int generation, int page, @NonNull List<AwfulThread> threads) {
+        if (generation != this.generation) {
+            return;
+        }
+        pendingPages.remove(page);
+        windows.put(page, threads);
+        if (page == this.page) {
+            listener.onThreadsLoaded(threads);
+        }
+    }
+}
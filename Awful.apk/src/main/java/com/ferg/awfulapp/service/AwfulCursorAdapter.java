@@ -72,9 +72,7 @@ public class AwfulCursorAdapter extends CursorAdapter {
 
 	@Override
 	public void bindView(View current, Context context, Cursor data) {
-		if(data.getColumnIndex(AwfulThread.BOOKMARKED) >= 0){//unique to threads
-			AwfulThread.setDataOnThreadListItem(current, mPrefs, data, mFragment);
-		}else if(data.getColumnIndex(AwfulForum.PARENT_ID) >= 0){//unique to forums
+		if(data.getColumnIndex(AwfulForum.PARENT_ID) >= 0){//unique to forums
 			assert(false);
 //		}else if(data.getColumnIndex(AwfulPost.PREVIOUSLY_READ) >= 0){
 //			AwfulPost.getView(current, prefs, data, msgCallback);
@@ -89,10 +87,7 @@ public class AwfulCursorAdapter extends CursorAdapter {
 	@Override
 	public View newView(Context context, Cursor data, ViewGroup parent) {
 		View row;
-		if(data.getColumnIndex(AwfulThread.BOOKMARKED) >= 0){//unique to threads
-			row = inf.inflate(R.layout.thread_item, parent, false);
-			AwfulThread.setDataOnThreadListItem(row, mPrefs, data, mFragment);
-		}else if(data.getColumnIndex(AwfulMessage.UNREAD) >= 0){
+		if(data.getColumnIndex(AwfulMessage.UNREAD) >= 0){
 			row = inf.inflate(R.layout.thread_item, parent, false);
 			AwfulMessage.getView(row, mPrefs, data, false);
 		}else if(data.getColumnIndex(AwfulEmote.INDEX) >= 0){
@@ -0,0 +1,179 @@
+package com.ferg.awfulapp.service;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+
+import com.ferg.awfulapp.AwfulActivity;
+import com.ferg.awfulapp.AwfulFragment;
+import com.ferg.awfulapp.R;
+import com.ferg.awfulapp.preferences.AwfulPreferences;
+import com.ferg.awfulapp.thread.AwfulThread;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A RecyclerView adapter for a window of a forum's thread list.
+ * <p>
+ * New data is diffed against the current list, so only the threads that actually changed get rebound.
+ */
+public class ThreadListAdapter extends RecyclerView.Adapter<ThreadListAdapter.ThreadHolder> {
+
+    public interface EventListener {
+        void onThreadClicked(@NonNull AwfulThread thread);
+
+        /**
+         * @return true if the long click was handled
+         */
+        boolean onThreadLongClicked(@NonNull AwfulThread thread, @NonNull View view);
+    }
+
+    @NonNull
+    private final AwfulActivity activity;
+    @NonNull
+    private final AwfulFragment fragment;
+    @NonNull
+    private final EventListener eventListener;
+    @NonNull
+    private final AwfulPreferences prefs;
+    @NonNull
+    private final LayoutInflater inflater;
+    @NonNull
+    private List<AwfulThread> threads = new ArrayList<>();
+
+
+    public ThreadListAdapter(@NonNull AwfulActivity activity, @NonNull AwfulFragment fragment, @NonNull EventListener eventListener) {
+        this.activity = activity;
+        this.fragment = fragment;
+        this.eventListener = eventListener;
+        prefs = AwfulPreferences.getInstance(activity);
+        inflater = LayoutInflater.from(activity);
+        setHasStableIds(true);
+    }
+
+
+    /**
+     * Display a new set of threads, updating only the rows that have changed.
+     */
+    public void setThreads(@NonNull List<AwfulThread> newThreads) {
+        DiffUtil.DiffResult diff = DiffUtil.calculateDiff(new ThreadDiff(threads, newThreads));
+        threads = newThreads;
+        diff.dispatchUpdatesTo(this);
+    }
+
+
+    /**
+     * Get a displayed thread by its ID.
+     *
+     * @return the thread, or null if it isn't in the list
+     */
+    @Nullable
+    public AwfulThread getThread(int threadId) {
+        for (AwfulThread thread : threads) {
+            if (thread.id == threadId) {
+                return thread;
+            }
+        }
+        return null;
+    }
+
+
+    @NonNull
+    @Override
+    public ThreadHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+        return new ThreadHolder(inflater.inflate(R.layout.thread_item, parent, false));
+    }
+
+
+    @Override
+    public void onBindViewHolder(@NonNull ThreadHolder holder, int position) {
+        holder.bind(threads.get(position));
+    }
+
+
+    @Override
+    public int getItemCount() {
+        return threads.size();
+    }
+
+
+    @Override
+    public long getItemId(int position) {
+        return threads.get(position).id;
+    }
+
+
+    class ThreadHolder extends RecyclerView.ViewHolder {
+
+        private AwfulThread thread;
+
+        ThreadHolder(@NonNull View itemView) {
+            super(itemView);
+            itemView.setOnClickListener(v -> eventListener.onThreadClicked(thread));
+            itemView.setOnLongClickListener(v -> eventListener.onThreadLongClicked(thread, v));
+        }
+
+        void bind(@NonNull AwfulThread thread) {
+            this.thread = thread;
+            AwfulThread.setDataOnThreadListItem(itemView, prefs, thread, fragment);
+            activity.setPreferredFont(itemView);
+        }
+    }
+
+
+    /**
+     * Compares threads on everything that's displayed in the list.
+     */
+    private static class ThreadDiff extends DiffUtil.Callback {
+
+        @NonNull
+        private final List<AwfulThread> oldThreads;
+        @NonNull
+        private final List<AwfulThread> newThreads;
+
+        ThreadDiff(@NonNull List<AwfulThread> oldThreads, @NonNull List<AwfulThread> newThreads) {
+            this.oldThreads = oldThreads;
+            this.newThreads = newThreads;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldThreads.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newThreads.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            return oldThreads.get(oldItemPosition).id == newThreads.get(newItemPosition).id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            AwfulThread oldThread = oldThreads.get(oldItemPosition);
+            AwfulThread newThread = newThreads.get(newItemPosition);
+            return TextUtils.equals(oldThread.title, newThread.title)
+                    && TextUtils.equals(oldThread.author, newThread.author)
+                    && TextUtils.equals(oldThread.lastPoster, newThread.lastPoster)
+                    && TextUtils.equals(oldThread.tagUrl, newThread.tagUrl)
+                    && TextUtils.equals(oldThread.tagCacheFile, newThread.tagCacheFile)
+                    && oldThread.tagExtra == newThread.tagExtra
+                    && oldThread.postCount == newThread.postCount
+                    && oldThread.unreadCount == newThread.unreadCount
+                    && oldThread.rating == newThread.rating
+                    && oldThread.bookmarkType == newThread.bookmarkType
+                    && oldThread.isLocked == newThread.isLocked
+                    && oldThread.isSticky == newThread.isSticky
+                    && oldThread.hasBeenViewed == newThread.hasBeenViewed;
+        }
+    }
+}
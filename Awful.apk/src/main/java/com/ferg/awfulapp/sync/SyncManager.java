@@ -13,11 +13,12 @@ import com.ferg.awfulapp.forums.CrawlerTask;
 import com.ferg.awfulapp.forums.DropdownParserTask;
 import com.ferg.awfulapp.forums.ForumRepository;
 import com.ferg.awfulapp.messages.PmManager;
+import com.ferg.awfulapp.network.MediaPolicy;
 import com.ferg.awfulapp.network.NetworkUtils;
 import com.ferg.awfulapp.preferences.AwfulPreferences;
+import com.ferg.awfulapp.provider.CacheTrimmer;
 import com.ferg.awfulapp.task.FeatureRequest;
 import com.ferg.awfulapp.task.RefreshUserProfileRequest;
-import com.ferg.awfulapp.util.AwfulUtils;
 
 import java.util.concurrent.TimeUnit;
 
@@ -73,7 +74,7 @@ public class SyncManager {
 
 
     private static void trimDatabase(@NonNull Context context) {
-        AwfulUtils.trimDbEntries(context.getContentResolver());
+        CacheTrimmer.trimInBackground(context);
     }
 
 
@@ -87,7 +88,7 @@ public class SyncManager {
         long timeSinceUpdate = FORUM_UPDATE_FREQUENCY_UNITS.convert(System.currentTimeMillis() - lastSuccessfulUpdate, TimeUnit.MILLISECONDS);
         String timeUnits = FORUM_UPDATE_FREQUENCY_UNITS.toString().toLowerCase();
         // TODO: add better data limiting, maybe as a separate settings category / general 'restrict data' option
-        boolean limitDataUse = !AwfulPreferences.getInstance(context).canLoadImages();
+        boolean limitDataUse = !AwfulPreferences.getInstance(context).imagesEnabled || MediaPolicy.getInstance(context).isDataLimited();
 
         // work out if we're due an update
         boolean updateDue = timeSinceUpdate >= FORUM_UPDATE_FREQUENCY;
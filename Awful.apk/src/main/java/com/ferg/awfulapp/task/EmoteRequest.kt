@@ -4,6 +4,7 @@ import android.content.Context
 import com.ferg.awfulapp.constants.Constants.FUNCTION_MISC
 import com.ferg.awfulapp.constants.Constants.PARAM_ACTION
 import com.ferg.awfulapp.thread.AwfulEmote
+import com.ferg.awfulapp.thread.EmoteCache
 import com.ferg.awfulapp.util.AwfulError
 import org.jsoup.nodes.Document
 
@@ -21,6 +22,7 @@ class EmoteRequest(context: Context) : AwfulRequest<Void?>(context, FUNCTION_MIS
         val emotes = AwfulEmote.parseEmotes(doc)
         val inserted = contentResolver.bulkInsert(AwfulEmote.CONTENT_URI, emotes.toTypedArray())
         if (inserted < 0) throw AwfulError("Inserted $inserted emotes")
+        EmoteCache.getInstance(context).update(emotes.map { it.getAsString(AwfulEmote.URL) })
         return null
     }
 
@@ -29,12 +29,15 @@ package com.ferg.awfulapp.thread;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.util.Log;
 import android.view.View;
+import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.android.volley.toolbox.NetworkImageView;
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.ImageLoader;
 import com.ferg.awfulapp.R;
 import com.ferg.awfulapp.constants.Constants;
 import com.ferg.awfulapp.network.NetworkUtils;
@@ -66,8 +69,33 @@ public class AwfulEmote {
 		TextView emoteText = (TextView) current.findViewById(R.id.emote_text);
 		emoteText.setText(data.getString(data.getColumnIndex(TEXT)));
 		emoteText.setTextColor(current.getResources().getColor(R.color.default_post_font));
-		NetworkImageView emoteImage = (NetworkImageView) current.findViewById(R.id.emote_icon);
-		emoteImage.setImageUrl(data.getString(data.getColumnIndex(URL)), NetworkUtils.getImageLoader());
+		ImageView emoteImage = (ImageView) current.findViewById(R.id.emote_icon);
+		String url = data.getString(data.getColumnIndex(URL));
+		// cancel any download for the emote this view was showing before
+		Object previousLoad = emoteImage.getTag();
+		if (previousLoad instanceof ImageLoader.ImageContainer) {
+			((ImageLoader.ImageContainer) previousLoad).cancelRequest();
+		}
+		emoteImage.setTag(null);
+
+		Drawable localEmote = EmoteCache.getInstance(current.getContext()).getEmote(url);
+		if (localEmote != null) {
+			emoteImage.setImageDrawable(localEmote);
+			return;
+		}
+		emoteImage.setImageResource(R.drawable.frog_icon);
+		emoteImage.setTag(NetworkUtils.getImageLoader().get(url, new ImageLoader.ImageListener() {
+			@Override
+			public void onResponse(ImageLoader.ImageContainer response, boolean isImmediate) {
+				if (response.getBitmap() != null) {
+					emoteImage.setImageBitmap(response.getBitmap());
+				}
+			}
+
+			@Override
+			public void onErrorResponse(VolleyError error) {
+			}
+		}));
 	}
 
 	
@@ -3,26 +3,29 @@ package com.ferg.awfulapp.thread;
 import android.Manifest;
 import android.content.pm.PackageManager;
 import android.os.Environment;
+import android.os.Looper;
 import android.support.annotation.Nullable;
 import android.support.v4.content.ContextCompat;
 import android.support.v4.util.ArrayMap;
 import android.widget.Toast;
 
+import com.ferg.awfulapp.network.MediaPolicy;
 import com.ferg.awfulapp.preferences.AwfulPreferences;
 import com.ferg.awfulapp.provider.AwfulTheme;
 import com.ferg.awfulapp.util.AwfulUtils;
-import com.samskivert.mustache.Mustache;
+import com.ferg.awfulapp.webview.WebAssets;
 import com.samskivert.mustache.MustacheException;
 import com.samskivert.mustache.Template;
 
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.Reader;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import timber.log.Timber;
+
 /**
  * Created by baka kaba on 04/06/2017.
  * <p>
@@ -49,19 +52,6 @@ import java.util.Map;
  */
 public abstract class AwfulHtmlPage {
 
-    // TODO: 16/08/2017 generate this automatically from the folder contents
-    /**
-     * All the scripts from the javascript folder used in generating HTML
-     */
-    static final String[] JS_FILES = {
-            "polyfills.js",
-            "twitterwidget.js",
-            "longtap.js",
-            "jsonp.js",
-            "embedding.js",
-            "thread.js"
-    };
-
     /**
      * Get the main HTML for the containing page.
      * <p>
@@ -94,11 +84,8 @@ public abstract class AwfulHtmlPage {
         if (!aPrefs.preferredFont.contains("default")) {
             buffer.append("<style id='font-face' type='text/css'>@font-face { font-family: userselected; src: url('content://com.ferg.awfulapp.webprovider/").append(aPrefs.preferredFont).append("'); }</style>\n");
         }
-        for (String scriptName : JS_FILES) {
-            buffer.append("<script src='file:///android_asset/javascript/")
-                    .append(scriptName)
-                    .append("' type='text/javascript'></script>\n");
-        }
+        // all the scripts are bundled together, see WebAssets
+        buffer.append("<script src='").append(WebAssets.SCRIPT_BUNDLE_URL).append("' type='text/javascript'></script>\n");
 
         buffer.append("</head><body><div id='container' class='container' ")
                 .append((padForFab && !aPrefs.noFAB ? "style='padding-bottom:75px'" : ""))
@@ -120,8 +107,33 @@ public abstract class AwfulHtmlPage {
      * @return the generated content, ready for insertion into the template
      */
     public static String getThreadHtml(List<AwfulPost> aPosts, AwfulPreferences aPrefs, int page, int lastPage) {
-        StringBuilder buffer = new StringBuilder(1024);
-        buffer.append("<div class='content'>\n");
+        return getThreadPage(aPosts, aPrefs, page, lastPage).getHtml();
+    }
+
+
+    /**
+     * Generates post content for a list of posts, keeping each post's HTML separate so the page can
+     * be compared with another render of it.
+     *
+     * @see #getThreadHtml(List, AwfulPreferences, int, int)
+     */
+    public static ThreadPageHtml getThreadPage(List<AwfulPost> aPosts, AwfulPreferences aPrefs, int page, int lastPage) {
+        return getThreadPage(aPosts, aPrefs, page, lastPage, 0, aPosts.size());
+    }
+
+
+    /**
+     * Generates post content for some of the posts on a page, so part of it can be displayed while
+     * the rest are still being rendered.
+     * <p>
+     * The header and footer still reflect the whole page, so they match a full render of it.
+     *
+     * @param fromIndex the index of the first post to render (inclusive)
+     * @param toIndex   the index of the last post to render (exclusive)
+     * @see #getThreadPage(List, AwfulPreferences, int, int)
+     */
+    public static ThreadPageHtml getThreadPage(List<AwfulPost> aPosts, AwfulPreferences aPrefs, int page, int lastPage, int fromIndex, int toIndex) {
+        StringBuilder header = new StringBuilder();
 
         // if we're hiding read posts, work out how many are read and add the 'show old posts' link
         if (aPrefs.hideOldPosts && aPosts.size() > 0 && !aPosts.get(aPosts.size() - 1).isPreviouslyRead()) {
@@ -132,25 +144,44 @@ public abstract class AwfulHtmlPage {
                 }
             }
             if (unreadCount < aPosts.size() && unreadCount > 0) {
-                buffer.append("    <article class='toggleread post'>");
-                buffer.append("      <a>\n");
+                header.append("    <article class='toggleread post'>");
+                header.append("      <a>\n");
                 final int prevPosts = aPosts.size() - unreadCount;
-                buffer.append("        <h3>Show ")
+                header.append("        <h3>Show ")
                         .append(prevPosts).append(" Previous Post").append(prevPosts > 1 ? "s" : "").append("</h3>\n");
-                buffer.append("      </a>\n");
-                buffer.append("    </article>");
+                header.append("      </a>\n");
+                header.append("    </article>");
             }
         }
 
         // add the actual posts
-        buffer.append(getPostsHtml(aPosts, aPrefs));
+        LinkedHashMap<String, String> posts = getPostsHtml(aPosts.subList(fromIndex, toIndex), aPrefs);
 
-        if (page == lastPage) {
-            buffer.append("<div class='unread' ></div>\n");
-        }
-        buffer.append("</div>\n");
+        String footer = (page == lastPage) ? "<div class='unread' ></div>\n" : "";
+        return new ThreadPageHtml(header.toString(), posts, footer, aPosts.size());
+    }
 
-        return buffer.toString();
+
+    /**
+     * Get a fingerprint of all the preferences that affect the HTML {@link #getThreadHtml(List, AwfulPreferences, int, int)}
+     * produces, for identifying rendered pages in the {@link RenderedPageCache}.
+     * <p>
+     * Anything that changes how posts are rendered needs to be included here!
+     */
+    public static int getRenderFingerprint(AwfulPreferences aPrefs) {
+        long customLayoutVersion = "default".equals(aPrefs.layout)
+                ? 0 : new File(Environment.getExternalStorageDirectory() + "/awful/" + aPrefs.layout).lastModified();
+        return Arrays.hashCode(new Object[]{
+                aPrefs.layout,
+                customLayoutVersion,
+                aPrefs.hideOldPosts,
+                aPrefs.isOnProbation(),
+                aPrefs.highlightOP,
+                aPrefs.highlightSelf,
+                aPrefs.username,
+                aPrefs.markedUsers,
+                aPrefs.avatarsEnabled
+        });
     }
 
 
@@ -159,17 +190,17 @@ public abstract class AwfulHtmlPage {
      * <p>
      * This method generates HTML for the actual posts, taking user preferences into account.
      *
-     * @return a HTML string representing all the posts
+     * @return each post's HTML, keyed by post ID, in the same order as the posts
      */
-    private static String getPostsHtml(List<AwfulPost> aPosts, AwfulPreferences aPrefs) {
-        StringBuilder buffer = new StringBuilder();
+    private static LinkedHashMap<String, String> getPostsHtml(List<AwfulPost> aPosts, AwfulPreferences aPrefs) {
+        LinkedHashMap<String, String> postsHtml = new LinkedHashMap<>();
         Template postTemplate;
 
         try {
             postTemplate = getPostTemplate(aPrefs);
         } catch (IOException e) {
             e.printStackTrace();
-            return "";
+            return postsHtml;
         }
 
         // should be fine to re-use this since we rewrite every mapping each time
@@ -186,7 +217,8 @@ public abstract class AwfulHtmlPage {
             postData.put("isMarked", aPrefs.markedUsers.contains(username) ? "marked" : null);
             postData.put("postID", post.getId());
             postData.put("isSelf", (aPrefs.highlightSelf && username.equals(aPrefs.username)) ? "self" : null);
-            postData.put("avatarURL", (aPrefs.canLoadAvatars() && avatar != null && avatar.length() > 0) ? avatar : null);
+            // whether the avatar actually loads is decided when it's requested
+            postData.put("avatarURL", (aPrefs.avatarsEnabled && avatar != null && avatar.length() > 0) ? MediaPolicy.getAvatarUrl(avatar) : null);
             postData.put("username", username);
             postData.put("userID", post.getUserId());
             postData.put("postDate", post.getDate());
@@ -200,12 +232,12 @@ public abstract class AwfulHtmlPage {
             postData.put("postcontent", post.getContent());
 
             try {
-                buffer.append(postTemplate.execute(postData));
+                postsHtml.put(post.getId(), postTemplate.execute(postData));
             } catch (MustacheException e) {
                 e.printStackTrace();
             }
         }
-        return buffer.toString();
+        return postsHtml;
     }
 
     /**
@@ -217,37 +249,52 @@ public abstract class AwfulHtmlPage {
      * @throws IOException if the default template can't be read
      */
     private static Template getPostTemplate(AwfulPreferences aPrefs) throws IOException {
-        Template postTemplate;
-        Reader templateReader = null;
+        // pages can be rendered in the background, and toasts can only be shown from the main thread
+        return getPostTemplate(aPrefs, Looper.myLooper() == Looper.getMainLooper());
+    }
+
+
+    /**
+     * Compile the post template in the background, so it's ready before the first thread is displayed.
+     * <p>
+     * If the user has a custom layout selected, that gets compiled instead.
+     */
+    public static void prewarmPostTemplate(AwfulPreferences aPrefs) {
+        new Thread(() -> {
+            long startTime = System.currentTimeMillis();
+            try {
+                getPostTemplate(aPrefs, false);
+                Timber.d("Post template prewarmed in %dms", System.currentTimeMillis() - startTime);
+            } catch (IOException e) {
+                Timber.w(e, "Unable to prewarm post template");
+            }
+        }, "Template prewarm").start();
+    }
+
 
+    /**
+     * @param showErrors whether to show a toast if a custom layout can't be accessed - this needs to be
+     *                   called on the main thread if so
+     */
+    private static Template getPostTemplate(AwfulPreferences aPrefs, boolean showErrors) throws IOException {
         // user has a custom template selected (nobody uses this I bet)
         if (!"default".equals(aPrefs.layout)) {
-            if (AwfulUtils.isMarshmallow()) {
-                int permissionCheck = ContextCompat.checkSelfPermission(aPrefs.getContext(), Manifest.permission.READ_EXTERNAL_STORAGE);
-
-                if (permissionCheck == PackageManager.PERMISSION_GRANTED) {
-                    File template = new File(Environment.getExternalStorageDirectory() + "/awful/" + aPrefs.layout);
-                    if (template.isFile() && template.canRead()) {
-                        templateReader = new FileReader(template);
-                    }
-                } else {
-                    Toast.makeText(aPrefs.getContext(), "Can't access custom layout because Awful lacks storage permissions. Reverting to default layout.", Toast.LENGTH_LONG).show();
-                }
-            } else {
+            if (!AwfulUtils.isMarshmallow() || ContextCompat.checkSelfPermission(aPrefs.getContext(), Manifest.permission.READ_EXTERNAL_STORAGE) == PackageManager.PERMISSION_GRANTED) {
                 File template = new File(Environment.getExternalStorageDirectory() + "/awful/" + aPrefs.layout);
                 if (template.isFile() && template.canRead()) {
-                    templateReader = new FileReader(template);
+                    try {
+                        return TemplateCache.getFileTemplate(template);
+                    } catch (IOException | MustacheException e) {
+                        Timber.w(e, "Unable to load custom layout %s, using the default", aPrefs.layout);
+                    }
                 }
-
+            } else if (showErrors) {
+                Toast.makeText(aPrefs.getContext(), "Can't access custom layout because Awful lacks storage permissions. Reverting to default layout.", Toast.LENGTH_LONG).show();
             }
         }
 
         // use the default if necessary
-        if (templateReader == null) {
-            templateReader = new InputStreamReader(aPrefs.getResources().getAssets().open("mustache/post.mustache"));
-        }
-        postTemplate = Mustache.compiler().compile(templateReader);
-        return postTemplate;
+        return TemplateCache.getAssetTemplate(aPrefs.getResources().getAssets(), "post.mustache");
     }
 
 }
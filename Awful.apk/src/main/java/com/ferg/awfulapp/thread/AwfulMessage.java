@@ -125,8 +125,7 @@ public class AwfulMessage extends AwfulPagedItem {
 		}
 		String icon = data.getString(data.getColumnIndex(ICON));
 		if(icon != null && !icon.isEmpty()){
-			String localFileName = "@drawable/"+icon.substring(icon.lastIndexOf('/') + 1,icon.lastIndexOf('.')).replace('-','_').toLowerCase();
-			int imageID = current.getResources().getIdentifier(localFileName, null, current.getContext().getPackageName());
+			int imageID = ThreadTagRegistry.getTagResId(icon);
 			if(imageID == 0){
 				unreadPM.setImageResource(iconResource);
 			}else{
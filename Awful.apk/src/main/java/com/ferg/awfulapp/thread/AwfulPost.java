@@ -27,16 +27,20 @@
 
 package com.ferg.awfulapp.thread;
 
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import com.ferg.awfulapp.constants.Constants;
+import com.ferg.awfulapp.network.AvatarCache;
 import com.ferg.awfulapp.network.NetworkUtils;
 import com.ferg.awfulapp.preferences.AwfulPreferences;
+import com.ferg.awfulapp.provider.PostDao;
+import com.ferg.awfulapp.provider.ThreadDao;
+import com.ferg.awfulapp.webview.GifPreviews;
 
 import org.apache.commons.lang3.StringUtils;
 import org.json.JSONException;
@@ -50,7 +54,9 @@ import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -62,6 +68,8 @@ public class AwfulPost {
 
     public static final String PATH     = "/post";
     public static final Uri CONTENT_URI = Uri.parse("content://" + Constants.AUTHORITY + PATH);
+    public static final String SEARCH_PATH = PATH + "/search";
+    public static final Uri CONTENT_URI_SEARCH = Uri.parse("content://" + Constants.AUTHORITY + SEARCH_PATH);
 
     private static final Pattern fixCharacters_regex = Pattern.compile("([\\r\\f])");
 	private static final Pattern youtubeId_regex = Pattern.compile("/v/([\\w_-]+)&?");
@@ -90,6 +98,18 @@ public class AwfulPost {
     public static final String CONTENT               = "content";
     public static final String EDITED                = "edited";
 
+    // full-text search data - these aren't stored in the posts table, they're split off into the search index
+    /** The post's content as plain text, with all the markup stripped */
+    public static final String SEARCH_TEXT           = "search_text";
+    public static final String THREAD_TITLE          = "thread_title";
+    // columns generated by cached post searches
+    public static final String SEARCH_SNIPPET        = "snippet";
+    public static final String SEARCH_RANK           = "rank";
+    // query parameters for cached post searches
+    public static final String SEARCH_PARAM_QUERY    = "q";
+    public static final String SEARCH_PARAM_THREAD   = "thread";
+    public static final String SEARCH_PARAM_LIMIT    = "limit";
+
 	public static final String FORM_KEY = "form_key";
 	public static final String FORM_COOKIE = "form_cookie";
     public static final String FORM_BOOKMARK = "bookmark";
@@ -237,50 +257,19 @@ public class AwfulPost {
     }
 
     public static ArrayList<AwfulPost> fromCursor(Context aContext, Cursor aCursor) {
-        ArrayList<AwfulPost> result = new ArrayList<AwfulPost>();
+        return fromCursor(aCursor, new ColumnIndexes(aCursor.getColumnNames()));
+    }
 
-        if (aCursor.moveToFirst()) {
-            int idIndex = aCursor.getColumnIndex(ID);
-            int threadIdIndex = aCursor.getColumnIndex(THREAD_ID);
-            int postIndexIndex = aCursor.getColumnIndex(POST_INDEX);//ooh, meta
-            int dateIndex = aCursor.getColumnIndex(DATE);
-            int regdateIndex = aCursor.getColumnIndex(REGDATE);
-            int userIdIndex = aCursor.getColumnIndex(USER_ID);
-            int usernameIndex = aCursor.getColumnIndex(USERNAME);
-            int previouslyReadIndex = aCursor.getColumnIndex(PREVIOUSLY_READ);
-            int editableIndex = aCursor.getColumnIndex(EDITABLE);
-            int isOpIndex = aCursor.getColumnIndex(IS_OP);
-            int isAdminIndex = aCursor.getColumnIndex(IS_ADMIN);
-            int isModIndex = aCursor.getColumnIndex(IS_MOD);
-            int isPlatIndex = aCursor.getColumnIndex(IS_PLAT);
-            int avatarIndex = aCursor.getColumnIndex(AVATAR);
-            int avatarTextIndex = aCursor.getColumnIndex(AVATAR_TEXT);
-            int contentIndex = aCursor.getColumnIndex(CONTENT);
-            int editedIndex = aCursor.getColumnIndex(EDITED);
-
-            AwfulPost current;
 
+    /**
+     * Read all the posts in a cursor, using precalculated column positions.
+     */
+    @NonNull
+    public static ArrayList<AwfulPost> fromCursor(@NonNull Cursor aCursor, @NonNull ColumnIndexes columns) {
+        ArrayList<AwfulPost> result = new ArrayList<AwfulPost>();
+        if (aCursor.moveToFirst()) {
             do {
-                current = new AwfulPost();
-                current.setId(aCursor.getString(idIndex));
-                current.setThreadId(aCursor.getInt(threadIdIndex));
-                current.setDate(aCursor.getString(dateIndex));
-                current.setRegDate(aCursor.getString(regdateIndex));
-                current.setUserId(aCursor.getString(userIdIndex));
-                current.setUsername(aCursor.getString(usernameIndex));
-                current.setPreviouslyRead(aCursor.getInt(previouslyReadIndex) > 0);
-                current.setLastReadUrl(aCursor.getInt(postIndexIndex)+"");
-                current.setEditable(aCursor.getInt(editableIndex) == 1);
-                current.setIsOp(aCursor.getInt(isOpIndex) == 1);
-                current.setIsAdmin(aCursor.getInt(isAdminIndex) > 0);
-                current.setIsMod(aCursor.getInt(isModIndex) > 0);
-                current.setIsPlat(aCursor.getInt(isPlatIndex) > 0);
-                current.setAvatar(aCursor.getString(avatarIndex));
-                current.setAvatarText(aCursor.getString(avatarTextIndex));
-                current.setContent(aCursor.getString(contentIndex));
-                current.setEdited(aCursor.getString(editedIndex));
-
-                result.add(current);
+                result.add(fromRow(aCursor, columns));
             } while (aCursor.moveToNext());
         }else{
             Timber.i("No posts to convert.");
@@ -289,6 +278,101 @@ public class AwfulPost {
     }
 
 
+    /**
+     * Create a post from the cursor's current row.
+     */
+    @NonNull
+    public static AwfulPost fromRow(@NonNull Cursor aCursor, @NonNull ColumnIndexes columns) {
+        AwfulPost current = new AwfulPost();
+        current.setId(aCursor.getString(columns.id));
+        current.setThreadId(aCursor.getInt(columns.threadId));
+        current.setDate(aCursor.getString(columns.date));
+        current.setRegDate(aCursor.getString(columns.regdate));
+        current.setUserId(aCursor.getString(columns.userId));
+        current.setUsername(aCursor.getString(columns.username));
+        current.setPreviouslyRead(aCursor.getInt(columns.previouslyRead) > 0);
+        current.setLastReadUrl(aCursor.getInt(columns.postIndex)+"");
+        current.setEditable(aCursor.getInt(columns.editable) == 1);
+        current.setIsOp(aCursor.getInt(columns.isOp) == 1);
+        current.setIsAdmin(aCursor.getInt(columns.isAdmin) > 0);
+        current.setIsMod(aCursor.getInt(columns.isMod) > 0);
+        current.setIsPlat(aCursor.getInt(columns.isPlat) > 0);
+        current.setAvatar(aCursor.getString(columns.avatar));
+        current.setAvatarText(aCursor.getString(columns.avatarText));
+        current.setContent(aCursor.getString(columns.content));
+        current.setEdited(aCursor.getString(columns.edited));
+        return current;
+    }
+
+
+    /**
+     * The positions of the post columns in a query's results, so rows can be read without
+     * looking up every column each time. Create one from a fixed projection and it can be reused
+     * for every query that uses it.
+     */
+    public static class ColumnIndexes {
+        final int id;
+        final int threadId;
+        final int postIndex;//ooh, meta
+        final int date;
+        final int regdate;
+        final int userId;
+        final int username;
+        final int previouslyRead;
+        final int editable;
+        final int isOp;
+        final int isAdmin;
+        final int isMod;
+        final int isPlat;
+        final int avatar;
+        final int avatarText;
+        final int content;
+        final int edited;
+
+        public ColumnIndexes(@NonNull String[] columnNames) {
+            List<String> columns = Arrays.asList(columnNames);
+            id = columns.indexOf(ID);
+            threadId = columns.indexOf(THREAD_ID);
+            postIndex = columns.indexOf(POST_INDEX);
+            date = columns.indexOf(DATE);
+            regdate = columns.indexOf(REGDATE);
+            userId = columns.indexOf(USER_ID);
+            username = columns.indexOf(USERNAME);
+            previouslyRead = columns.indexOf(PREVIOUSLY_READ);
+            editable = columns.indexOf(EDITABLE);
+            isOp = columns.indexOf(IS_OP);
+            isAdmin = columns.indexOf(IS_ADMIN);
+            isMod = columns.indexOf(IS_MOD);
+            isPlat = columns.indexOf(IS_PLAT);
+            avatar = columns.indexOf(AVATAR);
+            avatarText = columns.indexOf(AVATAR_TEXT);
+            content = columns.indexOf(CONTENT);
+            edited = columns.indexOf(EDITED);
+        }
+    }
+
+
+    /**
+     * Get a Uri for searching the posts cached in the database.
+     * <p>
+     * Querying this returns rows for the best-matching posts, ranked by relevance, with the
+     * {@link #ID}, {@link #THREAD_ID}, {@link #POST_INDEX}, {@link #USERNAME}, {@link #THREAD_TITLE},
+     * {@link #SEARCH_SNIPPET} and {@link #SEARCH_RANK} columns. The projection, selection and sort
+     * order arguments are ignored.
+     *
+     * @param query    the text to search for - this is treated as plain text, not a query expression
+     * @param threadId an optional thread to restrict the search to, otherwise all cached threads are searched
+     */
+    @NonNull
+    public static Uri searchUri(@NonNull String query, @Nullable Integer threadId) {
+        Uri.Builder builder = CONTENT_URI_SEARCH.buildUpon().appendQueryParameter(SEARCH_PARAM_QUERY, query);
+        if (threadId != null) {
+            builder.appendQueryParameter(SEARCH_PARAM_THREAD, threadId.toString());
+        }
+        return builder.build();
+    }
+
+
     /**
      * Process any videos found within an Element's hierarchy.
      *
@@ -440,25 +524,39 @@ public class AwfulPost {
     /**
      * Parse a thread page to grab its post data.
      *
-     * @param content
      * @param aThread
      * @param aThreadId
+     * @param threadTitle
      * @param unreadIndex
      * @param opId
      * @param prefs
      * @param startIndex
      * @return the number of posts found on the page
      */
-    public static int syncPosts(ContentResolver content, Document aThread, int aThreadId, int unreadIndex, int opId, AwfulPreferences prefs, int startIndex){
-        List<ContentValues> result = AwfulPost.parsePosts(aThread, aThreadId, unreadIndex, opId, prefs, startIndex);
+    public static int syncPosts(Document aThread, int aThreadId, String threadTitle, int unreadIndex, int opId, AwfulPreferences prefs, int startIndex){
+        List<ContentValues> result = AwfulPost.parsePosts(aThread, aThreadId, threadTitle, unreadIndex, opId, prefs, startIndex);
+        // get the page's avatars ready while it's being stored and rendered
+        Set<String> avatars = new HashSet<>();
+        for (ContentValues post : result) {
+            avatars.add(post.getAsString(AVATAR));
+        }
+        AvatarCache.getInstance(prefs.getContext()).prefetch(avatars);
+        // read state is held as a single watermark for the thread, rather than on each post
+        int readWatermark = unreadIndex;
+        for (ContentValues post : result) {
+            if (Boolean.TRUE.equals(post.getAsBoolean(PREVIOUSLY_READ))) {
+                readWatermark = Math.max(readWatermark, post.getAsInteger(POST_INDEX));
+            }
+        }
+        ThreadDao.getInstance(prefs.getContext()).setReadWatermark(aThreadId, readWatermark);
         // TODO: 02/06/2017 see below, ignored posts are NOT stored!
-        int resultCount = content.bulkInsert(CONTENT_URI, result.toArray(new ContentValues[result.size()]));
+        int resultCount = PostDao.getInstance(prefs.getContext()).insertPosts(result);
         Timber.i("Inserted " + resultCount + " posts into DB, threadId:" + aThreadId + " unreadIndex: " + unreadIndex);
         return resultCount;
     }
 
 
-    public static List<ContentValues> parsePosts(Document aThread, int aThreadId, int unreadIndex, int opId, AwfulPreferences prefs, int startIndex){
+    public static List<ContentValues> parsePosts(Document aThread, int aThreadId, String threadTitle, int unreadIndex, int opId, AwfulPreferences prefs, int startIndex){
 		int index = startIndex;
         String updateTime = new Timestamp(System.currentTimeMillis()).toString();
 
@@ -469,7 +567,7 @@ public class AwfulPost {
             if (postData.hasClass("ignored") && prefs.hideIgnoredPosts) {
                 continue;
             }
-            parseTasks.add(new PostParseTask(postData, updateTime, index, unreadIndex, aThreadId, opId, prefs));
+            parseTasks.add(new PostParseTask(postData, updateTime, index, unreadIndex, aThreadId, threadTitle, opId, prefs));
             index++;
         }
 
@@ -521,7 +619,7 @@ public class AwfulPost {
 
         // image shouldn't be displayed - convert to link / plaintext url
         // if image is wrapped in an <a>, make a link to image and the <a>
-        if (isOldImage && prefs.hideOldImages || !prefs.canLoadImages()) {
+        if (isOldImage && prefs.hideOldImages || !prefs.imagesEnabled) {
             if (!linkOk) {
                 img.replaceWith(new Element(Tag.valueOf("p"), "").text(originalUrl));
             } else if (alreadyLinked) {
@@ -573,8 +671,8 @@ public class AwfulPost {
                 thumbUrl = thumbUrl.replace("giant.gfycat.com", "thumbs.gfycat.com");
                 thumbUrl = thumbUrl.replace(".gif", "-poster.jpg");
             } else {
-                thumbUrl = "file:///android_asset/images/gif.png";
-                img.attr("width", "200px");
+                // a still of the first frame, made on the device
+                thumbUrl = GifPreviews.getPreviewUrl(thumbUrl);
             }
 
             // link and rewrite image, setting the link as click-to-play
@@ -598,7 +696,7 @@ public class AwfulPost {
      * @return the rewritten url, or the original if it couldn't be rewritten
      */
     @NonNull
-    private static String imgurAsThumbnail(@NonNull String imgurUrl, @NonNull String thumbnailCode) {
+    public static String imgurAsThumbnail(@NonNull String imgurUrl, @NonNull String thumbnailCode) {
         int lastDot = imgurUrl.lastIndexOf('.');
         int lastSlash = imgurUrl.lastIndexOf('/');
         String imgurImageId = imgurUrl.substring(lastSlash + 1, lastDot);
@@ -14,11 +14,9 @@ import android.os.Handler;
 import android.os.Looper;
 import android.support.annotation.DrawableRes;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.ImageLoader;
 import com.ferg.awfulapp.R;
-import com.ferg.awfulapp.network.NetworkUtils;
 
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
@@ -54,15 +52,14 @@ public class AwfulPostIcon {
         this.iconUrl = iconUrl;
         drawableId = getIconResId(iconUrl, context);
         if(drawableId == BLANK_ICON_DRAWABLE_ID){
-            new Handler(Looper.getMainLooper()).post(() -> NetworkUtils.getImageLoader().get(iconUrl, new ImageLoader.ImageListener() {
-            @Override
-            public void onResponse(ImageLoader.ImageContainer response, boolean isImmediate) {
-                drawable = AwfulPostIcon.getClassicIconDrawable(response.getBitmap(), context);
-            }
-
-            @Override
-            public void onErrorResponse(VolleyError error) {}
-        }));
+            drawable = ThreadTagRegistry.getClassicTag(iconUrl, context);
+        }
+        if(drawableId == BLANK_ICON_DRAWABLE_ID && drawable == null){
+            new Handler(Looper.getMainLooper()).post(() -> TagStore.getInstance(context).loadTag(iconUrl, null, tag -> {
+                if (tag != null) {
+                    drawable = ThreadTagRegistry.putClassicTag(iconUrl, tag, context);
+                }
+            }));
 
         }
     }
@@ -81,12 +78,11 @@ public class AwfulPostIcon {
 
     @DrawableRes
     private static int getIconResId(@NonNull String iconUrl, @NonNull Context context) {
-        String localFileName = "@drawable/"+iconUrl.substring(iconUrl.lastIndexOf('/') + 1, iconUrl.lastIndexOf('.')).replace('-','_').toLowerCase();
-        int imageID = context.getResources().getIdentifier(localFileName, null, context.getPackageName());
+        int imageID = ThreadTagRegistry.getTagResId(iconUrl);
         return imageID == 0 ? BLANK_ICON_DRAWABLE_ID : imageID;
     }
 
-    public static Drawable getClassicIconDrawable(@NonNull Bitmap bitmap, @NonNull Context context) {
+    public static Drawable getClassicIconDrawable(@Nullable Bitmap bitmap, @NonNull Context context) {
         if(bitmap == null) {
             return context.getDrawable(R.drawable.empty_thread_tag);
         }
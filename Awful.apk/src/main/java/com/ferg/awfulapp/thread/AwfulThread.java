@@ -28,7 +28,6 @@
 package com.ferg.awfulapp.thread;
 
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.res.Resources;
@@ -43,8 +42,6 @@ import android.view.View;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.android.volley.VolleyError;
-import com.android.volley.toolbox.ImageLoader;
 import com.ferg.awfulapp.AwfulFragment;
 import com.ferg.awfulapp.ForumDisplayFragment;
 import com.ferg.awfulapp.R;
@@ -53,12 +50,14 @@ import com.ferg.awfulapp.network.NetworkUtils;
 import com.ferg.awfulapp.preferences.AwfulPreferences;
 import com.ferg.awfulapp.provider.ColorProvider;
 import com.ferg.awfulapp.provider.DatabaseHelper;
+import com.ferg.awfulapp.provider.ThreadDao;
 
 import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 
@@ -74,6 +73,8 @@ public class AwfulThread extends AwfulPagedItem  {
     public static final String UCP_PATH     = "/ucpthread";
     public static final Uri CONTENT_URI     = Uri.parse("content://" + Constants.AUTHORITY + PATH);
 	public static final Uri CONTENT_URI_UCP = Uri.parse("content://" + Constants.AUTHORITY + UCP_PATH);
+    public static final String ACCESS_PATH  = "/threadaccess";
+    public static final Uri CONTENT_URI_ACCESS = Uri.parse("content://" + Constants.AUTHORITY + ACCESS_PATH);
 
     public static final String ID 		            = "_id";
     public static final String INDEX 		        = "thread_index";
@@ -97,6 +98,10 @@ public class AwfulThread extends AwfulPagedItem  {
     public static final String TAG_URL 		        = "tag_url";
     public static final String TAG_CACHEFILE 	    = "tag_cachefile";
     public static final String TAG_EXTRA            = "tag_extra";
+    /** When the thread was last viewed, in epoch milliseconds - this lives in its own table, see {@link #CONTENT_URI_ACCESS} */
+    public static final String LAST_ACCESS          = "last_access";
+    /** The index of the last read post - posts up to and including this one count as read. Kept in its own table, see ThreadDao */
+    public static final String LAST_READ_INDEX      = "last_read_index";
 
 
     // TODO: 04/06/2017 explicit default values, nulls where parsed data doesn't set values (i.e. never added to the ContentValues)?
@@ -130,44 +135,106 @@ public class AwfulThread extends AwfulPagedItem  {
 
     @Nullable
     public static AwfulThread fromCursorRow(@NonNull Cursor row) {
+        return fromCursorRow(row, new ColumnIndexes(row.getColumnNames()));
+    }
+
+
+    /**
+     * Create a thread from the cursor's current row, using precalculated column positions.
+     */
+    @Nullable
+    public static AwfulThread fromCursorRow(@NonNull Cursor row, @NonNull ColumnIndexes columns) {
         if (row.isBeforeFirst() || row.isAfterLast()) {
             Timber.w("fromCursor: passed empty row");
             return null;
         }
         AwfulThread thread = new AwfulThread();
 
-        thread.id = row.getInt(row.getColumnIndex(ID));
-        thread.index = row.getInt(row.getColumnIndex(INDEX));
-        thread.title = row.getString(row.getColumnIndex(TITLE));
+        thread.id = row.getInt(columns.id);
+        thread.index = row.getInt(columns.index);
+        thread.title = row.getString(columns.title);
 
-        thread.forumId = row.getInt(row.getColumnIndex(FORUM_ID));
+        thread.forumId = row.getInt(columns.forumId);
         // TODO: 03/06/2017 this column name is taken from the thread projection, but is it ever used?
 //        thread.forumTitle = row.getString(row.getColumnIndex(FORUM_TITLE));
 
-        thread.author = row.getString(row.getColumnIndex(AUTHOR));
-        thread.authorId = row.getInt(row.getColumnIndex(AUTHOR_ID));
-        thread.lastPoster = row.getString(row.getColumnIndex(LASTPOSTER));
-        thread.postCount = row.getInt(row.getColumnIndex(POSTCOUNT));
-        thread.unreadCount = row.getInt(row.getColumnIndex(UNREADCOUNT));
+        thread.author = row.getString(columns.author);
+        thread.authorId = row.getInt(columns.authorId);
+        thread.lastPoster = row.getString(columns.lastPoster);
+        thread.postCount = row.getInt(columns.postCount);
+        thread.unreadCount = row.getInt(columns.unreadCount);
 
-        thread.rating = row.getInt(row.getColumnIndex(RATING));
-        thread.bookmarkType = row.getInt(row.getColumnIndex(BOOKMARKED));
+        thread.rating = row.getInt(columns.rating);
+        thread.bookmarkType = row.getInt(columns.bookmarked);
 
-        thread.isLocked = row.getInt(row.getColumnIndex(LOCKED)) > 0;
-        thread.archived = row.getInt(row.getColumnIndex(ARCHIVED)) > 0;
-        thread.isSticky = row.getInt(row.getColumnIndex(STICKY)) > 0;
-        thread.canOpenClose = row.getInt(row.getColumnIndex(CAN_OPEN_CLOSE)) > 0;
-        thread.hasBeenViewed = row.getInt(row.getColumnIndex(HAS_VIEWED_THREAD)) == 1;
+        thread.isLocked = row.getInt(columns.locked) > 0;
+        thread.archived = row.getInt(columns.archived) > 0;
+        thread.isSticky = row.getInt(columns.sticky) > 0;
+        thread.canOpenClose = row.getInt(columns.canOpenClose) > 0;
+        thread.hasBeenViewed = row.getInt(columns.hasViewedThread) == 1;
 
-        thread.tagUrl = row.getString(row.getColumnIndex(TAG_URL));
-        thread.tagCacheFile = row.getString(row.getColumnIndex(TAG_CACHEFILE));
-        thread.tagExtra = row.getInt(row.getColumnIndex(TAG_EXTRA));
-        thread.category = row.getInt(row.getColumnIndex(CATEGORY));
+        thread.tagUrl = row.getString(columns.tagUrl);
+        thread.tagCacheFile = row.getString(columns.tagCacheFile);
+        thread.tagExtra = row.getInt(columns.tagExtra);
+        thread.category = row.getInt(columns.category);
 
         return thread;
     }
 
 
+    /**
+     * The positions of the thread columns in a query's results, so rows can be read without
+     * looking up every column each time. Create one from a fixed projection and it can be reused
+     * for every query that uses it.
+     */
+    public static class ColumnIndexes {
+        final int id;
+        final int index;
+        final int title;
+        final int forumId;
+        final int author;
+        final int authorId;
+        final int lastPoster;
+        final int postCount;
+        final int unreadCount;
+        final int rating;
+        final int bookmarked;
+        final int locked;
+        final int archived;
+        final int sticky;
+        final int canOpenClose;
+        final int hasViewedThread;
+        final int tagUrl;
+        final int tagCacheFile;
+        final int tagExtra;
+        final int category;
+
+        public ColumnIndexes(@NonNull String[] columnNames) {
+            List<String> columns = Arrays.asList(columnNames);
+            id = columns.indexOf(ID);
+            index = columns.indexOf(INDEX);
+            title = columns.indexOf(TITLE);
+            forumId = columns.indexOf(FORUM_ID);
+            author = columns.indexOf(AUTHOR);
+            authorId = columns.indexOf(AUTHOR_ID);
+            lastPoster = columns.indexOf(LASTPOSTER);
+            postCount = columns.indexOf(POSTCOUNT);
+            unreadCount = columns.indexOf(UNREADCOUNT);
+            rating = columns.indexOf(RATING);
+            bookmarked = columns.indexOf(BOOKMARKED);
+            locked = columns.indexOf(LOCKED);
+            archived = columns.indexOf(ARCHIVED);
+            sticky = columns.indexOf(STICKY);
+            canOpenClose = columns.indexOf(CAN_OPEN_CLOSE);
+            hasViewedThread = columns.indexOf(HAS_VIEWED_THREAD);
+            tagUrl = columns.indexOf(TAG_URL);
+            tagCacheFile = columns.indexOf(TAG_CACHEFILE);
+            tagExtra = columns.indexOf(TAG_EXTRA);
+            category = columns.indexOf(CATEGORY);
+        }
+    }
+
+
     public ContentValues toContentValues() {
         ContentValues cv = new ContentValues();
         cv.put(ID, id);
@@ -274,26 +341,18 @@ public class AwfulThread extends AwfulPagedItem  {
         final boolean filteringOnUserId = filterUserId > BLANK_USER_ID;
 
         // finally write new thread data to the database
-        ContentValues cv = new ThreadPageParseTask(resolver, page, threadId, pageNumber, lastPageNumber, postsPerPage, prefs).call();
+        ContentValues cv = new ThreadPageParseTask(page, threadId, pageNumber, lastPageNumber, postsPerPage, prefs).call();
         // TODO: 04/06/2017 this should be handled in the database-management classes
         String update_time = new Timestamp(startTime).toString();
         cv.put(DatabaseHelper.UPDATED_TIMESTAMP, update_time);
-        if (resolver.update(ContentUris.withAppendedId(CONTENT_URI, threadId), cv, null, null) < 1) {
-            resolver.insert(CONTENT_URI, cv);
-        }
+        ThreadDao.getInstance(prefs.getContext()).saveThread(threadId, cv);
 
         Timber.i("Thread parse time: %dms", System.currentTimeMillis() - startTime);
     }
 
 
     @SuppressWarnings("deprecation")
-	public static void setDataOnThreadListItem(View item, AwfulPreferences prefs, Cursor data, AwfulFragment parent) {
-        AwfulThread thread = fromCursorRow(data);
-        if (thread == null) {
-            Timber.w("setDataOnThreadView: unable to get data for thread!");
-            return;
-        }
-
+    public static void setDataOnThreadListItem(@NonNull View item, @NonNull AwfulPreferences prefs, @NonNull AwfulThread thread, AwfulFragment parent) {
         Resources resources = item.getResources();
         Context context = item.getContext();
         // get the forum ID for getting themed resources
@@ -316,20 +375,16 @@ public class AwfulThread extends AwfulPagedItem  {
 			if (!TextUtils.isEmpty(thread.tagCacheFile)) {
                 threadTag.setVisibility(VISIBLE);
                 String url = thread.tagUrl;
-                String localFileName = "@drawable/"+url.substring(url.lastIndexOf('/') + 1,url.lastIndexOf('.')).replace('-','_').toLowerCase();
-
-                int imageID = resources.getIdentifier(localFileName, null, context.getPackageName());
-                if (imageID == 0) {
-                    NetworkUtils.getImageLoader().get(url, new ImageLoader.ImageListener() {
-                        @Override
-                        public void onResponse(ImageLoader.ImageContainer response, boolean isImmediate) {
-                            Drawable classicTag = AwfulPostIcon.getClassicIconDrawable(response.getBitmap(), threadTag.getContext());
-                            threadTag.setImageDrawable(classicTag);
-                        }
-
-                        @Override
-                        public void onErrorResponse(VolleyError error) {
+                int imageID = ThreadTagRegistry.getTagResId(url);
+                Drawable classicTag = (imageID == 0) ? ThreadTagRegistry.getClassicTag(url, context) : null;
+                if (classicTag != null) {
+                    threadTag.setImageDrawable(classicTag);
+                } else if (imageID == 0) {
+                    TagStore.getInstance(context).loadTag(url, thread.tagCacheFile, tag -> {
+                        if (tag == null) {
                             threadTag.setImageResource(R.drawable.empty_thread_tag);
+                        } else {
+                            threadTag.setImageDrawable(ThreadTagRegistry.putClassicTag(url, tag, threadTag.getContext()));
                         }
                     });
                 } else {
@@ -0,0 +1,499 @@
+package com.ferg.awfulapp.thread;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.ferg.awfulapp.network.ImageDiskCache;
+import com.ferg.awfulapp.network.MediaPolicy;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import timber.log.Timber;
+
+/**
+ * Keeps a local copy of all the site emotes, so the emote picker doesn't need to download them.
+ * <p>
+ * When the emote list is synced, {@link #update(List)} downloads every emote in the background,
+ * packs the static ones into a few atlas bitmaps, and keeps animated ones as separate files. The
+ * picker calls {@link #load(Runnable)} when it opens, and then gets each emote's image from memory
+ * with {@link #getEmote(String)}. Rebuilding downloads a lot of images, so it only happens when the
+ * {@link MediaPolicy} allows images to be loaded in full.
+ */
+public class EmoteCache {
+
+    private static final String EMOTE_FOLDER = "emotes";
+    private static final String INDEX_FILE = "index.json";
+    private static final String ATLAS_FILE_PREFIX = "atlas_";
+    private static final String ANIMATED_FILE_PREFIX = "animated_";
+    private static final int ATLAS_SIZE_PX = 1024;
+    /** How many emotes get downloaded at once */
+    private static final int FETCH_THREADS = 4;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final ExecutorService emoteLane = Executors.newSingleThreadExecutor();
+    private static EmoteCache instance;
+
+    @NonNull
+    private final Context context;
+    @NonNull
+    private final File emoteFolder;
+    @NonNull
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    /** The loaded atlas pages, or null if they're not in memory */
+    @Nullable
+    private volatile List<Bitmap> atlasPages = null;
+    /** The location of each emote in the atlas, as [page, left, top, right, bottom] */
+    @NonNull
+    private volatile Map<String, int[]> atlasIndex = Collections.emptyMap();
+    /** The first frames of the animated emotes */
+    @NonNull
+    private volatile Map<String, Bitmap> animatedFrames = Collections.emptyMap();
+
+
+    @NonNull
+    public static synchronized EmoteCache getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new EmoteCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private EmoteCache(@NonNull Context context) {
+        this.context = context;
+        emoteFolder = new File(context.getFilesDir(), EMOTE_FOLDER);
+    }
+
+
+    /**
+     * Rebuild the local emotes in the background, if the emote list has changed. On a limited
+     * connection this is put off until a later sync.
+     *
+     * @param emoteUrls the URLs of all the site's emotes
+     */
+    public void update(@NonNull List<String> emoteUrls) {
+        List<String> urls = new ArrayList<>(emoteUrls);
+        emoteLane.execute(() -> {
+            String source = Integer.toHexString(urls.hashCode());
+            JSONObject index = readIndex();
+            if (index != null && source.equals(index.optString("source"))) {
+                return;
+            }
+            if (MediaPolicy.getInstance(context).forImage() != MediaPolicy.Decision.LOAD) {
+                Timber.d("Not rebuilding the emote cache on this connection");
+                return;
+            }
+            long startTime = System.currentTimeMillis();
+            try {
+                JSONObject newIndex = build(urls, source);
+                writeIndex(newIndex);
+                JSONObject animated = newIndex.optJSONObject("animated");
+                deleteUnusedFiles(newIndex.optInt("pages"), (animated == null) ? 0 : animated.length());
+                Timber.d("Built emote cache for %d emotes in %dms", urls.size(), System.currentTimeMillis() - startTime);
+            } catch (IOException | JSONException e) {
+                Timber.w(e, "Unable to build emote cache");
+                return;
+            }
+            // if the picker's already showing the old emotes, swap in the new ones
+            if (atlasPages != null) {
+                loadInBackground();
+            }
+        });
+    }
+
+
+    /**
+     * Download all the emotes, and write out the atlas pages and animated emotes.
+     *
+     * @return the index for the new files
+     */
+    @NonNull
+    private JSONObject build(@NonNull List<String> urls, @NonNull String source) throws IOException, JSONException {
+        ImageDiskCache imageCache = ImageDiskCache.getInstance(context);
+        ExecutorService fetchPool = Executors.newFixedThreadPool(FETCH_THREADS);
+        List<Future<ImageDiskCache.CachedImage>> fetches = new ArrayList<>(urls.size());
+        try {
+            for (String url : urls) {
+                Callable<ImageDiskCache.CachedImage> fetch = () -> imageCache.getOrFetch(url);
+                fetches.add(fetchPool.submit(fetch));
+            }
+
+            if (!emoteFolder.isDirectory() && !emoteFolder.mkdirs()) {
+                throw new IOException("Unable to create the emote folder");
+            }
+            AtlasBuilder atlas = new AtlasBuilder();
+            JSONObject animated = new JSONObject();
+            for (int i = 0; i < urls.size(); i++) {
+                String url = urls.get(i);
+                ImageDiskCache.CachedImage image;
+                try {
+                    image = fetches.get(i).get();
+                } catch (ExecutionException | InterruptedException e) {
+                    image = null;
+                }
+                if (image == null) {
+                    // it'll just be loaded normally
+                    continue;
+                }
+                byte[] data = image.readData();
+                if (isAnimated(data)) {
+                    String fileName = ANIMATED_FILE_PREFIX + animated.length();
+                    writeFile(new File(emoteFolder, fileName), data);
+                    animated.put(url, fileName);
+                } else {
+                    Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+                    if (bitmap != null) {
+                        atlas.add(url, bitmap);
+                    }
+                }
+            }
+
+            JSONObject index = new JSONObject();
+            index.put("source", source);
+            index.put("pages", atlas.writePages());
+            index.put("atlas", atlas.getIndex());
+            index.put("animated", animated);
+            return index;
+        } finally {
+            fetchPool.shutdownNow();
+        }
+    }
+
+
+    /**
+     * Check if an image is an animated GIF, by looking for more than one frame.
+     */
+    private static boolean isAnimated(@NonNull byte[] data) {
+        if (data.length < 6 || data[0] != 'G' || data[1] != 'I' || data[2] != 'F') {
+            return false;
+        }
+        // each frame normally has a graphic control extension, so count those
+        int frames = 0;
+        for (int i = 0; i < data.length - 2; i++) {
+            if (data[i] == 0x21 && data[i + 1] == (byte) 0xF9 && data[i + 2] == 0x04 && ++frames > 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Load the local emotes into memory, so they can be displayed.
+     *
+     * @param onLoaded called on the main thread once the emotes are available
+     */
+    public void load(@Nullable Runnable onLoaded) {
+        emoteLane.execute(() -> {
+            if (atlasPages == null) {
+                loadInBackground();
+            }
+            if (onLoaded != null) {
+                mainHandler.post(onLoaded);
+            }
+        });
+    }
+
+
+    private void loadInBackground() {
+        JSONObject index = readIndex();
+        if (index == null) {
+            return;
+        }
+        List<Bitmap> pages = new ArrayList<>();
+        Map<String, int[]> locations = new HashMap<>();
+        Map<String, Bitmap> frames = new HashMap<>();
+        try {
+            for (int i = 0; i < index.getInt("pages"); i++) {
+                Bitmap page = BitmapFactory.decodeFile(new File(emoteFolder, ATLAS_FILE_PREFIX + i).getPath());
+                if (page == null) {
+                    throw new IOException("Missing atlas page " + i);
+                }
+                pages.add(page);
+            }
+            JSONObject atlas = index.getJSONObject("atlas");
+            for (String url : iterable(atlas.keys())) {
+                JSONArray location = atlas.getJSONArray(url);
+                locations.put(url, new int[]{location.getInt(0), location.getInt(1), location.getInt(2), location.getInt(3), location.getInt(4)});
+            }
+            JSONObject animated = index.getJSONObject("animated");
+            for (String url : iterable(animated.keys())) {
+                Bitmap frame = BitmapFactory.decodeFile(new File(emoteFolder, animated.getString(url)).getPath());
+                if (frame != null) {
+                    frames.put(url, frame);
+                }
+            }
+        } catch (IOException | JSONException e) {
+            Timber.w(e, "Unable to load emote cache");
+            return;
+        }
+        atlasIndex = locations;
+        animatedFrames = frames;
+        atlasPages = pages;
+    }
+
+
+    /**
+     * Free the loaded emotes, e.g. when the picker is closed.
+     */
+    public void release() {
+        emoteLane.execute(() -> {
+            atlasPages = null;
+            atlasIndex = Collections.emptyMap();
+            animatedFrames = Collections.emptyMap();
+        });
+    }
+
+
+    /**
+     * Get an emote's image from the loaded emotes.
+     *
+     * @return a drawable for the emote, or null if it isn't loaded
+     */
+    @Nullable
+    public Drawable getEmote(@NonNull String url) {
+        List<Bitmap> pages = atlasPages;
+        if (pages == null) {
+            return null;
+        }
+        int[] location = atlasIndex.get(url);
+        if (location != null && location[0] < pages.size()) {
+            return new AtlasDrawable(pages.get(location[0]), new Rect(location[1], location[2], location[3], location[4]));
+        }
+        Bitmap frame = animatedFrames.get(url);
+        return (frame == null) ? null : new BitmapDrawable(context.getResources(), frame);
+    }
+
+
+    /**
+     * Delete any atlas pages and animated emotes left over from a bigger build than the current one.
+     */
+    private void deleteUnusedFiles(int pageCount, int animatedCount) {
+        File[] files = emoteFolder.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            boolean unused;
+            try {
+                if (name.startsWith(ATLAS_FILE_PREFIX)) {
+                    unused = Integer.parseInt(name.substring(ATLAS_FILE_PREFIX.length())) >= pageCount;
+                } else if (name.startsWith(ANIMATED_FILE_PREFIX)) {
+                    unused = Integer.parseInt(name.substring(ANIMATED_FILE_PREFIX.length())) >= animatedCount;
+                } else {
+                    unused = false;
+                }
+            } catch (NumberFormatException e) {
+                // e.g. a temp file from a build that didn't finish
+                unused = true;
+            }
+            if (unused && !file.delete()) {
+                Timber.w("Unable to delete unused emote file %s", name);
+            }
+        }
+    }
+
+
+    @Nullable
+    private JSONObject readIndex() {
+        File indexFile = new File(emoteFolder, INDEX_FILE);
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        try (InputStream input = new FileInputStream(indexFile)) {
+            byte[] data = new byte[(int) indexFile.length()];
+            int read = 0;
+            while (read < data.length) {
+                int count = input.read(data, read, data.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+            return new JSONObject(new String(data, 0, read, UTF_8));
+        } catch (IOException | JSONException e) {
+            Timber.w(e, "Unable to read emote index");
+            return null;
+        }
+    }
+
+
+    private void writeIndex(@NonNull JSONObject index) throws IOException {
+        writeFile(new File(emoteFolder, INDEX_FILE), index.toString().getBytes(UTF_8));
+    }
+
+
+    /**
+     * Write a file via a temp file, so nothing ever reads it half-written.
+     */
+    private static void writeFile(@NonNull File file, @NonNull byte[] data) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (OutputStream output = new FileOutputStream(tempFile)) {
+            output.write(data);
+        }
+        if (!tempFile.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw new IOException("Unable to rename " + tempFile);
+        }
+    }
+
+
+    @NonNull
+    private static <T> Iterable<T> iterable(@NonNull Iterator<T> iterator) {
+        return () -> iterator;
+    }
+
+
+    /**
+     * Packs bitmaps into atlas pages, filling rows left to right.
+     */
+    private class AtlasBuilder {
+
+        private final List<Bitmap> pages = new ArrayList<>();
+        private final JSONObject index = new JSONObject();
+        private Canvas canvas;
+        private int x = 0;
+        private int y = 0;
+        private int rowHeight = 0;
+
+        void add(@NonNull String url, @NonNull Bitmap bitmap) throws JSONException {
+            int width = bitmap.getWidth();
+            int height = bitmap.getHeight();
+            if (width > ATLAS_SIZE_PX || height > ATLAS_SIZE_PX) {
+                return;
+            }
+            if (x + width > ATLAS_SIZE_PX) {
+                // next row
+                x = 0;
+                y += rowHeight;
+                rowHeight = 0;
+            }
+            if (canvas == null || y + height > ATLAS_SIZE_PX) {
+                Bitmap page = Bitmap.createBitmap(ATLAS_SIZE_PX, ATLAS_SIZE_PX, Bitmap.Config.ARGB_8888);
+                pages.add(page);
+                canvas = new Canvas(page);
+                x = 0;
+                y = 0;
+                rowHeight = 0;
+            }
+            canvas.drawBitmap(bitmap, x, y, null);
+            index.put(url, new JSONArray(new int[]{pages.size() - 1, x, y, x + width, y + height}));
+            bitmap.recycle();
+            x += width;
+            rowHeight = Math.max(rowHeight, height);
+        }
+
+        /**
+         * Write out the atlas pages, freeing them.
+         *
+         * @return the number of pages
+         */
+        int writePages() throws IOException {
+            for (int i = 0; i < pages.size(); i++) {
+                Bitmap page = pages.get(i);
+                File tempFile = new File(emoteFolder, ATLAS_FILE_PREFIX + i + ".tmp");
+                try (OutputStream output = new FileOutputStream(tempFile)) {
+                    page.compress(Bitmap.CompressFormat.PNG, 100, output);
+                }
+                if (!tempFile.renameTo(new File(emoteFolder, ATLAS_FILE_PREFIX + i))) {
+                    throw new IOException("Unable to write atlas page " + i);
+                }
+                page.recycle();
+            }
+            return pages.size();
+        }
+
+        @NonNull
+        JSONObject getIndex() {
+            return index;
+        }
+    }
+
+
+    /**
+     * Draws one emote from an atlas page.
+     */
+    private static class AtlasDrawable extends Drawable {
+
+        private static final Paint PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        @NonNull
+        private final Bitmap page;
+        @NonNull
+        private final Rect source;
+        private int alpha = 255;
+
+        AtlasDrawable(@NonNull Bitmap page, @NonNull Rect source) {
+            this.page = page;
+            this.source = source;
+        }
+
+        @Override
+        public void draw(@NonNull Canvas canvas) {
+            if (page.isRecycled()) {
+                return;
+            }
+            PAINT.setAlpha(alpha);
+            canvas.drawBitmap(page, source, getBounds(), PAINT);
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            return source.width();
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            return source.height();
+        }
+
+        @Override
+        public void setAlpha(int alpha) {
+            this.alpha = alpha;
+        }
+
+        @Override
+        public void setColorFilter(@Nullable ColorFilter colorFilter) {
+        }
+
+        @Override
+        public int getOpacity() {
+            return PixelFormat.TRANSLUCENT;
+        }
+    }
+}
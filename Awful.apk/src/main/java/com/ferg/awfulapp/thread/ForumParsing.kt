@@ -1,14 +1,12 @@
 package com.ferg.awfulapp.thread
 
-import android.content.ContentResolver
-import android.content.ContentUris
 import android.content.ContentValues
 import android.net.Uri
 import com.ferg.awfulapp.constants.Constants
 import com.ferg.awfulapp.network.NetworkUtils
 import com.ferg.awfulapp.preferences.AwfulPreferences
-import com.ferg.awfulapp.provider.AwfulProvider
 import com.ferg.awfulapp.provider.DatabaseHelper
+import com.ferg.awfulapp.provider.ThreadDao
 import com.ferg.awfulapp.thread.AwfulPost.*
 import com.ferg.awfulapp.thread.AwfulThread.*
 import org.jsoup.nodes.Document
@@ -76,6 +74,7 @@ fun <T> parse(parseTasks: Collection<Callable<T>>): List<T> {
  * @param[index]            the index of this post in the thread
  * @param[lastReadIndex]    the index of the last-read post, used to mark this post as seen or unseen
  * @param[threadId]         the ID of this post's thread
+ * @param[threadTitle]      the title of this post's thread, used for search indexing
  * @param[opId]             the user ID of the person who created the thread
  * @returns the post data represented as a ContentValues (see [AwfulPost])
  */
@@ -85,6 +84,7 @@ class PostParseTask(
     private val index: Int,
     private val lastReadIndex: Int,
     private val threadId: Int,
+    private val threadTitle: String,
     private val opId: Int,
     private val prefs: AwfulPreferences
 ) : Callable<ContentValues> {
@@ -111,7 +111,8 @@ class PostParseTask(
                 postData.attr("data-idx").replace(POST_ID_GARBAGE, "").toIntOrNull() ?: index
             )
 
-            // Check for "class=seenX", or just rely on unread index
+            // Check for "class=seenX", or just rely on unread index - this isn't stored with the post,
+            // it's used to move the thread's read watermark up to the last post the site says we've seen
             val markedSeen = postData.selectFirst("[class^=seen]") != null
             val postHasBeenRead = markedSeen || index <= lastReadIndex
             put(PREVIOUSLY_READ, postHasBeenRead.sqlBool)
@@ -138,11 +139,15 @@ class PostParseTask(
                 convertVideos(this, prefs.inlineYoutube)
                 getElementsByTag("img").forEach { processPostImage(it, postHasBeenRead, prefs) }
                 getElementsByTag("a").forEach(::tryConvertToHttps)
+                OwnUserMarkup.mark(this, prefs.username)
                 if (this == fyadPostBody) {
                     // FYAD sigs are currently a sibling div alongside .complete_shit, so we need to stick them at the end of the content
                     postBody.selectFirst("> .signature")?.appendTo(this)
                 }
                 put(CONTENT, html())
+                // plain text for the search index - the provider splits these out from the post data
+                put(SEARCH_TEXT, text())
+                put(AwfulPost.THREAD_TITLE, threadTitle)
             }
 
             // extract and clean up post timestamp
@@ -318,7 +323,6 @@ class ForumParseTask(
  * A task that parses thread data from a thread page and returns it as a [ContentValues],
  * as defined in [AwfulThread].
  *
- * @param resolver used to load current data for this thread
  * @param page a Document representing a page from a thread
  * @param threadId the ID of the thread this page is from
  * @param pageNumber this page's number in the thread when it was fetched
@@ -326,7 +330,6 @@ class ForumParseTask(
  * @returns new or updated data for this thread, represented as a ContentValues (see [AwfulThread])
  */
 class ThreadPageParseTask(
-        private val resolver: ContentResolver,
         private val page: Document,
         private val threadId: Int,
         private val pageNumber: Int,
@@ -341,10 +344,7 @@ class ThreadPageParseTask(
 
     override fun call(): ContentValues {
         // try and load the current thread data from the DB, otherwise create a new AwfulThread
-        val uri = ContentUris.withAppendedId(AwfulThread.CONTENT_URI, threadId.toLong())
-        val thread = resolver.query(uri, AwfulProvider.ThreadProjection, null, null, null).use {
-            it?.apply { moveToFirst() }?.let(::fromCursorRow) ?: AwfulThread()
-        }
+        val thread = ThreadDao.getInstance(prefs.context).getThread(threadId) ?: AwfulThread()
 
         with(thread) {
             id = threadId
@@ -379,9 +379,9 @@ class ThreadPageParseTask(
             // hand off the page for post parsing, and get back the number of posts it found
             // TODO: 02/06/2017 sort out the ignored posts issue, the post parser doesn't put them in the DB (if you have 'always hide' on in the settings) and it messes up the numbers
             val postsOnThisPage = syncPosts(
-                resolver,
                 page,
                 threadId,
+                title,
                 firstUnreadIndex,
                 authorId,
                 prefs,
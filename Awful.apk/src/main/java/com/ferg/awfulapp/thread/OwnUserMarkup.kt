@@ -0,0 +1,109 @@
+package com.ferg.awfulapp.thread
+
+import org.jsoup.Jsoup
+import org.jsoup.nodes.Element
+import org.jsoup.nodes.Node
+import org.jsoup.nodes.TextNode
+import java.util.regex.Pattern
+
+/**
+ * Marks up the user's own username in post content, so the WebView doesn't have to search every
+ * post for it each time a page is displayed.
+ *
+ * Mentions of the username are wrapped in a span with the [MENTION_CLASS], and quote blocks of the
+ * user's posts get the [QUOTE_CLASS]. These are the classes the themes style - the page JS just
+ * strips them if the user has turned highlighting off.
+ *
+ * This happens when posts are parsed, so if the username changes, stored posts need to be marked
+ * up again with [remark].
+ */
+object OwnUserMarkup {
+
+    const val MENTION_CLASS = "usernameHighlight"
+    const val QUOTE_CLASS = "self"
+
+    private const val QUOTE_SELECTOR = ".bbc-block"
+    private val SKIPPED_TAGS = setOf("script", "style", "textarea")
+
+    /**
+     * Mark up the user's mentions and quotes in some post content.
+     */
+    @JvmStatic
+    fun mark(content: Element, username: String) {
+        if (username.isBlank()) {
+            return
+        }
+        val ownQuoteHeaders = markQuotes(content, username)
+        markMentions(content, username, ownQuoteHeaders)
+    }
+
+    /**
+     * Remove any existing markup from some post content.
+     */
+    @JvmStatic
+    fun unmark(content: Element) {
+        content.select("span.$MENTION_CLASS").forEach { it.unwrap() }
+        content.select("$QUOTE_SELECTOR.$QUOTE_CLASS").forEach { it.removeClass(QUOTE_CLASS) }
+    }
+
+    /**
+     * Replace the markup in some stored post HTML, for a different username.
+     *
+     * @return the new HTML, or null if nothing changed
+     */
+    @JvmStatic
+    fun remark(html: String, username: String): String? {
+        val oldContent = Jsoup.parseBodyFragment(html).body()
+        unmark(oldContent)
+        // parse it again, so the text split up by the old highlight spans gets joined back together
+        val content = Jsoup.parseBodyFragment(oldContent.html()).body()
+        mark(content, username)
+        return content.html().takeIf { it != html }
+    }
+
+
+    /**
+     * Flag the quote blocks with a "username posted:" header.
+     *
+     * @return the headers of the flagged quotes
+     */
+    private fun markQuotes(content: Element, username: String): Set<Element> {
+        val header = "$username posted:"
+        return content.select("$QUOTE_SELECTOR > h4")
+            .filter { it.text() == header }
+            .onEach { it.parent()?.addClass(QUOTE_CLASS) }
+            .toSet()
+    }
+
+    /**
+     * Wrap each mention of the username in a highlight span - except in the headers of the user's
+     * own quotes, which are highlighted as a whole.
+     */
+    private fun markMentions(content: Element, username: String, skippedHeaders: Set<Element>) {
+        val mention = Pattern.compile("\\b" + Pattern.quote(username) + "\\b")
+        // collect the matching nodes first, since they get replaced
+        val textNodes = content.allElements
+            .filter { it.tagName() !in SKIPPED_TAGS && it !in skippedHeaders && !it.hasClass(MENTION_CLASS) }
+            .flatMap(Element::textNodes)
+            .filter { mention.matcher(it.wholeText).find() }
+        textNodes.forEach { wrapMentions(it, mention) }
+    }
+
+    private fun wrapMentions(textNode: TextNode, mention: Pattern) {
+        val text = textNode.wholeText
+        val matcher = mention.matcher(text)
+        var start = 0
+        var previous: Node = textNode
+        while (matcher.find()) {
+            if (matcher.start() > start) {
+                previous = TextNode(text.substring(start, matcher.start())).also { previous.after(it) }
+            }
+            previous = Element("span").addClass(MENTION_CLASS).text(matcher.group()).also { previous.after(it) }
+            start = matcher.end()
+        }
+        if (start < text.length) {
+            previous.after(TextNode(text.substring(start)))
+        }
+        textNode.remove()
+    }
+}
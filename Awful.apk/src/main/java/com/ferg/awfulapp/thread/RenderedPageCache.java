@@ -0,0 +1,447 @@
+package com.ferg.awfulapp.thread;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.util.LruCache;
+import android.util.SparseIntArray;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import timber.log.Timber;
+
+/**
+ * A two-level cache of rendered thread pages - the HTML produced by
+ * {@link AwfulHtmlPage#getThreadHtml(java.util.List, com.ferg.awfulapp.preferences.AwfulPreferences, int, int)}.
+ * <p>
+ * Recently used pages are held in memory, and every page is also written to a gzipped file, so
+ * revisiting a page (going back, rotating, reopening the app) can display it without reading
+ * and rendering the posts again.
+ * <p>
+ * Each thread has a data version, which the database code bumps whenever it writes anything that
+ * changes how that thread's pages render (see {@link #invalidateThread(int)}). Invalidating also
+ * throws away the thread's cached pages, and anything rendered from data read before the bump
+ * won't be stored, so the cache never serves pages older than the database.
+ * <p>
+ * Invalidating everything (see {@link #invalidateAll()}) bumps a generation number instead, which is
+ * persisted and goes in every file name - files from older generations are never read, and get
+ * deleted in the background.
+ */
+public class RenderedPageCache {
+
+    /** Max total size of the pages held in memory, in chars */
+    private static final int MEMORY_CACHE_CHARS = 2 * 1024 * 1024;
+    private static final String CACHE_FOLDER = "rendered_pages";
+    private static final String FILE_SUFFIX = ".html.gz";
+    /** Max size of the files on disk - the least recently written are deleted past this */
+    private static final long DISK_CACHE_BYTES = 16 * 1024 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String STATE_PREFS = "rendered_pages";
+    private static final String KEY_GENERATION = "generation";
+    /** Marks a thread whose files are waiting to be deleted, followed by the thread ID */
+    private static final String KEY_STALE_THREAD_PREFIX = "stale_thread_";
+
+    private static RenderedPageCache instance;
+
+    private final File cacheDir;
+    private final LruCache<PageKey, Page> memoryCache = new LruCache<PageKey, Page>(MEMORY_CACHE_CHARS) {
+        @Override
+        protected int sizeOf(PageKey key, Page page) {
+            return page.html.length();
+        }
+    };
+    /** Data version bumps for each thread - threads that haven't been written to are at 0 */
+    private final SparseIntArray threadVersions = new SparseIntArray();
+    /** Bumped when every thread is invalidated at once - this is stored, so it survives the app being killed */
+    private int generation;
+    @NonNull
+    private final SharedPreferences statePrefs;
+    private final ExecutorService diskLane = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+
+    @NonNull
+    public static synchronized RenderedPageCache getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new RenderedPageCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private RenderedPageCache(@NonNull Context context) {
+        cacheDir = new File(context.getCacheDir(), CACHE_FOLDER);
+        statePrefs = context.getSharedPreferences(STATE_PREFS, Context.MODE_PRIVATE);
+        generation = statePrefs.getInt(KEY_GENERATION, 0);
+        // clear out anything an earlier invalidation didn't get round to deleting
+        final int currentGeneration = generation;
+        diskLane.execute(() -> {
+            deleteOldGenerations(currentGeneration);
+            deleteStaleThreads();
+        });
+    }
+
+
+    /**
+     * Create a key for a rendered page, using the thread's current data version.
+     * <p>
+     * Create the key <i>before</i> reading the posts to render - if the data changes in the meantime,
+     * the key's version will be out of date and the page won't get cached.
+     *
+     * @param renderFingerprint a hash of everything in the user's preferences that affects rendering,
+     *                          see {@link AwfulHtmlPage#getRenderFingerprint(com.ferg.awfulapp.preferences.AwfulPreferences)}
+     */
+    @NonNull
+    public synchronized PageKey createKey(int threadId, int page, int postsPerPage, boolean isLastPage, int renderFingerprint) {
+        return new PageKey(threadId, page, postsPerPage, isLastPage, renderFingerprint, generation, threadVersions.get(threadId));
+    }
+
+
+    /**
+     * Get a page from the memory cache.
+     *
+     * @return the page, or null if it's not in memory
+     */
+    @Nullable
+    public synchronized Page getFromMemory(@NonNull PageKey key) {
+        return isCurrent(key) ? memoryCache.get(key) : null;
+    }
+
+
+    /**
+     * Get a page from memory or disk, passing it to the callback on the main thread. If the page isn't
+     * cached the callback gets null.
+     */
+    public void get(@NonNull PageKey key, @NonNull Callback callback) {
+        Page page = getFromMemory(key);
+        if (page != null) {
+            callback.onPageLoaded(page);
+            return;
+        }
+        diskLane.execute(() -> {
+            Page diskPage = readFromDisk(key);
+            synchronized (this) {
+                if (diskPage != null && isCurrent(key)) {
+                    memoryCache.put(key, diskPage);
+                } else {
+                    diskPage = null;
+                }
+            }
+            final Page result = diskPage;
+            mainHandler.post(() -> callback.onPageLoaded(result));
+        });
+    }
+
+
+    /**
+     * Store a rendered page. It's ignored if its thread has been invalidated since the key was created.
+     *
+     * @param postCount the number of posts on the page
+     */
+    public void put(@NonNull PageKey key, @NonNull String html, int postCount) {
+        Page page = new Page(html, postCount);
+        synchronized (this) {
+            if (!isCurrent(key)) {
+                return;
+            }
+            memoryCache.put(key, page);
+        }
+        diskLane.execute(() -> writeToDisk(key, page));
+    }
+
+
+    /**
+     * Drop all of a thread's cached pages, and bump its data version. Call this after anything that
+     * changes how the thread's posts are displayed has been written to the database.
+     * <p>
+     * This is safe to call on the main thread - the thread's files are deleted in the background.
+     */
+    public void invalidateThread(int threadId) {
+        synchronized (this) {
+            threadVersions.put(threadId, threadVersions.get(threadId) + 1);
+            for (PageKey key : memoryCache.snapshot().keySet()) {
+                if (key.threadId == threadId) {
+                    memoryCache.remove(key);
+                }
+            }
+        }
+        // versions only live in memory, so if the app is killed before the files are gone, they're deleted on the next start
+        String staleKey = KEY_STALE_THREAD_PREFIX + threadId;
+        statePrefs.edit().putBoolean(staleKey, true).apply();
+        diskLane.execute(() -> {
+            deleteFiles(filePrefix(threadId));
+            statePrefs.edit().remove(staleKey).apply();
+        });
+    }
+
+
+    /**
+     * Drop every cached page, e.g. when posts are changed in a way that can't be tied to particular threads.
+     * <p>
+     * This is safe to call on the main thread - the old files are deleted in the background.
+     */
+    public void invalidateAll() {
+        final int newGeneration;
+        synchronized (this) {
+            newGeneration = ++generation;
+            memoryCache.evictAll();
+        }
+        statePrefs.edit().putInt(KEY_GENERATION, newGeneration).apply();
+        diskLane.execute(() -> deleteOldGenerations(newGeneration));
+    }
+
+
+    /**
+     * Check if a key is still valid, i.e. its thread hasn't been invalidated since the key was created.
+     */
+    public synchronized boolean isCurrent(@NonNull PageKey key) {
+        return key.generation == generation && key.version == threadVersions.get(key.threadId);
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Disk storage
+    ///////////////////////////////////////////////////////////////////////////
+
+    /*
+        Files are named after everything in the key except the thread's version - those only live in
+        memory, so instead a thread's files are deleted (in the background, but before any later disk
+        work) when it's invalidated. Each file holds the post
+        count on the first line, followed by the page HTML.
+     */
+
+    @NonNull
+    private static String filePrefix(int threadId) {
+        return "t" + threadId + "_";
+    }
+
+    @NonNull
+    private static String generationTag(int generation) {
+        return "g" + generation + "_";
+    }
+
+    @NonNull
+    private File fileFor(@NonNull PageKey key) {
+        String name = String.format(Locale.US, "%s%sp%d_%d_%b_%08x%s", filePrefix(key.threadId), generationTag(key.generation),
+                key.page, key.postsPerPage, key.isLastPage, key.renderFingerprint, FILE_SUFFIX);
+        return new File(cacheDir, name);
+    }
+
+
+    @Nullable
+    private Page readFromDisk(@NonNull PageKey key) {
+        File file = fileFor(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(file)), UTF_8))) {
+            int postCount = Integer.parseInt(reader.readLine());
+            StringBuilder html = new StringBuilder((int) file.length() * 4);
+            char[] buffer = new char[8192];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                html.append(buffer, 0, read);
+            }
+            return new Page(html.toString(), postCount);
+        } catch (IOException | NumberFormatException e) {
+            Timber.w(e, "Unable to read cached page %s", file.getName());
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return null;
+        }
+    }
+
+
+    private void writeToDisk(@NonNull PageKey key, @NonNull Page page) {
+        if (!cacheDir.isDirectory() && !cacheDir.mkdirs()) {
+            Timber.w("Unable to create rendered page cache folder");
+            return;
+        }
+        File file = fileFor(key);
+        File tempFile = new File(cacheDir, file.getName() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(tempFile)), UTF_8)) {
+            writer.write(Integer.toString(page.postCount));
+            writer.write('\n');
+            writer.write(page.html);
+        } catch (IOException e) {
+            Timber.w(e, "Unable to write cached page %s", file.getName());
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return;
+        }
+        // the thread might have been invalidated while this was being written, so don't leave a stale file behind
+        boolean stored;
+        synchronized (this) {
+            stored = isCurrent(key) && tempFile.renameTo(file);
+        }
+        if (stored) {
+            trimDisk();
+        } else {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+
+
+    /**
+     * Delete the oldest files until the cache fits in its size budget.
+     */
+    private void trimDisk() {
+        File[] files = cacheDir.listFiles((dir, name) -> name.endsWith(FILE_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        if (totalBytes <= DISK_CACHE_BYTES) {
+            return;
+        }
+        Arrays.sort(files, (first, second) -> Long.compare(first.lastModified(), second.lastModified()));
+        for (int i = 0; i < files.length && totalBytes > DISK_CACHE_BYTES; i++) {
+            long size = files[i].length();
+            if (files[i].delete()) {
+                totalBytes -= size;
+            }
+        }
+    }
+
+
+    /**
+     * Delete the files from every generation but this one.
+     */
+    /**
+     * Delete the files of any threads that were invalidated before their files could be deleted.
+     */
+    private void deleteStaleThreads() {
+        SharedPreferences.Editor editor = statePrefs.edit();
+        for (String key : statePrefs.getAll().keySet()) {
+            if (!key.startsWith(KEY_STALE_THREAD_PREFIX)) {
+                continue;
+            }
+            try {
+                deleteFiles(filePrefix(Integer.parseInt(key.substring(KEY_STALE_THREAD_PREFIX.length()))));
+            } catch (NumberFormatException e) {
+                Timber.w("Bad stale thread key %s", key);
+            }
+            editor.remove(key);
+        }
+        editor.apply();
+    }
+
+
+    private void deleteOldGenerations(int currentGeneration) {
+        String currentTag = "_" + generationTag(currentGeneration);
+        File[] files = cacheDir.listFiles((dir, name) -> !name.contains(currentTag));
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+
+    private void deleteFiles(@NonNull String prefix) {
+        File[] files = cacheDir.listFiles((dir, name) -> name.startsWith(prefix));
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Data classes
+    ///////////////////////////////////////////////////////////////////////////
+
+
+    public interface Callback {
+        void onPageLoaded(@Nullable Page page);
+    }
+
+
+    public static class Page {
+        @NonNull
+        public final String html;
+        public final int postCount;
+
+        Page(@NonNull String html, int postCount) {
+            this.html = html;
+            this.postCount = postCount;
+        }
+    }
+
+
+    /**
+     * Identifies a rendered page. Create these with {@link #createKey(int, int, int, boolean, int)}.
+     */
+    public static class PageKey {
+        final int threadId;
+        final int page;
+        final int postsPerPage;
+        final boolean isLastPage;
+        final int renderFingerprint;
+        final int generation;
+        final int version;
+
+        private PageKey(int threadId, int page, int postsPerPage, boolean isLastPage, int renderFingerprint, int generation, int version) {
+            this.threadId = threadId;
+            this.page = page;
+            this.postsPerPage = postsPerPage;
+            this.isLastPage = isLastPage;
+            this.renderFingerprint = renderFingerprint;
+            this.generation = generation;
+            this.version = version;
+        }
+
+        /**
+         * Check if another key identifies the same page, rendered the same way - it may be a different version of it.
+         */
+        public boolean isSamePage(@NonNull PageKey other) {
+            return threadId == other.threadId && page == other.page && postsPerPage == other.postsPerPage
+                    && isLastPage == other.isLastPage && renderFingerprint == other.renderFingerprint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof PageKey)) return false;
+            PageKey other = (PageKey) o;
+            return threadId == other.threadId && page == other.page && postsPerPage == other.postsPerPage
+                    && isLastPage == other.isLastPage && renderFingerprint == other.renderFingerprint
+                    && generation == other.generation && version == other.version;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = threadId;
+            result = 31 * result + page;
+            result = 31 * result + postsPerPage;
+            result = 31 * result + (isLastPage ? 1 : 0);
+            result = 31 * result + renderFingerprint;
+            result = 31 * result + generation;
+            result = 31 * result + version;
+            return result;
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package com.ferg.awfulapp.thread;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.ColorInt;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import com.android.volley.VolleyError;
+import com.android.volley.toolbox.ImageLoader;
+import com.ferg.awfulapp.network.NetworkUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+
+import timber.log.Timber;
+
+/**
+ * Stores the forum and thread tags that aren't bundled with the app, so they only need to be
+ * downloaded once.
+ * <p>
+ * Tags are stored under their cache filenames (the TAG_CACHEFILE columns in the forum and thread
+ * tables), which are the names of the tag images on the site. The colours sampled from forum tags
+ * for {@link com.ferg.awfulapp.forums.SquareForumTag}s are stored alongside them, so those don't need
+ * the image at all once they've been worked out. The store is kept under {@link #MAX_STORED_BYTES},
+ * dropping the least recently used tags (and their colours) first.
+ */
+public class TagStore {
+
+    private static final String TAG_FOLDER = "tags";
+    private static final String COLOUR_PREFS = "tag_colours";
+    private static final int MAX_LOADED_TAGS = 100;
+    /** There are a few hundred tags on the site, and they're small - this holds most of them */
+    private static final long MAX_STORED_BYTES = 2L * 1024 * 1024;
+    /** When the store is full, it's trimmed down to this much */
+    private static final long TRIMMED_STORED_BYTES = MAX_STORED_BYTES * 3 / 4;
+
+    private static final ExecutorService storeLane = Executors.newSingleThreadExecutor();
+    private static TagStore instance;
+
+    @NonNull
+    private final File tagFolder;
+    @NonNull
+    private final SharedPreferences colourPrefs;
+    @NonNull
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    /** Tags that have already been loaded, keyed by cache filename */
+    private final LruCache<String, Bitmap> loadedTags = new LruCache<>(MAX_LOADED_TAGS);
+
+
+    /**
+     * Receives a loaded tag, on the main thread.
+     */
+    public interface Callback {
+        /**
+         * @param tag the tag image, or null if it couldn't be loaded
+         */
+        void onTagLoaded(@Nullable Bitmap tag);
+    }
+
+
+    @NonNull
+    public static synchronized TagStore getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new TagStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private TagStore(@NonNull Context context) {
+        tagFolder = new File(context.getFilesDir(), TAG_FOLDER);
+        colourPrefs = context.getSharedPreferences(COLOUR_PREFS, Context.MODE_PRIVATE);
+    }
+
+
+    /**
+     * Get the cache filename for a tag that doesn't have one stored, from its URL.
+     */
+    @Nullable
+    public static String getCacheFileName(@NonNull String tagUrl) {
+        Matcher fileNameMatcher = AwfulEmote.fileName_regex.matcher(tagUrl);
+        return fileNameMatcher.find() ? fileNameMatcher.group(1) : null;
+    }
+
+
+    /**
+     * Load a tag, from the store if it's there, otherwise by downloading and storing it.
+     *
+     * @param cacheFile the tag's cache filename - if this is null, it's worked out from the URL
+     * @param callback  called on the main thread once the tag is loaded - this may happen immediately
+     */
+    public void loadTag(@NonNull String tagUrl, @Nullable String cacheFile, @NonNull Callback callback) {
+        String name = (cacheFile != null) ? cacheFile : getCacheFileName(tagUrl);
+        File tagFile = getTagFile(name);
+        if (tagFile == null) {
+            fetchTag(tagUrl, null, callback);
+            return;
+        }
+        Bitmap loaded = loadedTags.get(name);
+        if (loaded != null) {
+            callback.onTagLoaded(loaded);
+            return;
+        }
+        storeLane.execute(() -> {
+            Bitmap stored = tagFile.isFile() ? BitmapFactory.decodeFile(tagFile.getPath()) : null;
+            if (stored != null) {
+                // mark it as recently used
+                //noinspection ResultOfMethodCallIgnored
+                tagFile.setLastModified(System.currentTimeMillis());
+                loadedTags.put(name, stored);
+                mainHandler.post(() -> callback.onTagLoaded(stored));
+            } else {
+                mainHandler.post(() -> fetchTag(tagUrl, name, callback));
+            }
+        });
+    }
+
+
+    /**
+     * Download a tag, storing it if it has a cache filename. This needs to be called on the main thread.
+     */
+    private void fetchTag(@NonNull String tagUrl, @Nullable String name, @NonNull Callback callback) {
+        NetworkUtils.getImageLoader().get(tagUrl, new ImageLoader.ImageListener() {
+            @Override
+            public void onResponse(ImageLoader.ImageContainer response, boolean isImmediate) {
+                Bitmap loaded = response.getBitmap();
+                if (loaded == null) {
+                    // still loading
+                    return;
+                }
+                // Volley's cache owns its bitmap, so keep a copy of our own
+                Bitmap tag = loaded.copy(loaded.getConfig() != null ? loaded.getConfig() : Bitmap.Config.ARGB_8888, false);
+                if (tag == null) {
+                    callback.onTagLoaded(loaded);
+                    return;
+                }
+                callback.onTagLoaded(tag);
+                if (name != null) {
+                    loadedTags.put(name, tag);
+                    storeLane.execute(() -> storeTag(name, tag));
+                }
+            }
+
+            @Override
+            public void onErrorResponse(VolleyError error) {
+                callback.onTagLoaded(null);
+            }
+        });
+    }
+
+
+    private void storeTag(@NonNull String name, @NonNull Bitmap tag) {
+        File tagFile = getTagFile(name);
+        if (tagFile == null || tagFile.isFile()) {
+            return;
+        }
+        if (!tagFolder.isDirectory() && !tagFolder.mkdirs()) {
+            Timber.w("Unable to create the tag folder");
+            return;
+        }
+        File tempFile = new File(tagFolder, name + ".tmp");
+        try (OutputStream output = new FileOutputStream(tempFile)) {
+            tag.compress(Bitmap.CompressFormat.PNG, 100, output);
+        } catch (IOException e) {
+            Timber.w(e, "Unable to store tag %s", name);
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(tagFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            return;
+        }
+        trimIfNecessary();
+    }
+
+
+    /**
+     * Delete the least recently used tags if the store has grown past its limit. The colours sampled
+     * from a deleted tag are dropped too, so they're worked out again from whatever image replaces it.
+     */
+    private void trimIfNecessary() {
+        File[] files = tagFolder.listFiles();
+        if (files == null) {
+            return;
+        }
+        long storedBytes = 0;
+        for (File file : files) {
+            storedBytes += file.length();
+        }
+        if (storedBytes <= MAX_STORED_BYTES) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        Arrays.sort(files, (file1, file2) -> Long.compare(file1.lastModified(), file2.lastModified()));
+        SharedPreferences.Editor colourEditor = colourPrefs.edit();
+        int deleted = 0;
+        for (int i = 0; i < files.length && storedBytes > TRIMMED_STORED_BYTES; i++) {
+            long length = files[i].length();
+            if (files[i].delete()) {
+                storedBytes -= length;
+                colourEditor.remove(files[i].getName());
+                loadedTags.remove(files[i].getName());
+                deleted++;
+            }
+        }
+        colourEditor.apply();
+        Timber.d("Trimmed %d stored tags in %dms", deleted, System.currentTimeMillis() - startTime);
+    }
+
+
+    /**
+     * Get the file a tag is stored in.
+     *
+     * @return the file, or null if the name isn't something that can be stored
+     */
+    @Nullable
+    private File getTagFile(@Nullable String name) {
+        // cache filenames come from the site, so only allow plain filenames
+        if (name == null || !name.matches("[\\w.\\-]+") || name.startsWith(".")) {
+            return null;
+        }
+        return new File(tagFolder, name);
+    }
+
+
+    /**
+     * Get the colours stored for a forum tag. These belong to the stored tag file, and are
+     * dropped along with it.
+     *
+     * @return the accent and main colours, or null if they haven't been stored
+     * @see #putColours(String, int, int)
+     */
+    @Nullable
+    public int[] getColours(@NonNull String cacheFile) {
+        String colours = colourPrefs.getString(cacheFile, null);
+        if (colours == null) {
+            return null;
+        }
+        String[] parts = colours.split(",");
+        try {
+            return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Store the colours sampled from a forum tag.
+     */
+    public void putColours(@NonNull String cacheFile, @ColorInt int accentColour, @ColorInt int mainColour) {
+        colourPrefs.edit().putString(cacheFile, accentColour + "," + mainColour).apply();
+    }
+}
@@ -0,0 +1,112 @@
+package com.ferg.awfulapp.thread;
+
+import android.content.res.AssetManager;
+import android.support.annotation.NonNull;
+
+import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.Template;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds compiled Mustache templates, so they only get compiled once instead of on every render.
+ * <p>
+ * Templates are keyed on where they came from, along with a version - for asset templates that
+ * never changes, for files it's the last modified time, so editing a custom layout gets picked up
+ * the next time it's used. Compiled templates are thread-safe, so they can be shared freely.
+ */
+public class TemplateCache {
+
+    private static final String ASSET_FOLDER = "mustache/";
+    /** Asset templates are part of the APK, so they can't change while the app is running */
+    private static final long ASSET_VERSION = 0;
+
+    private static final Mustache.Compiler compiler = Mustache.compiler();
+    private static final Map<String, CachedTemplate> templates = new ConcurrentHashMap<>();
+
+
+    private TemplateCache() {
+    }
+
+
+    /**
+     * Get a template from the app's mustache asset folder.
+     *
+     * @param name the template's filename, e.g. "post.mustache"
+     * @throws IOException if the template isn't cached and can't be read
+     */
+    @NonNull
+    public static Template getAssetTemplate(@NonNull AssetManager assets, @NonNull String name) throws IOException {
+        return getTemplate("asset:" + name, ASSET_VERSION, () -> new InputStreamReader(assets.open(ASSET_FOLDER + name)));
+    }
+
+
+    /**
+     * Get a template from a file, recompiling it if the file has changed since it was last compiled.
+     *
+     * @throws IOException if the file can't be read
+     */
+    @NonNull
+    public static Template getFileTemplate(@NonNull File file) throws IOException {
+        return getTemplate("file:" + file.getAbsolutePath(), file.lastModified(), () -> new FileReader(file));
+    }
+
+
+    /**
+     * Get a cached template, compiling it from its source if there's no cached copy for this version.
+     *
+     * @param key     identifies the template
+     * @param version the version of the template's source - any cached template with a different version is replaced
+     * @param source  provides the template source, if it needs compiling
+     */
+    @NonNull
+    static Template getTemplate(@NonNull String key, long version, @NonNull TemplateSource source) throws IOException {
+        CachedTemplate cached = templates.get(key);
+        if (cached == null || cached.version != version) {
+            // two threads might compile the same template at the same time, but that's harmless
+            cached = new CachedTemplate(version, compile(source));
+            templates.put(key, cached);
+        }
+        return cached.template;
+    }
+
+
+    /**
+     * Drop all the compiled templates.
+     */
+    static void clear() {
+        templates.clear();
+    }
+
+
+    @NonNull
+    private static Template compile(@NonNull TemplateSource source) throws IOException {
+        try (Reader reader = source.open()) {
+            return compiler.compile(reader);
+        }
+    }
+
+
+    interface TemplateSource {
+        @NonNull
+        Reader open() throws IOException;
+    }
+
+
+    private static class CachedTemplate {
+        final long version;
+        @NonNull
+        final Template template;
+
+        CachedTemplate(long version, @NonNull Template template) {
+            this.version = version;
+            this.template = template;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package com.ferg.awfulapp.thread;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A rendered page of posts, with each post's HTML kept separately.
+ * <p>
+ * This lets a newer render of the same page be compared with the one on display, so only the posts
+ * that are new or have changed need to be sent to the WebView - see {@link #getUpdateTo(ThreadPageHtml)}.
+ * Create these with {@link AwfulHtmlPage#getThreadPage(List, com.ferg.awfulapp.preferences.AwfulPreferences, int, int)}.
+ * <p>
+ * A render can also hold just some of a page's posts, so part of the page can be displayed before
+ * the rest are ready.
+ */
+public class ThreadPageHtml {
+
+    /** The 'show previous posts' link, or an empty string */
+    @NonNull
+    private final String header;
+    /** Each post's HTML, keyed by post ID, in page order */
+    @NonNull
+    private final LinkedHashMap<String, String> posts;
+    /** The last page marker, or an empty string */
+    @NonNull
+    private final String footer;
+    /** The number of posts on the whole page, which is more than the rendered posts if this is a partial render */
+    private final int pagePostCount;
+
+
+    ThreadPageHtml(@NonNull String header, @NonNull LinkedHashMap<String, String> posts, @NonNull String footer, int pagePostCount) {
+        this.header = header;
+        this.posts = posts;
+        this.footer = footer;
+        this.pagePostCount = pagePostCount;
+    }
+
+
+    public int getPostCount() {
+        return posts.size();
+    }
+
+
+    /**
+     * Get each rendered post's HTML, in page order.
+     */
+    @NonNull
+    public List<PostHtml> getPosts() {
+        List<PostHtml> postList = new ArrayList<>(posts.size());
+        for (Map.Entry<String, String> post : posts.entrySet()) {
+            postList.add(new PostHtml(post.getKey(), post.getValue()));
+        }
+        return postList;
+    }
+
+
+    /**
+     * Get the HTML for the whole page.
+     * <p>
+     * The page's total post count is included, so the page JS can handle a partial render the same
+     * way as the full page it'll become.
+     */
+    @NonNull
+    public String getHtml() {
+        StringBuilder buffer = new StringBuilder(1024);
+        buffer.append("<div class='content' data-post-count='").append(pagePostCount).append("'>\n");
+        buffer.append(header);
+        for (String postHtml : posts.values()) {
+            buffer.append(postHtml);
+        }
+        buffer.append(footer);
+        buffer.append("</div>\n");
+        return buffer.toString();
+    }
+
+
+    /**
+     * Work out which posts need updating to turn this page into a newer render of it.
+     * <p>
+     * That's only possible if the newer page starts with the same posts in the same order, and
+     * hasn't changed anything outside of the posts themselves - otherwise the whole page needs redisplaying.
+     *
+     * @param newerPage a newer render of the same thread page
+     * @return the changed and added posts in page order (which might be empty), or null if the page needs replacing
+     */
+    @Nullable
+    public List<PostHtml> getUpdateTo(@NonNull ThreadPageHtml newerPage) {
+        if (!header.equals(newerPage.header) || !footer.equals(newerPage.footer)) {
+            return null;
+        }
+        List<PostHtml> changedPosts = new ArrayList<>();
+        Iterator<Map.Entry<String, String>> newPosts = newerPage.posts.entrySet().iterator();
+        for (Map.Entry<String, String> oldPost : posts.entrySet()) {
+            if (!newPosts.hasNext()) {
+                return null;
+            }
+            Map.Entry<String, String> newPost = newPosts.next();
+            if (!oldPost.getKey().equals(newPost.getKey())) {
+                return null;
+            }
+            if (!oldPost.getValue().equals(newPost.getValue())) {
+                changedPosts.add(new PostHtml(newPost.getKey(), newPost.getValue()));
+            }
+        }
+        while (newPosts.hasNext()) {
+            Map.Entry<String, String> newPost = newPosts.next();
+            changedPosts.add(new PostHtml(newPost.getKey(), newPost.getValue()));
+        }
+        return changedPosts;
+    }
+
+
+    /**
+     * The rendered HTML for a single post.
+     */
+    public static class PostHtml {
+        @NonNull
+        public final String postId;
+        @NonNull
+        public final String html;
+
+        PostHtml(@NonNull String postId, @NonNull String html) {
+            this.postId = postId;
+            this.html = html;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.ferg.awfulapp.thread;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.support.annotation.DrawableRes;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.LruCache;
+
+import com.ferg.awfulapp.R;
+
+import java.lang.reflect.Field;
+import java.util.HashMap;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Maps thread tag URLs to the tag images bundled with the app (the ones imported by the
+ * copyThreadTags Gradle task), and caches the "classic" tags composed for any that aren't bundled.
+ * <p>
+ * The drawable resources are indexed once, keyed by their names, so binding a tag doesn't
+ * need a {@link android.content.res.Resources#getIdentifier(String, String, String)} lookup. Call
+ * {@link #prewarm()} at startup to build the index in the background - otherwise it's built the
+ * first time a tag is looked up.
+ */
+public class ThreadTagRegistry {
+
+    private static final int MAX_CLASSIC_TAGS = 64;
+
+    /** Resource IDs for each drawable, keyed by its name */
+    private static Map<String, Integer> tagIds;
+    private static final LruCache<String, Bitmap> classicTags = new LruCache<>(MAX_CLASSIC_TAGS);
+
+
+    /**
+     * Build the tag index on a background thread.
+     */
+    public static void prewarm() {
+        new Thread(ThreadTagRegistry::getTagIds, "Tag index prewarm").start();
+    }
+
+
+    private static synchronized Map<String, Integer> getTagIds() {
+        if (tagIds == null) {
+            long startTime = System.currentTimeMillis();
+            Field[] fields = R.drawable.class.getFields();
+            Map<String, Integer> ids = new HashMap<>(fields.length * 2);
+            for (Field field : fields) {
+                try {
+                    ids.put(field.getName(), field.getInt(null));
+                } catch (IllegalAccessException e) {
+                    Timber.w(e, "Unable to index drawable %s", field.getName());
+                }
+            }
+            tagIds = ids;
+            Timber.d("Indexed %d drawables in %dms", ids.size(), System.currentTimeMillis() - startTime);
+        }
+        return tagIds;
+    }
+
+
+    /**
+     * Get the resource name a tag image would have if it's bundled with the app.
+     */
+    @NonNull
+    static String getTagName(@NonNull String tagUrl) {
+        return tagUrl.substring(tagUrl.lastIndexOf('/') + 1, tagUrl.lastIndexOf('.')).replace('-', '_').toLowerCase();
+    }
+
+
+    /**
+     * Get the bundled drawable for a tag.
+     *
+     * @return the drawable's resource ID, or 0 if the app doesn't have that tag
+     */
+    @DrawableRes
+    public static int getTagResId(@NonNull String tagUrl) {
+        Integer resId = getTagIds().get(getTagName(tagUrl));
+        return (resId == null) ? 0 : resId;
+    }
+
+
+    /**
+     * Get the classic version of a tag that's already been composed.
+     *
+     * @return a drawable for the tag, or null if it needs to be created with {@link #putClassicTag(String, Bitmap, Context)}
+     */
+    @Nullable
+    public static Drawable getClassicTag(@NonNull String tagUrl, @NonNull Context context) {
+        Bitmap bitmap = classicTags.get(tagUrl);
+        return (bitmap == null) ? null : new BitmapDrawable(context.getResources(), bitmap);
+    }
+
+
+    /**
+     * Compose the classic version of a downloaded tag image, and cache it.
+     *
+     * @param tagImage the downloaded tag, or null if it couldn't be fetched
+     * @see AwfulPostIcon#getClassicIconDrawable(Bitmap, Context)
+     */
+    @NonNull
+    public static Drawable putClassicTag(@NonNull String tagUrl, @Nullable Bitmap tagImage, @NonNull Context context) {
+        Drawable classicTag = AwfulPostIcon.getClassicIconDrawable(tagImage, context);
+        if (tagImage != null && classicTag instanceof BitmapDrawable) {
+            classicTags.put(tagUrl, ((BitmapDrawable) classicTag).getBitmap());
+        }
+        return classicTag;
+    }
+}
@@ -1,33 +1,174 @@
 package com.ferg.awfulapp.util;
 
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
 import android.graphics.Bitmap;
+import android.support.annotation.NonNull;
 import android.support.v4.util.LruCache;
+import android.widget.ImageView;
 
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
 import com.android.volley.toolbox.ImageLoader;
+import com.android.volley.toolbox.ImageRequest;
+import com.ferg.awfulapp.network.ImageRequestCache;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+/**
+ * The in-memory cache for images loaded through Volley.
+ * <p>
+ * The cache's size is a fraction of the app's memory class, split between small icons (thread tags,
+ * post icons, emotes) and everything else - so a few big images can't push out all the icons that
+ * are shown over and over in lists. The cache shrinks in response to {@link #onTrimMemory(int)}.
+ */
 public class LRUImageCache implements ImageLoader.ImageCache {
-    private LruCache<String, Bitmap> bitmapCache;
 
-    public LRUImageCache() {
-        this.bitmapCache = new LruCache<String, Bitmap>(5242880){
-            @Override
-            protected int sizeOf(String key, Bitmap value) {
-                return value.getByteCount();
-            }
-        };
+    /** The fraction of the memory class used for the cache */
+    private static final int MEMORY_CLASS_DIVISOR = 8;
+    /** The fraction of the cache reserved for icons */
+    private static final int ICON_BUDGET_DIVISOR = 4;
+    /** Images with this many pixels or fewer are treated as icons */
+    private static final int ICON_MAX_PIXELS = 128 * 128;
+
+    private final LruCache<String, Bitmap> iconCache;
+    private final LruCache<String, Bitmap> imageCache;
+
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+    private final AtomicInteger evictions = new AtomicInteger();
+
+
+    public LRUImageCache(@NonNull Context context) {
+        ActivityManager activityManager = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        int memoryClassMb = (activityManager == null) ? 32 : activityManager.getMemoryClass();
+        int budgetBytes = memoryClassMb * 1024 * 1024 / MEMORY_CLASS_DIVISOR;
+        int iconBudgetBytes = budgetBytes / ICON_BUDGET_DIVISOR;
+        iconCache = new BitmapLruCache(iconBudgetBytes);
+        imageCache = new BitmapLruCache(budgetBytes - iconBudgetBytes);
+        Timber.i("Image cache: %d bytes for icons, %d for other images (memory class %dMB)",
+                iconBudgetBytes, budgetBytes - iconBudgetBytes, memoryClassMb);
     }
 
+
     @Override
     public Bitmap getBitmap(String url) {
-        return bitmapCache.get(url);
+        Bitmap bitmap = iconCache.get(url);
+        if (bitmap == null) {
+            bitmap = imageCache.get(url);
+        }
+        (bitmap == null ? misses : hits).incrementAndGet();
+        return bitmap;
     }
 
     @Override
     public void putBitmap(String url, Bitmap bitmap) {
-        bitmapCache.put(url, bitmap);
+        if (bitmap.getWidth() * bitmap.getHeight() <= ICON_MAX_PIXELS) {
+            iconCache.put(url, bitmap);
+        } else {
+            imageCache.put(url, bitmap);
+        }
     }
 
     public void clear() {
-        bitmapCache.evictAll();
+        iconCache.evictAll();
+        imageCache.evictAll();
+        logStats();
+    }
+
+
+    /**
+     * Give memory back according to a {@link ComponentCallbacks2} trim level.
+     * <p>
+     * Larger images go first - icons are only dropped when things get serious, or the app is
+     * likely to be killed anyway.
+     */
+    public void onTrimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            clear();
+            return;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            imageCache.evictAll();
+            iconCache.trimToSize(iconCache.maxSize() / 2);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            imageCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            imageCache.evictAll();
+            iconCache.trimToSize(iconCache.maxSize() / 2);
+        } else {
+            imageCache.trimToSize(imageCache.maxSize() / 2);
+        }
+        logStats();
+    }
+
+
+    /**
+     * Create an ImageLoader that uses this cache, and keeps its downloaded data in the shared image cache.
+     */
+    @NonNull
+    public ImageLoader createImageLoader(@NonNull RequestQueue requestQueue) {
+        return new ImageLoader(requestQueue, this) {
+            @Override
+            protected Request<Bitmap> makeImageRequest(String requestUrl, int maxWidth, int maxHeight, ImageView.ScaleType scaleType, final String cacheKey) {
+                return new SharedCacheImageRequest(requestUrl, response -> onGetImageSuccess(cacheKey, response),
+                        maxWidth, maxHeight, scaleType, error -> onGetImageError(cacheKey, error));
+            }
+        };
+    }
+
+
+    /**
+     * Log the cache's hit rate etc.
+     */
+    public void logStats() {
+        Timber.d("Image cache: %d hits, %d misses, %d evictions - icons %d/%d bytes, images %d/%d bytes",
+                hits.get(), misses.get(), evictions.get(),
+                iconCache.size(), iconCache.maxSize(), imageCache.size(), imageCache.maxSize());
+    }
+
+
+    /**
+     * An LRU cache of bitmaps, sized in bytes.
+     */
+    private class BitmapLruCache extends LruCache<String, Bitmap> {
+
+        BitmapLruCache(int maxBytes) {
+            super(maxBytes);
+        }
+
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getAllocationByteCount();
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+            if (evicted) {
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+
+    /**
+     * An image request that stores its data under the shared image cache's key for the URL.
+     */
+    private static class SharedCacheImageRequest extends ImageRequest {
+
+        SharedCacheImageRequest(String url, Response.Listener<Bitmap> listener, int maxWidth, int maxHeight,
+                                ImageView.ScaleType scaleType, Response.ErrorListener errorListener) {
+            super(url, listener, maxWidth, maxHeight, scaleType, Bitmap.Config.RGB_565, errorListener);
+        }
+
+        @Override
+        public String getCacheKey() {
+            // so the data goes in the shared image cache
+            return ImageRequestCache.imageKey(getUrl());
+        }
     }
 }
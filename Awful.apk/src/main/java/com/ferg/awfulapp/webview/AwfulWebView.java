@@ -11,6 +11,14 @@ import android.webkit.WebView;
 import com.ferg.awfulapp.constants.Constants;
 import com.ferg.awfulapp.preferences.AwfulPreferences;
 import com.ferg.awfulapp.thread.AwfulHtmlPage;
+import com.ferg.awfulapp.thread.ThreadPageHtml;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.List;
+import java.util.Map;
 
 import timber.log.Timber;
 
@@ -29,7 +37,8 @@ import static com.ferg.awfulapp.constants.Constants.DEBUG;
  * To use it, add it to a layout. Call {@link #setContent(String)} to display some HTML,
  * and use {@link #setJavascriptHandler(WebViewJsInterface)} if you want to handle some
  * JavaScript on the page. By default this uses a {@link LoggingWebChromeClient} to add
- * some debug logging, and the default {@link android.webkit.WebViewClient}. You should
+ * some debug logging, and an {@link AwfulWebViewClient} to serve the app's scripts and styles -
+ * if you set your own WebViewClient, it needs to extend that. You should
  * call {@link #onPause()} and {@link #onResume()} to handle those lifecycle events.
  * <p>
  * Most of the time you'll want to use {@link #setContent(String)} to add the template from
@@ -38,6 +47,9 @@ import static com.ferg.awfulapp.constants.Constants.DEBUG;
  * to add and display that content. {@link #setJavascriptHandler(WebViewJsInterface)} needs to be
  * called, since the thread JS relies on it.
  * <p>
+ * When a page is re-rendered with only some posts new or changed, {@link #updatePosts(String, List)}
+ * sends just those posts, and the page updates them in place instead of reloading everything.
+ * <p>
  * You can also run arbitrary JavaScript code with the {@link #runJavascript(String)} method.
  */
 
@@ -51,6 +63,8 @@ public class AwfulWebView extends WebView {
 
     @Nullable
     private WebViewJsInterface jsInterface = null;
+    /** The view's width, for the client's background threads - they can't ask the view itself */
+    private volatile int widthPx = 0;
 
     public AwfulWebView(Context context) {
         super(context);
@@ -80,6 +94,7 @@ public class AwfulWebView extends WebView {
         AwfulPreferences prefs = AwfulPreferences.getInstance();
         WebSettings webSettings = getSettings();
         setWebChromeClient(new LoggingWebChromeClient(this));
+        setWebViewClient(new AwfulWebViewClient());
         setKeepScreenOn(false); // explicitly setting this since some people are complaining the screen stays on until they toggle it on and off
 
         setBackgroundColor(Color.TRANSPARENT);
@@ -106,10 +121,29 @@ public class AwfulWebView extends WebView {
     }
 
 
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        widthPx = width;
+    }
+
+
+    /**
+     * Get the view's width as of its last layout. Unlike {@link #getWidth()}, this is safe to call
+     * from any thread.
+     */
+    public int getWidthPx() {
+        return widthPx;
+    }
+
+
     @Override
     public void onPause() {
         pauseTimers();
         super.onPause();
+        if (DEBUG && jsInterface != null) {
+            jsInterface.logBridgeCalls();
+        }
     }
 
     @Override
@@ -129,6 +163,7 @@ public class AwfulWebView extends WebView {
      */
     public void setJavascriptHandler(@NonNull WebViewJsInterface handler) {
         jsInterface = handler;
+        handler.setWebView(this);
         addJavascriptInterface(handler, HANDLER_NAME_IN_JAVASCRIPT);
     }
 
@@ -194,4 +229,84 @@ public class AwfulWebView extends WebView {
         refreshPageContents();
     }
 
+
+
+    /**
+     * Update some posts in the displayed page, without reloading the rest of it.
+     * <p>
+     * Posts that are already displayed are replaced, and any others are added to the end of the page.
+     * This calls the #updatePosts function in <i>thread.js</i>, which only processes the updated posts,
+     * and keeps the current scroll position.
+     *
+     * @param html  the HTML for the whole page with the updates applied, which is displayed if the
+     *              page gets reloaded
+     * @param posts the new and changed posts, in page order
+     */
+    public void updatePosts(@NonNull String html, @NonNull List<ThreadPageHtml.PostHtml> posts) {
+        updatePosts(html, posts, null);
+    }
+
+
+    /**
+     * Update some posts in the displayed page, inserting any new ones before a particular post.
+     * <p>
+     * This works like {@link #updatePosts(String, List)}, except new posts go before the post with
+     * the given ID (if it's on the page) instead of at the end - so earlier posts can be filled in
+     * around one that's already displayed.
+     *
+     * @param insertBefore the ID of the post to insert new posts in front of, or null to add them to the end
+     */
+    public void updatePosts(@NonNull String html, @NonNull List<ThreadPageHtml.PostHtml> posts, @Nullable String insertBefore) {
+        if (jsInterface == null) {
+            Timber.w("Attempted to update posts with no JS interface handler added");
+            return;
+        }
+        if (posts.isEmpty()) {
+            return;
+        }
+        JSONArray update = new JSONArray();
+        try {
+            for (ThreadPageHtml.PostHtml post : posts) {
+                JSONObject postUpdate = new JSONObject().put("id", "post" + post.postId).put("html", post.html);
+                if (insertBefore != null) {
+                    postUpdate.put("before", "post" + insertBefore);
+                }
+                update.put(postUpdate);
+            }
+        } catch (JSONException e) {
+            Timber.w(e, "Unable to build post update, reloading the page instead");
+            setBodyHtml(html);
+            return;
+        }
+        Timber.d("Updating %d posts in place", posts.size());
+        jsInterface.addPostUpdate(html, update.toString());
+        runJavascript("updatePosts()");
+    }
+
+
+    /**
+     * Send some looked-up embeds to the page.
+     * <p>
+     * This calls the #applyEmbeds function in <i>embedding.js</i>, which replaces the links that were
+     * waiting on them. See {@link WebViewJsInterface#requestEmbeds(String)}.
+     *
+     * @param embeds embed HTML, keyed by URL
+     */
+    void addEmbeds(@NonNull Map<String, String> embeds) {
+        if (jsInterface == null || embeds.isEmpty()) {
+            return;
+        }
+        JSONArray embedArray = new JSONArray();
+        try {
+            for (Map.Entry<String, String> embed : embeds.entrySet()) {
+                embedArray.put(new JSONObject().put("url", embed.getKey()).put("html", embed.getValue()));
+            }
+        } catch (JSONException e) {
+            Timber.w(e, "Unable to build embeds update");
+            return;
+        }
+        jsInterface.addEmbeds(embedArray.toString());
+        runJavascript("applyEmbeds()");
+    }
+
 }
@@ -0,0 +1,174 @@
+package com.ferg.awfulapp.webview;
+
+import android.content.Context;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebView;
+import android.webkit.WebViewClient;
+
+import com.ferg.awfulapp.network.AvatarCache;
+import com.ferg.awfulapp.network.ImageDiskCache;
+import com.ferg.awfulapp.network.MediaPolicy;
+import com.ferg.awfulapp.thread.AwfulPost;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * The base WebViewClient for {@link AwfulWebView}s.
+ * <p>
+ * This serves the app's scripts and stylesheets through {@link WebAssets}, which the container page
+ * relies on - if you need a custom client, extend this one. Images are loaded through the shared
+ * {@link ImageDiskCache}, so anything already downloaded elsewhere in the app isn't fetched again,
+ * and large ones are scaled down to fit the view. The {@link MediaPolicy} decides whether each image
+ * and avatar gets downloaded. Avatars are served from memory by the {@link AvatarCache} where possible.
+ * {@link GifPreviews} are made here too.
+ */
+public class AwfulWebViewClient extends WebViewClient {
+
+    private static final byte[] DEFERRED_IMAGE = ("<svg xmlns='http://www.w3.org/2000/svg' width='240' height='40'>" +
+            "<rect width='100%' height='100%' rx='4' fill='#888' fill-opacity='0.25'/>" +
+            "<text x='50%' y='55%' font-family='sans-serif' font-size='13' fill='#888' text-anchor='middle'>" +
+            "Image not loaded on this connection</text></svg>").getBytes(Charset.forName("UTF-8"));
+    /** A transparent 1x1 GIF */
+    private static final byte[] EMPTY_GIF = {
+            'G', 'I', 'F', '8', '9', 'a', 0x01, 0x00, 0x01, 0x00, (byte) 0x80, 0x00, 0x00,
+            0x00, 0x00, 0x00, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF,
+            0x21, (byte) 0xF9, 0x04, 0x01, 0x00, 0x00, 0x00, 0x00,
+            0x2C, 0x00, 0x00, 0x00, 0x00, 0x01, 0x00, 0x01, 0x00, 0x00,
+            0x02, 0x02, 0x44, 0x01, 0x00, 0x3B
+    };
+
+    @Override
+    public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+        String url = request.getUrl().toString();
+        WebResourceResponse response = WebAssets.intercept(view.getContext(), url);
+        if (response == null) {
+            response = GifPreviews.intercept(view.getContext(), url);
+        }
+        if (response == null) {
+            String avatarUrl = MediaPolicy.getAvatarSource(url);
+            if (avatarUrl != null) {
+                // an avatar URL has no real file behind it, so always respond to it with something
+                AvatarCache.Avatar avatar = AvatarCache.getInstance(view.getContext())
+                        .get(avatarUrl, MediaPolicy.getInstance(view.getContext()).forAvatar());
+                response = (avatar != null)
+                        ? new WebResourceResponse(avatar.mimeType, null, new ByteArrayInputStream(avatar.data))
+                        : getEmptyImage();
+            } else if (isImageRequest(request)) {
+                MediaPolicy.Decision decision = isSiteImage(request.getUrl())
+                        ? MediaPolicy.Decision.LOAD : MediaPolicy.getInstance(view.getContext()).forImage();
+                // this isn't the main thread, so the view's width has to come from its last layout
+                int viewWidthPx = (view instanceof AwfulWebView) ? ((AwfulWebView) view).getWidthPx() : 0;
+                response = getCachedImage(view.getContext(), url, request.getRequestHeaders(), decision, viewWidthPx);
+                if (response == null && decision == MediaPolicy.Decision.DEFER) {
+                    response = getDeferredImage();
+                }
+            }
+        }
+        return (response != null) ? response : super.shouldInterceptRequest(view, request);
+    }
+
+
+    /**
+     * Whether a request is the WebView loading an image, e.g. for an img tag.
+     */
+    private static boolean isImageRequest(@NonNull WebResourceRequest request) {
+        String scheme = request.getUrl().getScheme();
+        if (!"GET".equals(request.getMethod()) || !("http".equals(scheme) || "https".equals(scheme))) {
+            return false;
+        }
+        Map<String, String> headers = request.getRequestHeaders();
+        String accept = (headers == null) ? null : headers.get("Accept");
+        return accept != null && accept.startsWith("image/");
+    }
+
+
+    /**
+     * Whether an image is part of the site itself (smilies, icons etc.) rather than something posted,
+     * which is always loaded.
+     */
+    private static boolean isSiteImage(@NonNull Uri url) {
+        String host = url.getHost();
+        return host != null && (host.equals("somethingawful.com") || host.endsWith(".somethingawful.com"))
+                && !"/attachment.php".equals(url.getPath());
+    }
+
+
+    /**
+     * Get a response for an image from the disk cache, fetching it into the cache if the media
+     * policy allows it. Images much wider than the view are served scaled down to its width, and
+     * ones too big to cache are passed straight through from the download.
+     * This is called on a WebView background thread.
+     *
+     * @param headers     the WebView's request headers, some of which get passed on
+     * @param decision    how the {@link MediaPolicy} says the image should be loaded
+     * @param viewWidthPx the width of the WebView, in pixels
+     * @return the response, or null if the WebView should load it normally (or it's been deferred)
+     */
+    @Nullable
+    private static WebResourceResponse getCachedImage(@NonNull Context context, @NonNull String url, @Nullable Map<String, String> headers,
+                                                      @NonNull MediaPolicy.Decision decision, int viewWidthPx) {
+        ImageDiskCache imageCache = ImageDiskCache.getInstance(context);
+        ImageDiskCache.CachedImage image;
+        switch (decision) {
+            case DEFER:
+                // it's fine to show it if it doesn't need downloading
+                image = imageCache.get(url);
+                break;
+            case THUMBNAIL:
+                image = imageCache.get(url);
+                if (image == null && url.contains("i.imgur.com")) {
+                    String thumbnailUrl = AwfulPost.imgurAsThumbnail(url, "l");
+                    image = imageCache.getOrFetch(thumbnailUrl);
+                    if (image != null) {
+                        url = thumbnailUrl;
+                    }
+                }
+                break;
+            default:
+                image = null;
+        }
+        if (image == null && decision != MediaPolicy.Decision.DEFER) {
+            ImageDiskCache.FetchResult fetched = imageCache.getOrStream(url, headers);
+            if (fetched.stream != null) {
+                return new WebResourceResponse(fetched.mimeType, null, fetched.stream);
+            }
+            image = fetched.image;
+        }
+        if (image == null) {
+            return null;
+        }
+        image = ImageDownscaler.fitToWidth(imageCache, url, image, viewWidthPx);
+        try {
+            return new WebResourceResponse(image.mimeType, null, new FileInputStream(image.file));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * A stand-in for an image that isn't being loaded on this connection - tapping the image's link
+     * still opens the original.
+     */
+    @NonNull
+    private static WebResourceResponse getDeferredImage() {
+        return new WebResourceResponse("image/svg+xml", "UTF-8", new ByteArrayInputStream(DEFERRED_IMAGE));
+    }
+
+
+    /**
+     * A blank image, for avatars that aren't being loaded.
+     */
+    @NonNull
+    private static WebResourceResponse getEmptyImage() {
+        return new WebResourceResponse("image/gif", null, new ByteArrayInputStream(EMPTY_GIF));
+    }
+}
@@ -0,0 +1,263 @@
+package com.ferg.awfulapp.webview;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.webkit.CookieManager;
+import android.webkit.WebResourceResponse;
+
+import com.ferg.awfulapp.network.ImageDiskCache;
+import com.ferg.awfulapp.network.MediaPolicy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Arrays;
+
+import timber.log.Timber;
+
+/**
+ * Makes still previews of GIFs, for when the user has disabled them.
+ * <p>
+ * Only the start of the GIF is downloaded - just enough to decode the first frame - and that frame
+ * is stored in the {@link ImageDiskCache} as a small JPEG. Posts refer to previews with
+ * {@link #getPreviewUrl(String)}, which {@link AwfulWebViewClient} serves through {@link #intercept(Context, String)}.
+ * If a preview can't be made, or the {@link MediaPolicy} says images shouldn't be downloaded, the
+ * usual GIF placeholder is served instead.
+ */
+public class GifPreviews {
+
+    private static final String PREVIEW_URL = "file:///android_asset/gif_preview?src=";
+    private static final String PLACEHOLDER_ASSET = "images/gif.png";
+    /** Give up on a GIF if its first frame isn't done by now */
+    private static final int MAX_FIRST_FRAME_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_PREVIEW_PX = 400;
+    private static final int JPEG_QUALITY = 80;
+    private static final int TIMEOUT_MS = 15000;
+
+
+    private GifPreviews() {
+    }
+
+
+    /**
+     * Get the URL of the preview for a GIF.
+     */
+    @NonNull
+    public static String getPreviewUrl(@NonNull String gifUrl) {
+        return PREVIEW_URL + Uri.encode(gifUrl);
+    }
+
+
+    /**
+     * Get a response for a GIF preview request.
+     * <p>
+     * This is called on a WebView background thread, and does network IO if the preview isn't cached.
+     *
+     * @return the response, or null if this isn't a preview URL
+     */
+    @Nullable
+    static WebResourceResponse intercept(@NonNull Context context, @NonNull String url) {
+        if (!url.startsWith(PREVIEW_URL)) {
+            return null;
+        }
+        ImageDiskCache imageCache = ImageDiskCache.getInstance(context);
+        ImageDiskCache.CachedImage preview = imageCache.get(url);
+        if (preview == null && MediaPolicy.getInstance(context).forImage() != MediaPolicy.Decision.DEFER) {
+            String gifUrl = Uri.decode(url.substring(PREVIEW_URL.length()));
+            byte[] jpeg = makePreview(gifUrl);
+            preview = (jpeg == null) ? null : imageCache.put(url, jpeg, "image/jpeg");
+        }
+        try {
+            if (preview != null) {
+                return new WebResourceResponse(preview.mimeType, null, new FileInputStream(preview.file));
+            }
+            return new WebResourceResponse("image/png", null, context.getAssets().open(PLACEHOLDER_ASSET));
+        } catch (IOException e) {
+            Timber.w(e, "Unable to serve GIF preview");
+            return null;
+        }
+    }
+
+
+    /**
+     * Download the start of a GIF and turn its first frame into a JPEG.
+     *
+     * @return the JPEG data, or null if it couldn't be made
+     */
+    @Nullable
+    private static byte[] makePreview(@NonNull String gifUrl) {
+        byte[] firstFrame = fetchFirstFrame(gifUrl);
+        if (firstFrame == null) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(firstFrame, 0, firstFrame.length, options);
+        int sampleSize = 1;
+        while (Math.max(options.outWidth, options.outHeight) / (sampleSize * 2) >= MAX_PREVIEW_PX) {
+            sampleSize *= 2;
+        }
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Bitmap frame = BitmapFactory.decodeByteArray(firstFrame, 0, firstFrame.length, options);
+        if (frame == null) {
+            return null;
+        }
+        // JPEGs have no transparency, so put the frame on a plain background
+        Bitmap flattened = Bitmap.createBitmap(frame.getWidth(), frame.getHeight(), Bitmap.Config.RGB_565);
+        Canvas canvas = new Canvas(flattened);
+        canvas.drawColor(Color.WHITE);
+        canvas.drawBitmap(frame, 0, 0, null);
+        frame.recycle();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        flattened.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, output);
+        flattened.recycle();
+        return output.toByteArray();
+    }
+
+
+    /**
+     * Download a GIF until its first frame has arrived.
+     *
+     * @return a GIF of just the first frame, or null if it couldn't be fetched
+     */
+    @Nullable
+    private static byte[] fetchFirstFrame(@NonNull String gifUrl) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(gifUrl).openConnection();
+            // only part of the GIF is downloaded, so there's nothing worth caching
+            connection.setUseCaches(false);
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            String cookies = CookieManager.getInstance().getCookie(gifUrl);
+            if (cookies != null) {
+                connection.setRequestProperty("Cookie", cookies);
+            }
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                return null;
+            }
+            byte[] buffer = new byte[16 * 1024];
+            int length = 0;
+            try (InputStream input = connection.getInputStream()) {
+                int read;
+                while ((read = input.read(buffer, length, buffer.length - length)) != -1) {
+                    length += read;
+                    MediaPolicy.recordDownload(read);
+                    int frameEnd = findFirstFrameEnd(buffer, length);
+                    if (frameEnd == -2) {
+                        return null;
+                    } else if (frameEnd >= 0) {
+                        return asSingleFrame(buffer, frameEnd);
+                    }
+                    if (length == buffer.length) {
+                        if (length >= MAX_FIRST_FRAME_BYTES) {
+                            return null;
+                        }
+                        buffer = Arrays.copyOf(buffer, length * 2);
+                    }
+                }
+            }
+            // the stream ended early, but it might still be a decodable GIF
+            int frameEnd = findFirstFrameEnd(buffer, length);
+            return (frameEnd >= 0) ? asSingleFrame(buffer, frameEnd) : null;
+        } catch (IOException | ClassCastException e) {
+            Timber.w("Unable to fetch GIF %s: %s", gifUrl, e.toString());
+            return null;
+        } finally {
+            if (connection != null) {
+                // this drops the rest of the download
+                connection.disconnect();
+            }
+        }
+    }
+
+
+    /**
+     * Cut a GIF down to the data up to the end of its first frame, and end it there.
+     */
+    @NonNull
+    private static byte[] asSingleFrame(@NonNull byte[] gif, int frameEnd) {
+        byte[] singleFrame = Arrays.copyOf(gif, frameEnd + 1);
+        // the GIF trailer
+        singleFrame[frameEnd] = 0x3B;
+        return singleFrame;
+    }
+
+
+    /**
+     * Find where the first frame of a GIF ends, by walking through its blocks.
+     *
+     * @param data   the start of a GIF
+     * @param length how much of the data has been read
+     * @return the offset just after the first frame's image data, -1 if more data is needed to find
+     * it, or -2 if this isn't a GIF
+     */
+    @VisibleForTesting
+    static int findFirstFrameEnd(@NonNull byte[] data, int length) {
+        if (length < 13) {
+            return -1;
+        }
+        if (data[0] != 'G' || data[1] != 'I' || data[2] != 'F') {
+            return -2;
+        }
+        int position = 13 + colourTableSize(data[10]);
+        while (position < length) {
+            int blockType = data[position] & 0xFF;
+            if (blockType == 0x21) {
+                // extension - a label, then data sub-blocks
+                position = skipSubBlocks(data, length, position + 2);
+            } else if (blockType == 0x2C) {
+                // image descriptor, then an optional colour table, the LZW code size and the image data sub-blocks
+                if (position + 10 > length) {
+                    return -1;
+                }
+                position += 10 + colourTableSize(data[position + 9]) + 1;
+                position = skipSubBlocks(data, length, position);
+                return (position < 0) ? -1 : position;
+            } else {
+                // the trailer, or garbage, before any image
+                return -2;
+            }
+            if (position < 0) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * @return the size of the colour table a GIF flags byte describes, in bytes
+     */
+    private static int colourTableSize(byte flags) {
+        return ((flags & 0x80) == 0) ? 0 : 3 * (1 << ((flags & 0x07) + 1));
+    }
+
+
+    /**
+     * Skip a run of data sub-blocks, which ends with an empty block.
+     *
+     * @return the position after the sub-blocks, or -1 if they go past the end of the data
+     */
+    private static int skipSubBlocks(@NonNull byte[] data, int length, int position) {
+        while (position < length) {
+            int blockSize = data[position] & 0xFF;
+            position += 1 + blockSize;
+            if (blockSize == 0) {
+                return position;
+            }
+        }
+        return -1;
+    }
+}
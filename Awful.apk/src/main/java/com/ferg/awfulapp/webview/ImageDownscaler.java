@@ -0,0 +1,169 @@
+package com.ferg.awfulapp.webview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.ferg.awfulapp.network.ImageDiskCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import timber.log.Timber;
+
+/**
+ * Makes copies of large images that are no wider than the WebView displaying them, so the WebView
+ * doesn't have to decode and hold full-size images it's only going to shrink.
+ * <p>
+ * Scaled copies are stored in the {@link ImageDiskCache} under their own keys, so the original image
+ * is still there for anything that wants it, e.g. the full-screen viewer.
+ */
+class ImageDownscaler {
+
+    /** Target widths are rounded up to this, so small changes in the view's width reuse the same copies */
+    private static final int WIDTH_STEP_PX = 256;
+    /** Images need to be at least this much bigger than the target before they're worth scaling */
+    private static final float MIN_SCALE_FACTOR = 1.5f;
+    private static final int JPEG_QUALITY = 85;
+    private static final int WEBP_QUALITY = 90;
+    /** Full-size images can be huge - only decode one at a time */
+    private static final Object DECODE_LOCK = new Object();
+    private static final int PNG_ACTL = 0x6163544C;
+    private static final int PNG_IDAT = 0x49444154;
+
+
+    private ImageDownscaler() {
+    }
+
+
+    /**
+     * Get a version of a cached image that fits a view's width.
+     * <p>
+     * This does file IO and decoding, so don't call it on the main thread.
+     *
+     * @param image       the full-size image from the disk cache
+     * @param viewWidthPx the width of the view the image will be displayed in, in pixels
+     * @return the scaled image, or the original if it doesn't need scaling (or can't be scaled)
+     */
+    @NonNull
+    static ImageDiskCache.CachedImage fitToWidth(@NonNull ImageDiskCache imageCache, @NonNull String url,
+                                                 @NonNull ImageDiskCache.CachedImage image, int viewWidthPx) {
+        // GIFs could be animated, and anything unusual is best left alone
+        if (viewWidthPx <= 0 || !(image.mimeType.equals("image/jpeg") || image.mimeType.equals("image/png") || image.mimeType.equals("image/webp"))) {
+            return image;
+        }
+        // scaling would flatten an animated WebP or PNG to its first frame
+        if (!image.mimeType.equals("image/jpeg") && isAnimated(image)) {
+            return image;
+        }
+        int targetWidth = ((viewWidthPx + WIDTH_STEP_PX - 1) / WIDTH_STEP_PX) * WIDTH_STEP_PX;
+        String scaledKey = "scaled:" + targetWidth + ":" + url;
+        ImageDiskCache.CachedImage scaled = imageCache.get(scaledKey);
+        if (scaled != null) {
+            return scaled;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(image.file.getPath(), options);
+        if (options.outWidth < targetWidth * MIN_SCALE_FACTOR) {
+            return image;
+        }
+
+        byte[] scaledData = scale(image, options.outWidth, options.outHeight, targetWidth);
+        if (scaledData == null) {
+            return image;
+        }
+        // the copy expires with the original, so it's made again from any new version
+        scaled = imageCache.put(scaledKey, scaledData, image.mimeType.equals("image/jpeg") ? "image/jpeg" : "image/webp", image.ttl, image.softTtl);
+        return (scaled != null) ? scaled : image;
+    }
+
+
+    /**
+     * Check if a WebP or PNG is animated, from the chunks at the start of the file. Anything that
+     * can't be read counts as animated, so it's left alone.
+     */
+    private static boolean isAnimated(@NonNull ImageDiskCache.CachedImage image) {
+        try (DataInputStream input = new DataInputStream(new FileInputStream(image.file))) {
+            byte[] header = new byte[12];
+            input.readFully(header, 0, 8);
+            if (header[0] == 'R' && header[1] == 'I' && header[2] == 'F' && header[3] == 'F') {
+                // RIFF....WEBP, then an extended (VP8X) header with an animation flag if there's any animation
+                input.readFully(header, 8, 4);
+                byte[] chunk = new byte[5];
+                input.readFully(chunk);
+                return chunk[0] == 'V' && chunk[1] == 'P' && chunk[2] == '8' && chunk[3] == 'X'
+                        && input.skipBytes(3) == 3 && (input.readByte() & 0x02) != 0;
+            }
+            if ((header[0] & 0xFF) == 0x89 && header[1] == 'P' && header[2] == 'N' && header[3] == 'G') {
+                // an APNG's animation control chunk comes before the image data
+                while (true) {
+                    int length = input.readInt();
+                    int type = input.readInt();
+                    if (type == PNG_ACTL) {
+                        return true;
+                    } else if (type == PNG_IDAT || length < 0) {
+                        return false;
+                    }
+                    // skip the chunk and its CRC
+                    long toSkip = length + 4L;
+                    while (toSkip > 0) {
+                        int skipped = input.skipBytes((int) Math.min(toSkip, Integer.MAX_VALUE));
+                        if (skipped <= 0) {
+                            return false;
+                        }
+                        toSkip -= skipped;
+                    }
+                }
+            }
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+
+    /**
+     * Decode and shrink an image, and encode it again.
+     *
+     * @return the new image data, or null if the image couldn't be decoded
+     */
+    @Nullable
+    private static byte[] scale(@NonNull ImageDiskCache.CachedImage image, int width, int height, int targetWidth) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        // subsample as far as possible while staying bigger than the target, then scale down exactly
+        options.inSampleSize = 1;
+        while (width / (options.inSampleSize * 2) >= targetWidth) {
+            options.inSampleSize *= 2;
+        }
+        int targetHeight = Math.max(1, Math.round((float) height * targetWidth / width));
+        long startTime = System.currentTimeMillis();
+        synchronized (DECODE_LOCK) {
+            Bitmap bitmap;
+            try {
+                bitmap = BitmapFactory.decodeFile(image.file.getPath(), options);
+                if (bitmap == null) {
+                    return null;
+                }
+                Bitmap scaled = Bitmap.createScaledBitmap(bitmap, targetWidth, targetHeight, true);
+                if (scaled != bitmap) {
+                    bitmap.recycle();
+                }
+                bitmap = scaled;
+            } catch (OutOfMemoryError e) {
+                Timber.w("Out of memory scaling %dx%d image", width, height);
+                return null;
+            }
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            boolean jpeg = image.mimeType.equals("image/jpeg");
+            bitmap.compress(jpeg ? Bitmap.CompressFormat.JPEG : Bitmap.CompressFormat.WEBP, jpeg ? JPEG_QUALITY : WEBP_QUALITY, output);
+            bitmap.recycle();
+            Timber.d("Scaled %dx%d image to %dx%d in %dms", width, height, targetWidth, targetHeight, System.currentTimeMillis() - startTime);
+            return output.toByteArray();
+        }
+    }
+}
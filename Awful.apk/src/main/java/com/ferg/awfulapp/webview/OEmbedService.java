@@ -0,0 +1,200 @@
+package com.ferg.awfulapp.webview;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.android.volley.Request;
+import com.android.volley.toolbox.JsonObjectRequest;
+import com.ferg.awfulapp.network.NetworkUtils;
+import com.ferg.awfulapp.provider.OEmbedDao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Looks up the embed HTML for links to tweets and Instagram posts, so pages don't have to hit the
+ * providers' oEmbed endpoints themselves every time they're displayed.
+ * <p>
+ * Pages ask for all the links they've found in one go, through {@link WebViewJsInterface#requestEmbeds(String)}.
+ * Lookups are stored in the database ({@link OEmbedDao}) and reused until they're {@link #REFRESH_AGE_MS} old.
+ * A URL is only ever being fetched once at a time - anyone else asking for it while that's happening
+ * gets the same result. With no connection (or if a fetch fails), any stored embed is used, however old.
+ */
+public class OEmbedService {
+
+    /** Stored embeds are looked up again once they're this old, if there's a connection */
+    private static final long REFRESH_AGE_MS = TimeUnit.DAYS.toMillis(7);
+
+    private static final String TWITTER_ENDPOINT = "https://publish.twitter.com/oembed?omit_script=true&url=";
+    private static final String INSTAGRAM_ENDPOINT = "https://api.instagram.com/oembed?omitscript=true&url=";
+
+    private static OEmbedService instance;
+
+    /** Database work happens here, in the order it was requested */
+    private final ExecutorService backgroundLane = Executors.newSingleThreadExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    @NonNull
+    private final Context context;
+    @NonNull
+    private final OEmbedDao dao;
+    /** Callbacks waiting on each URL that's currently being fetched */
+    private final Map<String, List<Callback>> pendingLookups = new HashMap<>();
+
+
+    @NonNull
+    public static synchronized OEmbedService getInstance(@NonNull Context context) {
+        if (instance == null) {
+            instance = new OEmbedService(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private OEmbedService(@NonNull Context context) {
+        this.context = context;
+        dao = OEmbedDao.getInstance(context);
+    }
+
+
+    /**
+     * Look up the embeds for some URLs.
+     * <p>
+     * Stored embeds are passed to the callback together, then any that had to be fetched are passed
+     * as they arrive. URLs that can't be embedded (or couldn't be fetched) are left out.
+     *
+     * @param callback called on the main thread, possibly more than once
+     */
+    public void lookup(@NonNull Collection<String> urls, @NonNull Callback callback) {
+        Collection<String> requestedUrls = new LinkedHashSet<>(urls);
+        backgroundLane.execute(() -> {
+            long now = System.currentTimeMillis();
+            boolean online = isOnline();
+            Map<String, OEmbedDao.Embed> storedEmbeds = dao.getEmbeds(requestedUrls);
+            Map<String, String> found = new HashMap<>();
+            List<String> toFetch = new ArrayList<>();
+            for (String url : requestedUrls) {
+                OEmbedDao.Embed stored = storedEmbeds.get(url);
+                if (stored != null && (!online || now - stored.fetchedTime < REFRESH_AGE_MS)) {
+                    found.put(url, stored.html);
+                } else if (online && getEndpoint(url) != null) {
+                    toFetch.add(url);
+                }
+            }
+            Timber.d("Embed lookup: %d stored, %d to fetch (online: %b)", found.size(), toFetch.size(), online);
+            mainHandler.post(() -> {
+                if (!found.isEmpty()) {
+                    callback.onEmbeds(found);
+                }
+                for (String url : toFetch) {
+                    OEmbedDao.Embed stored = storedEmbeds.get(url);
+                    fetch(url, stored == null ? null : stored.html, callback);
+                }
+            });
+        });
+    }
+
+
+    /**
+     * Fetch the embed for a URL, unless it's already being fetched - either way, the callback gets the result.
+     * Called on the main thread.
+     *
+     * @param fallbackHtml any stored embed, to use if the fetch fails
+     */
+    private void fetch(@NonNull String url, @Nullable String fallbackHtml, @NonNull Callback callback) {
+        List<Callback> waiting = pendingLookups.get(url);
+        if (waiting != null) {
+            waiting.add(callback);
+            return;
+        }
+        waiting = new ArrayList<>();
+        waiting.add(callback);
+        pendingLookups.put(url, waiting);
+
+        //noinspection ConstantConditions - only URLs with an endpoint get fetched
+        String requestUrl = getEndpoint(url) + Uri.encode(url);
+        NetworkUtils.queueRequest(new JsonObjectRequest(Request.Method.GET, requestUrl, null,
+                response -> {
+                    String html = response.optString("html");
+                    if (html.isEmpty()) {
+                        finishLookup(url, fallbackHtml);
+                        return;
+                    }
+                    long fetchedTime = System.currentTimeMillis();
+                    backgroundLane.execute(() -> dao.putEmbed(url, html, fetchedTime));
+                    finishLookup(url, html);
+                },
+                error -> {
+                    Timber.w("Unable to fetch embed for %s: %s", url, error.toString());
+                    finishLookup(url, fallbackHtml);
+                }));
+    }
+
+
+    /**
+     * Pass a fetch result to everything that was waiting on it.
+     *
+     * @param html the embed, or null if there isn't one
+     */
+    private void finishLookup(@NonNull String url, @Nullable String html) {
+        List<Callback> waiting = pendingLookups.remove(url);
+        if (waiting == null || html == null) {
+            return;
+        }
+        Map<String, String> result = Collections.singletonMap(url, html);
+        for (Callback callback : waiting) {
+            callback.onEmbeds(result);
+        }
+    }
+
+
+    /**
+     * Get the oEmbed endpoint for a URL, with the URL parameter ready to be appended.
+     *
+     * @return the endpoint, or null if it's not a URL we can embed
+     */
+    @Nullable
+    private static String getEndpoint(@NonNull String url) {
+        String host = Uri.parse(url).getHost();
+        if (host == null) {
+            return null;
+        } else if (host.equals("twitter.com") || host.endsWith(".twitter.com")) {
+            return TWITTER_ENDPOINT;
+        } else if (host.equals("instagr.am") || host.equals("instagram.com") || host.endsWith(".instagram.com")) {
+            return INSTAGRAM_ENDPOINT;
+        }
+        return null;
+    }
+
+
+    private boolean isOnline() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo network = (connectivityManager == null) ? null : connectivityManager.getActiveNetworkInfo();
+        return network != null && network.isConnected();
+    }
+
+
+    /**
+     * Receives embeds as they're looked up.
+     */
+    public interface Callback {
+        /**
+         * @param embeds embed HTML, keyed by URL
+         */
+        void onEmbeds(@NonNull Map<String, String> embeds);
+    }
+}
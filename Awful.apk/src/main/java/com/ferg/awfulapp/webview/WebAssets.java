@@ -0,0 +1,204 @@
+package com.ferg.awfulapp.webview;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.webkit.WebResourceResponse;
+
+import com.ferg.awfulapp.BuildConfig;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import timber.log.Timber;
+
+/**
+ * Serves the app's scripts and stylesheets to WebViews from memory.
+ * <p>
+ * All the scripts the thread view needs are concatenated into a single bundle, which pages load
+ * from {@link #SCRIPT_BUNDLE_URL}. The bundle is built the first time it's requested, and written
+ * to the cache folder so later launches of the same install can skip that. Stylesheets are
+ * read from the assets once, and kept in memory after that - so theme changes don't touch the APK.
+ * <p>
+ * The bundle URL doesn't exist as an actual asset, so any WebView displaying the container page
+ * needs to use an {@link AwfulWebViewClient} (or call {@link #intercept(Context, String)} itself).
+ */
+public class WebAssets {
+
+    private static final String ASSET_URL = "file:///android_asset/";
+    private static final String SCRIPT_FOLDER = "javascript/";
+    private static final String CSS_FOLDER = "css/";
+    private static final String SCRIPT_BUNDLE = SCRIPT_FOLDER + "bundle.js";
+
+    /**
+     * The URL of the bundle of all the thread scripts
+     */
+    public static final String SCRIPT_BUNDLE_URL = ASSET_URL + SCRIPT_BUNDLE;
+
+    // TODO: 16/08/2017 generate this automatically from the folder contents
+    /**
+     * All the scripts from the javascript folder that go into the bundle, in load order
+     */
+    private static final String[] SCRIPT_FILES = {
+            "polyfills.js",
+            "twitterwidget.js",
+            "longtap.js",
+            "embedding.js",
+            "thread.js"
+    };
+
+    private static final String BUNDLE_CACHE_FOLDER = "web_assets";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /** Assets can only change when the app is updated, so they can be cached indefinitely */
+    private static final Map<String, String> CACHE_HEADERS = new HashMap<>();
+
+    static {
+        CACHE_HEADERS.put("Cache-Control", "public, max-age=31536000, immutable");
+    }
+
+    /** Asset contents, keyed by their path in the assets folder */
+    private static final Map<String, byte[]> assetCache = new ConcurrentHashMap<>();
+
+
+    private WebAssets() {
+    }
+
+
+    /**
+     * Get a response for a request for one of the app's scripts or stylesheets.
+     * <p>
+     * This is called on a WebView background thread, and may read files.
+     *
+     * @param url the requested URL
+     * @return the response, or null if it's not a cached asset (or it couldn't be read) and the
+     * WebView should load it normally
+     */
+    @Nullable
+    static WebResourceResponse intercept(@NonNull Context context, @NonNull String url) {
+        if (!url.startsWith(ASSET_URL)) {
+            return null;
+        }
+        String path = url.substring(ASSET_URL.length());
+        String mimeType;
+        if (path.startsWith(SCRIPT_FOLDER) && path.endsWith(".js")) {
+            mimeType = "text/javascript";
+        } else if (path.startsWith(CSS_FOLDER) && path.endsWith(".css")) {
+            mimeType = "text/css";
+        } else {
+            return null;
+        }
+
+        byte[] content = assetCache.get(path);
+        if (content == null) {
+            try {
+                content = SCRIPT_BUNDLE.equals(path) ? getScriptBundle(context) : readAsset(context, path);
+            } catch (IOException e) {
+                Timber.w(e, "Unable to read web asset %s", path);
+                return null;
+            }
+            assetCache.put(path, content);
+        }
+        return new WebResourceResponse(mimeType, "UTF-8", 200, "OK", CACHE_HEADERS, new ByteArrayInputStream(content));
+    }
+
+
+    /**
+     * Get the script bundle from the cache folder, building it if this install hasn't stored one yet.
+     */
+    @NonNull
+    private static byte[] getScriptBundle(@NonNull Context context) throws IOException {
+        File bundleFile = new File(new File(context.getCacheDir(), BUNDLE_CACHE_FOLDER),
+                "bundle-" + BuildConfig.VERSION_CODE + "-" + getInstallTime(context) + ".js");
+        if (bundleFile.isFile()) {
+            try (InputStream input = new FileInputStream(bundleFile)) {
+                return readFully(input);
+            } catch (IOException e) {
+                Timber.w(e, "Unable to read stored script bundle, rebuilding it");
+            }
+        }
+
+        long startTime = System.currentTimeMillis();
+        ByteArrayOutputStream bundle = new ByteArrayOutputStream();
+        for (String scriptName : SCRIPT_FILES) {
+            bundle.write(("\n// " + scriptName + "\n").getBytes(UTF_8));
+            bundle.write(readAsset(context, SCRIPT_FOLDER + scriptName));
+            // in case a script doesn't end its last statement
+            bundle.write(";\n".getBytes(UTF_8));
+        }
+        byte[] content = bundle.toByteArray();
+        Timber.d("Built script bundle (%d bytes) in %dms", content.length, System.currentTimeMillis() - startTime);
+        storeScriptBundle(bundleFile, content);
+        return content;
+    }
+
+
+    /**
+     * When the APK was last installed or updated. Scripts can change without the version code changing
+     * (e.g. dev builds), but every install changes this.
+     */
+    private static long getInstallTime(@NonNull Context context) {
+        try {
+            return context.getPackageManager().getPackageInfo(context.getPackageName(), 0).lastUpdateTime;
+        } catch (PackageManager.NameNotFoundException e) {
+            // can't happen for our own package, but if it does just don't reuse a stored bundle
+            return System.currentTimeMillis();
+        }
+    }
+
+
+    /**
+     * Write the script bundle to the cache folder, deleting any bundles left over from older installs.
+     */
+    private static void storeScriptBundle(@NonNull File bundleFile, @NonNull byte[] content) {
+        File folder = bundleFile.getParentFile();
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            Timber.w("Unable to create the script bundle folder");
+            return;
+        }
+        File[] oldBundles = folder.listFiles();
+        if (oldBundles != null) {
+            for (File oldBundle : oldBundles) {
+                //noinspection ResultOfMethodCallIgnored
+                oldBundle.delete();
+            }
+        }
+        try (OutputStream output = new FileOutputStream(bundleFile)) {
+            output.write(content);
+        } catch (IOException e) {
+            Timber.w(e, "Unable to store the script bundle");
+            //noinspection ResultOfMethodCallIgnored
+            bundleFile.delete();
+        }
+    }
+
+
+    @NonNull
+    private static byte[] readAsset(@NonNull Context context, @NonNull String path) throws IOException {
+        try (InputStream input = context.getAssets().open(path)) {
+            return readFully(input);
+        }
+    }
+
+
+    @NonNull
+    private static byte[] readFully(@NonNull InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        return output.toByteArray();
+    }
+}
@@ -7,11 +7,23 @@ import android.webkit.JavascriptInterface;
 import com.ferg.awfulapp.preferences.AwfulPreferences;
 import com.ferg.awfulapp.preferences.Keys;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import timber.log.Timber;
 
+import static com.ferg.awfulapp.constants.Constants.DEBUG;
+
 /**
  * Created by baka kaba on 23/01/2017.
  * <p>
@@ -19,14 +31,35 @@ import timber.log.Timber;
  * <p>
  * Subclass this to add handler methods specific to a particular context, e.g. when the WebView will
  * be used in a {@link com.ferg.awfulapp.ThreadDisplayFragment} and needs to react to other UI clicks.
+ * <p>
+ * Every call from JavaScript is a blocking hop to another thread, so preferences are handed over as
+ * a single JSON snapshot with a version number - the page's JS caches it, and only fetches it again
+ * when {@link #getPreferencesVersion()} changes after {@link #updatePreferences()}. In debug builds
+ * the number of calls to each bridge method is counted, see {@link #logBridgeCalls()}.
  */
 // TODO: 12/02/2017 JS interface methods are called on a separate thread apparently - none of our implementations are thread-safe at all
 public class WebViewJsInterface {
 
-    private final Map<String, String> preferences = new ConcurrentHashMap<>();
+    /** Every snapshot gets a new version, across all interfaces, so a page can't mistake one for another */
+    private static final AtomicInteger latestPreferencesVersion = new AtomicInteger();
+
+    @NonNull
+    private volatile Map<String, String> preferences = new HashMap<>();
+    @NonNull
+    private volatile String preferencesJson = "{}";
+    private volatile int preferencesVersion;
+    /** Calls to each JS bridge method, for debugging */
+    private final Map<String, AtomicInteger> bridgeCalls = new ConcurrentHashMap<>();
 
     @NonNull
     private volatile String bodyHtml = "";
+    /** JSON arrays of post updates, waiting for the page's JS to apply them */
+    private final Queue<String> postUpdates = new ConcurrentLinkedQueue<>();
+    /** JSON arrays of looked-up embeds, waiting for the page's JS to apply them */
+    private final Queue<String> embeds = new ConcurrentLinkedQueue<>();
+    /** The WebView this is handling, which looked-up embeds get sent to */
+    @Nullable
+    private volatile AwfulWebView webView = null;
 
     public WebViewJsInterface() {
         updatePreferences();
@@ -38,7 +71,8 @@ public class WebViewJsInterface {
     public final void updatePreferences() {
         AwfulPreferences aPrefs = AwfulPreferences.getInstance();
 
-        preferences.clear();
+        // build a new snapshot and swap it in, so JS never sees a half-updated one
+        Map<String, String> preferences = new HashMap<>();
         preferences.put("username", aPrefs.username);
         preferences.put("showSpoilers", Boolean.toString(aPrefs.showAllSpoilers));
         preferences.put("highlightUserQuote", Boolean.toString(aPrefs.highlightUserQuote));
@@ -55,6 +89,10 @@ public class WebViewJsInterface {
         preferences.put("disablePullNext", Boolean.toString(aPrefs.disablePullNext));
 
         setCustomPreferences(preferences);
+
+        this.preferences = preferences;
+        preferencesJson = new JSONObject(preferences).toString();
+        preferencesVersion = latestPreferencesVersion.incrementAndGet();
     }
 
     /**
@@ -70,18 +108,151 @@ public class WebViewJsInterface {
     @NonNull
     @JavascriptInterface
     public final String getBodyHtml() {
+        countBridgeCall("getBodyHtml");
         return bodyHtml;
     }
 
     final void setBodyHtml(@Nullable String html) {
         bodyHtml = (html == null) ? "" : html;
+        // the new body replaces everything, so any pending updates are obsolete
+        postUpdates.clear();
+    }
+
+    /**
+     * Set the body HTML without displaying it, and queue some post updates for the page to apply.
+     *
+     * @param html       the body HTML once the updates have been applied
+     * @param updateJson a JSON array of post updates
+     */
+    final void addPostUpdate(@NonNull String html, @NonNull String updateJson) {
+        bodyHtml = html;
+        postUpdates.add(updateJson);
     }
 
+    /**
+     * Take the next pending post update.
+     *
+     * @return a JSON array of {id, html} objects, or null if there are no updates left
+     */
+    @Nullable
+    @JavascriptInterface
+    public final String takePostUpdate() {
+        countBridgeCall("takePostUpdate");
+        return postUpdates.poll();
+    }
+
+    /**
+     * Set the WebView this interface has been added to.
+     */
+    final void setWebView(@NonNull AwfulWebView webView) {
+        this.webView = webView;
+    }
+
+    /**
+     * Look up the embed HTML for some links, e.g. tweets - the results are passed to the page's
+     * <i>applyEmbeds</i> function as they arrive. See {@link OEmbedService}.
+     *
+     * @param urlsJson a JSON array of the URLs to look up
+     */
+    @JavascriptInterface
+    public final void requestEmbeds(String urlsJson) {
+        countBridgeCall("requestEmbeds");
+        AwfulWebView view = webView;
+        if (view == null) {
+            return;
+        }
+        List<String> urls = new ArrayList<>();
+        try {
+            JSONArray urlArray = new JSONArray(urlsJson);
+            for (int i = 0; i < urlArray.length(); i++) {
+                urls.add(urlArray.getString(i));
+            }
+        } catch (JSONException e) {
+            Timber.w(e, "Bad embed request from page JS");
+            return;
+        }
+        OEmbedService.getInstance(view.getContext()).lookup(urls, view::addEmbeds);
+    }
+
+    /**
+     * Queue some looked-up embeds for the page to apply.
+     *
+     * @param embedJson a JSON array of embeds
+     */
+    final void addEmbeds(@NonNull String embedJson) {
+        embeds.add(embedJson);
+    }
+
+    /**
+     * Take the next batch of looked-up embeds.
+     *
+     * @return a JSON array of {url, html} objects, or null if there are none left
+     */
+    @Nullable
+    @JavascriptInterface
+    public final String takeEmbeds() {
+        countBridgeCall("takeEmbeds");
+        return embeds.poll();
+    }
+
+    /**
+     * Get a single preference value. Pages should use the {@link #getPreferences()} snapshot instead.
+     */
     @JavascriptInterface
     public String getPreference(String preference) {
+        countBridgeCall("getPreference");
         return preferences.get(preference);
     }
 
+    /**
+     * Get a snapshot of all the preferences, as a JSON object of string values.
+     */
+    @NonNull
+    @JavascriptInterface
+    public final String getPreferences() {
+        countBridgeCall("getPreferences");
+        return preferencesJson;
+    }
+
+    /**
+     * Get the version of the current preferences snapshot, which changes every time they're updated.
+     */
+    @JavascriptInterface
+    public final int getPreferencesVersion() {
+        countBridgeCall("getPreferencesVersion");
+        return preferencesVersion;
+    }
+
+
+    /**
+     * Count a call to a JS bridge method. Does nothing in release builds.
+     */
+    protected final void countBridgeCall(@NonNull String methodName) {
+        if (!DEBUG) {
+            return;
+        }
+        AtomicInteger count = bridgeCalls.get(methodName);
+        if (count == null) {
+            bridgeCalls.putIfAbsent(methodName, new AtomicInteger());
+            count = bridgeCalls.get(methodName);
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * Log the number of calls to each JS bridge method since the last time this was called, and reset the counts.
+     */
+    public final void logBridgeCalls() {
+        if (bridgeCalls.isEmpty()) {
+            return;
+        }
+        StringBuilder counts = new StringBuilder();
+        for (Map.Entry<String, AtomicInteger> entry : bridgeCalls.entrySet()) {
+            counts.append(entry.getKey()).append(": ").append(entry.getValue().getAndSet(0)).append(", ");
+        }
+        Timber.d("JS bridge calls - %s", counts);
+    }
+
 
     @JavascriptInterface
     public void debugMessage(final String msg) {
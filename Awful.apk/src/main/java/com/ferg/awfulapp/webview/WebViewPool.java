@@ -0,0 +1,87 @@
+package com.ferg.awfulapp.webview;
+
+import android.content.Context;
+import android.content.MutableContextWrapper;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.MainThread;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.ferg.awfulapp.preferences.AwfulPreferences;
+import com.ferg.awfulapp.thread.AwfulHtmlPage;
+
+import timber.log.Timber;
+
+/**
+ * Holds a pre-warmed {@link AwfulWebView}, so the first thread opened doesn't have to wait for it.
+ * <p>
+ * Creating the first WebView in a process is slow - the WebView library and its renderer have to
+ * start up. {@link #prewarm(Context)} does that once the main thread goes idle after launch, and
+ * loads the container page so the scripts and stylesheets get loaded too. The view is created with
+ * a {@link MutableContextWrapper}, so {@link #acquire(Context)} can hand it over to an Activity.
+ * <p>
+ * JavaScript handlers only become visible to a page when it loads, so whoever takes the view still
+ * needs to add their handler and set the container content again - but that's quick once everything's warm.
+ */
+public class WebViewPool {
+
+    @Nullable
+    private static AwfulWebView pooledView = null;
+    private static boolean prewarmScheduled = false;
+
+
+    private WebViewPool() {
+    }
+
+
+    /**
+     * Create and warm up a WebView the next time the main thread is idle.
+     */
+    @MainThread
+    public static void prewarm(@NonNull Context context) {
+        if (prewarmScheduled) {
+            return;
+        }
+        prewarmScheduled = true;
+        Context appContext = context.getApplicationContext();
+        Looper.myQueue().addIdleHandler(() -> {
+            createPooledView(appContext);
+            return false;
+        });
+    }
+
+
+    /**
+     * Take the pre-warmed WebView, if there is one. It's only handed out once.
+     *
+     * @param context the context the view will be displayed in, usually an Activity
+     * @return the view, or null if it hasn't been created (or it's already been taken)
+     */
+    @MainThread
+    @Nullable
+    public static AwfulWebView acquire(@NonNull Context context) {
+        AwfulWebView view = pooledView;
+        if (view == null) {
+            return null;
+        }
+        pooledView = null;
+        ((MutableContextWrapper) view.getContext()).setBaseContext(context);
+        return view;
+    }
+
+
+    private static void createPooledView(@NonNull Context appContext) {
+        long startTime = SystemClock.elapsedRealtime();
+        try {
+            AwfulWebView view = new AwfulWebView(new MutableContextWrapper(appContext));
+            view.setJavascriptHandler(new WebViewJsInterface());
+            view.setContent(AwfulHtmlPage.getContainerHtml(AwfulPreferences.getInstance(), null, true));
+            pooledView = view;
+            Timber.d("Pre-warmed WebView created in %dms", SystemClock.elapsedRealtime() - startTime);
+        } catch (RuntimeException e) {
+            // the WebView package can be missing or updating - the thread view handles that when it's inflated
+            Timber.w(e, "Unable to pre-warm WebView");
+        }
+    }
+}
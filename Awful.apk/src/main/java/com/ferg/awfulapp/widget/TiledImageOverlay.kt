@@ -0,0 +1,261 @@
+package com.ferg.awfulapp.widget
+
+import android.content.Context
+import android.graphics.*
+import android.util.AttributeSet
+import android.view.View
+import timber.log.Timber
+import uk.co.senab.photoview.PhotoView
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Draws a large image over a [PhotoView] as tiles, decoded at the resolution the image is currently
+ * zoomed to - so a huge image never has to be decoded in one go.
+ *
+ * The PhotoView displays a low-res preview of the whole image, which handles the zooming and panning.
+ * This view sits on top of it with the same bounds, and whenever the PhotoView's matrix changes it
+ * works out which parts of the image are on screen, and how much detail they need. Only tiles that
+ * need more detail than the preview has are decoded, on a background pool, and tiles are dropped as
+ * soon as they're off screen or at the wrong resolution.
+ *
+ * Call [load] to display an image, and [release] when the view is finished with.
+ */
+class TiledImageOverlay @JvmOverloads constructor(
+    context: Context,
+    attrs: AttributeSet? = null,
+    defStyleAttr: Int = 0
+) : View(context, attrs, defStyleAttr) {
+
+    companion object {
+        /** Images with a side longer than this are displayed as tiles - anything smaller is just decoded normally */
+        const val LARGE_IMAGE_PX = 2048
+        /** The size of each tile's bitmap */
+        private const val TILE_PX = 512
+        private const val DECODER_THREADS = 2
+    }
+
+    private val decodePool: ExecutorService = Executors.newFixedThreadPool(DECODER_THREADS)
+    private val tilePaint = Paint(Paint.FILTER_BITMAP_FLAG)
+
+    private var decoder: BitmapRegionDecoder? = null
+    /** A temporary image file this view is responsible for deleting */
+    private var ownedFile: File? = null
+    /** Set once the view is finished with, so a load that's still running throws its results away */
+    private var released = false
+    private var imageWidth = 0
+    private var imageHeight = 0
+    /** The sample size the preview was decoded at - tiles are only needed when zoomed in past this */
+    private var previewSampleSize = 1
+    /** Where the whole image is currently displayed, in view coordinates */
+    private val displayRect = RectF()
+
+    private val tiles = HashMap<Tile, Bitmap>()
+    private val pendingTiles = HashSet<Tile>()
+    /** The tiles needed for the current view - this gets replaced rather than modified, since the decode pool reads it */
+    @Volatile
+    private var visibleTiles: Set<Tile> = emptySet()
+
+    /**
+     * A tile of the image, at a particular sample size.
+     */
+    private data class Tile(val sampleSize: Int, val column: Int, val row: Int) {
+        /** The area of the source image this tile covers */
+        fun sourceRect(imageWidth: Int, imageHeight: Int): Rect {
+            val size = TILE_PX * sampleSize
+            return Rect(column * size, row * size, minOf((column + 1) * size, imageWidth), minOf((row + 1) * size, imageHeight))
+        }
+    }
+
+
+    /**
+     * Display a large image file in a PhotoView, with this view drawing the tiles over it.
+     *
+     * This reads the image on a background thread. If it's not large enough to need tiling, or it's
+     * in a format that can't be tiled (e.g. a GIF), [onNotTiled] is called on the main thread instead,
+     * and the caller should display it some other way.
+     *
+     * @param deleteOnRelease true if the file is a temporary copy, which should be deleted when this view is released
+     */
+    fun load(file: File, photoView: PhotoView, deleteOnRelease: Boolean, onNotTiled: () -> Unit) {
+        if (deleteOnRelease) {
+            ownedFile = file
+        }
+        if (released) {
+            release()
+            return
+        }
+        decodePool.execute {
+            val bounds = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+            BitmapFactory.decodeFile(file.path, bounds)
+            val width = bounds.outWidth
+            val height = bounds.outHeight
+            if (maxOf(width, height) <= LARGE_IMAGE_PX || bounds.outMimeType == "image/gif") {
+                post { if (!released) onNotTiled() }
+                return@execute
+            }
+            val regionDecoder = try {
+                BitmapRegionDecoder.newInstance(file.path, false)
+            } catch (e: IOException) {
+                Timber.w(e, "Unable to tile image")
+                post { if (!released) onNotTiled() }
+                return@execute
+            }
+            // the preview only needs to fill the screen
+            var sampleSize = 1
+            while (maxOf(width, height) / sampleSize > LARGE_IMAGE_PX) {
+                sampleSize *= 2
+            }
+            val preview = BitmapFactory.decodeFile(file.path, BitmapFactory.Options().apply { inSampleSize = sampleSize })
+            if (preview == null) {
+                regionDecoder.recycle()
+                post { if (!released) onNotTiled() }
+                return@execute
+            }
+            Timber.d("Tiling %dx%d image, preview at 1/%d", width, height, sampleSize)
+            post {
+                if (released) {
+                    // nothing else will free these
+                    regionDecoder.recycle()
+                    preview.recycle()
+                    return@post
+                }
+                decoder = regionDecoder
+                imageWidth = width
+                imageHeight = height
+                previewSampleSize = sampleSize
+                photoView.setImageBitmap(preview)
+                // allow zooming in far enough to see the full resolution
+                val fullSizeScale = 2f * width / maxOf(photoView.width, 1)
+                if (fullSizeScale > photoView.maximumScale) {
+                    photoView.maximumScale = fullSizeScale
+                }
+                photoView.setOnMatrixChangeListener { rect -> onDisplayRectChanged(rect) }
+                photoView.displayRect?.let { onDisplayRectChanged(it) }
+            }
+        }
+    }
+
+
+    /**
+     * Stop decoding and free everything.
+     */
+    fun release() {
+        released = true
+        decodePool.shutdownNow()
+        tiles.values.forEach(Bitmap::recycle)
+        tiles.clear()
+        pendingTiles.clear()
+        visibleTiles = emptySet()
+        decoder?.recycle()
+        decoder = null
+        ownedFile?.delete()
+        ownedFile = null
+    }
+
+
+    private fun onDisplayRectChanged(rect: RectF) {
+        displayRect.set(rect)
+        updateTiles()
+        invalidate()
+    }
+
+
+    /**
+     * Work out which tiles are needed for the current view of the image, request any that are
+     * missing and drop the ones that aren't needed anymore.
+     */
+    private fun updateTiles() {
+        val decoder = decoder ?: return
+        val wanted = HashSet<Tile>()
+        if (displayRect.isEmpty) {
+            return
+        }
+        // screen pixels per source pixel
+        val scale = displayRect.width() / imageWidth
+        var sampleSize = 1
+        while (sampleSize * 2 <= 1 / scale) {
+            sampleSize *= 2
+        }
+        if (sampleSize < previewSampleSize) {
+            // work out the visible part of the image in source coordinates, and the tiles that cover it
+            val visible = RectF(0f, 0f, width.toFloat(), height.toFloat())
+            if (visible.intersect(displayRect)) {
+                val tileSize = TILE_PX * sampleSize
+                val firstColumn = ((visible.left - displayRect.left) / scale / tileSize).toInt()
+                val lastColumn = ((visible.right - displayRect.left) / scale / tileSize).toInt()
+                val firstRow = ((visible.top - displayRect.top) / scale / tileSize).toInt()
+                val lastRow = ((visible.bottom - displayRect.top) / scale / tileSize).toInt()
+                for (column in firstColumn..lastColumn) {
+                    for (row in firstRow..lastRow) {
+                        if (column * tileSize < imageWidth && row * tileSize < imageHeight) {
+                            wanted.add(Tile(sampleSize, column, row))
+                        }
+                    }
+                }
+            }
+        }
+
+        visibleTiles = wanted
+        tiles.keys.filter { it !in wanted }.forEach { tiles.remove(it)?.recycle() }
+        wanted.filter { it !in tiles && it !in pendingTiles }.forEach { requestTile(decoder, it) }
+    }
+
+
+    private fun requestTile(decoder: BitmapRegionDecoder, tile: Tile) {
+        pendingTiles.add(tile)
+        val sourceRect = tile.sourceRect(imageWidth, imageHeight)
+        decodePool.execute {
+            val bitmap = try {
+                // skip it if it's been scrolled away while it was waiting
+                if (tile in visibleTiles) decoder.decodeRegion(sourceRect, BitmapFactory.Options().apply { inSampleSize = tile.sampleSize }) else null
+            } catch (e: Exception) {
+                // the decoder might have been recycled, or the image is broken
+                Timber.w(e, "Unable to decode image tile")
+                null
+            } catch (e: OutOfMemoryError) {
+                Timber.w("Out of memory decoding image tile")
+                null
+            }
+            post {
+                pendingTiles.remove(tile)
+                when {
+                    bitmap == null -> Unit
+                    tile in visibleTiles && this.decoder === decoder -> {
+                        tiles[tile] = bitmap
+                        invalidate()
+                    }
+                    else -> bitmap.recycle()
+                }
+            }
+        }
+    }
+
+
+    override fun onDraw(canvas: Canvas) {
+        super.onDraw(canvas)
+        if (tiles.isEmpty()) {
+            return
+        }
+        val scale = displayRect.width() / imageWidth
+        val destination = RectF()
+        for ((tile, bitmap) in tiles) {
+            val source = tile.sourceRect(imageWidth, imageHeight)
+            destination.set(
+                displayRect.left + source.left * scale,
+                displayRect.top + source.top * scale,
+                displayRect.left + source.right * scale,
+                displayRect.top + source.bottom * scale
+            )
+            canvas.drawBitmap(bitmap, null, destination, tilePaint)
+        }
+    }
+
+
+    override fun onDetachedFromWindow() {
+        super.onDetachedFromWindow()
+        release()
+    }
+}
@@ -0,0 +1,200 @@
+package com.ferg.awfulapp.network;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.core.Is.is;
+
+public class AvatarCacheTest {
+
+    private static final String URL = "https://fi.somethingawful.com/safs/titles/aa/bb/00001.gif";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    /**
+     * Serves avatars from temp files, counting downloads. Downloads can be held up until {@link #release()}.
+     */
+    private class FakeSource implements AvatarCache.Source {
+
+        final Map<String, ImageDiskCache.CachedImage> onDisk = new HashMap<>();
+        final Map<String, ImageDiskCache.CachedImage> online = new HashMap<>();
+        final AtomicInteger fetches = new AtomicInteger();
+        final CountDownLatch fetchStarted = new CountDownLatch(1);
+        private final CountDownLatch fetchReleased;
+
+        FakeSource(boolean holdFetches) {
+            fetchReleased = new CountDownLatch(holdFetches ? 1 : 0);
+        }
+
+        void putOnline(String url, int size) throws IOException {
+            online.put(url, makeImage(size));
+        }
+
+        void release() {
+            fetchReleased.countDown();
+        }
+
+        @Override
+        public ImageDiskCache.CachedImage getCached(String url) {
+            return onDisk.get(url);
+        }
+
+        @Override
+        public ImageDiskCache.CachedImage fetch(String url) {
+            fetches.incrementAndGet();
+            fetchStarted.countDown();
+            try {
+                fetchReleased.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return null;
+            }
+            return online.get(url);
+        }
+    }
+
+
+    private ImageDiskCache.CachedImage makeImage(int size) throws IOException {
+        File file = folder.newFile();
+        try (OutputStream output = new FileOutputStream(file)) {
+            output.write(new byte[size]);
+        }
+        return new ImageDiskCache.CachedImage(file, "image/gif", Long.MAX_VALUE, Long.MAX_VALUE);
+    }
+
+
+    /**
+     * Wait until a thread is blocked, e.g. waiting on another thread's load.
+     */
+    private static void awaitBlocked(Thread thread) throws InterruptedException {
+        long giveUpTime = System.currentTimeMillis() + 5000;
+        while (thread.getState() != Thread.State.WAITING && System.currentTimeMillis() < giveUpTime) {
+            Thread.sleep(5);
+        }
+        assertThat(thread.getState(), is(Thread.State.WAITING));
+    }
+
+
+    @Test
+    public void concurrentRequests_downloadOnce() throws Exception {
+        FakeSource source = new FakeSource(true);
+        source.putOnline(URL, 100);
+        AvatarCache avatarCache = new AvatarCache(source, () -> MediaPolicy.Decision.LOAD, Runnable::run);
+
+        AtomicReference<AvatarCache.Avatar> first = new AtomicReference<>();
+        AtomicReference<AvatarCache.Avatar> second = new AtomicReference<>();
+        Thread firstRequest = new Thread(() -> first.set(avatarCache.get(URL, MediaPolicy.Decision.LOAD)));
+        Thread secondRequest = new Thread(() -> second.set(avatarCache.get(URL, MediaPolicy.Decision.LOAD)));
+        firstRequest.start();
+        assertThat(source.fetchStarted.await(5, TimeUnit.SECONDS), is(true));
+        secondRequest.start();
+        awaitBlocked(secondRequest);
+        source.release();
+        firstRequest.join(5000);
+        secondRequest.join(5000);
+
+        assertThat(source.fetches.get(), is(1));
+        assertThat(first.get(), is(notNullValue()));
+        assertThat(second.get(), is(sameInstance(first.get())));
+    }
+
+
+    @Test
+    public void requestDuringPrefetch_waitsForIt() throws Exception {
+        FakeSource source = new FakeSource(true);
+        source.putOnline(URL, 100);
+        AvatarCache avatarCache = new AvatarCache(source, () -> MediaPolicy.Decision.LOAD, task -> new Thread(task).start());
+
+        avatarCache.prefetch(Collections.singletonList(URL));
+        assertThat(source.fetchStarted.await(5, TimeUnit.SECONDS), is(true));
+        AtomicReference<AvatarCache.Avatar> requested = new AtomicReference<>();
+        Thread request = new Thread(() -> requested.set(avatarCache.get(URL, MediaPolicy.Decision.LOAD)));
+        request.start();
+        awaitBlocked(request);
+        source.release();
+        request.join(5000);
+
+        assertThat(source.fetches.get(), is(1));
+        assertThat(requested.get(), is(notNullValue()));
+        // and now it's in memory
+        assertThat(avatarCache.get(URL, MediaPolicy.Decision.LOAD), is(sameInstance(requested.get())));
+        assertThat(source.fetches.get(), is(1));
+    }
+
+
+    @Test
+    public void memoryUse_staysUnderTheCap() throws Exception {
+        FakeSource source = new FakeSource(false);
+        AvatarCache avatarCache = new AvatarCache(source, () -> MediaPolicy.Decision.LOAD, Runnable::run);
+        int avatarSize = AvatarCache.MAX_AVATAR_BYTES / 2;
+        int avatarCount = AvatarCache.MAX_MEMORY_BYTES / avatarSize + 4;
+        for (int i = 0; i < avatarCount; i++) {
+            source.putOnline(URL + i, avatarSize);
+            assertThat(avatarCache.get(URL + i, MediaPolicy.Decision.LOAD), is(notNullValue()));
+        }
+        assertThat(avatarCache.getMemoryBytes(), is(lessThanOrEqualTo(AvatarCache.MAX_MEMORY_BYTES)));
+
+        // the most recent avatar is still in memory, the oldest one has to be fetched again
+        avatarCache.get(URL + (avatarCount - 1), MediaPolicy.Decision.LOAD);
+        assertThat(source.fetches.get(), is(avatarCount));
+        avatarCache.get(URL + 0, MediaPolicy.Decision.LOAD);
+        assertThat(source.fetches.get(), is(avatarCount + 1));
+    }
+
+
+    @Test
+    public void oversizedAvatar_servedButNotKept() throws Exception {
+        FakeSource source = new FakeSource(false);
+        source.putOnline(URL, AvatarCache.MAX_AVATAR_BYTES + 1);
+        AvatarCache avatarCache = new AvatarCache(source, () -> MediaPolicy.Decision.LOAD, Runnable::run);
+
+        assertThat(avatarCache.get(URL, MediaPolicy.Decision.LOAD), is(notNullValue()));
+        assertThat(avatarCache.getMemoryBytes(), is(0));
+    }
+
+
+    @Test
+    public void deferredRequest_onlyUsesTheDisk() throws Exception {
+        FakeSource source = new FakeSource(false);
+        String cachedUrl = URL + "cached";
+        source.onDisk.put(cachedUrl, makeImage(100));
+        source.putOnline(URL, 100);
+        AvatarCache avatarCache = new AvatarCache(source, () -> MediaPolicy.Decision.DEFER, Runnable::run);
+
+        assertThat(avatarCache.get(URL, MediaPolicy.Decision.DEFER), is(nullValue()));
+        assertThat(avatarCache.get(cachedUrl, MediaPolicy.Decision.DEFER), is(notNullValue()));
+        assertThat(source.fetches.get(), is(0));
+    }
+
+
+    @Test
+    public void deferredPolicy_skipsPrefetching() throws Exception {
+        FakeSource source = new FakeSource(false);
+        source.putOnline(URL, 100);
+        AvatarCache avatarCache = new AvatarCache(source, () -> MediaPolicy.Decision.DEFER, Runnable::run);
+
+        avatarCache.prefetch(Arrays.asList(URL, "", null));
+        assertThat(source.fetches.get(), is(0));
+        assertThat(avatarCache.getMemoryBytes(), is(0));
+    }
+}
@@ -0,0 +1,41 @@
+package com.ferg.awfulapp.provider;
+
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.core.Is.is;
+
+public class PostSearchIndexTest {
+
+    @Test
+    public void matchExpression_stripsOperatorsAndPrefixesLastTerm() {
+        assertThat(PostSearchIndex.toMatchExpression("  \"Cool\" OR -thread*  "), is("cool or thread*"));
+        assertThat(PostSearchIndex.toMatchExpression("NEAR/3 goons"), is("near 3 goons*"));
+    }
+
+    @Test
+    public void matchExpression_nothingSearchable_isNull() {
+        assertThat(PostSearchIndex.toMatchExpression(null), is(nullValue()));
+        assertThat(PostSearchIndex.toMatchExpression("  ***  ()"), is(nullValue()));
+    }
+
+    @Test
+    public void score_rarerTermsAndShorterPostsRankHigher() {
+        // one phrase, three columns, 100 rows, average lengths, this row's lengths, then (hits in row, hits in all rows, rows with hits) per column
+        int[] commonTerm = {1, 3, 100, 50, 1, 5, 50, 1, 5, 2, 200, 90, 0, 0, 0, 0, 0, 0};
+        int[] rareTerm = {1, 3, 100, 50, 1, 5, 50, 1, 5, 2, 4, 3, 0, 0, 0, 0, 0, 0};
+        int[] rareTermLongPost = {1, 3, 100, 50, 1, 5, 500, 1, 5, 2, 4, 3, 0, 0, 0, 0, 0, 0};
+
+        assertThat(PostSearchIndex.score(rareTerm), greaterThan(PostSearchIndex.score(commonTerm)));
+        assertThat(PostSearchIndex.score(rareTerm), greaterThan(PostSearchIndex.score(rareTermLongPost)));
+    }
+
+    @Test
+    public void score_usernameMatchOutweighsPostTextMatch() {
+        int[] textMatch = {1, 3, 100, 50, 1, 5, 50, 1, 5, 1, 4, 3, 0, 0, 0, 0, 0, 0};
+        int[] usernameMatch = {1, 3, 100, 50, 1, 5, 50, 1, 5, 0, 0, 0, 1, 4, 3, 0, 0, 0};
+        assertThat(PostSearchIndex.score(usernameMatch), greaterThan(PostSearchIndex.score(textMatch)));
+    }
+}
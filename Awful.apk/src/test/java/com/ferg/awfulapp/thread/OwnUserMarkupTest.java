@@ -0,0 +1,54 @@
+package com.ferg.awfulapp.thread;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Element;
+import org.junit.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+
+public class OwnUserMarkupTest {
+
+    private static final String QUOTE = "<div class=\"bbc-block\"><h4>%s posted:</h4><blockquote>a quote</blockquote></div>";
+
+
+    @Test
+    public void mentions_areWrapped() {
+        Element content = parse("<p>hey Frog, Frogs and Frog.</p>");
+        OwnUserMarkup.mark(content, "Frog");
+        assertThat(content.select("span.usernameHighlight").size(), is(2));
+        assertThat(content.text(), is("hey Frog, Frogs and Frog."));
+    }
+
+    @Test
+    public void ownQuotes_areFlagged_withoutHighlightingTheHeader() {
+        Element content = parse(String.format(QUOTE, "Frog") + String.format(QUOTE, "Toad"));
+        OwnUserMarkup.mark(content, "Frog");
+        assertThat(content.select(".bbc-block.self").size(), is(1));
+        assertThat(content.select(".bbc-block.self h4").first().text(), is("Frog posted:"));
+        assertThat(content.select("span.usernameHighlight").isEmpty(), is(true));
+    }
+
+    @Test
+    public void remark_replacesTheOldUsernamesMarkup() {
+        Element content = parse("<p>Frog and Toad</p>" + String.format(QUOTE, "Frog"));
+        OwnUserMarkup.mark(content, "Frog");
+
+        Element remarked = parse(OwnUserMarkup.remark(content.html(), "Toad"));
+        assertThat(remarked.select("span.usernameHighlight").text(), is("Toad"));
+        assertThat(remarked.select(".bbc-block.self").isEmpty(), is(true));
+    }
+
+    @Test
+    public void remark_returnsNullWhenNothingChanges() {
+        Element content = parse("<p>Frog and Toad</p>");
+        OwnUserMarkup.mark(content, "Frog");
+        assertThat(OwnUserMarkup.remark(content.html(), "Frog"), nullValue());
+    }
+
+
+    private Element parse(String html) {
+        return Jsoup.parseBodyFragment(html).body();
+    }
+}
@@ -0,0 +1,166 @@
+package com.ferg.awfulapp.thread;
+
+import com.samskivert.mustache.Mustache;
+import com.samskivert.mustache.Template;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.hamcrest.core.Is.is;
+
+public class TemplateCacheTest {
+
+    private static final File POST_TEMPLATE = new File("src/main/assets/mustache/post.mustache");
+    private static final int POSTS_PER_PAGE = 40;
+    private static final int BENCHMARK_RUNS = 50;
+
+    private int compileCount;
+    private int openReaders;
+
+    @Before
+    public void setUp() {
+        TemplateCache.clear();
+        compileCount = 0;
+        openReaders = 0;
+    }
+
+    @After
+    public void tearDown() {
+        TemplateCache.clear();
+    }
+
+
+    @Test
+    public void sameVersion_compilesOnce() throws IOException {
+        Template first = TemplateCache.getTemplate("test", 1, this::countingSource);
+        Template second = TemplateCache.getTemplate("test", 1, this::countingSource);
+        assertThat(second, sameInstance(first));
+        assertThat(compileCount, is(1));
+    }
+
+    @Test
+    public void newVersion_recompiles() throws IOException {
+        Template original = TemplateCache.getTemplate("test", 1, this::countingSource);
+        Template edited = TemplateCache.getTemplate("test", 2, this::countingSource);
+        assertThat(edited, not(sameInstance(original)));
+        assertThat(compileCount, is(2));
+    }
+
+
+    @Test
+    public void postTemplate_reusedAcrossPages_andRendersSameAsUncompiledCopy() throws IOException {
+        List<Map<String, String>> page = fakePage();
+        String firstRender = renderPage(page);
+        String secondRender = renderPage(page);
+        assertThat(compileCount, is(1));
+        // the cache has to close the template file once it's compiled
+        assertThat(openReaders, is(0));
+
+        Template uncached;
+        try (Reader reader = new FileReader(POST_TEMPLATE)) {
+            uncached = Mustache.compiler().compile(reader);
+        }
+        StringBuilder expected = new StringBuilder();
+        for (Map<String, String> post : page) {
+            expected.append(uncached.execute(post));
+        }
+        assertThat(firstRender, is(expected.toString()));
+        assertThat(secondRender, is(firstRender));
+    }
+
+
+    /**
+     * Not a real test - renders a page of posts with a cold and a warm template cache, and prints the timings.
+     */
+    @Ignore("benchmark - run it by hand to compare the timings")
+    @Test
+    public void benchmark_renderPageColdAndWarm() throws IOException {
+        List<Map<String, String>> page = fakePage();
+
+        // let the JIT settle before timing anything
+        for (int i = 0; i < BENCHMARK_RUNS; i++) {
+            TemplateCache.clear();
+            renderPage(page);
+        }
+
+        long coldNanos = 0;
+        for (int i = 0; i < BENCHMARK_RUNS; i++) {
+            TemplateCache.clear();
+            long start = System.nanoTime();
+            renderPage(page);
+            coldNanos += System.nanoTime() - start;
+        }
+
+        long warmNanos = 0;
+        for (int i = 0; i < BENCHMARK_RUNS; i++) {
+            long start = System.nanoTime();
+            renderPage(page);
+            warmNanos += System.nanoTime() - start;
+        }
+
+        System.out.println(String.format(Locale.US, "Rendering %d posts - cold template: %.3fms, warm template: %.3fms",
+                POSTS_PER_PAGE, coldNanos / 1e6 / BENCHMARK_RUNS, warmNanos / 1e6 / BENCHMARK_RUNS));
+    }
+
+
+    private String renderPage(List<Map<String, String>> posts) throws IOException {
+        // the cache takes ownership of the reader and closes it after compiling, so keep track of that
+        Template template = TemplateCache.getTemplate("post", POST_TEMPLATE.lastModified(), () -> {
+            compileCount++;
+            openReaders++;
+            return new FileReader(POST_TEMPLATE) {
+                @Override
+                public void close() throws IOException {
+                    openReaders--;
+                    super.close();
+                }
+            };
+        });
+        StringBuilder html = new StringBuilder();
+        for (Map<String, String> post : posts) {
+            html.append(template.execute(post));
+        }
+        return html.toString();
+    }
+
+
+    private List<Map<String, String>> fakePage() {
+        List<Map<String, String>> posts = new ArrayList<>(POSTS_PER_PAGE);
+        for (int i = 0; i < POSTS_PER_PAGE; i++) {
+            Map<String, String> post = new HashMap<>();
+            post.put("seen", i < POSTS_PER_PAGE / 2 ? "read" : "unread");
+            post.put("postID", Integer.toString(1000 + i));
+            post.put("username", "poster" + i);
+            post.put("userID", Integer.toString(i));
+            post.put("postDate", "Jan 1, 2019 12:00");
+            post.put("regDate", "Jan 1, 2001");
+            post.put("avatarText", "a title");
+            post.put("lastReadUrl", Integer.toString(i));
+            post.put("postcontent", "<p>Some post content</p><blockquote>a quote</blockquote><p>more content</p>");
+            posts.add(post);
+        }
+        return posts;
+    }
+
+
+    private StringReader countingSource() {
+        compileCount++;
+        return new StringReader("<p>{{username}}</p>");
+    }
+}
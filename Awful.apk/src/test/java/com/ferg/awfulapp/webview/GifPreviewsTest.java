@@ -0,0 +1,66 @@
+package com.ferg.awfulapp.webview;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.core.Is.is;
+
+public class GifPreviewsTest {
+
+    /** A 1x1 GIF with a global colour table and a graphic control extension before each frame */
+    private static final int[] FRAME = {
+            // graphic control extension
+            0x21, 0xF9, 0x04, 0x00, 0x00, 0x00, 0x00, 0x00,
+            // image descriptor, no local colour table
+            0x2C, 0x00, 0x00, 0x00, 0x00, 0x01, 0x00, 0x01, 0x00, 0x00,
+            // LZW code size, one data sub-block, terminator
+            0x02, 0x02, 0x44, 0x01, 0x00
+    };
+    private static final int[] HEADER = {
+            'G', 'I', 'F', '8', '9', 'a',
+            // 1x1, global colour table of 2 entries
+            0x01, 0x00, 0x01, 0x00, 0x80, 0x00, 0x00,
+            0x00, 0x00, 0x00, 0xFF, 0xFF, 0xFF
+    };
+    private static final int FIRST_FRAME_END = HEADER.length + FRAME.length;
+
+    private static byte[] twoFrameGif() {
+        byte[] gif = new byte[HEADER.length + FRAME.length * 2 + 1];
+        int position = 0;
+        for (int[] part : new int[][]{HEADER, FRAME, FRAME, {0x3B}}) {
+            for (int b : part) {
+                gif[position++] = (byte) b;
+            }
+        }
+        return gif;
+    }
+
+
+    @Test
+    public void findsTheEndOfTheFirstFrame() {
+        byte[] gif = twoFrameGif();
+        assertThat(GifPreviews.findFirstFrameEnd(gif, gif.length), is(FIRST_FRAME_END));
+    }
+
+    @Test
+    public void firstFrameCanEndTheData() {
+        byte[] gif = twoFrameGif();
+        assertThat(GifPreviews.findFirstFrameEnd(gif, FIRST_FRAME_END), is(FIRST_FRAME_END));
+    }
+
+    @Test
+    public void needsMoreDataForAPartialFrame() {
+        byte[] gif = twoFrameGif();
+        assertThat(GifPreviews.findFirstFrameEnd(gif, FIRST_FRAME_END - 1), is(-1));
+        assertThat(GifPreviews.findFirstFrameEnd(gif, HEADER.length + 4), is(-1));
+        assertThat(GifPreviews.findFirstFrameEnd(gif, 10), is(-1));
+    }
+
+    @Test
+    public void rejectsOtherFormats() {
+        byte[] png = Arrays.copyOf(new byte[]{(byte) 0x89, 'P', 'N', 'G'}, 64);
+        assertThat(GifPreviews.findFirstFrameEnd(png, png.length), is(-2));
+    }
+}